@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.cassandra.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// pages are "fetched" synchronously when the current page is exhausted, same as the driver does
+// when iterating past the last available row
+class MockResultSet implements ResultSet {
+
+    private static final Row ROW = (Row) Proxy.newProxyInstance(Row.class.getClassLoader(),
+            new Class<?>[] {Row.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    throw new UnsupportedOperationException();
+                }
+            });
+
+    private final int pageSize;
+
+    private int remaining;
+    private int availableWithoutFetching;
+
+    MockResultSet(int rowCount, int pageSize) {
+        this.pageSize = pageSize;
+        remaining = rowCount;
+        availableWithoutFetching = Math.min(rowCount, pageSize);
+    }
+
+    @Override
+    public Row one() {
+        if (remaining == 0) {
+            return null;
+        }
+        if (availableWithoutFetching == 0) {
+            availableWithoutFetching = Math.min(remaining, pageSize);
+        }
+        remaining--;
+        availableWithoutFetching--;
+        return ROW;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return remaining == 0;
+    }
+
+    @Override
+    public boolean isFullyFetched() {
+        return remaining == availableWithoutFetching;
+    }
+
+    @Override
+    public int getAvailableWithoutFetching() {
+        return availableWithoutFetching;
+    }
+
+    @Override
+    public List<Row> all() {
+        List<Row> rows = Lists.newArrayList();
+        for (Row row : this) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            @Override
+            public boolean hasNext() {
+                return !isExhausted();
+            }
+            @Override
+            public Row next() {
+                return one();
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> fetchMoreResults() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ExecutionInfo getExecutionInfo() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<ExecutionInfo> getAllExecutionInfo() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean wasApplied() {
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.cassandra.support;
+
+import java.util.Map;
+
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// local stand-in for a cassandra session, so that the plugin overhead can be measured without the
+// network round trip dominating
+public class MockSession implements Session {
+
+    private final int rowCount;
+    private final int pageSize;
+
+    public MockSession(int rowCount, int pageSize) {
+        this.rowCount = rowCount;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public ResultSet execute(Statement statement) {
+        return new MockResultSet(rowCount, pageSize);
+    }
+
+    @Override
+    public String getLoggedKeyspace() {
+        return null;
+    }
+
+    @Override
+    public Session init() {
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSet execute(String query) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSet execute(String query, Object... values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSet execute(String query, Map<String, Object> values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Object... values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Map<String, Object> values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PreparedStatement prepare(String query) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PreparedStatement prepare(RegularStatement statement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public Cluster getCluster() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public State getState() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.netty;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.plugin.netty.support.MockHttpHandler;
+
+// measures the overhead of the netty plugin on each inbound message as a function of pipeline
+// depth, run with and without the netty plugin's pipelineBoundaryOnly property to compare
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int pipelineDepth;
+
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        ChannelHandler[] handlers = new ChannelHandler[pipelineDepth + 1];
+        for (int i = 0; i < pipelineDepth; i++) {
+            // pass-through handlers, each one is another hop through fireChannelRead()
+            handlers[i] = new ChannelInboundHandlerAdapter();
+        }
+        handlers[pipelineDepth] = new MockHttpHandler();
+        channel = new EmbeddedChannel(handlers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void channelRead() {
+        channel.writeInbound(
+                new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/abc?xyz=123"));
+        Object response;
+        while ((response = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(response);
+        }
+    }
+}
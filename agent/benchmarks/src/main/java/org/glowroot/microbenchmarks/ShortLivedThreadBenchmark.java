@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the overhead of starting a transaction in each of many short-lived threads, virtual
+// threads require running the benchmark on java 21+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ShortLivedThreadBenchmark {
+
+    private static final int THREAD_COUNT = 1000;
+
+    @Param
+    private ThreadKind threadKind;
+
+    private TransactionWorthy transactionWorthy;
+    private Runnable runnable;
+
+    private Method startVirtualThreadMethod;
+
+    @Setup
+    public void setup() throws Exception {
+        transactionWorthy = new TransactionWorthy();
+        runnable = new Runnable() {
+            @Override
+            public void run() {
+                transactionWorthy.doSomethingTransactionWorthy2();
+            }
+        };
+        if (threadKind == ThreadKind.VIRTUAL) {
+            startVirtualThreadMethod = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREAD_COUNT)
+    public void execute() throws Exception {
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i] = startThread();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private Thread startThread() throws Exception {
+        switch (threadKind) {
+            case PLATFORM:
+                Thread thread = new Thread(runnable);
+                thread.start();
+                return thread;
+            case VIRTUAL:
+                return (Thread) startVirtualThreadMethod.invoke(null, runnable);
+            default:
+                throw new IllegalStateException("Unexpected thread kind: " + threadKind);
+        }
+    }
+
+    public enum ThreadKind {
+        PLATFORM, VIRTUAL
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,4 +20,6 @@ public class TransactionWorthy {
     public void doSomethingTransactionWorthy() throws Exception {}
 
     public void doSomethingTransactionWorthy2() {}
+
+    public void doSomethingTransactionWorthyWithTypeChange() {}
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,6 +18,7 @@ package org.glowroot.microbenchmarks.support;
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.OptionalThreadContext;
+import org.glowroot.agent.plugin.api.ThreadContext.Priority;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.weaving.BindThrowable;
@@ -54,4 +55,32 @@ public class TransactionWorthyAspect {
             traceEntry.endWithError(t);
         }
     }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.core.support.TransactionWorthy",
+            methodName = "doSomethingTransactionWorthyWithTypeChange", methodParameterTypes = {},
+            timerName = "transaction worthy")
+    public static class TransactionWorthyWithTypeChangeAdvice {
+
+        private static final TimerName timerName =
+                Agent.getTimerName(TransactionWorthyWithTypeChangeAdvice.class);
+
+        @OnBefore
+        public static TraceEntry onBefore(OptionalThreadContext context) {
+            TraceEntry traceEntry = context.startTransaction("Microbenchmark",
+                    "transaction worthy", MessageSupplier.create("transaction worthy"), timerName);
+            context.setTransactionType("Microbenchmark B", Priority.USER_PLUGIN);
+            return traceEntry;
+        }
+
+        @OnReturn
+        public static void onReturn(@BindTraveler TraceEntry traceEntry) {
+            traceEntry.end();
+        }
+
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler TraceEntry traceEntry) {
+            traceEntry.endWithError(t);
+        }
+    }
 }
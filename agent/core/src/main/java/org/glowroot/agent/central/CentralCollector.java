@@ -24,8 +24,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import io.grpc.stub.StreamObserver;
@@ -33,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CollectorStreamMultiplexer.StreamWriter;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
@@ -69,17 +73,24 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final int DEFAULT_SPOOL_SIZE_MB = 10;
+
     private final String agentId;
     private final String agentRollupId;
     private final String collectorAddress;
+    private final int spoolSizeMb;
     private final CentralConnection centralConnection;
     private final CollectorServiceStub collectorServiceStub;
+    private final CollectorStreamMultiplexer collectorStreamMultiplexer;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
     private volatile int nextAggregateDelayMillis;
 
+    // null until init, or if the spool could not be created
+    private volatile @Nullable CentralSpool spool;
+
     public CentralCollector(Map<String, String> properties, String collectorAddress,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
@@ -92,6 +103,7 @@ public class CentralCollector implements Collector {
         this.agentId = agentId;
         this.agentRollupId = Strings.nullToEmpty(properties.get("glowroot.agent.rollup.id"));
         this.collectorAddress = collectorAddress;
+        spoolSizeMb = getSpoolSizeMb(properties.get("glowroot.collector.spoolSizeMb"));
 
         if (agentRollupId.isEmpty()) {
             startupLogger.info("agent id: {}", agentId);
@@ -122,14 +134,28 @@ public class CentralCollector implements Collector {
         centralConnection = new CentralConnection(collectorAddresses, inConnectionFailure);
         collectorServiceStub = CollectorServiceGrpc.newStub(centralConnection.getChannel())
                 .withCompression("gzip");
+        collectorStreamMultiplexer =
+                new CollectorStreamMultiplexer(collectorServiceStub, centralConnection);
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
-                agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
-                agentId, inConnectionFailure, sharedQueryTextLimiter);
+                collectorStreamMultiplexer, agentConfigUpdater, liveJvmService,
+                liveWeavingService, liveTraceRepository, agentId, inConnectionFailure,
+                sharedQueryTextLimiter);
     }
 
     @Override
     public void init(File glowrootDir, File agentDir, Environment environment,
             AgentConfig agentConfig, final AgentConfigUpdater agentConfigUpdater) {
+        if (spoolSizeMb > 0) {
+            File spoolFile = new File(new File(agentDir, "tmp"), "central-spool.capped.db");
+            try {
+                spool = new CentralSpool(spoolFile, spoolSizeMb * 1024,
+                        collectorStreamMultiplexer, Ticker.systemTicker());
+            } catch (IOException e) {
+                logger.error("unable to create spool file {}, data that cannot be sent to the"
+                        + " central collector will be dropped: {}", spoolFile.getAbsolutePath(),
+                        e.getMessage(), e);
+            }
+        }
         final InitMessage initMessage = InitMessage.newBuilder()
                 .setAgentId(agentId)
                 .setAgentRollupId(agentRollupId)
@@ -175,7 +201,7 @@ public class CentralCollector implements Collector {
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+                collectorStreamMultiplexer.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
         });
     }
@@ -207,15 +233,19 @@ public class CentralCollector implements Collector {
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.log(logMessage, responseObserver);
+                collectorStreamMultiplexer.log(logMessage, responseObserver);
             }
         });
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
         downstreamServiceObserver.close();
         centralConnection.close();
+        CentralSpool spool = this.spool;
+        if (spool != null) {
+            spool.close();
+        }
     }
 
     @OnlyUsedByTests
@@ -223,7 +253,27 @@ public class CentralCollector implements Collector {
         centralConnection.awaitClose();
     }
 
-    private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
+    private void replaySpoolIfNeeded() {
+        CentralSpool spool = this.spool;
+        if (spool != null) {
+            spool.replayAsync();
+        }
+    }
+
+    private static int getSpoolSizeMb(@Nullable String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return DEFAULT_SPOOL_SIZE_MB;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            throw new IllegalStateException("Invalid collector.spoolSizeMb: " + value);
+        }
+    }
+
+    private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage>
+            implements StreamWriter<AggregateStreamMessage> {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
             private final StreamObserver<AggregateStreamMessage> requestObserver;
@@ -278,23 +328,7 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime()))
-                    .build());
-            // need to clear in case this is a retry
-            fullTextSha1s.clear();
-            try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
-            }
-            requestObserver.onCompleted();
+            collectorStreamMultiplexer.collectAggregateStream(this, responseObserver);
         }
 
         @Override
@@ -304,10 +338,33 @@ public class CentralCollector implements Collector {
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
+            replaySpoolIfNeeded();
+        }
+
+        @Override
+        void doOnDrop() {
+            CentralSpool spool = CentralCollector.this.spool;
+            if (spool != null) {
+                spool.spoolAggregateStream(this);
+            }
+        }
+
+        @Override
+        public void write(StreamObserver<AggregateStreamMessage> requestObserver)
+                throws Exception {
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setStreamHeader(AggregateStreamHeader.newBuilder()
+                            .setAgentId(agentId)
+                            .setCaptureTime(aggregateReader.captureTime()))
+                    .build());
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
         }
     }
 
-    private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
+    private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage>
+            implements StreamWriter<TraceStreamMessage> {
 
         private final TraceReader traceReader;
 
@@ -319,8 +376,31 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<EmptyMessage> responseObserver) {
-            StreamObserver<TraceStreamMessage> requestObserver =
-                    collectorServiceStub.collectTraceStream(responseObserver);
+            collectorStreamMultiplexer.collectTraceStream(this, responseObserver);
+        }
+
+        @Override
+        public void doWithResponse(EmptyMessage response) {
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+            replaySpoolIfNeeded();
+        }
+
+        @Override
+        void doOnDrop() {
+            if (traceReader.partial()) {
+                // partial transactions are live, so not worth replaying later
+                return;
+            }
+            CentralSpool spool = CentralCollector.this.spool;
+            if (spool != null) {
+                spool.spoolTraceStream(this);
+            }
+        }
+
+        @Override
+        public void write(StreamObserver<TraceStreamMessage> requestObserver) throws Exception {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -330,26 +410,12 @@ public class CentralCollector implements Collector {
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
-            try {
-                traceReader.accept(traceVisitor);
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
-            }
+            traceReader.accept(traceVisitor);
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount)
                             .setEntryCount(traceVisitor.entryCount))
                     .build());
-            requestObserver.onCompleted();
-        }
-
-        @Override
-        public void doWithResponse(EmptyMessage response) {
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-            }
         }
     }
 
@@ -136,12 +136,14 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.doOnDrop();
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
                 backPressureLogger.warn("not sending data to the central collector because of an"
                         + " excessive backlog of {} requests in progress", PENDING_LIMIT);
+                call.doOnDrop();
                 return;
             }
             pendingRequestCount++;
@@ -218,6 +220,8 @@ class CentralConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when giving up on sending the data to the central collector
+        void doOnDrop() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -259,6 +263,7 @@ class CentralConnection {
             }
             if (inConnectionFailure.get()) {
                 decrementPendingRequestCount();
+                grpcCall.doOnDrop();
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -273,6 +278,7 @@ class CentralConnection {
                             t.getMessage(), t);
                 }
                 decrementPendingRequestCount();
+                grpcCall.doOnDrop();
                 return;
             }
 
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.protobuf.AbstractMessage;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.central.CollectorStreamMultiplexer.StreamWriter;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// buffers aggregate and trace streams on local disk when they could not be sent to the central
+// collector, and replays them (oldest first, one stream at a time) once the central collector is
+// accepting data again
+//
+// the spool is bounded by the capped database size, so the oldest spooled streams are lost first
+// if the central collector is unreachable for a long time
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    private static final String AGGREGATE_TYPE = "aggregate";
+    private static final String TRACE_TYPE = "trace";
+
+    // pause between replayed streams so that a large backlog does not swamp the central collector
+    // right after it comes back
+    private static final int REPLAY_DELAY_MILLIS = 100;
+
+    private final CappedDatabase cappedDatabase;
+    private final CollectorStreamMultiplexer collectorStreamMultiplexer;
+
+    // single thread, so all spool state below is only accessed from this thread
+    private final ScheduledExecutorService executor;
+
+    private final Deque<SpooledStream> spooledStreams = Queues.newArrayDeque();
+    private boolean replaying;
+
+    // read from other threads to avoid submitting replay tasks when there is nothing to replay
+    private volatile boolean empty = true;
+
+    private final RateLimitedLogger spoolErrorLogger = new RateLimitedLogger(CentralSpool.class);
+
+    CentralSpool(File file, int sizeKb, CollectorStreamMultiplexer collectorStreamMultiplexer,
+            Ticker ticker) throws IOException {
+        // spooled streams are only tracked in memory, so any spool file left over from a prior
+        // JVM cannot be replayed, and deleting it also avoids failing on a corrupt spool file
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete spool file: " + file.getAbsolutePath());
+        }
+        cappedDatabase = new CappedDatabase(file, sizeKb, ticker);
+        this.collectorStreamMultiplexer = collectorStreamMultiplexer;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Collector-Spool"));
+    }
+
+    // the stream is collected on the calling thread, since the aggregate and trace readers behind
+    // the stream writer may no longer be valid by the time the spool thread gets to it
+    void spoolAggregateStream(StreamWriter<AggregateStreamMessage> streamWriter) {
+        spoolAsync(AGGREGATE_TYPE, collect(streamWriter));
+    }
+
+    void spoolTraceStream(StreamWriter<TraceStreamMessage> streamWriter) {
+        spoolAsync(TRACE_TYPE, collect(streamWriter));
+    }
+
+    // called after data has been successfully sent to the central collector
+    void replayAsync() {
+        if (empty) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replayNext();
+            }
+        });
+    }
+
+    @OnlyUsedByTests
+    void close() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        cappedDatabase.close();
+    }
+
+    private <T extends AbstractMessage> List<T> collect(StreamWriter<T> streamWriter) {
+        CollectingStreamObserver<T> collectingStreamObserver = new CollectingStreamObserver<T>();
+        try {
+            streamWriter.write(collectingStreamObserver);
+        } catch (Throwable t) {
+            spoolErrorLogger.warn("error spooling data for the central collector: {}",
+                    t.getMessage(), t);
+            return ImmutableList.of();
+        }
+        return collectingStreamObserver.messages;
+    }
+
+    private void spoolAsync(final String type, final List<? extends AbstractMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long cappedId = cappedDatabase.writeMessages(messages, type);
+                    if (cappedId != -1) {
+                        spooledStreams.add(new SpooledStream(type, cappedId));
+                        empty = false;
+                    }
+                } catch (Throwable t) {
+                    spoolErrorLogger.warn("error spooling data for the central collector: {}",
+                            t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    private void replayNext() {
+        if (replaying) {
+            return;
+        }
+        removeExpired();
+        SpooledStream spooledStream;
+        List<? extends AbstractMessage> messages;
+        try {
+            while (true) {
+                spooledStream = spooledStreams.peek();
+                if (spooledStream == null) {
+                    empty = true;
+                    return;
+                }
+                messages = read(spooledStream);
+                if (!messages.isEmpty()) {
+                    break;
+                }
+                // overwritten mid-read
+                spooledStreams.remove();
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return;
+        }
+        replaying = true;
+        if (spooledStream.type.equals(AGGREGATE_TYPE)) {
+            collectorStreamMultiplexer.collectAggregateStream(
+                    new ReplayStreamWriter<AggregateStreamMessage>(messages),
+                    new ReplayResponseObserver<AggregateResponseMessage>(spooledStream));
+        } else {
+            collectorStreamMultiplexer.collectTraceStream(
+                    new ReplayStreamWriter<TraceStreamMessage>(messages),
+                    new ReplayResponseObserver<EmptyMessage>(spooledStream));
+        }
+    }
+
+    private void removeExpired() {
+        long smallestNonExpiredId = cappedDatabase.getSmallestNonExpiredId();
+        Iterator<SpooledStream> i = spooledStreams.iterator();
+        while (i.hasNext()) {
+            if (i.next().cappedId >= smallestNonExpiredId) {
+                // ids are increasing, so the rest are not expired either
+                break;
+            }
+            i.remove();
+        }
+    }
+
+    private List<? extends AbstractMessage> read(SpooledStream spooledStream) throws IOException {
+        if (spooledStream.type.equals(AGGREGATE_TYPE)) {
+            return cappedDatabase.readMessages(spooledStream.cappedId,
+                    AggregateStreamMessage.parser());
+        } else {
+            return cappedDatabase.readMessages(spooledStream.cappedId,
+                    TraceStreamMessage.parser());
+        }
+    }
+
+    private static class ReplayStreamWriter<T> implements StreamWriter<T> {
+
+        private final List<? extends AbstractMessage> messages;
+
+        private ReplayStreamWriter(List<? extends AbstractMessage> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(StreamObserver<T> requestObserver) {
+            for (AbstractMessage message : messages) {
+                requestObserver.onNext((T) message);
+            }
+        }
+    }
+
+    private class ReplayResponseObserver<T> implements StreamObserver<T> {
+
+        private final SpooledStream spooledStream;
+
+        private ReplayResponseObserver(SpooledStream spooledStream) {
+            this.spooledStream = spooledStream;
+        }
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(final Throwable t) {
+            logger.debug(t.getMessage(), t);
+            // leave the stream at the head of the spool, replay will resume after the next
+            // successful send to the central collector
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replaying = false;
+                }
+            });
+        }
+
+        @Override
+        public void onCompleted() {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    spooledStreams.remove(spooledStream);
+                    replaying = false;
+                    replayNext();
+                }
+            }, REPLAY_DELAY_MILLIS, MILLISECONDS);
+        }
+    }
+
+    private static class CollectingStreamObserver<T extends AbstractMessage>
+            implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+
+    private static class SpooledStream {
+
+        private final String type;
+        private final long cappedId;
+
+        private SpooledStream(String type, long cappedId) {
+            this.type = type;
+            this.cappedId = cappedId;
+        }
+    }
+}
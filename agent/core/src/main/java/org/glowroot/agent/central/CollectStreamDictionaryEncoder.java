@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// replaces repeated strings (timer names, transaction names, service call texts and profile frame
+// names) with references into a dictionary that is built up over the life of a single
+// collectStream call
+//
+// not thread safe
+class CollectStreamDictionaryEncoder {
+
+    // these bound the memory retained by the central collector for each connected agent
+    private static final int MAX_ENTRIES = 4096;
+    private static final int MAX_ENTRY_LENGTH = 128;
+
+    private final Map<String, Integer> refs = Maps.newHashMap();
+
+    // entries that need to be sent (in order) prior to sending the next encoded message
+    private List<String> newEntries = Lists.newArrayList();
+
+    List<String> drainNewEntries() {
+        if (newEntries.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<String> entries = newEntries;
+        newEntries = Lists.newArrayList();
+        return entries;
+    }
+
+    AggregateStreamMessage encode(AggregateStreamMessage message) {
+        switch (message.getMessageCase()) {
+            case OVERALL_AGGREGATE:
+                OverallAggregate overallAggregate = message.getOverallAggregate();
+                return AggregateStreamMessage.newBuilder()
+                        .setOverallAggregate(overallAggregate.toBuilder()
+                                .setAggregate(encode(overallAggregate.getAggregate())))
+                        .build();
+            case TRANSACTION_AGGREGATE:
+                TransactionAggregate transactionAggregate = message.getTransactionAggregate();
+                TransactionAggregate.Builder builder = transactionAggregate.toBuilder()
+                        .setAggregate(encode(transactionAggregate.getAggregate()));
+                int ref = getRef(transactionAggregate.getTransactionName());
+                if (ref != 0) {
+                    builder.clearTransactionName()
+                            .setTransactionNameRef(ref);
+                }
+                return AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(builder)
+                        .build();
+            default:
+                return message;
+        }
+    }
+
+    TraceStreamMessage encode(TraceStreamMessage message) {
+        switch (message.getMessageCase()) {
+            case HEADER:
+                return TraceStreamMessage.newBuilder()
+                        .setHeader(encode(message.getHeader()))
+                        .build();
+            case MAIN_THREAD_PROFILE:
+                return TraceStreamMessage.newBuilder()
+                        .setMainThreadProfile(encode(message.getMainThreadProfile()))
+                        .build();
+            case AUX_THREAD_PROFILE:
+                return TraceStreamMessage.newBuilder()
+                        .setAuxThreadProfile(encode(message.getAuxThreadProfile()))
+                        .build();
+            default:
+                return message;
+        }
+    }
+
+    private Aggregate encode(Aggregate aggregate) {
+        Aggregate.Builder builder = aggregate.toBuilder();
+        for (Aggregate.Timer.Builder timer : builder.getMainThreadRootTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Aggregate.Timer.Builder timer : builder.getAuxThreadRootTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Aggregate.Timer.Builder timer : builder.getAsyncTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Aggregate.ServiceCallsByType.Builder serviceCallsByType : builder
+                .getServiceCallsByTypeBuilderList()) {
+            for (Aggregate.ServiceCall.Builder serviceCall : serviceCallsByType
+                    .getServiceCallBuilderList()) {
+                int ref = getRef(serviceCall.getText());
+                if (ref != 0) {
+                    serviceCall.clearText()
+                            .setTextRef(ref);
+                }
+            }
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            builder.setMainThreadProfile(encode(aggregate.getMainThreadProfile()));
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            builder.setAuxThreadProfile(encode(aggregate.getAuxThreadProfile()));
+        }
+        return builder.build();
+    }
+
+    private void encode(Aggregate.Timer.Builder timer) {
+        int ref = getRef(timer.getName());
+        if (ref != 0) {
+            timer.clearName()
+                    .setNameRef(ref);
+        }
+        for (Aggregate.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+            encode(childTimer);
+        }
+    }
+
+    private Trace.Header encode(Trace.Header header) {
+        Trace.Header.Builder builder = header.toBuilder();
+        int ref = getRef(header.getTransactionName());
+        if (ref != 0) {
+            builder.clearTransactionName()
+                    .setTransactionNameRef(ref);
+        }
+        if (builder.hasMainThreadRootTimer()) {
+            encode(builder.getMainThreadRootTimerBuilder());
+        }
+        for (Trace.Timer.Builder timer : builder.getAuxThreadRootTimerBuilderList()) {
+            encode(timer);
+        }
+        for (Trace.Timer.Builder timer : builder.getAsyncTimerBuilderList()) {
+            encode(timer);
+        }
+        return builder.build();
+    }
+
+    private void encode(Trace.Timer.Builder timer) {
+        int ref = getRef(timer.getName());
+        if (ref != 0) {
+            timer.clearName()
+                    .setNameRef(ref);
+        }
+        for (Trace.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+            encode(childTimer);
+        }
+    }
+
+    private Profile encode(Profile profile) {
+        if (!canEncodeAll(Iterables.concat(profile.getPackageNameList(),
+                profile.getClassNameList(), profile.getMethodNameList(),
+                profile.getFileNameList()))) {
+            // not worth the complexity of encoding only some of the names
+            return profile;
+        }
+        return profile.toBuilder()
+                .clearPackageName()
+                .clearClassName()
+                .clearMethodName()
+                .clearFileName()
+                .addAllPackageNameRef(getRefs(profile.getPackageNameList()))
+                .addAllClassNameRef(getRefs(profile.getClassNameList()))
+                .addAllMethodNameRef(getRefs(profile.getMethodNameList()))
+                .addAllFileNameRef(getRefs(profile.getFileNameList()))
+                .build();
+    }
+
+    // this is checked up front so that no dictionary entries are added for names that end up
+    // not being encoded
+    private boolean canEncodeAll(Iterable<String> values) {
+        Set<String> newValues = Sets.newHashSet();
+        for (String value : values) {
+            if (refs.containsKey(value)) {
+                continue;
+            }
+            if (value.length() > MAX_ENTRY_LENGTH) {
+                return false;
+            }
+            newValues.add(value);
+        }
+        return refs.size() + newValues.size() <= MAX_ENTRIES;
+    }
+
+    // must only be called after canEncodeAll() returns true for the values
+    private List<Integer> getRefs(List<String> values) {
+        List<Integer> refs = Lists.newArrayListWithCapacity(values.size());
+        for (String value : values) {
+            int ref = getRef(value);
+            checkState(ref != 0);
+            refs.add(ref);
+        }
+        return refs;
+    }
+
+    // returns 0 if the value is not in (and cannot be added to) the dictionary
+    private int getRef(String value) {
+        Integer ref = refs.get(value);
+        if (ref != null) {
+            return ref;
+        }
+        if (value.length() > MAX_ENTRY_LENGTH || refs.size() >= MAX_ENTRIES) {
+            return 0;
+        }
+        ref = refs.size() + 1;
+        refs.put(value, ref);
+        newEntries.add(value);
+        return ref;
+    }
+}
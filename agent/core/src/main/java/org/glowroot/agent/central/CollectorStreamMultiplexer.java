@@ -0,0 +1,649 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamCancel;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamDictionaryEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamError;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sends aggregate, trace, gauge value and log requests over a single long-lived collectStream call
+// instead of opening a new call for each request
+//
+// the central collector tells the agent how many requests it can have in flight on the stream, and
+// acknowledges each request individually, so a single failed request does not tear down the stream
+//
+// aggregate and trace requests are streamed as they are read, so they are not held in memory while
+// waiting for the response, and are read again from the stream writer if they need to be sent
+// using an individual call instead
+//
+// falls back to the individual calls if the central collector does not implement collectStream
+// (until the next reconnect)
+class CollectorStreamMultiplexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorStreamMultiplexer.class);
+
+    // aggregate and trace requests wait on the calling thread for the central collector to allow
+    // another request in flight, but not indefinitely
+    private static final long MAX_IN_FLIGHT_WAIT_MILLIS = SECONDS.toMillis(60);
+
+    private final CollectorServiceStub collectorServiceStub;
+    private final CentralConnection centralConnection;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private @Nullable ClientCallStreamObserver<CollectStreamMessage> currRequestObserver;
+    // dictionary is scoped to the current stream
+    @GuardedBy("lock")
+    private @Nullable CollectStreamDictionaryEncoder currDictionaryEncoder;
+    // until the central collector sends flow control
+    @GuardedBy("lock")
+    private int maxInFlightRequests = 1;
+    @GuardedBy("lock")
+    private final Map<Long, PendingRequest> inFlightRequests = Maps.newHashMap();
+    // gauge value and log requests, which are small and so are queued instead of waiting
+    @GuardedBy("lock")
+    private final Deque<SingleMessageRequest> queuedRequests = Queues.newArrayDeque();
+    // encoded messages (including dictionary entries) of in flight requests that have not been
+    // sent on the current stream yet
+    @GuardedBy("lock")
+    private final Deque<CollectStreamMessage> unsentMessages = Queues.newArrayDeque();
+    @GuardedBy("lock")
+    private boolean flushing;
+    @GuardedBy("lock")
+    private boolean flushRequested;
+
+    private volatile boolean unimplemented;
+
+    CollectorStreamMultiplexer(CollectorServiceStub collectorServiceStub,
+            CentralConnection centralConnection) {
+        this.collectorServiceStub = collectorServiceStub;
+        this.centralConnection = centralConnection;
+    }
+
+    // the stream writer is called on the calling thread, and may be called a second time (e.g. on
+    // the grpc executor thread) if the request needs to be sent using an individual call instead
+    void collectAggregateStream(StreamWriter<AggregateStreamMessage> streamWriter,
+            final StreamObserver<AggregateResponseMessage> responseObserver) {
+        send(new StreamingRequest<AggregateStreamMessage, AggregateResponseMessage>(streamWriter,
+                responseObserver) {
+            @Override
+            CollectStreamMessage.Builder toCollectStreamMessage(AggregateStreamMessage message) {
+                return CollectStreamMessage.newBuilder()
+                        .setAggregateStreamMessage(message);
+            }
+            @Override
+            void onResponse(CollectStreamResponse response) {
+                responseObserver.onNext(response.getAggregateResponseMessage());
+                responseObserver.onCompleted();
+            }
+            @Override
+            StreamObserver<AggregateStreamMessage> startIndividualCall() {
+                return collectorServiceStub.collectAggregateStream(responseObserver);
+            }
+        });
+    }
+
+    // see comment above
+    void collectTraceStream(StreamWriter<TraceStreamMessage> streamWriter,
+            final StreamObserver<EmptyMessage> responseObserver) {
+        send(new StreamingRequest<TraceStreamMessage, EmptyMessage>(streamWriter,
+                responseObserver) {
+            @Override
+            CollectStreamMessage.Builder toCollectStreamMessage(TraceStreamMessage message) {
+                return CollectStreamMessage.newBuilder()
+                        .setTraceStreamMessage(message);
+            }
+            @Override
+            void onResponse(CollectStreamResponse response) {
+                responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+            @Override
+            StreamObserver<TraceStreamMessage> startIndividualCall() {
+                return collectorServiceStub.collectTraceStream(responseObserver);
+            }
+        });
+    }
+
+    void collectGaugeValues(final GaugeValueMessage gaugeValueMessage,
+            final StreamObserver<EmptyMessage> responseObserver) {
+        if (unimplemented) {
+            collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+            return;
+        }
+        send(new SingleMessageRequest(CollectStreamMessage.newBuilder()
+                .setGaugeValueMessage(gaugeValueMessage), responseObserver) {
+            @Override
+            void sendUsingIndividualCall() {
+                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+            }
+        });
+    }
+
+    void log(final LogMessage logMessage, final StreamObserver<EmptyMessage> responseObserver) {
+        if (unimplemented) {
+            collectorServiceStub.log(logMessage, responseObserver);
+            return;
+        }
+        send(new SingleMessageRequest(CollectStreamMessage.newBuilder()
+                .setLogMessage(logMessage), responseObserver) {
+            @Override
+            void sendUsingIndividualCall() {
+                collectorServiceStub.log(logMessage, responseObserver);
+            }
+        });
+    }
+
+    // called when the connection to the central collector is re-established, since the central
+    // collector may have been upgraded to a version that implements collectStream
+    void onReconnect() {
+        unimplemented = false;
+    }
+
+    private void send(SingleMessageRequest request) {
+        synchronized (lock) {
+            if (!unimplemented) {
+                queuedRequests.add(request);
+            }
+        }
+        if (unimplemented) {
+            request.sendUsingIndividualCall();
+        } else {
+            flush();
+        }
+    }
+
+    private void send(StreamingRequest<?, ?> request) {
+        boolean inFlight;
+        try {
+            inFlight = awaitInFlight(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.responseObserver.onError(Status.CANCELLED.withCause(e).asRuntimeException());
+            return;
+        }
+        if (inFlight) {
+            request.write();
+        } else if (unimplemented) {
+            request.sendUsingIndividualCall();
+        } else {
+            request.responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("timed out waiting to send request to the central collector")
+                    .asRuntimeException());
+        }
+    }
+
+    // returns false if the central collector does not implement collectStream, or if timed out
+    // waiting for the central collector to allow another request in flight
+    private boolean awaitInFlight(PendingRequest request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_IN_FLIGHT_WAIT_MILLIS;
+        synchronized (lock) {
+            while (!unimplemented && inFlightRequests.size() >= maxInFlightRequests) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            if (unimplemented) {
+                return false;
+            }
+            openStreamIfNeeded();
+            inFlightRequests.put(request.requestId, request);
+            return true;
+        }
+    }
+
+    // messages are sent outside of the lock (since onNext can block), but only one thread sends at
+    // a time in order to preserve the message ordering that the dictionary encoding depends on
+    private void flush() {
+        synchronized (lock) {
+            if (flushing) {
+                // the thread that is currently flushing will check again before it exits
+                flushRequested = true;
+                return;
+            }
+            flushing = true;
+        }
+        while (true) {
+            ClientCallStreamObserver<CollectStreamMessage> requestObserver;
+            CollectStreamMessage message;
+            synchronized (lock) {
+                encodeQueuedRequests();
+                requestObserver = currRequestObserver;
+                // honor grpc flow control instead of buffering without bound when the central
+                // collector is slow, the on ready handler flushes again once it is ready
+                if (requestObserver != null && requestObserver.isReady()) {
+                    message = unsentMessages.poll();
+                } else {
+                    message = null;
+                }
+                if (requestObserver == null || message == null) {
+                    if (flushRequested) {
+                        flushRequested = false;
+                        continue;
+                    }
+                    flushing = false;
+                    return;
+                }
+            }
+            requestObserver.onNext(message);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void encodeQueuedRequests() {
+        while (!queuedRequests.isEmpty() && inFlightRequests.size() < maxInFlightRequests) {
+            openStreamIfNeeded();
+            SingleMessageRequest request = queuedRequests.remove();
+            inFlightRequests.put(request.requestId, request);
+            encode(request.message);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void openStreamIfNeeded() {
+        if (currRequestObserver == null || currDictionaryEncoder == null) {
+            CollectStreamResponseObserver responseObserver = new CollectStreamResponseObserver();
+            collectorServiceStub.collectStream(responseObserver);
+            currRequestObserver = checkNotNull(responseObserver.requestObserver);
+            currDictionaryEncoder = new CollectStreamDictionaryEncoder();
+        }
+    }
+
+    // adds the encoded message (preceded by any new dictionary entries) to the unsent messages
+    @GuardedBy("lock")
+    private void encode(CollectStreamMessage message) {
+        CollectStreamDictionaryEncoder dictionaryEncoder = checkNotNull(currDictionaryEncoder);
+        CollectStreamMessage encodedMessage = encode(message, dictionaryEncoder);
+        for (String entry : dictionaryEncoder.drainNewEntries()) {
+            unsentMessages.add(CollectStreamMessage.newBuilder()
+                    .setDictionaryEntry(CollectStreamDictionaryEntry.newBuilder()
+                            .setValue(entry))
+                    .build());
+        }
+        unsentMessages.add(encodedMessage);
+    }
+
+    private static CollectStreamMessage encode(CollectStreamMessage message,
+            CollectStreamDictionaryEncoder dictionaryEncoder) {
+        switch (message.getMessageCase()) {
+            case AGGREGATE_STREAM_MESSAGE:
+                return message.toBuilder()
+                        .setAggregateStreamMessage(
+                                dictionaryEncoder.encode(message.getAggregateStreamMessage()))
+                        .build();
+            case TRACE_STREAM_MESSAGE:
+                return message.toBuilder()
+                        .setTraceStreamMessage(
+                                dictionaryEncoder.encode(message.getTraceStreamMessage()))
+                        .build();
+            default:
+                return message;
+        }
+    }
+
+    private static <T> void writeUsingIndividualCall(StreamWriter<T> streamWriter,
+            StreamObserver<T> requestObserver) {
+        try {
+            streamWriter.write(requestObserver);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            requestObserver.onError(t);
+            return;
+        }
+        requestObserver.onCompleted();
+    }
+
+    interface StreamWriter<T> {
+        void write(StreamObserver<T> requestObserver) throws Exception;
+    }
+
+    private class CollectStreamResponseObserver
+            implements ClientResponseObserver<CollectStreamMessage, CollectStreamResponse> {
+
+        private volatile @Nullable ClientCallStreamObserver<CollectStreamMessage> requestObserver;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<CollectStreamMessage> requestObserver) {
+            this.requestObserver = requestObserver;
+            requestObserver.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(CollectStreamResponse response) {
+            if (response.getMessageCase() == CollectStreamResponse.MessageCase.FLOW_CONTROL) {
+                synchronized (lock) {
+                    maxInFlightRequests =
+                            Math.max(1, response.getFlowControl().getMaxInFlightRequests());
+                    lock.notifyAll();
+                }
+                flush();
+                return;
+            }
+            PendingRequest request;
+            synchronized (lock) {
+                request = inFlightRequests.remove(response.getRequestId());
+                lock.notifyAll();
+            }
+            flush();
+            if (request == null) {
+                final long requestId = response.getRequestId();
+                centralConnection.suppressLogCollector(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.warn("received response for unexpected request id: {}",
+                                requestId);
+                    }
+                });
+                return;
+            }
+            if (response.getMessageCase() == CollectStreamResponse.MessageCase.ERROR) {
+                CollectStreamError error = response.getError();
+                request.onError(Status.fromCodeValue(error.getStatusCode())
+                        .withDescription(error.getDescription())
+                        .asRuntimeException());
+            } else {
+                request.onResponse(response);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            boolean unimplemented =
+                    Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED;
+            List<PendingRequest> requests = close(unimplemented);
+            for (PendingRequest request : requests) {
+                if (unimplemented) {
+                    request.sendUsingIndividualCall();
+                } else {
+                    request.onError(t);
+                }
+            }
+            if (!unimplemented) {
+                // queued requests have not been sent yet, so send them on a new stream
+                flush();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            List<PendingRequest> requests = close(false);
+            for (PendingRequest request : requests) {
+                request.onError(Status.UNAVAILABLE
+                        .withDescription("stream closed by the central collector")
+                        .asRuntimeException());
+            }
+            // queued requests have not been sent yet, so send them on a new stream
+            flush();
+        }
+
+        // returns the requests that need to be failed (or sent using individual calls if
+        // unimplemented)
+        private List<PendingRequest> close(boolean unimplemented) {
+            synchronized (lock) {
+                if (unimplemented) {
+                    CollectorStreamMultiplexer.this.unimplemented = true;
+                }
+                currRequestObserver = null;
+                currDictionaryEncoder = null;
+                maxInFlightRequests = 1;
+                // these were encoded using the dictionary of the closed stream
+                unsentMessages.clear();
+                List<PendingRequest> requests = Lists.newArrayList();
+                for (PendingRequest request : inFlightRequests.values()) {
+                    if (unimplemented && request instanceof StreamingRequest
+                            && ((StreamingRequest<?, ?>) request).writing) {
+                        // the writing thread sends it using an individual call once it has
+                        // finished writing, so that the stream writer is not called concurrently
+                        ((StreamingRequest<?, ?>) request).sendUsingIndividualCallAfterWrite =
+                                true;
+                    } else {
+                        requests.add(request);
+                    }
+                }
+                inFlightRequests.clear();
+                if (unimplemented) {
+                    // these have not been sent yet, but need to be sent using individual calls now
+                    requests.addAll(queuedRequests);
+                    queuedRequests.clear();
+                }
+                // wake up streaming requests that are waiting to be in flight
+                lock.notifyAll();
+                return requests;
+            }
+        }
+    }
+
+    private abstract class PendingRequest {
+
+        final long requestId = nextRequestId.getAndIncrement();
+
+        abstract void onResponse(CollectStreamResponse response);
+
+        abstract void onError(Throwable t);
+
+        abstract void sendUsingIndividualCall();
+    }
+
+    private abstract class SingleMessageRequest extends PendingRequest {
+
+        private final CollectStreamMessage message;
+        private final StreamObserver<EmptyMessage> responseObserver;
+
+        private SingleMessageRequest(CollectStreamMessage.Builder message,
+                StreamObserver<EmptyMessage> responseObserver) {
+            this.message = message.setRequestId(requestId)
+                    .setLast(true)
+                    .build();
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        void onResponse(CollectStreamResponse response) {
+            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        void onError(Throwable t) {
+            responseObserver.onError(t);
+        }
+    }
+
+    // each message is sent on the stream as soon as the stream writer writes it (holding back only
+    // the latest message, since the final message of the request needs to be flagged)
+    private abstract class StreamingRequest<T, R> extends PendingRequest {
+
+        private final StreamWriter<T> streamWriter;
+        private final StreamObserver<R> responseObserver;
+
+        // only accessed by the writing thread
+        private @Nullable T heldBackMessage;
+
+        @GuardedBy("lock")
+        private boolean writing = true;
+        @GuardedBy("lock")
+        private boolean started;
+        @GuardedBy("lock")
+        private boolean sendUsingIndividualCallAfterWrite;
+
+        private StreamingRequest(StreamWriter<T> streamWriter,
+                StreamObserver<R> responseObserver) {
+            this.streamWriter = streamWriter;
+            this.responseObserver = responseObserver;
+        }
+
+        abstract CollectStreamMessage.Builder toCollectStreamMessage(T message);
+
+        abstract StreamObserver<T> startIndividualCall();
+
+        @Override
+        void onError(Throwable t) {
+            responseObserver.onError(t);
+        }
+
+        @Override
+        void sendUsingIndividualCall() {
+            writeUsingIndividualCall(streamWriter, startIndividualCall());
+        }
+
+        private void write() {
+            try {
+                streamWriter.write(new StreamObserver<T>() {
+                    @Override
+                    public void onNext(T value) {
+                        onWriteNext(value);
+                    }
+                    @Override
+                    public void onError(Throwable t) {
+                        onWriteError(t);
+                    }
+                    @Override
+                    public void onCompleted() {}
+                });
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                onWriteError(t);
+                return;
+            }
+            onWriteCompleted();
+        }
+
+        private void onWriteNext(T value) {
+            T message = heldBackMessage;
+            if (message != null) {
+                send(message, false);
+            }
+            heldBackMessage = value;
+        }
+
+        private void onWriteCompleted() {
+            T message = heldBackMessage;
+            heldBackMessage = null;
+            boolean sendUsingIndividualCall;
+            boolean empty = false;
+            synchronized (lock) {
+                if (!writing) {
+                    // already failed by onWriteError()
+                    return;
+                }
+                writing = false;
+                sendUsingIndividualCall = sendUsingIndividualCallAfterWrite;
+                if (message == null && inFlightRequests.remove(requestId) == this) {
+                    lock.notifyAll();
+                    empty = true;
+                }
+            }
+            if (sendUsingIndividualCall) {
+                sendUsingIndividualCall();
+            } else if (message != null) {
+                send(message, true);
+            } else if (empty) {
+                // nothing was written, so there is nothing to send
+                responseObserver.onCompleted();
+            }
+        }
+
+        private void onWriteError(Throwable t) {
+            heldBackMessage = null;
+            boolean inFlight;
+            boolean sendUsingIndividualCall;
+            synchronized (lock) {
+                if (!writing) {
+                    // already failed by an earlier call to onWriteError()
+                    return;
+                }
+                writing = false;
+                inFlight = inFlightRequests.remove(requestId) == this;
+                if (inFlight) {
+                    lock.notifyAll();
+                    if (started) {
+                        // the central collector has received part of the request, so tell it to
+                        // discard the request (no response is sent for a cancelled request)
+                        encode(CollectStreamMessage.newBuilder()
+                                .setRequestId(requestId)
+                                .setCancel(CollectStreamCancel.getDefaultInstance())
+                                .build());
+                    }
+                }
+                sendUsingIndividualCall = sendUsingIndividualCallAfterWrite;
+            }
+            if (inFlight) {
+                flush();
+            }
+            // otherwise the request was already failed (e.g. because the stream was closed),
+            // unless it was waiting to be sent using an individual call
+            if (inFlight || sendUsingIndividualCall) {
+                responseObserver.onError(Status.CANCELLED.withCause(t).asRuntimeException());
+            }
+        }
+
+        private void send(T message, boolean last) {
+            synchronized (lock) {
+                if (inFlightRequests.get(requestId) != this) {
+                    // the request was already failed (e.g. the stream was closed), or will be sent
+                    // using an individual call once it has been written
+                    return;
+                }
+                encode(toCollectStreamMessage(message)
+                        .setRequestId(requestId)
+                        .setLast(last)
+                        .build());
+                started = true;
+            }
+            flush();
+        }
+    }
+}
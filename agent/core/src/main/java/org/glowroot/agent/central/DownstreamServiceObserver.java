@@ -95,6 +95,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private final CentralConnection centralConnection;
+    private final CollectorStreamMultiplexer collectorStreamMultiplexer;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
     private final LiveJvmServiceImpl liveJvmService;
@@ -111,11 +112,13 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     private final SharedQueryTextLimiter sharedQueryTextLimiter;
 
     DownstreamServiceObserver(CentralConnection centralConnection,
+            CollectorStreamMultiplexer collectorStreamMultiplexer,
             AgentConfigUpdater agentConfigUpdater, LiveJvmServiceImpl liveJvmService,
             LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
             String agentId, AtomicBoolean inConnectionFailure,
             SharedQueryTextLimiter sharedQueryTextLimiter) throws Exception {
         this.centralConnection = centralConnection;
+        this.collectorStreamMultiplexer = collectorStreamMultiplexer;
         downstreamServiceStub = DownstreamServiceGrpc.newStub(centralConnection.getChannel())
                 .withCompression("gzip");
         this.agentConfigUpdater = agentConfigUpdater;
@@ -137,6 +140,9 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             startupLogger.info("re-established connection to the central collector");
         }
         if (request.getMessageCase() == MessageCase.HELLO_ACK) {
+            // (re-)connected, so try collectStream again in case the central collector has been
+            // upgraded since it was last found to be unimplemented
+            collectorStreamMultiplexer.onReconnect();
             return;
         }
         try {
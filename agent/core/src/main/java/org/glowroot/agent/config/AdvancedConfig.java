@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -69,6 +69,13 @@ public abstract class AdvancedConfig {
         return 2000;
     }
 
+    // used to collapse repeated executions of the same query (e.g. N+1 queries) into the trace
+    // level query aggregate instead of capturing a trace entry for each execution
+    @Value.Default
+    public int maxTraceEntriesPerQuery() {
+        return 100;
+    }
+
     // used to limit memory requirement, also used to help limit trace capture size
     @Value.Default
     public int maxStackTraceSamplesPerTransaction() {
@@ -89,6 +96,7 @@ public abstract class AdvancedConfig {
                 .setMaxAggregateQueriesPerType(of(maxAggregateQueriesPerType()))
                 .setMaxAggregateServiceCallsPerType(of(maxAggregateServiceCallsPerType()))
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
+                .setMaxTraceEntriesPerQuery(of(maxTraceEntriesPerQuery()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                 .build();
@@ -116,6 +124,9 @@ public abstract class AdvancedConfig {
             builder.maxTraceEntriesPerTransaction(
                     config.getMaxTraceEntriesPerTransaction().getValue());
         }
+        if (config.hasMaxTraceEntriesPerQuery()) {
+            builder.maxTraceEntriesPerQuery(config.getMaxTraceEntriesPerQuery().getValue());
+        }
         if (config.hasMaxStackTraceSamplesPerTransaction()) {
             builder.maxStackTraceSamplesPerTransaction(
                     config.getMaxStackTraceSamplesPerTransaction().getValue());
@@ -29,6 +29,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
 import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
@@ -36,6 +38,8 @@ import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.PartitionedTable;
+import org.glowroot.agent.embedded.util.PartitionedTable.PartitionVisitor;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
@@ -46,10 +50,14 @@ import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class GaugeValueDao implements GaugeValueRepository {
 
+    // log startup messages using logger name "org.glowroot"
+    private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
+
     private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
             ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
             ImmutableColumn.of("capture_time", ColumnType.BIGINT),
@@ -59,11 +67,21 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx",
+                    ImmutableList.of("gauge_id", "capture_time", "value", "weight")),
+            // this index is used by rollup query
+            ImmutableIndex.of("by_capture_time_idx",
+                    ImmutableList.of("capture_time", "gauge_id", "value", "weight")));
+
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
 
+    // index is rollup level
+    private final ImmutableList<PartitionedTable> tables;
+
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
 
@@ -75,21 +93,14 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        List<PartitionedTable> tables = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
-                    ImmutableList.<Index>of(
-                            ImmutableIndex.of(
-                                    "gauge_value_rollup_" + castUntainted(i) + "_idx",
-                                    ImmutableList.of("gauge_id", "capture_time", "value",
-                                            "weight")),
-                            // this index is used by rollup query
-                            ImmutableIndex.of(
-                                    "gauge_value_rollup_" + castUntainted(i)
-                                            + "_by_capture_time_idx",
-                                    ImmutableList.of("capture_time", "gauge_id", "value",
-                                            "weight"))));
+            tables.add(new PartitionedTable(dataSource,
+                    "gauge_value_rollup_" + castUntainted(i), columns, indexes,
+                    getPartitionMillis(i)));
         }
+        this.tables = ImmutableList.copyOf(tables);
+        upgradeToPartitionedTables();
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -127,7 +138,31 @@ public class GaugeValueDao implements GaugeValueRepository {
             }
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        // gauge values are (rarely) split across two partitions
+        Map<Long, Map<GaugeValue, Long>> partitionedGaugeValueIdMaps = Maps.newLinkedHashMap();
+        for (Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+            long partitionFrom = tables.get(0).getPartitionFrom(entry.getKey().getCaptureTime());
+            Map<GaugeValue, Long> partitionedGaugeValueIdMap =
+                    partitionedGaugeValueIdMaps.get(partitionFrom);
+            if (partitionedGaugeValueIdMap == null) {
+                partitionedGaugeValueIdMap = Maps.newLinkedHashMap();
+                partitionedGaugeValueIdMaps.put(partitionFrom, partitionedGaugeValueIdMap);
+            }
+            partitionedGaugeValueIdMap.put(entry.getKey(), entry.getValue());
+        }
+        for (final Map<GaugeValue, Long> partitionedGaugeValueIdMap : partitionedGaugeValueIdMaps
+                .values()) {
+            long captureTime =
+                    partitionedGaugeValueIdMap.keySet().iterator().next().getCaptureTime();
+            tables.get(0).visitPartition(captureTime, new PartitionVisitor() {
+                @Override
+                public void visit(@Untainted String partitionTableName, long partitionFrom,
+                        long partitionTo) throws Exception {
+                    dataSource.batchUpdate(
+                            new GaugeValuesBinder(partitionTableName, partitionedGaugeValueIdMap));
+                }
+            });
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -153,18 +188,29 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     // from is INCLUSIVE
     @Override
-    public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
-            long to, int rollupLevel) throws Exception {
-        Long gaugeId = gaugeNameDao.getGaugeId(gaugeName);
+    public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName,
+            final long from, final long to, int rollupLevel) throws Exception {
+        final Long gaugeId = gaugeNameDao.getGaugeId(gaugeName);
         if (gaugeId == null) {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        final List<GaugeValue> gaugeValues = Lists.newArrayList();
+        tables.get(rollupLevel).visitPartitions(from, to, new PartitionVisitor() {
+            @Override
+            public void visit(@Untainted String partitionTableName, long partitionFrom,
+                    long partitionTo) throws Exception {
+                gaugeValues.addAll(dataSource
+                        .query(new GaugeValueQuery(partitionTableName, gaugeId, from, to)));
+            }
+        });
+        return gaugeValues;
     }
 
+    // this only drops partitions that are entirely expired, so some expired gauge values are
+    // retained until the rest of their partition expires
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        tables.get(rollupLevel).dropBefore(captureTime);
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -174,18 +220,93 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
+    private void rollup(final long lastRollupTime, final long safeRollupTime,
+            long fixedIntervalMillis, int toRollupLevel, int fromRollupLevel) throws Exception {
         // need ".0" to force double result
-        String captureTimeSql = castUntainted(
+        final String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
+        final PartitionedTable toTable = tables.get(toRollupLevel);
+        tables.get(fromRollupLevel).visitPartitions(lastRollupTime + 1, safeRollupTime,
+                new PartitionVisitor() {
+                    @Override
+                    public void visit(final @Untainted String fromPartitionTableName,
+                            long partitionFrom, long partitionTo) throws Exception {
+                        final long from = Math.max(lastRollupTime, partitionFrom);
+                        final long to = Math.min(safeRollupTime, partitionTo);
+                        // partitions of the higher rollup level are multiples of the partitions of
+                        // the lower rollup level, so the rolled up capture times are all in the
+                        // same partition
+                        toTable.visitPartition(to, new PartitionVisitor() {
+                            @Override
+                            public void visit(@Untainted String toPartitionTableName,
+                                    long partitionFrom, long partitionTo) throws Exception {
+                                rollup(fromPartitionTableName, toPartitionTableName,
+                                        captureTimeSql, from, to);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void rollup(@Untainted String fromTableName, @Untainted String toTableName,
+            @Untainted String captureTimeSql, long from, long to) throws Exception {
+        dataSource.update("merge into " + toTableName
                 + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
                 + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+                + " sum(value * weight) / sum(weight), sum(weight) from " + fromTableName
+                + " gp where gp.capture_time > ? and gp.capture_time <= ?"
+                + " group by gp.gauge_id, ceil_capture_time", from, to);
+    }
+
+    // upgrade to 0.9.16
+    private void upgradeToPartitionedTables() throws Exception {
+        List<Integer> rollupLevels = Lists.newArrayList();
+        for (int i = 0; i <= rollupConfigs.size(); i++) {
+            if (dataSource.tableExists("gauge_value_rollup_" + castUntainted(i))) {
+                rollupLevels.add(i);
+            }
+        }
+        if (rollupLevels.isEmpty()) {
+            return;
+        }
+        startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
+                + " few minutes (depending on data size)...");
+        for (int rollupLevel : rollupLevels) {
+            upgradeToPartitionedTable(rollupLevel);
+        }
+        startupLogger.info("glowroot schema upgrade complete");
+    }
+
+    // this is idempotent (using merge), since the jvm can be shut down part way through the
+    // upgrade, in which case the upgrade is started over on the next startup
+    private void upgradeToPartitionedTable(int rollupLevel) throws Exception {
+        @Untainted
+        String tableName = "gauge_value_rollup_" + castUntainted(rollupLevel);
+        Long minCaptureTime =
+                dataSource.queryForOptionalLong("select min(capture_time) from " + tableName);
+        Long maxCaptureTime =
+                dataSource.queryForOptionalLong("select max(capture_time) from " + tableName);
+        if (minCaptureTime != null && maxCaptureTime != null) {
+            final @Untainted String fromTableName = tableName;
+            PartitionedTable table = tables.get(rollupLevel);
+            long partitionMillis = getPartitionMillis(rollupLevel);
+            for (long partitionFrom = table.getPartitionFrom(minCaptureTime);
+                    partitionFrom < maxCaptureTime; partitionFrom += partitionMillis) {
+                table.visitPartition(partitionFrom + partitionMillis, new PartitionVisitor() {
+                    @Override
+                    public void visit(@Untainted String partitionTableName, long partitionFrom,
+                            long partitionTo) throws Exception {
+                        dataSource.update("merge into " + partitionTableName
+                                + " (gauge_id, capture_time, value, weight)"
+                                + " key (gauge_id, capture_time) select gauge_id, capture_time,"
+                                + " value, weight from " + fromTableName
+                                + " where capture_time > ? and capture_time <= ?", partitionFrom,
+                                partitionTo);
+                    }
+                });
+            }
+        }
+        dataSource.dropTable(tableName);
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -208,17 +329,32 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    // partitions of each rollup level must be multiples of the rollup interval, and of the
+    // partitions of the rollup level below it
+    private static long getPartitionMillis(int rollupLevel) {
+        if (rollupLevel <= 2) {
+            // raw, 1 minute and 5 minute gauge values
+            return DAYS.toMillis(1);
+        } else {
+            // 30 minute and 4 hour gauge values
+            return DAYS.toMillis(7);
+        }
+    }
+
     private class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String tableName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.tableName = tableName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + tableName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -274,23 +410,23 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
 
+        private final @Untainted String tableName;
         private final long gaugeId;
         private final long from;
         private final long to;
-        private final int rollupLevel;
 
-        private GaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
+        private GaugeValueQuery(@Untainted String tableName, long gaugeId, long from, long to) {
+            this.tableName = tableName;
             this.gaugeId = gaugeId;
             this.from = from;
             this.to = to;
-            this.rollupLevel = rollupLevel;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            return "select capture_time, value, weight from " + tableName
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
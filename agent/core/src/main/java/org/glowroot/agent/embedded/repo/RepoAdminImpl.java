@@ -35,12 +35,13 @@ class RepoAdminImpl implements RepoAdmin {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
+    private final TraceDao traceDao;
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepository configRepository,
             EnvironmentDao agentDao, GaugeValueDao gaugeValueDao, GaugeNameDao gaugeNameDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao) {
+            TraceAttributeNameDao traceAttributeNameDao, TraceDao traceDao) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
@@ -51,6 +52,7 @@ class RepoAdminImpl implements RepoAdmin {
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
+        this.traceDao = traceDao;
     }
 
     @Override
@@ -63,6 +65,7 @@ class RepoAdminImpl implements RepoAdmin {
         transactionTypeDao.invalidateCache();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
+        traceDao.invalidateCache();
         if (environment != null) {
             agentDao.store(environment);
         }
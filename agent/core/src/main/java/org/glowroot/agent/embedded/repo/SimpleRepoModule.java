@@ -89,14 +89,14 @@ public class SimpleRepoModule {
                 transactionTypeDao, fullQueryTextDao);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
-                fullQueryTextDao, traceAttributeNameDao);
+                fullQueryTextDao, traceAttributeNameDao, clock);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao, clock);
         triggeredAlertDao = new TriggeredAlertDao(dataSource);
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
                 configRepository, environmentDao, gaugeValueDao, gaugeNameDao, transactionTypeDao,
-                fullQueryTextDao, traceAttributeNameDao);
+                fullQueryTextDao, traceAttributeNameDao, traceDao);
 
         TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(dataSource);
         alertingService = new AlertingService(configRepository, triggeredAlertDao, aggregateDao,
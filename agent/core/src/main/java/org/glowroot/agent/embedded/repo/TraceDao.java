@@ -27,9 +27,13 @@ import java.util.Map;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +55,7 @@ import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.ImmutableTracePointFilter;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
@@ -61,7 +66,9 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -72,6 +79,19 @@ public class TraceDao implements TraceRepository {
 
     private static final String AGENT_ID = "";
 
+    // closed blocks with more trace points than this in total are read directly from the database
+    // (instead of being read into the trace point cache)
+    private static final int MAX_TRACE_POINTS_PER_CACHE_READ = 10000;
+
+    private static final Ordering<TracePoint> TRACE_POINT_ORDERING =
+            new Ordering<TracePoint>() {
+                @Override
+                public int compare(TracePoint left, TracePoint right) {
+                    // descending
+                    return Longs.compare(right.durationNanos(), left.durationNanos());
+                }
+            };
+
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
@@ -135,15 +155,19 @@ public class TraceDao implements TraceRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
+    private final Clock clock;
+
+    private final TracePointCache tracePointCache = new TracePointCache();
 
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao) throws Exception {
+            TraceAttributeNameDao traceAttributeNameDao, Clock clock) throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.clock = clock;
         if (dataSource.tableExists("trace")
                 && !dataSource.columnExists("trace", "shared_query_texts_capped_id")) {
             // upgrade to 0.9.3
@@ -182,6 +206,10 @@ public class TraceDao implements TraceRepository {
         }
         transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
                 header.getCaptureTime());
+        // the prior partial trace (if any) was stored with a capture time after the start time
+        long invalidateFrom = trace.getUpdate() ? header.getStartTime() - 1 : captureTime - 1;
+        tracePointCache.invalidate(header.getTransactionType(), invalidateFrom, captureTime,
+                clock.currentTimeMillis());
     }
 
     @Override
@@ -317,15 +345,133 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        tracePointCache.invalidateBefore(captureTime);
+    }
+
+    void invalidateCache() {
+        tracePointCache.invalidateAll();
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
+        if (limit != 0 && isEmpty(filter)) {
+            List<TracePoint> points = readPointsUsingCache(traceKind, query, limit);
+            if (points != null) {
+                return Result.create(points, limit);
+            }
+        }
+        return Result.create(readPointsFromDatabase(traceKind, query, filter, limit), limit);
+    }
+
+    // returns null if there are too many trace points in the query's closed blocks to cache
+    private @Nullable List<TracePoint> readPointsUsingCache(TraceKind traceKind,
+            TraceQuery query, int limit) throws Exception {
+        String transactionType = query.transactionType();
+        String transactionName = query.transactionName();
+        long currentTime = clock.currentTimeMillis();
+        List<TracePoint> points = Lists.newArrayList();
+        List<Long> uncachedBlocks = Lists.newArrayList();
+        long blockFrom = TracePointCache.getBlockFrom(query.from() + 1);
+        for (; blockFrom < query.to() && blockFrom + TracePointCache.BLOCK_MILLIS <= currentTime;
+                blockFrom += TracePointCache.BLOCK_MILLIS) {
+            List<TracePoint> blockPoints =
+                    tracePointCache.get(traceKind, transactionType, transactionName, blockFrom);
+            if (blockPoints == null) {
+                uncachedBlocks.add(blockFrom);
+            } else {
+                addPoints(points, blockPoints, query);
+            }
+        }
+        if (!uncachedBlocks.isEmpty()) {
+            long invalidationCount = tracePointCache.getInvalidationCount();
+            long uncachedFrom = uncachedBlocks.get(0);
+            long uncachedTo = uncachedBlocks.get(uncachedBlocks.size() - 1)
+                    + TracePointCache.BLOCK_MILLIS;
+            // the read can include blocks that are already cached (in between uncached blocks),
+            // those points are ignored below
+            List<TracePoint> uncachedPoints = dataSource.query(new TracePointQuery(
+                    getBlockSql(traceKind, transactionType, transactionName, uncachedFrom,
+                            uncachedTo)));
+            if (uncachedPoints.size() > MAX_TRACE_POINTS_PER_CACHE_READ) {
+                return null;
+            }
+            ListMultimap<Long, TracePoint> uncachedBlockPoints = ArrayListMultimap.create();
+            for (TracePoint point : uncachedPoints) {
+                uncachedBlockPoints.put(TracePointCache.getBlockFrom(point.captureTime()), point);
+            }
+            for (long uncachedBlockFrom : uncachedBlocks) {
+                List<TracePoint> blockPoints = uncachedBlockPoints.get(uncachedBlockFrom);
+                tracePointCache.putIfNotInvalidated(traceKind, transactionType, transactionName,
+                        uncachedBlockFrom, blockPoints, invalidationCount);
+                addPoints(points, blockPoints, query);
+            }
+        }
+        if (blockFrom < query.to()) {
+            // the open block is always read from the database
+            TraceQuery openBlockQuery = ImmutableTraceQuery.builder()
+                    .copyFrom(query)
+                    .from(Math.max(query.from(), blockFrom))
+                    .build();
+            points.addAll(readPointsFromDatabase(traceKind, openBlockQuery,
+                    ImmutableTracePointFilter.builder().build(), limit));
+        }
+        points = TRACE_POINT_ORDERING.sortedCopy(points);
+        // one extra record over the limit is returned to identify if the limit was hit
+        if (points.size() > limit + 1) {
+            points = points.subList(0, limit + 1);
+        }
+        return points;
+    }
+
+    private List<TracePoint> readPointsFromDatabase(TraceKind traceKind, TraceQuery query,
+            TracePointFilter filter, int limit) throws Exception {
         ParameterizedSql parameterizedSql =
                 new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
-        List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
-        // one extra record over the limit is fetched above to identify if the limit was hit
-        return Result.create(points, limit);
+        // one extra record over the limit is fetched to identify if the limit was hit
+        return dataSource.query(new TracePointQuery(parameterizedSql));
+    }
+
+    private static ParameterizedSql getBlockSql(TraceKind traceKind, String transactionType,
+            @Nullable String transactionName, long from, long to) {
+        List<Object> args = Lists.newArrayList();
+        @Untainted
+        String sql = "select id, capture_time, duration_nanos, partial, error from trace where"
+                + " transaction_type = ?";
+        args.add(transactionType);
+        if (transactionName != null) {
+            sql += " and transaction_name = ?";
+            args.add(transactionName);
+        }
+        if (traceKind == TraceKind.SLOW) {
+            sql += " and slow = ?";
+        } else {
+            // TraceKind.ERROR
+            sql += " and error = ?";
+        }
+        args.add(true);
+        sql += " and capture_time > ? and capture_time <= ? limit ?";
+        args.add(from);
+        args.add(to);
+        // +1 is to identify if limit was exceeded
+        args.add(MAX_TRACE_POINTS_PER_CACHE_READ + 1);
+        return ImmutableParameterizedSql.of(sql, args);
+    }
+
+    private static void addPoints(List<TracePoint> points, List<TracePoint> blockPoints,
+            TraceQuery query) {
+        for (TracePoint point : blockPoints) {
+            if (point.captureTime() > query.from() && point.captureTime() <= query.to()) {
+                points.add(point);
+            }
+        }
+    }
+
+    private static boolean isEmpty(TracePointFilter filter) {
+        return Strings.isNullOrEmpty(filter.headline())
+                && Strings.isNullOrEmpty(filter.errorMessage())
+                && Strings.isNullOrEmpty(filter.user())
+                && Strings.isNullOrEmpty(filter.attributeName())
+                && Strings.isNullOrEmpty(filter.attributeValue());
     }
 
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.math.LongMath;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches trace points by capture time block, so that panning and zooming the trace scatter chart
+// doesn't need to go back to the database (and contend on the data source lock) for blocks that
+// have already been read
+//
+// only closed blocks (blocks that end prior to the current time) are cached, so the (open) block
+// that new traces are being stored into is never cached and doesn't need to be invalidated on each
+// store, closed blocks only need to be invalidated when a trace is stored late or when a partial
+// trace is updated
+class TracePointCache {
+
+    // each block covers capture times (blockFrom, blockFrom + BLOCK_MILLIS]
+    static final long BLOCK_MILLIS = MINUTES.toMillis(5);
+
+    // each cached trace point retains its trace id and other fields, so this is kept low since the
+    // embedded collector runs inside the monitored jvm
+    private static final int MAX_CACHED_POINTS =
+            Integer.getInteger("glowroot.internal.tracePointCache.maxPoints", 5000);
+
+    private final Cache<BlockKey, ImmutableList<TracePoint>> blocks = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_POINTS)
+            .weigher(new Weigher<BlockKey, ImmutableList<TracePoint>>() {
+                @Override
+                public int weigh(BlockKey key, ImmutableList<TracePoint> points) {
+                    // + 1 so that empty blocks still count against the maximum
+                    return points.size() + 1;
+                }
+            })
+            .build();
+
+    // this is used to avoid caching blocks that were read from the database concurrently with
+    // being invalidated
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    @Nullable
+    ImmutableList<TracePoint> get(TraceKind traceKind, String transactionType,
+            @Nullable String transactionName, long blockFrom) {
+        return blocks.getIfPresent(
+                ImmutableBlockKey.of(traceKind, transactionType, transactionName, blockFrom));
+    }
+
+    long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    // the block is only cached if there have been no invalidations since the invalidation count
+    // was read (which must be prior to reading the block from the database)
+    void putIfNotInvalidated(TraceKind traceKind, String transactionType,
+            @Nullable String transactionName, long blockFrom, List<TracePoint> points,
+            long priorInvalidationCount) {
+        BlockKey key = ImmutableBlockKey.of(traceKind, transactionType, transactionName, blockFrom);
+        blocks.put(key, ImmutableList.copyOf(points));
+        if (invalidationCount.get() != priorInvalidationCount) {
+            blocks.invalidate(key);
+        }
+    }
+
+    // invalidates closed blocks that overlap capture times (from, to]
+    void invalidate(String transactionType, long from, long to, long currentTime) {
+        if (getBlockFrom(from + 1) + BLOCK_MILLIS > currentTime) {
+            // no closed blocks overlap, which is the common case
+            return;
+        }
+        invalidationCount.getAndIncrement();
+        for (BlockKey key : blocks.asMap().keySet()) {
+            if (key.transactionType().equals(transactionType)
+                    && key.blockFrom() + BLOCK_MILLIS > from && key.blockFrom() < to) {
+                blocks.invalidate(key);
+            }
+        }
+    }
+
+    void invalidateBefore(long captureTime) {
+        invalidationCount.getAndIncrement();
+        for (BlockKey key : blocks.asMap().keySet()) {
+            if (key.blockFrom() < captureTime) {
+                blocks.invalidate(key);
+            }
+        }
+    }
+
+    void invalidateAll() {
+        invalidationCount.getAndIncrement();
+        blocks.invalidateAll();
+    }
+
+    // returns the start of the block containing the capture time (non-inclusive)
+    static long getBlockFrom(long captureTime) {
+        // capture time at the end of a block belongs to that block
+        return LongMath.divide(captureTime, BLOCK_MILLIS, RoundingMode.CEILING) * BLOCK_MILLIS
+                - BLOCK_MILLIS;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BlockKey {
+        TraceKind traceKind();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        long blockFrom();
+    }
+}
@@ -369,6 +369,29 @@ public class DataSource {
         }
     }
 
+    // helpful for partitioned tables, returns lower case table names
+    public List<String> getTableNames(String prefix) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return ImmutableList.of();
+            }
+            return Schemas.getTableNames(prefix, connection);
+        }
+    }
+
+    public void dropTable(@Untainted String tableName) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            execute("drop table if exists " + tableName);
+            tables.remove(tableName);
+            indexes.remove(tableName);
+            // cached prepared statements could reference the dropped table
+            preparedStatementCache.invalidateAll();
+        }
+    }
+
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
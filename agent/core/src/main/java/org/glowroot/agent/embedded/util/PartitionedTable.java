@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// a table that is stored as one table per capture time partition, so that expiring old data only
+// requires dropping the partitions that are entirely expired, instead of deleting rows (which
+// fragments the H2 database file and requires defrag to reclaim the space)
+//
+// each partition covers capture times (partitionFrom, partitionFrom + partitionMillis], which
+// matches the (non-inclusive lower bound) rollup intervals, so as long as partitionMillis is a
+// multiple of the rollup interval, a rollup interval never spans two partitions
+public class PartitionedTable {
+
+    private final DataSource dataSource;
+    private final @Untainted String tableName;
+    private final ImmutableList<Column> columns;
+    // index names are appended to the partition table name
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+
+    private final NavigableSet<Long> partitions = new ConcurrentSkipListSet<Long>();
+
+    // partitions are only dropped under the write lock, so that partitions are not dropped while
+    // they are being read or written
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Object createLock = new Object();
+
+    public PartitionedTable(DataSource dataSource, @Untainted String tableName,
+            List<Column> columns, List<Index> indexes, long partitionMillis) throws Exception {
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.columns = ImmutableList.copyOf(columns);
+        this.indexes = ImmutableList.copyOf(indexes);
+        this.partitionMillis = partitionMillis;
+        String prefix = tableName + "_p";
+        for (String partitionTableName : dataSource.getTableNames(prefix)) {
+            Long partitionFrom = Longs.tryParse(partitionTableName.substring(prefix.length()));
+            if (partitionFrom != null) {
+                syncPartition(partitionFrom);
+                partitions.add(partitionFrom);
+            }
+        }
+    }
+
+    // visits the partitions that overlap capture times [from, to], in capture time order
+    public void visitPartitions(long from, long to, PartitionVisitor visitor) throws Exception {
+        lock.readLock().lock();
+        try {
+            for (long partitionFrom : partitions.subSet(from - partitionMillis, true, to, false)) {
+                visitor.visit(getPartitionTableName(partitionFrom), partitionFrom,
+                        partitionFrom + partitionMillis);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // visits the partition containing the capture time, creating it if needed
+    public void visitPartition(long captureTime, PartitionVisitor visitor) throws Exception {
+        long partitionFrom = getPartitionFrom(captureTime);
+        lock.readLock().lock();
+        try {
+            if (!partitions.contains(partitionFrom)) {
+                synchronized (createLock) {
+                    if (!partitions.contains(partitionFrom)) {
+                        syncPartition(partitionFrom);
+                        partitions.add(partitionFrom);
+                    }
+                }
+            }
+            visitor.visit(getPartitionTableName(partitionFrom), partitionFrom,
+                    partitionFrom + partitionMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // drops the partitions that only contain capture times prior to the given capture time
+    public void dropBefore(long captureTime) throws Exception {
+        lock.writeLock().lock();
+        try {
+            for (long partitionFrom : partitions.headSet(captureTime - partitionMillis)) {
+                dataSource.dropTable(getPartitionTableName(partitionFrom));
+                partitions.remove(partitionFrom);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getPartitionFrom(long captureTime) {
+        return LongMath.divide(captureTime, partitionMillis, RoundingMode.CEILING)
+                * partitionMillis - partitionMillis;
+    }
+
+    private void syncPartition(long partitionFrom) throws Exception {
+        @Untainted
+        String partitionTableName = getPartitionTableName(partitionFrom);
+        dataSource.syncTable(partitionTableName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            partitionIndexes.add(ImmutableIndex.of(partitionTableName + "_" + index.name(),
+                    index.columns()));
+        }
+        dataSource.syncIndexes(partitionTableName, ImmutableList.copyOf(partitionIndexes));
+    }
+
+    private @Untainted String getPartitionTableName(long partitionFrom) {
+        return tableName + "_p" + castUntainted(partitionFrom);
+    }
+
+    public interface PartitionVisitor {
+        void visit(@Untainted String partitionTableName, long partitionFrom, long partitionTo)
+                throws Exception;
+    }
+}
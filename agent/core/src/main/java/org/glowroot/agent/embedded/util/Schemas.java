@@ -110,6 +110,32 @@ public class Schemas {
         }
     }
 
+    // returns lower case table names
+    static List<String> getTableNames(String prefix, Connection connection)
+            throws SQLException {
+        logger.debug("getTableNames(): prefix={}", prefix);
+        DatabaseMetaData metaData = connection.getMetaData();
+        String convertedPrefix = convert(metaData, prefix);
+        // "_" in the prefix is a single character wildcard in the metadata pattern, so the table
+        // names are filtered again below
+        ResultSet resultSet = metaData.getTables(null, null, convertedPrefix + "%", null);
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<String> tableNames = Lists.newArrayList();
+            while (resultSet.next()) {
+                String tableName = checkNotNull(resultSet.getString("TABLE_NAME"));
+                if (tableName.startsWith(convertedPrefix)) {
+                    tableNames.add(tableName.toLowerCase(Locale.ENGLISH));
+                }
+            }
+            return tableNames;
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
     // useful for upgrades
     static boolean columnExists(String tableName, String columnName, Connection connection)
             throws SQLException {
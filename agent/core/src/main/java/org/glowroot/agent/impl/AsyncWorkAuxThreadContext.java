@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+import org.glowroot.agent.util.Tickers;
+
+// this is used once the transaction's auxiliary thread context budget has been exceeded, instead of
+// starting an auxiliary thread context (with its own root entry, root timer and thread stats), it
+// only captures the time spent in the async task, which is added to lock-free counters that are
+// reported as the "async work" timer (see Transaction.recordAsyncWork())
+class AsyncWorkAuxThreadContext implements AuxThreadContext {
+
+    private static final Ticker ticker = Tickers.getTicker();
+
+    private final Transaction transaction;
+    private final @Nullable MessageSupplier servletMessageSupplier;
+
+    AsyncWorkAuxThreadContext(Transaction transaction,
+            @Nullable MessageSupplier servletMessageSupplier) {
+        this.transaction = transaction;
+        this.servletMessageSupplier = servletMessageSupplier;
+    }
+
+    @Override
+    public TraceEntry start() {
+        Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
+                transaction.getTransactionRegistry().getCurrentThreadContextHolder();
+        if (threadContextHolder.get() != null || transaction.isCompleted()) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
+        return new AsyncWorkTraceEntry(transaction, ticker.read());
+    }
+
+    @Override
+    public TraceEntry startAndMarkAsyncTransactionComplete() {
+        // this is rare (once per transaction), so it is ok to fall back to a real (limit exceeded)
+        // auxiliary thread context which takes care of completing the async transaction
+        return new AuxThreadContextImpl(transaction, null, null, servletMessageSupplier,
+                transaction.getTransactionRegistry(), transaction.getTransactionService())
+                        .startAndMarkAsyncTransactionComplete();
+    }
+
+    private static class AsyncWorkTraceEntry implements TraceEntry {
+
+        private final Transaction transaction;
+        private final long startTick;
+
+        private AsyncWorkTraceEntry(Transaction transaction, long startTick) {
+            this.transaction = transaction;
+            this.startTick = startTick;
+        }
+
+        @Override
+        public void end() {
+            transaction.recordAsyncWork(ticker.read() - startTick);
+        }
+
+        @Override
+        public void endWithStackTrace(long threshold, TimeUnit unit) {
+            end();
+        }
+
+        @Override
+        public void endWithError(Throwable t) {
+            end();
+        }
+
+        @Override
+        public void endWithError(@Nullable String message) {
+            end();
+        }
+
+        @Override
+        public void endWithError(@Nullable String message, Throwable t) {
+            end();
+        }
+
+        @Override
+        public void endWithInfo(Throwable t) {
+            end();
+        }
+
+        @Override
+        public @Nullable MessageSupplier getMessageSupplier() {
+            return null;
+        }
+    }
+}
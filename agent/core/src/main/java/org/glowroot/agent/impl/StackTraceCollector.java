@@ -81,24 +81,40 @@ public class StackTraceCollector {
 
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
-        if (threadContexts.isEmpty()) {
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        // virtual threads do not show up in ThreadMXBean
+        List<ThreadContextImpl> platformThreadContexts =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (ThreadContextImpl threadContext : threadContexts) {
+            Thread virtualThread = threadContext.getVirtualThread();
+            if (virtualThread == null) {
+                platformThreadContexts.add(threadContext);
+                continue;
+            }
+            Thread.State threadState = virtualThread.getState();
+            if (threadState != Thread.State.TERMINATED) {
+                threadContext.captureStackTrace(virtualThread.getStackTrace(), threadState,
+                        limit);
+            }
+        }
+        if (platformThreadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
+        long[] threadIds = new long[platformThreadContexts.size()];
+        for (int i = 0; i < platformThreadContexts.size(); i++) {
+            threadIds[i] = platformThreadContexts.get(i).getThreadId();
         }
         @Nullable
         ThreadInfo[] threadInfos =
                 ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
-        for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
+        for (int i = 0; i < platformThreadContexts.size(); i++) {
+            ThreadContextImpl threadContext = platformThreadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo, limit);
+                threadContext.captureStackTrace(threadInfo.getStackTrace(),
+                        threadInfo.getThreadState(), limit);
             }
         }
     }
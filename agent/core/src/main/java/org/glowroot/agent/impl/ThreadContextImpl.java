@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -52,10 +51,12 @@ import org.glowroot.agent.plugin.api.Timer;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAuxThreadContext;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
+import org.glowroot.agent.util.VirtualThreads;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
@@ -68,6 +69,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private static final MessageSupplier DETACHED_MESSAGE_SUPPLIER = MessageSupplier
             .create("this auxiliary thread was still running when the transaction ended");
 
+    private static final String REPEATED_QUERY_ATTRIBUTE_NAME = "N+1 suspected";
+
+    // the attribute value is truncated since query text can be arbitrarily long, and attribute
+    // values are stored with every trace (and indexed by the central collector)
+    private static final int REPEATED_QUERY_ATTRIBUTE_MAX_LENGTH = 120;
+
     private static final Logger logger = LoggerFactory.getLogger(ThreadContextImpl.class);
 
     private final Transaction transaction;
@@ -84,6 +91,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private int currentNestingGroupId;
     private int currentSuppressionKeyId;
 
+    private final boolean captureThreadStats;
     private final @Nullable ThreadStatsComponent threadStatsComponent;
 
     // root entry for this trace
@@ -102,6 +110,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private @MonotonicNonNull Map<String, QueryDataMap> allServiceCallTypesMap;
 
     private final long threadId;
+    // only retained for virtual threads, since they do not show up in ThreadMXBean, so the stack
+    // trace needs to be captured using the Thread itself
+    private final @Nullable Thread virtualThread;
 
     private final boolean limitExceededAuxThreadContext;
 
@@ -138,9 +149,13 @@ public class ThreadContextImpl implements ThreadContextPlus {
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
-        threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        Thread currentThread = Thread.currentThread();
+        threadId = currentThread.getId();
+        virtualThread = VirtualThreads.isVirtual(currentThread) ? currentThread : null;
+        this.captureThreadStats = captureThreadStats;
+        // per-thread stats are not available from ThreadMXBean for virtual threads
+        threadStatsComponent = captureThreadStats && virtualThread == null
+                ? new ThreadStatsComponent(threadAllocatedBytes) : null;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
         this.ticker = ticker;
         this.threadContextHolder = threadContextHolder;
@@ -187,6 +202,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadId;
     }
 
+    public @Nullable Thread getVirtualThread() {
+        return virtualThread;
+    }
+
     boolean isCompleted() {
         return traceEntryComponent.isCompleted();
     }
@@ -254,7 +273,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     boolean getCaptureThreadStats() {
-        return threadStatsComponent != null;
+        return captureThreadStats;
     }
 
     private boolean isCompleted(long captureTick) {
@@ -295,6 +314,52 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return queryData;
     }
 
+    // only called by transaction thread
+    private @Nullable QueryData getQueryData(String queryType, String queryText) {
+        if (queriesForFirstType == null) {
+            return null;
+        }
+        if (queriesForFirstType.getType().equals(queryType)) {
+            return queriesForFirstType.get(queryText);
+        }
+        if (allQueryTypesMap == null) {
+            return null;
+        }
+        QueryDataMap queriesForType = allQueryTypesMap.get(queryType);
+        if (queriesForType == null) {
+            return null;
+        }
+        return queriesForType.get(queryText);
+    }
+
+    // once the same query has been executed maxTraceEntriesPerQuery times in this thread context,
+    // further executions (e.g. N+1 queries executed in a loop) are only captured in the query data
+    // (count and total time), instead of bloating the trace with a trace entry for each execution
+    // (maxTraceEntriesPerQuery <= 0 disables this)
+    //
+    // only called by transaction thread
+    private boolean isRepeatedQuery(QueryData queryData) {
+        if (queryData.isRepeated()) {
+            return true;
+        }
+        int maxTraceEntriesPerQuery = transaction.getMaxTraceEntriesPerQuery();
+        if (maxTraceEntriesPerQuery <= 0
+                || queryData.getEntryCount() < maxTraceEntriesPerQuery) {
+            return false;
+        }
+        queryData.setRepeated();
+        transaction.addAttribute(REPEATED_QUERY_ATTRIBUTE_NAME,
+                getRepeatedQueryAttributeValue(queryData.getQueryText()));
+        return true;
+    }
+
+    private static String getRepeatedQueryAttributeValue(String queryText) {
+        if (queryText.length() <= REPEATED_QUERY_ATTRIBUTE_MAX_LENGTH) {
+            return queryText;
+        }
+        return queryText.substring(0, REPEATED_QUERY_ATTRIBUTE_MAX_LENGTH) + " ...";
+    }
+
     // only called by transaction thread
     private @Nullable QueryData getOrCreateServiceCallDataIfPossible(String type, String text) {
         if (headServiceCallData == null) {
@@ -364,14 +429,22 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo, int limit) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo, limit);
+    void captureStackTrace(StackTraceElement[] stackTrace, Thread.State threadState, int limit) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState, limit);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
 
     @Override
     public AuxThreadContext createAuxThreadContext() {
+        if (transaction.isCompleted()) {
+            // fast path, e.g. for tasks submitted from an auxiliary thread after its async
+            // transaction has completed, since these would never be started anyways
+            return NopAuxThreadContext.INSTANCE;
+        }
+        if (!transaction.allowAnotherAuxThreadContext()) {
+            return new AsyncWorkAuxThreadContext(transaction, servletMessageSupplier);
+        }
         if (limitExceededAuxThreadContext) {
             // no auxiliary thread context hierarchy after limit exceeded in order to limit the
             // retention of auxiliary thread contexts
@@ -566,12 +639,21 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
+        QueryData queryData = getQueryData(queryType, queryText);
+        if (queryData != null && isRepeatedQuery(queryData)) {
+            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
+                    queryData, 1);
+        }
         if (transaction.allowAnotherEntry()) {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            }
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, 1);
         } else {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            }
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, 1);
         }
@@ -598,12 +680,21 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
+        QueryData queryData = getQueryData(queryType, queryText);
+        if (queryData != null && isRepeatedQuery(queryData)) {
+            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
+                    queryData, queryExecutionCount);
+        }
         if (transaction.allowAnotherEntry()) {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            }
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, queryExecutionCount);
         } else {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            }
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, queryExecutionCount);
         }
@@ -632,12 +723,21 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
+        QueryData queryData = getQueryData(queryType, queryText);
+        if (queryData != null && isRepeatedQuery(queryData)) {
+            return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
+                    queryMessageSupplier, queryData, 1);
+        }
         if (transaction.allowAnotherEntry()) {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
+            }
             return startAsyncQueryEntry(startTick, queryMessageSupplier, syncTimer, asyncTimer,
                     queryData, 1);
         } else {
-            QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            if (queryData == null) {
+                queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
+            }
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
                     queryMessageSupplier, queryData, 1);
         }
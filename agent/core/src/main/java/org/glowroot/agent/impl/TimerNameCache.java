@@ -44,6 +44,7 @@ public class TimerNameCache {
 
     private final TimerName unknownTimerName = names.getUnchecked("unknown");
     private final TimerName auxThreadTimerName = names.getUnchecked("auxiliary thread");
+    private final TimerName asyncWorkTimerName = names.getUnchecked("async work");
 
     public TimerName getTimerName(Class<?> adviceClass) {
         if (adviceClass == null) {
@@ -74,6 +75,10 @@ public class TimerNameCache {
         return auxThreadTimerName;
     }
 
+    TimerName getAsyncWorkTimerName() {
+        return asyncWorkTimerName;
+    }
+
     private TimerName getName(String name) {
         return names.getUnchecked(name);
     }
@@ -26,6 +26,8 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -100,6 +102,27 @@ public class Transaction {
     private static final int TRANSACTION_AUX_THREAD_CONTEXT_LIMIT =
             Integer.getInteger("glowroot.transaction.aux.thread.context.limit", 10000);
 
+    // beyond this, auxiliary thread contexts are no longer created, and the time spent in the
+    // remaining async tasks is only captured under an aggregated "async work" timer, this is to
+    // limit the overhead of reactive style code that submits a very large number of tiny tasks
+    //
+    // this defaults to the limit above, so that once the retained auxiliary thread contexts are
+    // exhausted, no further auxiliary thread contexts are created
+    private static final int TRANSACTION_AUX_THREAD_CONTEXT_BUDGET =
+            Integer.getInteger("glowroot.transaction.aux.thread.context.budget",
+                    TRANSACTION_AUX_THREAD_CONTEXT_LIMIT);
+
+    // using field updater instead of AtomicInteger to avoid allocation per transaction
+    private static final AtomicIntegerFieldUpdater<Transaction> auxThreadContextBudgetUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class,
+                    "auxThreadContextBudgetCounter");
+
+    // using field updaters instead of AtomicLong to avoid allocations per transaction
+    private static final AtomicLongFieldUpdater<Transaction> asyncWorkCountUpdater =
+            AtomicLongFieldUpdater.newUpdater(Transaction.class, "asyncWorkCount");
+    private static final AtomicLongFieldUpdater<Transaction> asyncWorkTotalNanosUpdater =
+            AtomicLongFieldUpdater.newUpdater(Transaction.class, "asyncWorkTotalNanos");
+
     private static final Random random = new Random();
 
     private volatile @Nullable String traceId;
@@ -127,6 +150,7 @@ public class Transaction {
     private volatile @Nullable ErrorMessage errorMessage;
 
     private final int maxTraceEntriesPerTransaction;
+    private final int maxTraceEntriesPerQuery;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
 
@@ -170,6 +194,10 @@ public class Transaction {
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
 
+    // unlike the counters above, this is incremented concurrently by many threads (which is the
+    // case it is guarding against), so lost updates would be common
+    private volatile int auxThreadContextBudgetCounter;
+
     private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
 
     private final ThreadContextImpl mainThreadContext;
@@ -187,6 +215,13 @@ public class Transaction {
     @GuardedBy("asyncTimerLock")
     private @MonotonicNonNull Map<String, AggregateAsyncTimer> aggregateAsyncTimers;
 
+    // the "async work" captured once the auxiliary thread context budget is exhausted (see
+    // AsyncWorkAuxThreadContext) is recorded using these counters instead of async timers, since
+    // it is recorded concurrently by many threads (which is the case the budget is guarding
+    // against), and so would be highly contended on asyncTimerLock
+    private volatile long asyncWorkCount;
+    private volatile long asyncWorkTotalNanos;
+
     private volatile boolean completed;
     private volatile long endTick;
 
@@ -194,6 +229,8 @@ public class Transaction {
 
     private final UserProfileScheduler userProfileScheduler;
 
+    // this is set prior to the transaction being visible to other threads, after which it is
+    // only accessed under mainThreadContext lock (see setTransactionType())
     private @Nullable TransactionEntry transactionEntry;
 
     @GuardedBy("mainThreadContext")
@@ -205,8 +242,8 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType,
+            int maxTraceEntriesPerTransaction, int maxTraceEntriesPerQuery,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -217,6 +254,7 @@ public class Transaction {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
+        this.maxTraceEntriesPerQuery = maxTraceEntriesPerQuery;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.completionCallback = completionCallback;
@@ -350,21 +388,27 @@ public class Transaction {
     void mergeAsyncTimersInto(RootTimerCollector rootTimers) {
         memoryBarrierRead();
         synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                return;
-            }
-            for (AsyncTimerImpl asyncTimer : asyncTimers) {
-                rootTimers.mergeRootTimer(asyncTimer);
-            }
-            if (aggregateAsyncTimers == null) {
-                return;
+            if (asyncTimers != null) {
+                for (AsyncTimerImpl asyncTimer : asyncTimers) {
+                    rootTimers.mergeRootTimer(asyncTimer);
+                }
             }
-            for (Entry<String, AggregateAsyncTimer> entry : aggregateAsyncTimers.entrySet()) {
-                AggregateAsyncTimer value = entry.getValue();
-                rootTimers.mergeRootTimer(
-                        new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
+            if (aggregateAsyncTimers != null) {
+                for (Entry<String, AggregateAsyncTimer> entry : aggregateAsyncTimers
+                        .entrySet()) {
+                    AggregateAsyncTimer value = entry.getValue();
+                    rootTimers.mergeRootTimer(
+                            new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
+                }
             }
         }
+        long asyncWorkCount = this.asyncWorkCount;
+        if (asyncWorkCount > 0) {
+            TimerNameImpl asyncWorkTimerName =
+                    (TimerNameImpl) transactionService.getAsyncWorkTimerName();
+            rootTimers.mergeRootTimer(new SimpleTimerImpl(asyncWorkTimerName.name(),
+                    asyncWorkTotalNanos, asyncWorkCount));
+        }
     }
 
     // can be called from a non-transaction thread
@@ -429,11 +473,25 @@ public class Transaction {
         }
     }
 
+    int getMaxTraceEntriesPerQuery() {
+        return maxTraceEntriesPerQuery;
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
         return entryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
+    // this method has side effect of incrementing counter
+    boolean allowAnotherAuxThreadContext() {
+        if (auxThreadContextBudgetCounter >= TRANSACTION_AUX_THREAD_CONTEXT_BUDGET) {
+            // avoid contended increment (and int overflow) once the budget is exhausted
+            return false;
+        }
+        return auxThreadContextBudgetUpdater
+                .getAndIncrement(this) < TRANSACTION_AUX_THREAD_CONTEXT_BUDGET;
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherErrorEntry() {
         // use higher entry limit when adding errors, but still need some kind of cap
@@ -568,8 +626,12 @@ public class Transaction {
 
     void setTransactionType(String transactionType, int priority) {
         if (priority > transactionTypePriority && !transactionType.isEmpty()) {
+            String priorTransactionType = this.transactionType;
             this.transactionType = transactionType;
             transactionTypePriority = priority;
+            if (!transactionType.equals(priorTransactionType)) {
+                moveToTransactionType();
+            }
         }
     }
 
@@ -644,7 +706,22 @@ public class Transaction {
     }
 
     void removeFromActiveTransactions() {
-        checkNotNull(transactionEntry).remove();
+        synchronized (mainThreadContext) {
+            checkNotNull(transactionEntry).remove();
+            transactionEntry = null;
+        }
+    }
+
+    // active transactions are bucketed by transaction type (see TransactionRegistry), changing the
+    // transaction type after the transaction has started is rare, so ok to synchronize here
+    private void moveToTransactionType() {
+        synchronized (mainThreadContext) {
+            // transaction entry is null after being removed from the active transactions
+            if (transactionEntry != null) {
+                transactionEntry.remove();
+                transactionEntry = transactionRegistry.addTransaction(this);
+            }
+        }
     }
 
     @Nullable
@@ -745,6 +822,13 @@ public class Transaction {
         return asyncTimer;
     }
 
+    // lock-free alternative to startAsyncTimer() used by AsyncWorkAuxThreadContext, only completed
+    // async work is recorded
+    void recordAsyncWork(long durationNanos) {
+        asyncWorkTotalNanosUpdater.addAndGet(this, durationNanos);
+        asyncWorkCountUpdater.incrementAndGet(this);
+    }
+
     TraceEntryImpl startInnerTransaction(String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
@@ -756,7 +840,8 @@ public class Transaction {
         return entryLimitCounter > maxTraceEntriesPerTransaction;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
+    void captureStackTrace(boolean auxiliary, StackTraceElement[] stackTrace,
+            Thread.State threadState, int limit) {
         if (completed) {
             return;
         }
@@ -775,7 +860,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new Profile();
-            profile.addStackTrace(threadInfo, limit);
+            profile.addStackTrace(stackTrace, threadState, limit);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -783,7 +868,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo, limit);
+        profile.addStackTrace(stackTrace, threadState, limit);
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,7 +29,7 @@ class TransactionCollection implements Iterable<Transaction> {
 
     private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
 
-    private final TransactionEntry headEntry = new TransactionEntry(null, queue);
+    private final TransactionEntry headEntry = new TransactionEntry(null, 0, queue);
 
     // tail is non-volatile since only accessed under lock
     private TransactionEntry tailEntry = headEntry;
@@ -39,14 +39,29 @@ class TransactionCollection implements Iterable<Transaction> {
     private final Object lock = new Object();
 
     TransactionEntry add(Transaction transaction) {
-        TransactionEntry newTailEntry = new TransactionEntry(transaction, queue);
+        TransactionEntry newEntry =
+                new TransactionEntry(transaction, transaction.getStartTick(), queue);
         synchronized (lock) {
             expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
+            // entries are kept in start tick order, transactions are almost always added in start
+            // tick order, except when started concurrently
+            TransactionEntry prevEntry = tailEntry;
+            while (prevEntry != headEntry && prevEntry.startTick - newEntry.startTick > 0) {
+                prevEntry = checkNotNull(prevEntry.prevEntry);
+            }
+            TransactionEntry nextEntry = prevEntry.nextEntry;
+            newEntry.prevEntry = prevEntry;
+            newEntry.nextEntry = nextEntry;
+            if (nextEntry == null) {
+                tailEntry = newEntry;
+            } else {
+                nextEntry.prevEntry = newEntry;
+            }
+            // this publishes the new entry to iterators (which access next outside of lock), so
+            // must be done after the new entry is fully linked
+            prevEntry.nextEntry = newEntry;
         }
-        return newTailEntry;
+        return newEntry;
     }
 
     @Override
@@ -123,6 +138,7 @@ class TransactionCollection implements Iterable<Transaction> {
     class TransactionEntry {
 
         private final @Nullable WeakReference<Transaction> transactionRef; // only null for head
+        private final long startTick;
 
         // prev is non-volatile since only accessed under lock
         private @Nullable TransactionEntry prevEntry; // only null for head and removed
@@ -130,8 +146,9 @@ class TransactionCollection implements Iterable<Transaction> {
         // next is volatile since accessed by iterator outside of lock
         private volatile @Nullable TransactionEntry nextEntry;
 
-        private TransactionEntry(@Nullable Transaction transaction,
+        private TransactionEntry(@Nullable Transaction transaction, long startTick,
                 ReferenceQueue<Transaction> queue) {
+            this.startTick = startTick;
             if (transaction == null) {
                 transactionRef = null;
             } else {
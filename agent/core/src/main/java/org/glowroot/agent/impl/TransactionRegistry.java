@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,14 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.concurrent.ConcurrentMap;
+
 import javax.annotation.Nullable;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
@@ -26,8 +32,11 @@ import static org.glowroot.agent.util.Checkers.castInitialized;
 
 public class TransactionRegistry {
 
-    // collection of active running transactions
-    private final TransactionCollection transactions = new TransactionCollection();
+    // active running transactions, bucketed by transaction type so that live trace point queries
+    // (which are always for a single transaction type) only iterate over the transactions of that
+    // type, transaction types are low cardinality so buckets are never removed
+    private final ConcurrentMap<String, TransactionCollection> transactionsByType =
+            Maps.newConcurrentMap();
 
     // active thread context being executed by the current thread
     private final FastThreadLocal</*@Nullable*/ ThreadContextImpl> currentThreadContext =
@@ -52,10 +61,30 @@ public class TransactionRegistry {
     }
 
     TransactionEntry addTransaction(Transaction transaction) {
+        String transactionType = transaction.getTransactionType();
+        TransactionCollection transactions = transactionsByType.get(transactionType);
+        if (transactions == null) {
+            transactions = new TransactionCollection();
+            TransactionCollection existingTransactions =
+                    transactionsByType.putIfAbsent(transactionType, transactions);
+            if (existingTransactions != null) {
+                transactions = existingTransactions;
+            }
+        }
         return transactions.add(transaction);
     }
 
+    // not ordered across transaction types
     public Iterable<Transaction> getTransactions() {
+        return Iterables.concat(transactionsByType.values());
+    }
+
+    // ordered by start tick
+    public Iterable<Transaction> getTransactions(String transactionType) {
+        TransactionCollection transactions = transactionsByType.get(transactionType);
+        if (transactions == null) {
+            return ImmutableList.of();
+        }
         return transactions;
     }
 
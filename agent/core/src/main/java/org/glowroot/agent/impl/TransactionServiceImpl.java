@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -51,6 +51,7 @@ public class TransactionServiceImpl implements ConfigListener {
     private int maxAggregateQueriesPerType;
     private int maxAggregateServiceCallsPerType;
     private int maxTraceEntriesPerTransaction;
+    private int maxTraceEntriesPerQuery;
 
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
@@ -86,7 +87,7 @@ public class TransactionServiceImpl implements ConfigListener {
         long startTick = ticker.read();
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
+                maxTraceEntriesPerTransaction, maxTraceEntriesPerQuery, maxAggregateQueriesPerType,
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
@@ -109,6 +110,10 @@ public class TransactionServiceImpl implements ConfigListener {
                 threadAllocatedBytes);
     }
 
+    TimerName getAsyncWorkTimerName() {
+        return timerNameCache.getAsyncWorkTimerName();
+    }
+
     @Override
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
@@ -116,6 +121,7 @@ public class TransactionServiceImpl implements ConfigListener {
         maxAggregateQueriesPerType = advancedConfig.maxAggregateQueriesPerType();
         maxAggregateServiceCallsPerType = advancedConfig.maxAggregateServiceCallsPerType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
+        maxTraceEntriesPerQuery = advancedConfig.maxTraceEntriesPerQuery();
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -24,6 +24,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -56,12 +59,19 @@ import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GaugeCollector extends ScheduledRunnable {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    // reading platform mxbeans (java.lang:*) directly instead of through the MBeanServer
+    private static final boolean DIRECT_PLATFORM_MXBEANS =
+            Boolean.getBoolean("glowroot.gauge.directPlatformMXBeans");
+
+    private static final long MATCHING_OBJECT_NAMES_REFRESH_MILLIS = MINUTES.toMillis(1);
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -81,6 +91,13 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // querying mbean names is expensive when there are many mbeans registered, so the matching
+    // object names for wildcard mbean object names are cached and refreshed periodically
+    private final Map<ObjectName, MatchingObjectNames> matchingObjectNamesCache =
+            Maps.newHashMap();
+
+    private @MonotonicNonNull PlatformMXBeanReader platformMXBeanReader;
+
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
         this.configService = configService;
@@ -117,6 +134,9 @@ class GaugeCollector extends ScheduledRunnable {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
             priorRawCounterValues = Maps.newHashMap();
         }
+        if (DIRECT_PLATFORM_MXBEANS && platformMXBeanReader == null) {
+            platformMXBeanReader = PlatformMXBeanReader.create();
+        }
         for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
             gaugeValues.addAll(collectGaugeValues(gaugeConfig));
         }
@@ -161,25 +181,57 @@ class GaugeCollector extends ScheduledRunnable {
             return ImmutableList.of();
         }
         if (!objectName.isPattern()) {
-            return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
+            try {
+                return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(),
+                        mbeanObjectName);
+            } catch (InstanceNotFoundException e) {
+                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+                return ImmutableList.of();
+            }
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
         }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (ObjectName matchingObjectName : matchingObjectNames) {
-            gaugeValues.addAll(collectGaugeValues(matchingObjectName, gaugeConfig.mbeanAttributes(),
-                    matchingObjectName.getDomain() + ":"
-                            + matchingObjectName.getKeyPropertyListString()));
+            try {
+                gaugeValues.addAll(collectGaugeValues(matchingObjectName,
+                        gaugeConfig.mbeanAttributes(), matchingObjectName.getDomain() + ":"
+                                + matchingObjectName.getKeyPropertyListString()));
+            } catch (InstanceNotFoundException e) {
+                // mbean was unregistered since the matching object names were queried
+                matchingObjectNamesCache.remove(objectName);
+            }
         }
         return gaugeValues;
     }
 
+    private Set<ObjectName> getMatchingObjectNames(ObjectName objectName) throws Exception {
+        long currentTimeMillis = clock.currentTimeMillis();
+        MatchingObjectNames matchingObjectNames = matchingObjectNamesCache.get(objectName);
+        if (matchingObjectNames != null && currentTimeMillis
+                - matchingObjectNames.queryTimeMillis() < MATCHING_OBJECT_NAMES_REFRESH_MILLIS) {
+            return matchingObjectNames.objectNames();
+        }
+        Set<ObjectName> objectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        if (objectNames.isEmpty()) {
+            // not caching, so that mbeans that are registered later are picked up right away
+            matchingObjectNamesCache.remove(objectName);
+        } else {
+            matchingObjectNamesCache.put(objectName,
+                    ImmutableMatchingObjectNames.of(objectNames, currentTimeMillis));
+        }
+        return objectNames;
+    }
+
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
-            List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
+            List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName)
+            throws InstanceNotFoundException {
+        Map<String, /*@Nullable*/ Object> attributeValues =
+                readAttributeValues(objectName, mbeanAttributes);
         long captureTime = clock.currentTimeMillis();
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
@@ -188,25 +240,28 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
-                    CompositeData compositeData = (CompositeData) attributeValue;
-                    if (compositeData == null) {
+                    attributeValue = getAttributeValue(objectName, path[0], attributeValues);
+                    if (attributeValue == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
                         // java.lang:type=GarbageCollector,name=*
                         // prior to first GC, this attribute value is null
                         continue;
                     }
-                    attributeValue = compositeData.get(path[1]);
+                    if (platformMXBeanReader != null
+                            && !(attributeValue instanceof CompositeData)) {
+                        // attribute value was read directly from platform mxbean
+                        attributeValue = platformMXBeanReader.getProperty(attributeValue, path[1]);
+                    } else {
+                        attributeValue = ((CompositeData) attributeValue).get(path[1]);
+                    }
                 } else {
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                            getAttributeValue(objectName, mbeanAttributeName, attributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
-                // other attributes for this mbean will give same error, so log mbean not
-                // found and break out of attribute loop
-                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
-                break;
+                // other attributes for this mbean will give same error
+                throw e;
             } catch (AttributeNotFoundException e) {
                 logger.debug(e.getMessage(), e);
                 logFirstTimeMBeanAttributeNotFound(mbeanObjectName, mbeanAttributeName);
@@ -321,6 +376,64 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    // reads all of the (top level) attributes of the mbean in a single call, instead of one call per
+    // attribute
+    private Map<String, /*@Nullable*/ Object> readAttributeValues(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws InstanceNotFoundException {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            attributeNames.add(getTopLevelAttributeName(mbeanAttribute.name()));
+        }
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        if (platformMXBeanReader != null) {
+            platformMXBeanReader.readAttributes(objectName, attributeNames, attributeValues);
+            attributeNames.removeAll(attributeValues.keySet());
+        }
+        if (attributeNames.isEmpty()) {
+            return attributeValues;
+        }
+        AttributeList attributeList;
+        try {
+            attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]));
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            throw e;
+        } catch (Exception e) {
+            // attributes will be read (and errors logged) one at a time below
+            logger.debug(e.getMessage(), e);
+            return attributeValues;
+        }
+        if (attributeList != null) {
+            // attributes that could not be read are omitted from the returned list, and will be
+            // read (and errors logged) one at a time below
+            for (Attribute attribute : attributeList.asList()) {
+                attributeValues.put(attribute.getName(), attribute.getValue());
+            }
+        }
+        return attributeValues;
+    }
+
+    private @Nullable Object getAttributeValue(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> attributeValues) throws Exception {
+        if (attributeValues.containsKey(attributeName)) {
+            return attributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
+    private static String getTopLevelAttributeName(String mbeanAttributeName) {
+        int index = mbeanAttributeName.indexOf('.');
+        return index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface MatchingObjectNames {
+        Set<ObjectName> objectNames();
+        long queryTimeMillis();
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface RawCounterValue {
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.management.AttributeNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// reads attributes directly from the platform mxbeans (e.g. java.lang:type=Memory) instead of going
+// through the MBeanServer, which avoids the MBeanServer's per attribute lookup and open type
+// conversion
+//
+// only accessed from the gauge collection thread, so no need to worry about thread safety
+class PlatformMXBeanReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlatformMXBeanReader.class);
+
+    private final ImmutableMap<ObjectName, Object> platformMXBeans;
+
+    // key is class name + ":" + attribute name
+    private final Map<String, Method> getters = Maps.newHashMap();
+    private final Set<String> missingGetters = Sets.newHashSet();
+
+    private PlatformMXBeanReader(ImmutableMap<ObjectName, Object> platformMXBeans) {
+        this.platformMXBeans = platformMXBeans;
+    }
+
+    static PlatformMXBeanReader create() {
+        ImmutableMap.Builder<ObjectName, Object> platformMXBeans = ImmutableMap.builder();
+        put(platformMXBeans, "java.lang:type=Memory", ManagementFactory.getMemoryMXBean());
+        put(platformMXBeans, "java.lang:type=OperatingSystem",
+                ManagementFactory.getOperatingSystemMXBean());
+        put(platformMXBeans, "java.lang:type=Threading", ManagementFactory.getThreadMXBean());
+        put(platformMXBeans, "java.lang:type=Runtime", ManagementFactory.getRuntimeMXBean());
+        put(platformMXBeans, "java.lang:type=ClassLoading",
+                ManagementFactory.getClassLoadingMXBean());
+        CompilationMXBean compilationMXBean = ManagementFactory.getCompilationMXBean();
+        if (compilationMXBean != null) {
+            put(platformMXBeans, "java.lang:type=Compilation", compilationMXBean);
+        }
+        for (GarbageCollectorMXBean gcMXBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            put(platformMXBeans, "java.lang:type=GarbageCollector,name=" + gcMXBean.getName(),
+                    gcMXBean);
+        }
+        for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()) {
+            put(platformMXBeans, "java.lang:type=MemoryPool,name=" + memoryPoolMXBean.getName(),
+                    memoryPoolMXBean);
+        }
+        return new PlatformMXBeanReader(platformMXBeans.build());
+    }
+
+    // reads the attributes that can be read directly into attributeValues, any attributes that
+    // cannot be read directly are left for the caller to read through the MBeanServer
+    void readAttributes(ObjectName objectName, Set<String> attributeNames,
+            Map<String, /*@Nullable*/ Object> attributeValues) {
+        Object platformMXBean = platformMXBeans.get(objectName);
+        if (platformMXBean == null) {
+            return;
+        }
+        for (String attributeName : attributeNames) {
+            Method getter = getGetter(platformMXBean.getClass(), attributeName);
+            if (getter == null) {
+                continue;
+            }
+            try {
+                attributeValues.put(attributeName, getter.invoke(platformMXBean));
+            } catch (Exception e) {
+                // the MBeanServer read will log the error if it fails there too
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    // used for the second part of composite attribute names (e.g. HeapMemoryUsage.used) when the
+    // attribute value was read directly (e.g. java.lang.management.MemoryUsage)
+    @Nullable
+    Object getProperty(Object value, String propertyName) throws Exception {
+        Method getter = getGetter(value.getClass(), propertyName);
+        if (getter == null) {
+            throw new AttributeNotFoundException(propertyName);
+        }
+        return getter.invoke(value);
+    }
+
+    private @Nullable Method getGetter(Class<?> clazz, String name) {
+        String key = clazz.getName() + ":" + name;
+        Method getter = getters.get(key);
+        if (getter != null || missingGetters.contains(key)) {
+            return getter;
+        }
+        getter = findGetter(clazz, name);
+        if (getter == null) {
+            missingGetters.add(key);
+        } else {
+            getters.put(key, getter);
+        }
+        return getter;
+    }
+
+    private static @Nullable Method findGetter(Class<?> clazz, String name) {
+        if (Modifier.isPublic(clazz.getModifiers())
+                && clazz.getName().startsWith("java.lang.management.")) {
+            // e.g. MemoryUsage
+            Method getter = findGetterInAccessibleClass(clazz, name);
+            if (getter != null) {
+                return getter;
+            }
+        }
+        // platform mxbean implementation classes are not public, so need to go through their
+        // public interfaces
+        for (Class<?> currClass = clazz; currClass != null;
+                currClass = currClass.getSuperclass()) {
+            for (Class<?> iface : currClass.getInterfaces()) {
+                Method getter = findGetterInInterface(iface, name);
+                if (getter != null) {
+                    return getter;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static @Nullable Method findGetterInInterface(Class<?> iface, String name) {
+        if (isAccessible(iface)) {
+            Method getter = findGetterInAccessibleClass(iface, name);
+            if (getter != null) {
+                return getter;
+            }
+        }
+        for (Class<?> superInterface : iface.getInterfaces()) {
+            Method getter = findGetterInInterface(superInterface, name);
+            if (getter != null) {
+                return getter;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAccessible(Class<?> iface) {
+        if (!Modifier.isPublic(iface.getModifiers())) {
+            return false;
+        }
+        String className = iface.getName();
+        return className.startsWith("java.lang.management.")
+                || className.startsWith("com.sun.management.");
+    }
+
+    private static @Nullable Method findGetterInAccessibleClass(Class<?> clazz, String name) {
+        if (name.isEmpty()) {
+            return null;
+        }
+        // composite data item names are lower camel case (e.g. HeapMemoryUsage.used)
+        String capitalizedName = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String prefix : new String[] {"get", "is"}) {
+            try {
+                Method method = clazz.getMethod(prefix + capitalizedName);
+                if (method.getReturnType() != void.class) {
+                    return method;
+                }
+            } catch (NoSuchMethodException e) {
+                // try next
+                logger.trace(e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
+    private static void put(ImmutableMap.Builder<ObjectName, Object> platformMXBeans,
+            String name, Object platformMXBean) {
+        try {
+            platformMXBeans.put(ObjectName.getInstance(name), platformMXBean);
+        } catch (MalformedObjectNameException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+}
@@ -26,10 +26,10 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -47,7 +47,6 @@ import javax.tools.ToolProvider;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -84,6 +83,9 @@ public class LiveJvmServiceImpl implements LiveJvmService {
     private static final String HOT_SPOT_DIAGNOSTIC_MBEAN_NAME =
             "com.sun.management:type=HotSpotDiagnostic";
 
+    // the remaining (smallest) classes are only included in the heap histogram totals
+    private static final int HEAP_HISTOGRAM_LIMIT = 10000;
+
     private static final @Nullable Long PROCESS_ID =
             parseProcessId(ManagementFactory.getRuntimeMXBean().getName());
 
@@ -218,7 +220,7 @@ public class LiveJvmServiceImpl implements LiveJvmService {
             try {
                 BufferedReader reader =
                         closer.register(new BufferedReader(new InputStreamReader(in)));
-                return process(reader);
+                return process(reader, HEAP_HISTOGRAM_LIMIT);
             } catch (Throwable t) {
                 throw closer.rethrow(t);
             } finally {
@@ -544,7 +546,9 @@ public class LiveJvmServiceImpl implements LiveJvmService {
         return attributeNames;
     }
 
-    private static HeapHistogram process(BufferedReader reader) throws IOException {
+    // only the largest classes (by bytes) are returned, the rest are only included in the totals
+    @VisibleForTesting
+    static HeapHistogram process(BufferedReader reader, int limit) throws IOException {
         // skip over header lines
         String line = reader.readLine();
         while (line != null && !line.contains("--------")) {
@@ -554,18 +558,27 @@ public class LiveJvmServiceImpl implements LiveJvmService {
             throw new IOException("Unexpected heapHisto output");
         }
         Map<String, ClassInfo> classInfos = Maps.newHashMap();
-        Splitter splitter = Splitter.on(' ').omitEmptyStrings();
         while ((line = reader.readLine()) != null) {
-            Iterator<String> parts = splitter.split(line).iterator();
-            String num = parts.next();
-            if (num.equals("Total")) {
+            // line format is "<num>: <count> <bytes> <class name>" (with variable whitespace), and
+            // is parsed in place to avoid splitting each line into separate strings
+            int index = skipSpaces(line, 0);
+            if (line.startsWith("Total", index)) {
                 break;
             }
-            long count = Long.parseLong(parts.next());
-            long bytes = Long.parseLong(parts.next());
-            String className = parts.next();
+            index = skipSpaces(line, skipNonSpaces(line, index));
+            int end = skipNonSpaces(line, index);
+            long count = parseLong(line, index, end);
+            index = skipSpaces(line, end);
+            end = skipNonSpaces(line, index);
+            long bytes = parseLong(line, index, end);
+            index = skipSpaces(line, end);
+            end = skipNonSpaces(line, index);
+            if (index == end) {
+                throw new IOException("Unexpected heapHisto line: " + line);
+            }
             // skipping PermGen objects
-            if (className.charAt(0) != '<') {
+            if (line.charAt(index) != '<') {
+                String className = line.substring(index, end);
                 if (className.charAt(0) == '[') {
                     className = Type.getType(className).getClassName();
                 }
@@ -578,8 +591,26 @@ public class LiveJvmServiceImpl implements LiveJvmService {
                 classInfo.count += count;
             }
         }
-        HeapHistogram.Builder builder = HeapHistogram.newBuilder();
-        for (ClassInfo classInfo : ClassInfo.orderingByBytes.sortedCopy(classInfos.values())) {
+        // bounded min-heap (smallest at the head) so that the largest classes are selected without
+        // sorting all of the classes
+        PriorityQueue<ClassInfo> largestClassInfos = new PriorityQueue<ClassInfo>(
+                Math.min(limit, classInfos.size()) + 1, ClassInfo.orderingByBytes.reverse());
+        long totalBytes = 0;
+        long totalCount = 0;
+        for (ClassInfo classInfo : classInfos.values()) {
+            totalBytes += classInfo.bytes;
+            totalCount += classInfo.count;
+            if (largestClassInfos.size() < limit) {
+                largestClassInfos.add(classInfo);
+            } else if (limit > 0 && classInfo.bytes > largestClassInfos.peek().bytes) {
+                largestClassInfos.poll();
+                largestClassInfos.add(classInfo);
+            }
+        }
+        HeapHistogram.Builder builder = HeapHistogram.newBuilder()
+                .setTotalBytes(totalBytes)
+                .setTotalCount(totalCount);
+        for (ClassInfo classInfo : ClassInfo.orderingByBytes.sortedCopy(largestClassInfos)) {
             builder.addClassInfo(HeapHistogram.ClassInfo.newBuilder()
                     .setClassName(classInfo.className)
                     .setBytes(classInfo.bytes)
@@ -588,6 +619,37 @@ public class LiveJvmServiceImpl implements LiveJvmService {
         return builder.build();
     }
 
+    private static int skipSpaces(String line, int index) {
+        int i = index;
+        while (i < line.length() && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNonSpaces(String line, int index) {
+        int i = index;
+        while (i < line.length() && line.charAt(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static long parseLong(String line, int from, int to) throws IOException {
+        if (from == to) {
+            throw new IOException("Unexpected heapHisto line: " + line);
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IOException("Unexpected heapHisto line: " + line);
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
     private static void addNumericAttributes(MBeanAttributeInfo attribute, Object value,
             Set<String> attributeNames) {
         String attributeType = attribute.getType();
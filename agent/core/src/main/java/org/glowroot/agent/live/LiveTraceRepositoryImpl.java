@@ -16,19 +16,16 @@
 package org.glowroot.agent.live;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Ordering;
 
 import org.glowroot.agent.collector.Collector.EntryVisitor;
 import org.glowroot.agent.collector.Collector.TraceReader;
@@ -158,7 +155,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         // include active traces, this is mostly for the case where there is just a single very
         // long running active trace and it would be misleading to display Traces (0) on the tab
         int count = 0;
-        for (Transaction transaction : transactionRegistry.getTransactions()) {
+        for (Transaction transaction : transactionRegistry.getTransactions(transactionType)) {
             // don't include partially stored traces since those are already counted above
             if (matchesActive(transaction, transactionType, transactionName)
                     && !transaction.isPartiallyStored()) {
@@ -173,10 +170,14 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             String transactionType, @Nullable String transactionName, TracePointFilter filter,
             int limit, long captureTime, long captureTick) {
         List<TracePoint> activeTracePoints = Lists.newArrayList();
-        for (Transaction transaction : transactionRegistry.getTransactions()) {
+        // transactions are ordered by start tick, which is the same as ordering the trace points
+        // by duration descending
+        for (Transaction transaction : transactionRegistry.getTransactions(transactionType)) {
             long startTick = transaction.getStartTick();
-            if (matches(transaction, traceKind, transactionType, transactionName, filter)
-                    && startTick < captureTick) {
+            if (startTick >= captureTick) {
+                break;
+            }
+            if (matches(transaction, traceKind, transactionType, transactionName, filter)) {
                 activeTracePoints.add(ImmutableTracePoint.builder()
                         .agentId(AGENT_ID)
                         .traceId(transaction.getTraceId())
@@ -185,19 +186,11 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
                         .partial(true)
                         .error(transaction.getErrorMessage() != null)
                         .build());
+                if (activeTracePoints.size() == limit) {
+                    break;
+                }
             }
         }
-        Collections.sort(activeTracePoints,
-                Ordering.natural().reverse().onResultOf(new Function<TracePoint, Long>() {
-                    @Override
-                    public Long apply(@Nullable TracePoint tracePoint) {
-                        checkNotNull(tracePoint);
-                        return tracePoint.durationNanos();
-                    }
-                }));
-        if (limit != 0 && activeTracePoints.size() > limit) {
-            activeTracePoints = activeTracePoints.subList(0, limit);
-        }
         return activeTracePoints;
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -90,13 +90,21 @@ class ThreadDumpService {
             if (!threadContext.isActive()) {
                 continue;
             }
-            long threadId = threadContext.getThreadId();
-            ThreadInfo threadInfo = unmatchedThreadInfos.remove(threadId);
-            if (threadInfo == null) {
-                // this should not happen since this thread context was active before and after the
-                // thread dump
-                logger.warn("thread dump not captured for thread: {}", threadId);
-                continue;
+            ThreadDump.Thread thread;
+            Thread virtualThread = threadContext.getVirtualThread();
+            if (virtualThread == null) {
+                long threadId = threadContext.getThreadId();
+                ThreadInfo threadInfo = unmatchedThreadInfos.remove(threadId);
+                if (threadInfo == null) {
+                    // this should not happen since this thread context was active before and after
+                    // the thread dump
+                    logger.warn("thread dump not captured for thread: {}", threadId);
+                    continue;
+                }
+                thread = createProtobuf(threadInfo);
+            } else {
+                // virtual threads do not show up in ThreadMXBean
+                thread = createProtobuf(virtualThread);
             }
             Transaction transaction = threadContext.getTransaction();
             String traceId = transaction.getTraceId();
@@ -108,7 +116,7 @@ class ThreadDumpService {
                         transactionCollector.shouldStoreSlow(transaction));
                 transactionThreadInfos.put(traceId, transactionThreadInfo);
             }
-            transactionThreadInfo.threadInfos.add(threadInfo);
+            transactionThreadInfo.threads.add(thread);
         }
         List<ThreadDump.Transaction> transactions = Lists.newArrayList();
         for (Entry<String, TransactionThreadInfo> entry : transactionThreadInfos.entrySet()) {
@@ -124,9 +132,7 @@ class ThreadDumpService {
             if (value.shouldStoreSlow) {
                 builder.setTraceId(entry.getKey());
             }
-            for (ThreadInfo auxThreadInfo : value.threadInfos) {
-                builder.addThread(createProtobuf(auxThreadInfo));
-            }
+            builder.addAllThread(value.threads);
             transactions.add(builder.build());
         }
         List<ThreadDump.Thread> unmatchedThreads = Lists.newArrayList();
@@ -165,11 +171,7 @@ class ThreadDumpService {
         }
         List<ThreadDump.StackTraceElement.Builder> stackTraceElements = Lists.newArrayList();
         for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
-            stackTraceElements.add(ThreadDump.StackTraceElement.newBuilder()
-                    .setClassName(stackTraceElement.getClassName())
-                    .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
-                    .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
-                    .setLineNumber(stackTraceElement.getLineNumber()));
+            stackTraceElements.add(createProtobuf(stackTraceElement));
         }
         for (MonitorInfo lockedMonitor : threadInfo.getLockedMonitors()) {
             int lockedStackDepth = lockedMonitor.getLockedStackDepth();
@@ -186,6 +188,27 @@ class ThreadDumpService {
         return builder.build();
     }
 
+    private static ThreadDump.Thread createProtobuf(Thread virtualThread) {
+        // lock info and locked monitors are not available for virtual threads
+        ThreadDump.Thread.Builder builder = ThreadDump.Thread.newBuilder()
+                .setName(virtualThread.getName())
+                .setId(virtualThread.getId())
+                .setState(virtualThread.getState().name());
+        for (StackTraceElement stackTraceElement : virtualThread.getStackTrace()) {
+            builder.addStackTraceElement(createProtobuf(stackTraceElement));
+        }
+        return builder.build();
+    }
+
+    private static ThreadDump.StackTraceElement.Builder createProtobuf(
+            StackTraceElement stackTraceElement) {
+        return ThreadDump.StackTraceElement.newBuilder()
+                .setClassName(stackTraceElement.getClassName())
+                .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
+                .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
+                .setLineNumber(stackTraceElement.getLineNumber());
+    }
+
     private static class TransactionOrdering extends Ordering<ThreadDump.Transaction> {
         @Override
         public int compare(ThreadDump.Transaction left, ThreadDump.Transaction right) {
@@ -209,7 +232,7 @@ class ThreadDumpService {
         private final long totalCpuNanos;
         private final boolean shouldStoreSlow;
 
-        private final List<ThreadInfo> threadInfos = Lists.newArrayList();
+        private final List<ThreadDump.Thread> threads = Lists.newArrayList();
 
         private TransactionThreadInfo(String headline, String transactionType,
                 String transactionName, long totalDurationNanos, long totalCpuNanos,
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
 
@@ -73,13 +72,13 @@ public class Profile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    public void addStackTrace(ThreadInfo threadInfo, int limit) {
+    public void addStackTrace(StackTraceElement[] stackTraceElements, Thread.State threadState,
+            int limit) {
         synchronized (lock) {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
+            List<StackTraceElement> stackTrace = Arrays.asList(stackTraceElements);
             if (profile == null) {
                 unmergedStackTraces.add(stackTrace);
                 unmergedStackTraceThreadStates.add(threadState);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -54,6 +54,12 @@ public class QueryData {
     private long startTick;
     private int selfNestingLevel;
 
+    // number of (real or dummy) query entries, which unlike executionCount doesn't include batch
+    // size, this is used to stop capturing trace entries for repeated executions of the same query
+    // (e.g. N+1 queries), after which further executions are only captured in this query data
+    private int entryCount;
+    private boolean repeated;
+
     public QueryData(String queryType, String queryText, @Nullable QueryData nextQueryData) {
         this.queryType = queryType;
         this.queryText = queryText;
@@ -76,6 +82,7 @@ public class QueryData {
         if (selfNestingLevel++ == 0) {
             this.startTick = startTick;
             executionCount += batchSize;
+            entryCount++;
         }
     }
 
@@ -113,6 +120,18 @@ public class QueryData {
         return totalRows;
     }
 
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public boolean isRepeated() {
+        return repeated;
+    }
+
+    public void setRepeated() {
+        repeated = true;
+    }
+
     void extend(long startTick) {
         if (selfNestingLevel++ == 0) {
             this.startTick = startTick;
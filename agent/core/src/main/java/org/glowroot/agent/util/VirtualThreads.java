@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// virtual threads (java 21+) do not show up in ThreadMXBean, so stack traces for them need to be
+// captured using Thread.getStackTrace() and per-thread stats (cpu time, blocked/waited time and
+// allocated bytes) are not available for them
+//
+// the virtual thread class is looked up by name since the agent is compiled against java 6, and
+// is resolved once so that the check (which is performed on each thread context creation) is
+// just an instanceof check instead of a reflective method invocation
+public class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final @Nullable Class<?> virtualThreadClass = getVirtualThreadClass();
+
+    private VirtualThreads() {}
+
+    public static boolean isVirtual(Thread thread) {
+        return virtualThreadClass != null && virtualThreadClass.isInstance(thread);
+    }
+
+    private static @Nullable Class<?> getVirtualThreadClass() {
+        try {
+            // java 21+, this is the super class of both VirtualThread and BoundVirtualThread
+            return Class.forName("java.lang.BaseVirtualThread");
+        } catch (ClassNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        try {
+            // java 19 and 20 (preview)
+            return Class.forName("java.lang.VirtualThread");
+        } catch (ClassNotFoundException e) {
+            // expected prior to java 19
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+}
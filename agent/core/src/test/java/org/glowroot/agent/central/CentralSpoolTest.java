@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.io.Files;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.central.CollectorStreamMultiplexer.StreamWriter;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class CentralSpoolTest {
+
+    private File file;
+    private CollectorStreamMultiplexer collectorStreamMultiplexer;
+    private BlockingQueue<List<AggregateStreamMessage>> replayedStreams;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".capped.db");
+        replayedStreams = Queues.newLinkedBlockingQueue();
+        collectorStreamMultiplexer = mock(CollectorStreamMultiplexer.class);
+        doAnswer(new ReplayAnswer()).when(collectorStreamMultiplexer)
+                .collectAggregateStream(any(StreamWriter.class), any(StreamObserver.class));
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(file, 1024, collectorStreamMultiplexer,
+                Ticker.systemTicker());
+        // when
+        spool.spoolAggregateStream(new TestStreamWriter("one", 1));
+        spool.spoolAggregateStream(new TestStreamWriter("two", 1));
+        // then
+        List<List<AggregateStreamMessage>> replayed = replay(spool, 2);
+        assertThat(replayed).hasSize(2);
+        assertThat(getAgentId(replayed.get(0))).isEqualTo("one");
+        assertThat(getAgentId(replayed.get(1))).isEqualTo("two");
+        spool.close();
+    }
+
+    @Test
+    public void shouldCollectOnCallingThread() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(file, 1024, collectorStreamMultiplexer,
+                Ticker.systemTicker());
+        TestStreamWriter streamWriter = new TestStreamWriter("one", 3);
+        // when
+        spool.spoolAggregateStream(streamWriter);
+        // then
+        assertThat(streamWriter.writeThread).isSameAs(Thread.currentThread());
+        List<List<AggregateStreamMessage>> replayed = replay(spool, 1);
+        assertThat(replayed).hasSize(1);
+        assertThat(replayed.get(0)).hasSize(3);
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestWhenOverSizeCap() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(file, 16, collectorStreamMultiplexer,
+                Ticker.systemTicker());
+        // when
+        for (int i = 0; i < 10; i++) {
+            // random (incompressible) agent ids so that each stream is ~ 4kb in the spool
+            spool.spoolAggregateStream(new TestStreamWriter(i + ":" + randomString(4096), 1));
+        }
+        // then
+        List<List<AggregateStreamMessage>> replayed = replay(spool, 10);
+        assertThat(replayed.size()).isBetween(1, 4);
+        assertThat(getAgentId(replayed.get(replayed.size() - 1))).startsWith("9:");
+        spool.close();
+    }
+
+    @Test
+    public void shouldIgnoreCorruptSpoolFile() throws Exception {
+        // given
+        byte[] garbage = new byte[8192];
+        new Random().nextBytes(garbage);
+        Files.write(garbage, file);
+        // when
+        CentralSpool spool = new CentralSpool(file, 1024, collectorStreamMultiplexer,
+                Ticker.systemTicker());
+        spool.spoolAggregateStream(new TestStreamWriter("one", 1));
+        // then
+        List<List<AggregateStreamMessage>> replayed = replay(spool, 1);
+        assertThat(replayed).hasSize(1);
+        assertThat(getAgentId(replayed.get(0))).isEqualTo("one");
+        spool.close();
+    }
+
+    @Test
+    public void shouldNotSpoolFailedStreamWriter() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(file, 1024, collectorStreamMultiplexer,
+                Ticker.systemTicker());
+        // when
+        spool.spoolAggregateStream(new StreamWriter<AggregateStreamMessage>() {
+            @Override
+            public void write(StreamObserver<AggregateStreamMessage> requestObserver) {
+                throw new IllegalStateException("A test exception");
+            }
+        });
+        spool.spoolAggregateStream(new TestStreamWriter("one", 1));
+        // then
+        List<List<AggregateStreamMessage>> replayed = replay(spool, 2);
+        assertThat(replayed).hasSize(1);
+        assertThat(getAgentId(replayed.get(0))).isEqualTo("one");
+        spool.close();
+    }
+
+    // spooling is async, so keep nudging replay until the expected number of streams have been
+    // replayed, or until nothing more is replayed
+    private List<List<AggregateStreamMessage>> replay(CentralSpool spool, int expectedCount)
+            throws InterruptedException {
+        List<List<AggregateStreamMessage>> replayed = Lists.newArrayList();
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (replayed.size() < expectedCount && System.nanoTime() < deadline) {
+            spool.replayAsync();
+            List<AggregateStreamMessage> messages = replayedStreams.poll(200, MILLISECONDS);
+            if (messages != null) {
+                replayed.add(messages);
+            }
+        }
+        return replayed;
+    }
+
+    private static String getAgentId(List<AggregateStreamMessage> messages) {
+        return messages.get(0).getStreamHeader().getAgentId();
+    }
+
+    private static String randomString(int length) {
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static class TestStreamWriter implements StreamWriter<AggregateStreamMessage> {
+
+        private final String agentId;
+        private final int messageCount;
+
+        private volatile Thread writeThread;
+
+        private TestStreamWriter(String agentId, int messageCount) {
+            this.agentId = agentId;
+            this.messageCount = messageCount;
+        }
+
+        @Override
+        public void write(StreamObserver<AggregateStreamMessage> requestObserver) {
+            writeThread = Thread.currentThread();
+            for (int i = 0; i < messageCount; i++) {
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setStreamHeader(AggregateStreamHeader.newBuilder()
+                                .setAgentId(agentId)
+                                .setCaptureTime(i))
+                        .build());
+            }
+        }
+    }
+
+    // simulates the central collector successfully receiving each replayed stream
+    private class ReplayAnswer implements Answer<Void> {
+
+        @Override
+        public @Nullable Void answer(InvocationOnMock invocation) throws Exception {
+            @SuppressWarnings("unchecked")
+            StreamWriter<AggregateStreamMessage> streamWriter =
+                    (StreamWriter<AggregateStreamMessage>) invocation.getArguments()[0];
+            @SuppressWarnings("unchecked")
+            StreamObserver<AggregateResponseMessage> responseObserver =
+                    (StreamObserver<AggregateResponseMessage>) invocation.getArguments()[1];
+            final List<AggregateStreamMessage> messages = Lists.newArrayList();
+            streamWriter.write(new StreamObserver<AggregateStreamMessage>() {
+                @Override
+                public void onNext(AggregateStreamMessage value) {
+                    messages.add(value);
+                }
+                @Override
+                public void onError(Throwable t) {}
+                @Override
+                public void onCompleted() {}
+            });
+            replayedStreams.add(messages);
+            responseObserver.onNext(AggregateResponseMessage.getDefaultInstance());
+            responseObserver.onCompleted();
+            return null;
+        }
+    }
+}
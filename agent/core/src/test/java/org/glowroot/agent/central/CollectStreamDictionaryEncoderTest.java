@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectStreamDictionaryEncoderTest {
+
+    @Test
+    public void shouldRoundTripAggregate() {
+        // given
+        CollectStreamDictionaryEncoder encoder = new CollectStreamDictionaryEncoder();
+        List<String> dictionary = Lists.newArrayList();
+        AggregateStreamMessage message = AggregateStreamMessage.newBuilder()
+                .setTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionType("Web")
+                        .setTransactionName("/abc")
+                        .setAggregate(Aggregate.newBuilder()
+                                .setTotalDurationNanos(123)
+                                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                                        .setName("http request")
+                                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                                .setName("jdbc query")))
+                                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                                        .setType("HTTP")
+                                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                                .setText("GET http://example.com")))))
+                .build();
+        // when
+        AggregateStreamMessage encoded = encoder.encode(message);
+        dictionary.addAll(encoder.drainNewEntries());
+        AggregateStreamMessage encodedAgain = encoder.encode(message);
+        // then
+        assertThat(dictionary).containsOnly("/abc", "http request", "jdbc query",
+                "GET http://example.com");
+        assertThat(encoder.drainNewEntries()).isEmpty();
+        assertThat(encodedAgain).isEqualTo(encoded);
+        TransactionAggregate transactionAggregate = encoded.getTransactionAggregate();
+        assertThat(transactionAggregate.getTransactionName()).isEmpty();
+        assertThat(resolve(dictionary, transactionAggregate)).isEqualTo(message);
+    }
+
+    @Test
+    public void shouldRoundTripTraceHeaderAndProfile() {
+        // given
+        CollectStreamDictionaryEncoder encoder = new CollectStreamDictionaryEncoder();
+        List<String> dictionary = Lists.newArrayList();
+        TraceStreamMessage headerMessage = TraceStreamMessage.newBuilder()
+                .setHeader(Trace.Header.newBuilder()
+                        .setTransactionType("Web")
+                        .setTransactionName("/abc")
+                        .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                                .setName("http request")))
+                .build();
+        TraceStreamMessage profileMessage = TraceStreamMessage.newBuilder()
+                .setMainThreadProfile(Profile.newBuilder()
+                        .addPackageName("java.lang")
+                        .addClassName("Thread")
+                        .addMethodName("sleep")
+                        .addFileName(""))
+                .build();
+        // when
+        TraceStreamMessage encodedHeader = encoder.encode(headerMessage);
+        TraceStreamMessage encodedProfile = encoder.encode(profileMessage);
+        dictionary.addAll(encoder.drainNewEntries());
+        // then
+        assertThat(resolve(dictionary, encodedHeader.getHeader()))
+                .isEqualTo(headerMessage.getHeader());
+        assertThat(encodedProfile.getMainThreadProfile().getPackageNameCount()).isEqualTo(0);
+        assertThat(resolve(dictionary, encodedProfile.getMainThreadProfile()))
+                .isEqualTo(profileMessage.getMainThreadProfile());
+    }
+
+    @Test
+    public void shouldNotAddEntriesForProfileThatIsNotEncoded() {
+        // given
+        CollectStreamDictionaryEncoder encoder = new CollectStreamDictionaryEncoder();
+        Profile profile = Profile.newBuilder()
+                .addPackageName("java.lang")
+                .addClassName("Thread")
+                .addMethodName("sleep")
+                .addFileName(Strings.repeat("x", 200))
+                .build();
+        TraceStreamMessage message = TraceStreamMessage.newBuilder()
+                .setMainThreadProfile(profile)
+                .build();
+        // when
+        TraceStreamMessage encoded = encoder.encode(message);
+        // then
+        assertThat(encoded.getMainThreadProfile()).isEqualTo(profile);
+        assertThat(encoder.drainNewEntries()).isEmpty();
+    }
+
+    // mirrors the resolution performed by the central collector
+    private static AggregateStreamMessage resolve(List<String> dictionary,
+            TransactionAggregate transactionAggregate) {
+        Aggregate.Builder aggregate = transactionAggregate.getAggregate().toBuilder();
+        for (Aggregate.Timer.Builder timer : aggregate.getMainThreadRootTimerBuilderList()) {
+            resolve(dictionary, timer);
+        }
+        for (Aggregate.ServiceCallsByType.Builder serviceCallsByType : aggregate
+                .getServiceCallsByTypeBuilderList()) {
+            for (Aggregate.ServiceCall.Builder serviceCall : serviceCallsByType
+                    .getServiceCallBuilderList()) {
+                serviceCall.setText(dictionary.get(serviceCall.getTextRef() - 1))
+                        .clearTextRef();
+            }
+        }
+        return AggregateStreamMessage.newBuilder()
+                .setTransactionAggregate(transactionAggregate.toBuilder()
+                        .setTransactionName(
+                                dictionary.get(transactionAggregate.getTransactionNameRef() - 1))
+                        .clearTransactionNameRef()
+                        .setAggregate(aggregate))
+                .build();
+    }
+
+    private static void resolve(List<String> dictionary, Aggregate.Timer.Builder timer) {
+        timer.setName(dictionary.get(timer.getNameRef() - 1))
+                .clearNameRef();
+        for (Aggregate.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+            resolve(dictionary, childTimer);
+        }
+    }
+
+    private static Trace.Header resolve(List<String> dictionary, Trace.Header header) {
+        Trace.Header.Builder builder = header.toBuilder()
+                .setTransactionName(dictionary.get(header.getTransactionNameRef() - 1))
+                .clearTransactionNameRef();
+        Trace.Timer.Builder timer = builder.getMainThreadRootTimerBuilder();
+        timer.setName(dictionary.get(timer.getNameRef() - 1))
+                .clearNameRef();
+        return builder.build();
+    }
+
+    private static Profile resolve(List<String> dictionary, Profile profile) {
+        return profile.toBuilder()
+                .clearPackageNameRef()
+                .clearClassNameRef()
+                .clearMethodNameRef()
+                .clearFileNameRef()
+                .addAllPackageName(resolve(dictionary, profile.getPackageNameRefList()))
+                .addAllClassName(resolve(dictionary, profile.getClassNameRefList()))
+                .addAllMethodName(resolve(dictionary, profile.getMethodNameRefList()))
+                .addAllFileName(resolve(dictionary, profile.getFileNameRefList()))
+                .build();
+    }
+
+    private static List<String> resolve(List<String> dictionary, List<Integer> refs) {
+        List<String> values = Lists.newArrayList();
+        for (int ref : refs) {
+            values.add(dictionary.get(ref - 1));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CollectorStreamMultiplexer.StreamWriter;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamFlowControl;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorStreamMultiplexerTest {
+
+    private static final String SERVER_NAME = "collector-stream-multiplexer-test";
+
+    private FakeCollectorService collectorService;
+    private Server server;
+    private ManagedChannel channel;
+    private CentralConnection centralConnection;
+    private CollectorStreamMultiplexer multiplexer;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        collectorService = new FakeCollectorService();
+        server = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(collectorService)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+        // only used for log collector suppression, so never connects
+        centralConnection = new CentralConnection(
+                ImmutableList.<SocketAddress>of(new InetSocketAddress("localhost", 1)),
+                new AtomicBoolean());
+        multiplexer = new CollectorStreamMultiplexer(CollectorServiceGrpc.newStub(channel),
+                centralConnection);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        channel.shutdown();
+        server.shutdown();
+        collectorService.executor.shutdown();
+        centralConnection.close();
+        centralConnection.awaitClose();
+    }
+
+    @Test
+    public void shouldSendAllRequestsOnSingleStream() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector(22);
+        // when
+        for (int i = 0; i < 20; i++) {
+            multiplexer.collectGaugeValues(gaugeValueMessage(i), responseCollector.empty());
+        }
+        for (int i = 0; i < 2; i++) {
+            multiplexer.collectAggregateStream(new AggregateStreamWriter("agent-" + i, 1),
+                    responseCollector.aggregate());
+        }
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(collectorService.collectStreamCount.get()).isEqualTo(1);
+        assertThat(collectorService.completedRequestCount.get()).isEqualTo(22);
+        assertThat(collectorService.individualCallCount.get()).isZero();
+    }
+
+    @Test
+    public void shouldNotExceedMaxInFlightRequests() throws Exception {
+        // given
+        collectorService.maxInFlightRequests = 2;
+        collectorService.responseDelayMillis = 10;
+        ResponseCollector responseCollector = new ResponseCollector(20);
+        // when
+        for (int i = 0; i < 20; i++) {
+            multiplexer.collectGaugeValues(gaugeValueMessage(i), responseCollector.empty());
+        }
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(collectorService.completedRequestCount.get()).isEqualTo(20);
+        assertThat(collectorService.maxObservedInFlightRequests.get()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void shouldFallBackToIndividualCallsUntilReconnect() throws Exception {
+        // given
+        collectorService.unimplemented = true;
+        ResponseCollector responseCollector = new ResponseCollector(2);
+        // when
+        multiplexer.collectGaugeValues(gaugeValueMessage(1), responseCollector.empty());
+        multiplexer.collectGaugeValues(gaugeValueMessage(2), responseCollector.empty());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(collectorService.individualCallCount.get()).isEqualTo(2);
+        int collectStreamCount = collectorService.collectStreamCount.get();
+
+        // when
+        collectorService.unimplemented = false;
+        multiplexer.onReconnect();
+        responseCollector = new ResponseCollector(1);
+        multiplexer.collectGaugeValues(gaugeValueMessage(3), responseCollector.empty());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(collectorService.collectStreamCount.get()).isEqualTo(collectStreamCount + 1);
+        assertThat(collectorService.individualCallCount.get()).isEqualTo(2);
+        assertThat(collectorService.completedRequestCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailInFlightRequestsWhenStreamIsClosed() throws Exception {
+        // given
+        collectorService.closeStreamAfterRequests = 1;
+        ResponseCollector responseCollector = new ResponseCollector(1);
+        // when
+        multiplexer.collectGaugeValues(gaugeValueMessage(1), responseCollector.empty());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isEqualTo(1);
+
+        // when
+        collectorService.closeStreamAfterRequests = -1;
+        responseCollector = new ResponseCollector(1);
+        multiplexer.collectGaugeValues(gaugeValueMessage(2), responseCollector.empty());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(collectorService.collectStreamCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldSendMessagesAsTheyAreWritten() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector(1);
+        // when
+        multiplexer.collectAggregateStream(new StreamWriter<AggregateStreamMessage>() {
+            @Override
+            public void write(StreamObserver<AggregateStreamMessage> requestObserver)
+                    throws Exception {
+                requestObserver.onNext(aggregateStreamMessage("agent"));
+                requestObserver.onNext(aggregateStreamMessage("agent"));
+                // the first message is sent before the request has been fully written
+                assertThat(collectorService.firstMessageLatch.await(10, SECONDS)).isTrue();
+                requestObserver.onNext(aggregateStreamMessage("agent"));
+            }
+        }, responseCollector.aggregate());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(collectorService.completedRequestCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCancelRequestThatFailsPartWayThrough() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector(1);
+        // when
+        multiplexer.collectAggregateStream(new StreamWriter<AggregateStreamMessage>() {
+            @Override
+            public void write(StreamObserver<AggregateStreamMessage> requestObserver) {
+                requestObserver.onNext(aggregateStreamMessage("agent"));
+                requestObserver.onNext(aggregateStreamMessage("agent"));
+                throw new IllegalStateException("A test exception");
+            }
+        }, responseCollector.aggregate());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isEqualTo(1);
+        assertThat(collectorService.cancelLatch.await(10, SECONDS)).isTrue();
+
+        // when
+        responseCollector = new ResponseCollector(1);
+        multiplexer.collectAggregateStream(new AggregateStreamWriter("agent", 2),
+                responseCollector.aggregate());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(collectorService.collectStreamCount.get()).isEqualTo(1);
+        assertThat(collectorService.completedRequestCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldWriteAgainWhenFallingBackToIndividualCall() throws Exception {
+        // given
+        collectorService.unimplemented = true;
+        ResponseCollector responseCollector = new ResponseCollector(1);
+        AggregateStreamWriter streamWriter = new AggregateStreamWriter("agent", 3);
+        // when
+        multiplexer.collectAggregateStream(streamWriter, responseCollector.aggregate());
+        // then
+        assertThat(responseCollector.await()).isTrue();
+        assertThat(responseCollector.errorCount.get()).isZero();
+        assertThat(streamWriter.writeCount.get()).isEqualTo(2);
+        assertThat(collectorService.individualCallCount.get()).isEqualTo(1);
+        assertThat(collectorService.individualCallMessageCount.get()).isEqualTo(3);
+    }
+
+    private static AggregateStreamMessage aggregateStreamMessage(String agentId) {
+        return AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentId))
+                .build();
+    }
+
+    private static GaugeValueMessage gaugeValueMessage(int value) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId("agent")
+                .addGaugeValues(GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                        .setCaptureTime(value)
+                        .setValue(value))
+                .build();
+    }
+
+    private static class FakeCollectorService extends CollectorServiceImplBase {
+
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+        private volatile boolean unimplemented;
+        private volatile int maxInFlightRequests = 16;
+        private volatile int responseDelayMillis;
+        private volatile int closeStreamAfterRequests = -1;
+
+        private final AtomicInteger collectStreamCount = new AtomicInteger();
+        private final AtomicInteger individualCallCount = new AtomicInteger();
+        private final AtomicInteger individualCallMessageCount = new AtomicInteger();
+        private final CountDownLatch firstMessageLatch = new CountDownLatch(1);
+        private final CountDownLatch cancelLatch = new CountDownLatch(1);
+        private final AtomicInteger completedRequestCount = new AtomicInteger();
+        private final AtomicInteger inFlightRequests = new AtomicInteger();
+        private final AtomicInteger maxObservedInFlightRequests = new AtomicInteger();
+
+        @Override
+        public void collectGaugeValues(GaugeValueMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            individualCallCount.getAndIncrement();
+            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<AggregateStreamMessage> collectAggregateStream(
+                final StreamObserver<AggregateResponseMessage> responseObserver) {
+            individualCallCount.getAndIncrement();
+            return new StreamObserver<AggregateStreamMessage>() {
+                @Override
+                public void onNext(AggregateStreamMessage value) {
+                    individualCallMessageCount.getAndIncrement();
+                }
+                @Override
+                public void onError(Throwable t) {}
+                @Override
+                public void onCompleted() {
+                    responseObserver.onNext(AggregateResponseMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public StreamObserver<CollectStreamMessage> collectStream(
+                final StreamObserver<CollectStreamResponse> responseObserver) {
+            collectStreamCount.getAndIncrement();
+            if (unimplemented) {
+                responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+                return new NopStreamObserver<CollectStreamMessage>();
+            }
+            responseObserver.onNext(CollectStreamResponse.newBuilder()
+                    .setFlowControl(CollectStreamFlowControl.newBuilder()
+                            .setMaxInFlightRequests(maxInFlightRequests))
+                    .build());
+            return new StreamObserver<CollectStreamMessage>() {
+
+                private int requestCount;
+                private boolean closed;
+
+                @Override
+                public void onNext(final CollectStreamMessage message) {
+                    firstMessageLatch.countDown();
+                    if (message.getMessageCase() == CollectStreamMessage.MessageCase.CANCEL) {
+                        cancelLatch.countDown();
+                        return;
+                    }
+                    if (!message.getLast() || closed) {
+                        return;
+                    }
+                    if (++requestCount == closeStreamAfterRequests) {
+                        closed = true;
+                        synchronized (responseObserver) {
+                            responseObserver.onCompleted();
+                        }
+                        return;
+                    }
+                    int inFlight = inFlightRequests.incrementAndGet();
+                    while (true) {
+                        int max = maxObservedInFlightRequests.get();
+                        if (inFlight <= max
+                                || maxObservedInFlightRequests.compareAndSet(max, inFlight)) {
+                            break;
+                        }
+                    }
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            respond(message);
+                        }
+                    }, responseDelayMillis, MILLISECONDS);
+                }
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {
+                    synchronized (responseObserver) {
+                        responseObserver.onCompleted();
+                    }
+                }
+
+                private void respond(CollectStreamMessage message) {
+                    CollectStreamResponse.Builder response = CollectStreamResponse.newBuilder()
+                            .setRequestId(message.getRequestId());
+                    if (message.getMessageCase()
+                            == CollectStreamMessage.MessageCase.AGGREGATE_STREAM_MESSAGE) {
+                        response.setAggregateResponseMessage(
+                                AggregateResponseMessage.getDefaultInstance());
+                    } else {
+                        response.setEmptyMessage(EmptyMessage.getDefaultInstance());
+                    }
+                    inFlightRequests.decrementAndGet();
+                    completedRequestCount.incrementAndGet();
+                    synchronized (responseObserver) {
+                        responseObserver.onNext(response.build());
+                    }
+                }
+            };
+        }
+    }
+
+    private static class AggregateStreamWriter implements StreamWriter<AggregateStreamMessage> {
+
+        private final String agentId;
+        private final int messageCount;
+
+        private final AtomicInteger writeCount = new AtomicInteger();
+
+        private AggregateStreamWriter(String agentId, int messageCount) {
+            this.agentId = agentId;
+            this.messageCount = messageCount;
+        }
+
+        @Override
+        public void write(StreamObserver<AggregateStreamMessage> requestObserver) {
+            writeCount.getAndIncrement();
+            for (int i = 0; i < messageCount; i++) {
+                requestObserver.onNext(aggregateStreamMessage(agentId));
+            }
+        }
+    }
+
+    private static class ResponseCollector {
+
+        private final CountDownLatch latch;
+        private final AtomicInteger errorCount = new AtomicInteger();
+        private final List<Object> responses = Lists.newCopyOnWriteArrayList();
+
+        private ResponseCollector(int expectedCount) {
+            latch = new CountDownLatch(expectedCount);
+        }
+
+        private StreamObserver<EmptyMessage> empty() {
+            return new CollectingStreamObserver<EmptyMessage>();
+        }
+
+        private StreamObserver<AggregateResponseMessage> aggregate() {
+            return new CollectingStreamObserver<AggregateResponseMessage>();
+        }
+
+        private boolean await() throws InterruptedException {
+            return latch.await(10, SECONDS);
+        }
+
+        private class CollectingStreamObserver<T> implements StreamObserver<T> {
+
+            @Override
+            public void onNext(T value) {
+                responses.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                errorCount.getAndIncrement();
+                latch.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                latch.countDown();
+            }
+        }
+    }
+
+    private static class NopStreamObserver<T> implements StreamObserver<T> {
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -32,8 +32,10 @@ import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -60,7 +62,7 @@ public class TraceDaoTest {
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
         traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
-                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class));
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), Clock.systemClock());
     }
 
     @After
@@ -217,4 +219,30 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ROLLUP, AGENT_ID, traceReader.traceId())).isNull();
     }
+
+    @Test
+    public void shouldReadTraceStoredLateIntoCachedBlock() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+        traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 10);
+        Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                .setCaptureTime(21)
+                .setDurationNanos(MILLISECONDS.toNanos(20))
+                .build();
+        traceDao.store(TraceTestData.createTraceReader(header));
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 10);
+
+        // then
+        assertThat(queryResult.records()).hasSize(2);
+        assertThat(queryResult.records().get(0).captureTime()).isEqualTo(21);
+        assertThat(queryResult.records().get(1).captureTime()).isEqualTo(11);
+    }
 }
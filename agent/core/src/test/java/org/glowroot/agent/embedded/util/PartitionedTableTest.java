@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.PartitionedTable.PartitionVisitor;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx", ImmutableList.of("capture_time")));
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldVisitOverlappingPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "test", columns, indexes, 10);
+        insert(table, 5);
+        insert(table, 10);
+        insert(table, 11);
+        insert(table, 35);
+        // when
+        List<String> partitionTableNames = getPartitionTableNames(table, 10, 30);
+        // then
+        assertThat(partitionTableNames).containsExactly("test_p0", "test_p10");
+        assertThat(dataSource.queryForLong("select count(*) from test_p0")).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "test", columns, indexes, 10);
+        insert(table, 5);
+        insert(table, 15);
+        insert(table, 25);
+        // when
+        table.dropBefore(20);
+        // then
+        assertThat(getPartitionTableNames(table, 0, 100)).containsExactly("test_p10", "test_p20");
+        assertThat(dataSource.tableExists("test_p0")).isFalse();
+    }
+
+    @Test
+    public void shouldFindExistingPartitions() throws Exception {
+        // given
+        insert(new PartitionedTable(dataSource, "test", columns, indexes, 10), 15);
+        // when
+        PartitionedTable table = new PartitionedTable(dataSource, "test", columns, indexes, 10);
+        // then
+        assertThat(getPartitionTableNames(table, 0, 100)).containsExactly("test_p10");
+    }
+
+    private void insert(PartitionedTable table, final long captureTime) throws Exception {
+        table.visitPartition(captureTime, new PartitionVisitor() {
+            @Override
+            public void visit(@Untainted String partitionTableName, long partitionFrom,
+                    long partitionTo) throws Exception {
+                dataSource.update("insert into " + partitionTableName + " (capture_time)"
+                        + " values (?)", captureTime);
+            }
+        });
+    }
+
+    private static List<String> getPartitionTableNames(PartitionedTable table, long from,
+            long to) throws Exception {
+        final List<String> partitionTableNames = Lists.newArrayList();
+        table.visitPartitions(from, to, new PartitionVisitor() {
+            @Override
+            public void visit(@Untainted String partitionTableName, long partitionFrom,
+                    long partitionTo) {
+                partitionTableNames.add(partitionTableName);
+            }
+        });
+        return partitionTableNames;
+    }
+}
@@ -15,23 +15,39 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.AuxThreadContext;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService;
+import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAuxThreadContext;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class ThreadContextImplTest {
 
+    private Transaction transaction;
     private ThreadContextImpl threadContext;
 
     private MessageSupplier messageSupplier = mock(MessageSupplier.class);
@@ -40,7 +56,7 @@ public class ThreadContextImplTest {
 
     @Before
     public void beforeEachTest() {
-        Transaction transaction = mock(Transaction.class);
+        transaction = mock(Transaction.class);
         MessageSupplier messageSupplier = mock(MessageSupplier.class);
         TimerNameImpl rootTimerName = mock(TimerNameImpl.class);
         Ticker ticker = mock(Ticker.class);
@@ -127,6 +143,96 @@ public class ThreadContextImplTest {
                         .getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
     }
 
+    @Test
+    public void shouldNotCreateAuxThreadContextAfterTransactionCompleted() {
+        // given
+        when(transaction.isCompleted()).thenReturn(true);
+        // when
+        AuxThreadContext auxContext = threadContext.createAuxThreadContext();
+        // then
+        assertThat(auxContext).isEqualTo(NopAuxThreadContext.INSTANCE);
+    }
+
+    @Test
+    public void shouldFallBackToAsyncWorkAfterAuxThreadContextBudgetExceeded() {
+        // given
+        when(transaction.allowAnotherAuxThreadContext()).thenReturn(false);
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        @SuppressWarnings("unchecked")
+        Holder<ThreadContextImpl> threadContextHolder = mock(Holder.class);
+        when(transactionRegistry.getCurrentThreadContextHolder()).thenReturn(threadContextHolder);
+        when(transaction.getTransactionRegistry()).thenReturn(transactionRegistry);
+        // when
+        AuxThreadContext auxContext = threadContext.createAuxThreadContext();
+        auxContext.start().end();
+        // then
+        assertThat(auxContext).isInstanceOf(AsyncWorkAuxThreadContext.class);
+        verify(transaction).recordAsyncWork(anyLong());
+        verify(transaction, never()).startAsyncTimer(any(TimerName.class), anyLong());
+    }
+
+    @Test
+    public void shouldCollapseRepeatedQueryEntries() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(true);
+        when(transaction.allowAnotherAggregateQuery(anyBoolean())).thenReturn(true);
+        when(transaction.getMaxTraceEntriesPerQuery()).thenReturn(2);
+        // when
+        List<QueryEntry> queryEntries = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            QueryEntry queryEntry =
+                    threadContext.startQueryEntry("type", "text", queryMessageSupplier, timerName);
+            queryEntry.end();
+            queryEntries.add(queryEntry);
+        }
+        QueryEntry otherQueryEntry =
+                threadContext.startQueryEntry("type", "other", queryMessageSupplier, timerName);
+        // then
+        assertThat(queryEntries.get(0)).isInstanceOf(TraceEntryImpl.class);
+        assertThat(queryEntries.get(1)).isInstanceOf(TraceEntryImpl.class);
+        assertThat(queryEntries.get(2).getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
+        assertThat(queryEntries.get(3).getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
+        assertThat(otherQueryEntry).isInstanceOf(TraceEntryImpl.class);
+        verify(transaction).addAttribute("N+1 suspected", "text");
+    }
+
+    @Test
+    public void shouldTruncateRepeatedQueryAttribute() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(true);
+        when(transaction.allowAnotherAggregateQuery(anyBoolean())).thenReturn(true);
+        when(transaction.getMaxTraceEntriesPerQuery()).thenReturn(1);
+        String queryText = Strings.repeat("x", 1000);
+        // when
+        for (int i = 0; i < 3; i++) {
+            threadContext.startQueryEntry("type", queryText, queryMessageSupplier, timerName)
+                    .end();
+        }
+        // then
+        verify(transaction).addAttribute("N+1 suspected", Strings.repeat("x", 120) + " ...");
+    }
+
+    @Test
+    public void shouldNotCollapseRepeatedQueryEntriesWhenDisabled() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(true);
+        when(transaction.allowAnotherAggregateQuery(anyBoolean())).thenReturn(true);
+        when(transaction.getMaxTraceEntriesPerQuery()).thenReturn(0);
+        // when
+        List<QueryEntry> queryEntries = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            QueryEntry queryEntry =
+                    threadContext.startQueryEntry("type", "text", queryMessageSupplier, timerName);
+            queryEntry.end();
+            queryEntries.add(queryEntry);
+        }
+        // then
+        for (QueryEntry queryEntry : queryEntries) {
+            assertThat(queryEntry).isInstanceOf(TraceEntryImpl.class);
+        }
+        verify(transaction, never()).addAttribute(anyString(), anyString());
+    }
+
     @Test
     public void testStartServiceCallEntry() {
         assertThat(
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,6 +24,7 @@ import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TransactionCollectionTest {
 
@@ -39,4 +40,25 @@ public class TransactionCollectionTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void shouldOrderByStartTick() {
+        // given
+        TransactionCollection collection = new TransactionCollection();
+        Transaction transaction1 = mockTransaction(1);
+        Transaction transaction2 = mockTransaction(2);
+        Transaction transaction3 = mockTransaction(3);
+        // when
+        collection.add(transaction2);
+        collection.add(transaction3);
+        collection.add(transaction1);
+        // then
+        assertThat(collection).containsExactly(transaction1, transaction2, transaction3);
+    }
+
+    private static Transaction mockTransaction(long startTick) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getStartTick()).thenReturn(startTick);
+        return transaction;
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionRegistryTest {
+
+    @Test
+    public void shouldBucketTransactionsByType() {
+        // given
+        TransactionRegistry registry = new TransactionRegistry();
+        Transaction transaction1 = mockTransaction("Web", 2);
+        Transaction transaction2 = mockTransaction("Background", 1);
+        Transaction transaction3 = mockTransaction("Web", 1);
+        // when
+        registry.addTransaction(transaction1);
+        registry.addTransaction(transaction2);
+        registry.addTransaction(transaction3);
+        // then
+        assertThat(registry.getTransactions("Web")).containsExactly(transaction3, transaction1);
+        assertThat(registry.getTransactions("Background")).containsExactly(transaction2);
+        assertThat(registry.getTransactions("Other")).isEmpty();
+        assertThat(registry.getTransactions()).containsOnly(transaction1, transaction2,
+                transaction3);
+    }
+
+    @Test
+    public void shouldRemoveTransactionFromBucket() {
+        // given
+        TransactionRegistry registry = new TransactionRegistry();
+        Transaction transaction1 = mockTransaction("Web", 1);
+        Transaction transaction2 = mockTransaction("Web", 2);
+        TransactionEntry entry1 = registry.addTransaction(transaction1);
+        registry.addTransaction(transaction2);
+        // when
+        entry1.remove();
+        // then
+        assertThat(registry.getTransactions("Web")).containsExactly(transaction2);
+        assertThat(registry.getTransactions()).containsExactly(transaction2);
+    }
+
+    private static Transaction mockTransaction(String transactionType, long startTick) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn(transactionType);
+        when(transaction.getStartTick()).thenReturn(startTick);
+        return transaction;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PlatformMXBeanReaderTest {
+
+    @Test
+    public void shouldReadPlatformMXBeanAttributes() throws Exception {
+        // given
+        PlatformMXBeanReader reader = PlatformMXBeanReader.create();
+        Map<String, Object> attributeValues = Maps.newHashMap();
+
+        // when
+        reader.readAttributes(ObjectName.getInstance("java.lang:type=Memory"),
+                ImmutableSet.of("HeapMemoryUsage", "Verbose", "Xyz"), attributeValues);
+
+        // then
+        assertThat(attributeValues.keySet()).containsOnly("HeapMemoryUsage", "Verbose");
+        Object heapMemoryUsage = attributeValues.get("HeapMemoryUsage");
+        assertThat(heapMemoryUsage).isInstanceOf(MemoryUsage.class);
+        assertThat(reader.getProperty(heapMemoryUsage, "used"))
+                .isEqualTo(((MemoryUsage) heapMemoryUsage).getUsed());
+    }
+
+    @Test
+    public void shouldNotReadNonPlatformMXBeanAttributes() throws Exception {
+        // given
+        PlatformMXBeanReader reader = PlatformMXBeanReader.create();
+        Map<String, Object> attributeValues = Maps.newHashMap();
+
+        // when
+        reader.readAttributes(ObjectName.getInstance("test:aaa=bbb"), ImmutableSet.of("ccc"),
+                attributeValues);
+
+        // then
+        assertThat(attributeValues).isEmpty();
+    }
+}
@@ -15,8 +15,13 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
+
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class LiveJvmServiceImplTest {
@@ -34,4 +39,51 @@ public class LiveJvmServiceImplTest {
     public void testParseable() {
         assertThat(LiveJvmServiceImpl.parseProcessId("123456@host")).isEqualTo(123456);
     }
+
+    @Test
+    public void testHeapHistogramLimit() throws Exception {
+        // given
+        String output = "\n"
+                + " num     #instances         #bytes  class name\n"
+                + "----------------------------------------------\n"
+                + "   1:         10000        1000000  [B\n"
+                + "   2:          5000         500000  java.lang.String\n"
+                + "   3:           100          10000  <methodKlass>\n"
+                + "   4:            20           2000  com.example.Xyz\n"
+                + "   5:            10           1000  com.example.Xyz\n"
+                + "   6:             1             16  com.example.Abc (module@1)\n"
+                + "Total         15131        1513016\n";
+
+        // when
+        HeapHistogram heapHistogram =
+                LiveJvmServiceImpl.process(new BufferedReader(new StringReader(output)), 2);
+
+        // then
+        assertThat(heapHistogram.getClassInfoCount()).isEqualTo(2);
+        assertThat(heapHistogram.getClassInfo(0).getClassName()).isEqualTo("byte[]");
+        assertThat(heapHistogram.getClassInfo(1).getClassName()).isEqualTo("java.lang.String");
+        assertThat(heapHistogram.getTotalBytes()).isEqualTo(1503016);
+        assertThat(heapHistogram.getTotalCount()).isEqualTo(15031);
+    }
+
+    @Test
+    public void testHeapHistogramAggregation() throws Exception {
+        // given
+        String output = " num     #instances         #bytes  class name\n"
+                + "----------------------------------------------\n"
+                + "   1:            20           2000  com.example.Xyz\n"
+                + "   2:            10           1000  com.example.Xyz\n"
+                + "   3:             1             16  com.example.Abc\n";
+
+        // when
+        HeapHistogram heapHistogram =
+                LiveJvmServiceImpl.process(new BufferedReader(new StringReader(output)), 100);
+
+        // then
+        assertThat(heapHistogram.getClassInfoCount()).isEqualTo(2);
+        assertThat(heapHistogram.getClassInfo(0).getClassName()).isEqualTo("com.example.Xyz");
+        assertThat(heapHistogram.getClassInfo(0).getBytes()).isEqualTo(3000);
+        assertThat(heapHistogram.getClassInfo(0).getCount()).isEqualTo(30);
+        assertThat(heapHistogram.getClassInfo(1).getClassName()).isEqualTo("com.example.Abc");
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.tests;
+
+import java.lang.reflect.Method;
+
+import javax.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.TransactionConfig;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+// virtual threads require java 21+, so these tests are skipped when running on older jvms
+public class VirtualThreadIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        container = Containers.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCaptureTransactionInVirtualThread() throws Exception {
+        // given
+        assumeTrue(getStartVirtualThreadMethod() != null);
+        // when
+        Trace trace = container.execute(TransactionInVirtualThread.class);
+        // then
+        assertThat(trace.getHeader().getTransactionName())
+                .isEqualTo("trace marker / TransactionInVirtualThread");
+        // per-thread stats are not available for virtual threads
+        assertThat(trace.getHeader().hasMainThreadStats()).isFalse();
+    }
+
+    @Test
+    public void shouldCaptureProfileInVirtualThread() throws Exception {
+        // given
+        assumeTrue(getStartVirtualThreadMethod() != null);
+        container.getConfigService().updateTransactionConfig(
+                TransactionConfig.newBuilder()
+                        .setSlowThresholdMillis(ProtoOptional.of(0))
+                        .setProfilingIntervalMillis(ProtoOptional.of(20))
+                        .build());
+        // when
+        Trace trace = container.execute(TransactionInVirtualThread.class);
+        // then
+        assertThat(trace.getHeader().getMainThreadProfileSampleCount()).isGreaterThan(0);
+    }
+
+    private static @Nullable Method getStartVirtualThreadMethod() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static class TransactionInVirtualThread implements AppUnderTest, TransactionMarker {
+        @Override
+        public void executeApp() throws Exception {
+            Thread thread = (Thread) getStartVirtualThreadMethod().invoke(null, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transactionMarker();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.join();
+        }
+        @Override
+        public void transactionMarker() throws InterruptedException {
+            Thread.sleep(200);
+        }
+    }
+}
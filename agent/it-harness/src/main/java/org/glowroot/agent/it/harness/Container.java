@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2015 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.it.harness;
 
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 public interface Container {
@@ -31,6 +32,12 @@ public interface Container {
 
     Trace getCollectedPartialTrace() throws Exception;
 
+    // waits for the aggregate that includes the last trace returned from execute()
+    //
+    // aggregates are only collected at the end of each aggregate interval, which defaults to 1
+    // minute, but can be shortened using system property glowroot.internal.rollup.0.intervalMillis
+    Aggregate getAggregateForLastTrace() throws Exception;
+
     // checks no unexpected log messages
     // checks no active traces
     // resets Glowroot back to square one (including re-weaving instrumentation configs if needed)
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -208,6 +208,7 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxAggregateTransactionsPerType(of(500))
                 .setMaxAggregateQueriesPerType(of(500))
                 .setMaxTraceEntriesPerTransaction(of(2000))
+                .setMaxTraceEntriesPerQuery(of(100))
                 .setMaxStackTraceSamplesPerTransaction(of(10000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
                 .build();
@@ -46,6 +46,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitResponse;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceImplBase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
@@ -160,8 +161,31 @@ class GrpcServerWrapper {
         public StreamObserver<AggregateStreamMessage> collectAggregateStream(
                 final StreamObserver<AggregateResponseMessage> responseObserver) {
             return new StreamObserver<AggregateStreamMessage>() {
+
+                private long captureTime;
+
                 @Override
-                public void onNext(AggregateStreamMessage value) {}
+                public void onNext(AggregateStreamMessage value) {
+                    switch (value.getMessageCase()) {
+                        case STREAM_HEADER:
+                            captureTime = value.getStreamHeader().getCaptureTime();
+                            break;
+                        case TRANSACTION_AGGREGATE:
+                            TransactionAggregate transactionAggregate =
+                                    value.getTransactionAggregate();
+                            collector.collectAggregate(captureTime,
+                                    transactionAggregate.getTransactionType(),
+                                    transactionAggregate.getTransactionName(),
+                                    transactionAggregate.getAggregate());
+                            break;
+                        case SHARED_QUERY_TEXT:
+                        case OVERALL_AGGREGATE:
+                            break;
+                        default:
+                            throw new RuntimeException(
+                                    "Unexpected message: " + value.getMessageCase());
+                    }
+                }
                 @Override
                 public void onError(Throwable t) {
                     logger.error(t.getMessage(), t);
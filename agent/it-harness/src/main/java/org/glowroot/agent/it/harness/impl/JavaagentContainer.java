@@ -59,6 +59,7 @@ import org.glowroot.agent.it.harness.grpc.JavaagentServiceGrpc;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceGrpc.JavaagentServiceBlockingStub;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceOuterClass.AppUnderTestClassName;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceOuterClass.Void;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -253,6 +254,13 @@ public class JavaagentContainer implements Container {
         return traceCollector.getPartialTrace(10, SECONDS);
     }
 
+    @Override
+    public Aggregate getAggregateForLastTrace() throws InterruptedException {
+        checkNotNull(traceCollector);
+        // allow for the default 1 minute aggregate interval
+        return traceCollector.getAggregateForLastTrace(90, SECONDS);
+    }
+
     @Override
     public void checkAndReset() throws Exception {
         if (configService == null) {
@@ -264,6 +272,7 @@ public class JavaagentContainer implements Container {
         }
         if (traceCollector != null) {
             traceCollector.checkAndResetLogMessages();
+            traceCollector.clearAggregates();
         }
     }
 
@@ -35,6 +35,7 @@ import org.glowroot.agent.it.harness.ConfigService;
 import org.glowroot.agent.it.harness.Container;
 import org.glowroot.agent.it.harness.TempDirs;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -153,6 +154,13 @@ public class LocalContainer implements Container {
         return traceCollector.getPartialTrace(10, SECONDS);
     }
 
+    @Override
+    public Aggregate getAggregateForLastTrace() throws InterruptedException {
+        checkNotNull(traceCollector);
+        // allow for the default 1 minute aggregate interval
+        return traceCollector.getAggregateForLastTrace(90, SECONDS);
+    }
+
     @Override
     public void checkAndReset() throws Exception {
         if (configService == null) {
@@ -164,6 +172,7 @@ public class LocalContainer implements Container {
         }
         if (traceCollector != null) {
             traceCollector.checkAndResetLogMessages();
+            traceCollector.clearAggregates();
         }
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,6 +25,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 import org.immutables.value.Value;
 
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -34,6 +35,10 @@ class TraceCollector {
 
     private volatile @Nullable Trace trace;
 
+    private volatile Trace./*@Nullable*/Header lastCompletedTraceHeader;
+
+    private final List<CollectedAggregate> aggregates = Lists.newCopyOnWriteArrayList();
+
     private final List<ExpectedLogMessage> expectedMessages = Lists.newCopyOnWriteArrayList();
     private final List<LogEvent> unexpectedMessages = Lists.newCopyOnWriteArrayList();
 
@@ -64,6 +69,31 @@ class TraceCollector {
         throw new IllegalStateException("No trace was collected");
     }
 
+    Aggregate getAggregateForLastTrace(int timeout, TimeUnit unit) throws InterruptedException {
+        Trace.Header header = lastCompletedTraceHeader;
+        if (header == null) {
+            throw new IllegalStateException("No trace was collected");
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(unit) < timeout) {
+            // the aggregate capture time is the end of the aggregate interval, so the first
+            // aggregate captured at or after the trace is the one that includes the trace
+            for (CollectedAggregate aggregate : aggregates) {
+                if (aggregate.captureTime() >= header.getCaptureTime()
+                        && aggregate.transactionType().equals(header.getTransactionType())
+                        && aggregate.transactionName().equals(header.getTransactionName())) {
+                    return aggregate.aggregate();
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("No aggregate was collected");
+    }
+
+    void clearAggregates() {
+        aggregates.clear();
+    }
+
     boolean hasTrace() {
         return trace != null;
     }
@@ -102,6 +132,15 @@ class TraceCollector {
                 || currTrace.getHeader().getCaptureTime() <= trace.getHeader().getCaptureTime()) {
             this.trace = trace;
         }
+        if (!trace.getHeader().getPartial()) {
+            lastCompletedTraceHeader = trace.getHeader();
+        }
+    }
+
+    public void collectAggregate(long captureTime, String transactionType, String transactionName,
+            Aggregate aggregate) {
+        aggregates.add(ImmutableCollectedAggregate.of(captureTime, transactionType,
+                transactionName, aggregate));
     }
 
     public void log(LogEvent logEvent) {
@@ -132,4 +171,13 @@ class TraceCollector {
         String loggerName();
         String partialMessage();
     }
+
+    @Value.Immutable
+    @Value.Style(allParameters = true)
+    interface CollectedAggregate {
+        long captureTime();
+        String transactionType();
+        String transactionName();
+        Aggregate aggregate();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,12 +20,22 @@ import javax.annotation.Nullable;
 import org.glowroot.agent.plugin.api.QueryEntry;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindReturn;
+import org.glowroot.agent.plugin.api.weaving.IsEnabled;
 import org.glowroot.agent.plugin.api.weaving.Mixin;
 import org.glowroot.agent.plugin.api.weaving.OnReturn;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.plugin.api.weaving.Shim;
 
 public class ResultSetAspect {
 
+    // row counts are reported to the query entry once per fetch page, instead of on every row,
+    // since ResultSet.one() is typically called in a tight loop
+    //
+    // this cap bounds how many rows can go unreported when the application stops reading part way
+    // through a page (there is no hook to report them later), while still avoiding most of the
+    // per-row reporting
+    private static final int MAX_UNREPORTED_ROWS = 10;
+
     // the field and method names are verbose to avoid conflict since they will become fields
     // and methods in all classes that extend com.datastax.driver.core.ResultSet
     @Mixin("com.datastax.driver.core.ResultSet")
@@ -38,6 +48,11 @@ public class ResultSetAspect {
         // (unlike with jdbc ResultSets)
         private volatile @Nullable QueryEntry glowroot$lastQueryEntry;
 
+        // row counting is best effort if the same ResultSet is iterated concurrently from multiple
+        // threads (which would be unusual), so these do not need to be volatile
+        private long glowroot$rowCount;
+        private int glowroot$rowsUntilReport;
+
         @Override
         public @Nullable QueryEntry glowroot$getLastQueryEntry() {
             return glowroot$lastQueryEntry;
@@ -52,6 +67,28 @@ public class ResultSetAspect {
         public boolean glowroot$hasLastQueryEntry() {
             return glowroot$lastQueryEntry != null;
         }
+
+        @Override
+        public boolean glowroot$incrementRowCount() {
+            glowroot$rowCount++;
+            return --glowroot$rowsUntilReport <= 0;
+        }
+
+        @Override
+        public long glowroot$getRowCount() {
+            return glowroot$rowCount;
+        }
+
+        @Override
+        public void glowroot$setRowsUntilReport(int rowsUntilReport) {
+            glowroot$rowsUntilReport = rowsUntilReport;
+        }
+    }
+
+    @Shim("com.datastax.driver.core.ResultSet")
+    public interface ResultSetShim {
+
+        int getAvailableWithoutFetching();
     }
 
     // the method names are verbose to avoid conflict since they will become methods in all classes
@@ -64,22 +101,27 @@ public class ResultSetAspect {
         void glowroot$setLastQueryEntry(@Nullable QueryEntry lastQueryEntry);
 
         boolean glowroot$hasLastQueryEntry();
+
+        // returns true if the row count should be reported to the query entry
+        boolean glowroot$incrementRowCount();
+
+        long glowroot$getRowCount();
+
+        void glowroot$setRowsUntilReport(int rowsUntilReport);
     }
 
     @Pointcut(className = "com.datastax.driver.core.ResultSet", methodName = "one",
             methodParameterTypes = {})
     public static class OneAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver ResultSet resultSet) {
+            return resultSet.glowroot$hasLastQueryEntry();
+        }
         @OnReturn
         public static void onReturn(@BindReturn @Nullable Object row,
                 @BindReceiver ResultSet resultSet) {
-            QueryEntry lastQueryEntry = resultSet.glowroot$getLastQueryEntry();
-            if (lastQueryEntry == null) {
-                return;
-            }
-            if (row != null) {
-                lastQueryEntry.incrementCurrRow();
-            } else {
-                lastQueryEntry.rowNavigationAttempted();
+            if (row == null || resultSet.glowroot$incrementRowCount()) {
+                reportRowCount(resultSet);
             }
         }
     }
@@ -104,14 +146,34 @@ public class ResultSetAspect {
                     + "|com.datastax.driver.core.ResultSet",
             methodName = "isExhausted", methodParameterTypes = {})
     public static class IsExhaustedAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver ResultSet resultSet) {
+            return resultSet.glowroot$hasLastQueryEntry();
+        }
         @OnReturn
-        public static void onReturn(@BindReceiver ResultSet resultSet) {
-            QueryEntry lastQueryEntry = resultSet.glowroot$getLastQueryEntry();
-            if (lastQueryEntry == null) {
-                // tracing must be disabled (e.g. exceeded trace entry limit)
-                return;
+        public static void onReturn(@BindReturn boolean exhausted,
+                @BindReceiver ResultSet resultSet) {
+            // iterator().hasNext() calls isExhausted() prior to every row, so only report the row
+            // count when the result set has been exhausted (the iterator does not call one() after
+            // the last row)
+            if (exhausted) {
+                reportRowCount(resultSet);
             }
-            lastQueryEntry.rowNavigationAttempted();
         }
     }
+
+    private static void reportRowCount(ResultSet resultSet) {
+        QueryEntry lastQueryEntry = resultSet.glowroot$getLastQueryEntry();
+        if (lastQueryEntry == null) {
+            // tracing must be disabled (e.g. exceeded trace entry limit)
+            return;
+        }
+        lastQueryEntry.rowNavigationAttempted();
+        long rowCount = resultSet.glowroot$getRowCount();
+        if (rowCount > 0) {
+            lastQueryEntry.setCurrRow(rowCount);
+        }
+        int available = ((ResultSetShim) resultSet).getAvailableWithoutFetching();
+        resultSet.glowroot$setRowsUntilReport(Math.min(available, MAX_UNREPORTED_ROWS));
+    }
 }
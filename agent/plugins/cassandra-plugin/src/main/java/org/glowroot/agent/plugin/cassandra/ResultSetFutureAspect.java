@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -192,4 +192,26 @@ public class ResultSetFutureAspect {
             }
         }
     }
+
+    // cancelling the future does not go through set() or setException(), so the async query entry
+    // needs to be ended here, otherwise it would remain open (and outlive the transaction)
+    @Pointcut(className = "com.datastax.driver.core.DefaultResultSetFuture",
+            methodName = "cancel", methodParameterTypes = {"boolean"})
+    public static class FutureCancelAdvice {
+        @OnReturn
+        public static void onReturn(@BindReturn boolean cancelled,
+                @BindReceiver ResultSetFutureMixin resultSetFuture) {
+            if (!cancelled) {
+                return;
+            }
+            // to prevent race condition, setting completed status before getting async query entry,
+            // and the converse is done when setting async query entry
+            // ok if end() happens to get called twice
+            resultSetFuture.glowroot$setCompleted();
+            AsyncQueryEntry asyncQueryEntry = resultSetFuture.glowroot$getAsyncQueryEntry();
+            if (asyncQueryEntry != null) {
+                asyncQueryEntry.end();
+            }
+        }
+    }
 }
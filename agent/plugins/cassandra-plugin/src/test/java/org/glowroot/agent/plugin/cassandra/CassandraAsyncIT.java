@@ -1,5 +1,5 @@
 /**
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -175,6 +175,30 @@ public class CassandraAsyncIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void shouldEndEntryWhenAsyncExecuteIsCancelled() throws Exception {
+        // when
+        Trace trace = container.execute(CancelAsyncStatement.class);
+
+        // then
+        assertThat(trace.getHeader().getPartial()).isFalse();
+        assertThat(trace.getHeader().getAsyncTimerCount()).isEqualTo(1);
+        Trace.Timer asyncTimer = trace.getHeader().getAsyncTimer(0);
+        assertThat(asyncTimer.getName()).isEqualTo("cql execute");
+        assertThat(asyncTimer.getActive()).isFalse();
+
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getActive()).isFalse();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("SELECT * FROM test.users");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     private static void checkTimers(Trace trace, boolean prepared) {
         Trace.Timer rootTimer = trace.getHeader().getMainThreadRootTimer();
         List<String> timerNames = Lists.newArrayList();
@@ -281,6 +305,25 @@ public class CassandraAsyncIT {
         }
     }
 
+    public static class CancelAsyncStatement implements AppUnderTest, TransactionMarker {
+
+        private Session session;
+
+        @Override
+        public void executeApp() throws Exception {
+            session = Sessions.createSession();
+            transactionMarker();
+            Sessions.closeSession(session);
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            // the entry is ended either way, whether the cancel wins the race or the query
+            // completes first
+            session.executeAsync("SELECT * FROM test.users").cancel(true);
+        }
+    }
+
     public static class AsyncExecuteBatchStatement implements AppUnderTest, TransactionMarker {
 
         private Session session;
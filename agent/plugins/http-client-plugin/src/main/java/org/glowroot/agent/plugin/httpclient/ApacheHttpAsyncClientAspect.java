@@ -129,7 +129,7 @@ public class ApacheHttpAsyncClientAspect {
                 uri = uriObj.toString();
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(uri),
+                    method + Uris.normalize(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri), timerName);
             asyncTraceEntryHolder.set(asyncTraceEntry);
             return asyncTraceEntry;
@@ -181,7 +181,7 @@ public class ApacheHttpAsyncClientAspect {
                 uri = "";
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(uri),
+                    method + Uris.normalize(uri),
                     MessageSupplier.create("http client request: {}{}{}", method, host, uri),
                     timerName);
             asyncTraceEntryHolder.set(asyncTraceEntry);
@@ -69,7 +69,7 @@ public class ApacheHttpClient3xAspect {
             } else {
                 uri = uriObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.normalize(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri),
                     timerName);
         }
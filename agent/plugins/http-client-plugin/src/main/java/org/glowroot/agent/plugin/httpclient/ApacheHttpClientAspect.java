@@ -88,7 +88,7 @@ public class ApacheHttpClientAspect {
             } else {
                 uri = uriObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.normalize(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri),
                     timerName);
         }
@@ -135,7 +135,7 @@ public class ApacheHttpClientAspect {
             if (uri == null) {
                 uri = "";
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.normalize(uri),
                     MessageSupplier.create("http client request: {}{}{}", method, host, uri),
                     timerName);
         }
@@ -134,7 +134,7 @@ public class AsyncHttpClientAspect {
                 method += " ";
             }
             String url = requestInvoker.getUrl(request);
-            return context.startAsyncServiceCallEntry("HTTP", method + Uris.stripQueryString(url),
+            return context.startAsyncServiceCallEntry("HTTP", method + Uris.normalize(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
         }
         @OnReturn
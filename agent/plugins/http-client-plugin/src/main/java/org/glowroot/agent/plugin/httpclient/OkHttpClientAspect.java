@@ -117,7 +117,7 @@ public class OkHttpClientAspect {
             } else {
                 url = urlObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(url),
+            return context.startServiceCallEntry("HTTP", method + Uris.normalize(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
         }
         @OnReturn
@@ -165,7 +165,7 @@ public class OkHttpClientAspect {
                 url = urlObj.toString();
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(url),
+                    method + Uris.normalize(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
             // important to inject values into callback in @OnBefore since it's possible for
             // callback to be invoked prior to @OnReturn
@@ -70,7 +70,7 @@ public class RestTemplateAspect {
             String templateUrl = templateUrlHolder.get();
             String url = uri.toString();
             if (templateUrl == null) {
-                templateUrl = Uris.stripQueryString(url);
+                templateUrl = Uris.normalize(url);
             }
             return context.startServiceCallEntry("HTTP", method + " " + templateUrl,
                     MessageSupplier.create("http client request: {} {}", method.name(), url),
@@ -77,7 +77,7 @@ public class SoapOutInterceptorAspect {
                 operationName = "";
             }
             return context.startServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(uri), MessageSupplier
+                    method + Uris.normalize(uri), MessageSupplier
                             .create("cxf client soap request: {}{}{}", method, uri, operationName),
                     timerName);
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,15 +15,124 @@
  */
 package org.glowroot.agent.plugin.httpclient;
 
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.plugin.api.config.ConfigService;
+
+// the normalized uri is used as the service call text, which is also the key that service calls
+// are aggregated by
 class Uris {
 
+    private static final String PATH_VARIABLE = "{id}";
+
+    private static final ConfigService configService = Agent.getConfigService("http-client");
+
+    // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
+    private static boolean collapsePathVariables;
+
+    static {
+        configService.registerConfigListener(new ConfigListener() {
+            @Override
+            public void onChange() {
+                collapsePathVariables =
+                        configService.getBooleanProperty("collapsePathVariables").value();
+            }
+        });
+    }
+
     private Uris() {}
 
-    static String stripQueryString(String uri) {
+    static String normalize(String uri) {
+        String normalizedUri = stripQueryString(uri);
+        if (collapsePathVariables) {
+            return collapsePathVariables(normalizedUri);
+        }
+        return normalizedUri;
+    }
+
+    private static String stripQueryString(String uri) {
         int index = uri.indexOf('?');
         if (index == -1) {
             return uri;
         }
         return uri.substring(0, index);
     }
+
+    // replaces path segments that look like identifiers (numbers, uuids and long hex strings) with
+    // {id}, e.g. http://example.com/users/123/orders ==> http://example.com/users/{id}/orders
+    static String collapsePathVariables(String uri) {
+        int pathStart = getPathStart(uri);
+        if (pathStart == -1) {
+            return uri;
+        }
+        StringBuilder sb = null;
+        int segmentStart = pathStart + 1;
+        while (segmentStart <= uri.length()) {
+            int segmentEnd = uri.indexOf('/', segmentStart);
+            if (segmentEnd == -1) {
+                segmentEnd = uri.length();
+            }
+            if (isPathVariable(uri, segmentStart, segmentEnd)) {
+                if (sb == null) {
+                    sb = new StringBuilder(uri.length());
+                    sb.append(uri, 0, segmentStart);
+                }
+                sb.append(PATH_VARIABLE);
+            } else if (sb != null) {
+                sb.append(uri, segmentStart, segmentEnd);
+            }
+            if (sb != null && segmentEnd < uri.length()) {
+                sb.append('/');
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return sb == null ? uri : sb.toString();
+    }
+
+    private static int getPathStart(String uri) {
+        int index = uri.indexOf("://");
+        if (index == -1) {
+            // relative uri (e.g. from apache http client request line)
+            return uri.indexOf('/');
+        }
+        return uri.indexOf('/', index + 3);
+    }
+
+    private static boolean isPathVariable(String uri, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        boolean allDigits = true;
+        boolean hasDigit = false;
+        int hexDigits = 0;
+        int dashes = 0;
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+                hexDigits++;
+            } else if (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F') {
+                allDigits = false;
+                hexDigits++;
+            } else if (c == '-') {
+                allDigits = false;
+                dashes++;
+            } else {
+                return false;
+            }
+        }
+        if (allDigits) {
+            return true;
+        }
+        if (!hasDigit) {
+            // e.g. "cafe" or "add-feed"
+            return false;
+        }
+        if (dashes == 4 && hexDigits == 32) {
+            // uuid
+            return true;
+        }
+        return dashes == 0 && hexDigits >= 16;
+    }
 }
@@ -1,5 +1,5 @@
 /**
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -28,6 +28,7 @@ import org.junit.Test;
 
 import org.glowroot.agent.it.harness.Container;
 import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -115,6 +116,26 @@ public class ApacheHttpClientPluginIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void shouldAggregateServiceCallsWithCollapsedPathVariables() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty("http-client", "collapsePathVariables",
+                true);
+
+        // when
+        container.execute(ExecuteHttpGetWithPathVariables.class);
+
+        // then
+        Aggregate aggregate = container.getAggregateForLastTrace();
+        assertThat(aggregate.getServiceCallsByTypeCount()).isEqualTo(1);
+        Aggregate.ServiceCallsByType serviceCallsByType = aggregate.getServiceCallsByType(0);
+        assertThat(serviceCallsByType.getType()).isEqualTo("HTTP");
+        assertThat(serviceCallsByType.getServiceCallCount()).isEqualTo(1);
+        Aggregate.ServiceCall serviceCall = serviceCallsByType.getServiceCall(0);
+        assertThat(serviceCall.getText()).matches("GET http://localhost:\\d+/users/\\{id\\}");
+        assertThat(serviceCall.getExecutionCount()).isEqualTo(2);
+    }
+
     private static HttpClient createHttpClient() throws Exception {
         try {
             return (HttpClient) Class.forName("org.apache.http.impl.client.HttpClients")
@@ -163,4 +184,13 @@ public class ApacheHttpClientPluginIT {
             httpClient.execute(httpHost, httpPost);
         }
     }
+
+    public static class ExecuteHttpGetWithPathVariables extends ExecuteHttpBase {
+        @Override
+        public void transactionMarker() throws Exception {
+            HttpClient httpClient = createHttpClient();
+            httpClient.execute(new HttpGet("http://localhost:" + getPort() + "/users/1"));
+            httpClient.execute(new HttpGet("http://localhost:" + getPort() + "/users/2?x=y"));
+        }
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.httpclient;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UrisTest {
+
+    @Test
+    public void shouldStripQueryString() {
+        assertThat(Uris.normalize("http://example.com/users")).isEqualTo("http://example.com/users");
+        assertThat(Uris.normalize("http://example.com/users?id=123"))
+                .isEqualTo("http://example.com/users");
+        assertThat(Uris.normalize("/users?id=123")).isEqualTo("/users");
+    }
+
+    @Test
+    public void shouldCollapsePathVariables() {
+        assertThat(Uris.collapsePathVariables("http://example.com/users/123/orders/456"))
+                .isEqualTo("http://example.com/users/{id}/orders/{id}");
+        assertThat(Uris.collapsePathVariables("http://example.com:8080/users/123/"))
+                .isEqualTo("http://example.com:8080/users/{id}/");
+        assertThat(Uris.collapsePathVariables("/users/123")).isEqualTo("/users/{id}");
+        assertThat(Uris.collapsePathVariables(
+                "http://example.com/items/0b3f2e6c-5a1d-4c8e-9f7a-2d4b6c8e0a1f"))
+                        .isEqualTo("http://example.com/items/{id}");
+        assertThat(Uris.collapsePathVariables("http://example.com/blobs/5d41402abc4b2a76b9719d91"))
+                .isEqualTo("http://example.com/blobs/{id}");
+    }
+
+    @Test
+    public void shouldNotCollapseNonPathVariables() {
+        assertThat(Uris.collapsePathVariables("http://example.com")).isEqualTo("http://example.com");
+        assertThat(Uris.collapsePathVariables("http://example.com/")).isEqualTo("http://example.com/");
+        assertThat(Uris.collapsePathVariables("http://example.com/v2/cafe/add-feed"))
+                .isEqualTo("http://example.com/v2/cafe/add-feed");
+        assertThat(Uris.collapsePathVariables("http://example.com/abc123"))
+                .isEqualTo("http://example.com/abc123");
+        // host is not part of the path
+        assertThat(Uris.collapsePathVariables("http://127.0.0.1/users"))
+                .isEqualTo("http://127.0.0.1/users");
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,16 @@ public class JdbcPluginProperties {
     // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
     private static int stackTraceThresholdMillis;
 
+    // these are read from @IsEnabled methods on the hottest jdbc pointcuts (e.g. ResultSet.next()
+    // and PreparedStatement.setX()), so they are cached in plain static fields and refreshed on
+    // config change, instead of going through BooleanProperty on every call (this only covers
+    // the jdbc plugin, other plugins still read their BooleanProperty on each call)
+    //
+    // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
+    private static boolean captureBindParameters;
+    private static boolean captureResultSetNavigate;
+    private static boolean captureResultSetGet;
+
     private static volatile ImmutableMultimap<String, Integer> displayBinaryParameterAsHex =
             ImmutableMultimap.of();
 
@@ -39,6 +49,12 @@ public class JdbcPluginProperties {
             public void onChange() {
                 Double value = configService.getDoubleProperty("stackTraceThresholdMillis").value();
                 stackTraceThresholdMillis = value == null ? Integer.MAX_VALUE : value.intValue();
+                captureBindParameters =
+                        configService.getBooleanProperty("captureBindParameters").value();
+                captureResultSetNavigate =
+                        configService.getBooleanProperty("captureResultSetNavigate").value();
+                captureResultSetGet =
+                        configService.getBooleanProperty("captureResultSetGet").value();
             }
         });
     }
@@ -60,6 +76,18 @@ public class JdbcPluginProperties {
         return stackTraceThresholdMillis;
     }
 
+    static boolean captureBindParameters() {
+        return captureBindParameters;
+    }
+
+    static boolean captureResultSetNavigate() {
+        return captureResultSetNavigate;
+    }
+
+    static boolean captureResultSetGet() {
+        return captureResultSetGet;
+    }
+
     static boolean displayBinaryParameterAsHex(String sql, int parameterIndex) {
         return displayBinaryParameterAsHex.containsEntry(sql, parameterIndex);
     }
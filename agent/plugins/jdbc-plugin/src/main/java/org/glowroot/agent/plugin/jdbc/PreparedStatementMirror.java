@@ -21,7 +21,6 @@ import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Queues;
-import com.google.common.hash.HashCode;
 
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 
@@ -91,6 +90,41 @@ class PreparedStatementMirror extends StatementMirror {
         parameters.set(parameterIndex - 1, object);
     }
 
+    void setLongParameterValue(int parameterIndex, long value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setLong(parameterIndex - 1, value);
+    }
+
+    void setDoubleParameterValue(int parameterIndex, double value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setDouble(parameterIndex - 1, value);
+    }
+
+    void setBooleanParameterValue(int parameterIndex, boolean value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setBoolean(parameterIndex - 1, value);
+    }
+
+    void setByteArrayParameterValue(int parameterIndex, byte[] bytes, boolean displayAsHex) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setByteArray(parameterIndex - 1, bytes, displayAsHex);
+    }
+
+    void setStreamParameterValue(int parameterIndex, Class<?> streamClass) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setStream(parameterIndex - 1, streamClass);
+    }
+
     private void copyParameters() {
         parameters = BindParameterList.copyOf(parameters);
         parametersShared = false;
@@ -116,39 +150,4 @@ class PreparedStatementMirror extends StatementMirror {
         batchedParameters = null;
         batchSize = 0;
     }
-
-    static class ByteArrayParameterValue {
-
-        private final int length;
-        private final byte /*@Nullable*/[] bytes;
-
-        ByteArrayParameterValue(byte[] bytes, boolean displayAsHex) {
-            length = bytes.length;
-            // only retain bytes if needed for displaying as hex
-            this.bytes = displayAsHex ? bytes : null;
-        }
-
-        @Override
-        public String toString() {
-            if (bytes != null) {
-                return "0x" + HashCode.fromBytes(bytes).toString();
-            } else {
-                return "{" + length + " bytes}";
-            }
-        }
-    }
-
-    static class StreamingParameterValue {
-
-        private final Class<?> clazz;
-
-        StreamingParameterValue(Class<?> clazz) {
-            this.clazz = clazz;
-        }
-
-        @Override
-        public String toString() {
-            return "{stream:" + clazz.getSimpleName() + "}";
-        }
-    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,8 +24,6 @@ import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.Logger;
 import org.glowroot.agent.plugin.api.QueryEntry;
 import org.glowroot.agent.plugin.api.Timer;
-import org.glowroot.agent.plugin.api.config.BooleanProperty;
-import org.glowroot.agent.plugin.api.config.ConfigService;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindReturn;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
@@ -39,16 +37,13 @@ import org.glowroot.agent.plugin.jdbc.StatementAspect.HasStatementMirror;
 public class ResultSetAspect {
 
     private static final Logger logger = Agent.getLogger(ResultSetAspect.class);
-    private static final ConfigService configService = Agent.getConfigService("jdbc");
 
     @Pointcut(className = "java.sql.ResultSet", methodName = "next", methodParameterTypes = {},
             nestingGroup = "jdbc")
     public static class NextAdvice {
-        private static final BooleanProperty timerEnabled =
-                configService.getBooleanProperty("captureResultSetNavigate");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return JdbcPluginProperties.captureResultSetNavigate() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -86,11 +81,9 @@ public class ResultSetAspect {
             methodName = "previous|relative|absolute|first|last", methodParameterTypes = "..",
             nestingGroup = "jdbc")
     public static class NavigateAdvice {
-        private static final BooleanProperty timerEnabled =
-                configService.getBooleanProperty("captureResultSetNavigate");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return JdbcPluginProperties.captureResultSetNavigate() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -124,11 +117,9 @@ public class ResultSetAspect {
     @Pointcut(className = "java.sql.ResultSet", methodName = "get*",
             methodParameterTypes = {"int", ".."}, nestingGroup = "jdbc")
     public static class ValueAdvice {
-        private static final BooleanProperty timerEnabled =
-                configService.getBooleanProperty("captureResultSetGet");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return JdbcPluginProperties.captureResultSetGet() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -143,11 +134,9 @@ public class ResultSetAspect {
     @Pointcut(className = "java.sql.ResultSet", methodName = "get*",
             methodParameterTypes = {"java.lang.String", ".."}, nestingGroup = "jdbc")
     public static class ValueAdvice2 {
-        private static final BooleanProperty timerEnabled =
-                configService.getBooleanProperty("captureResultSetGet");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return JdbcPluginProperties.captureResultSetGet() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
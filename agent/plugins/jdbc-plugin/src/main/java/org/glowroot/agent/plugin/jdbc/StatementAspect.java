@@ -41,8 +41,6 @@ import org.glowroot.agent.plugin.api.weaving.OnBefore;
 import org.glowroot.agent.plugin.api.weaving.OnReturn;
 import org.glowroot.agent.plugin.api.weaving.OnThrow;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
-import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.ByteArrayParameterValue;
-import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.StreamingParameterValue;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier2;
 import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
@@ -57,8 +55,6 @@ public class StatementAspect {
 
     private static final ConfigService configService = Agent.getConfigService("jdbc");
 
-    private static final BooleanProperty captureBindParameters =
-            configService.getBooleanProperty("captureBindParameters");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
 
@@ -97,14 +93,13 @@ public class StatementAspect {
     // ================= Parameter Binding =================
 
     @Pointcut(className = "java.sql.PreparedStatement",
-            methodName = "setArray|setBigDecimal"
-                    + "|setBoolean|setByte|setDate|setDouble|setFloat|setInt|setLong|setNString"
-                    + "|setRef|setRowId|setShort|setString|setTime|setTimestamp|setURL",
+            methodName = "setArray|setBigDecimal|setByte|setDate|setFloat|setNString|setRef"
+                    + "|setRowId|setShort|setString|setTime|setTimestamp|setURL",
             methodParameterTypes = {"int", "*", ".."})
     public static class SetXAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
@@ -117,6 +112,80 @@ public class StatementAspect {
         }
     }
 
+    // the most common primitive parameter types are captured separately to avoid boxing
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setInt",
+            methodParameterTypes = {"int", "int"})
+    public static class SetIntAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return JdbcPluginProperties.captureBindParameters();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter int x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setLongParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setLong",
+            methodParameterTypes = {"int", "long"})
+    public static class SetLongAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return JdbcPluginProperties.captureBindParameters();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter long x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setLongParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setDouble",
+            methodParameterTypes = {"int", "double"})
+    public static class SetDoubleAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return JdbcPluginProperties.captureBindParameters();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter double x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setDoubleParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setBoolean",
+            methodParameterTypes = {"int", "boolean"})
+    public static class SetBooleanAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return JdbcPluginProperties.captureBindParameters();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter boolean x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setBooleanParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.PreparedStatement",
             methodName = "setAsciiStream|setBinaryStream|setBlob|setCharacterStream|setClob"
                     + "|setNCharacterStream|setNClob|setSQLXML|setUnicodeStream",
@@ -124,7 +193,7 @@ public class StatementAspect {
     public static class SetStreamAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
@@ -135,8 +204,7 @@ public class StatementAspect {
                 if (x == null) {
                     mirror.setParameterValue(parameterIndex, null);
                 } else {
-                    mirror.setParameterValue(parameterIndex,
-                            new StreamingParameterValue(x.getClass()));
+                    mirror.setStreamParameterValue(parameterIndex, x.getClass());
                 }
             }
         }
@@ -147,7 +215,7 @@ public class StatementAspect {
     public static class SetBytesAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
@@ -165,7 +233,7 @@ public class StatementAspect {
         private static void setBytes(PreparedStatementMirror mirror, int parameterIndex, byte[] x) {
             boolean displayAsHex = JdbcPluginProperties.displayBinaryParameterAsHex(mirror.getSql(),
                     parameterIndex);
-            mirror.setParameterValue(parameterIndex, new ByteArrayParameterValue(x, displayAsHex));
+            mirror.setByteArrayParameterValue(parameterIndex, x, displayAsHex);
         }
     }
 
@@ -174,7 +242,7 @@ public class StatementAspect {
     public static class SetObjectAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
@@ -198,7 +266,7 @@ public class StatementAspect {
     public static class SetNullAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
@@ -216,7 +284,7 @@ public class StatementAspect {
     public static class ClearParametersAdvice {
         @IsEnabled
         public static boolean isEnabled() {
-            return captureBindParameters.value();
+            return JdbcPluginProperties.captureBindParameters();
         }
         @OnReturn
         public static void onReturn(@BindReceiver HasStatementMirror preparedStatement) {
@@ -406,7 +474,7 @@ public class StatementAspect {
                     (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
             QueryMessageSupplier queryMessageSupplier;
             String queryText = mirror.getSql();
-            if (captureBindParameters.value()) {
+            if (JdbcPluginProperties.captureBindParameters()) {
                 queryMessageSupplier = new PreparedStatementMessageSupplier(mirror.getParameters());
             } else {
                 queryMessageSupplier = QueryMessageSupplier.create("jdbc execution: ");
@@ -539,7 +607,7 @@ public class StatementAspect {
             QueryMessageSupplier queryMessageSupplier;
             String queryText = mirror.getSql();
             int batchSize = mirror.getBatchSize();
-            if (captureBindParameters.value()) {
+            if (JdbcPluginProperties.captureBindParameters()) {
                 queryMessageSupplier = new BatchPreparedStatementMessageSupplier(
                         mirror.getBatchedParameters(), batchSize);
             } else {
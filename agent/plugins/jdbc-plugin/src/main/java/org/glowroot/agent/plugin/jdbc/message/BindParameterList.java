@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,55 +16,107 @@
 package org.glowroot.agent.plugin.jdbc.message;
 
 import java.util.Arrays;
-import java.util.Iterator;
 
 import javax.annotation.Nullable;
 
-import com.google.common.collect.Iterators;
+import com.google.common.hash.HashCode;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 // micro-optimized list for bind parameters
-public class BindParameterList implements Iterable</*@Nullable*/ Object> {
+//
+// primitive values are stored in a long array instead of being boxed, and byte array and stream
+// values are stored without a wrapper object, in order to limit allocation for large batches
+//
+// the types and primitives arrays are only allocated once needed, since many statements only
+// bind object values (e.g. strings)
+public class BindParameterList {
+
+    // object values, including null
+    private static final byte OBJECT = 0;
+    // primitive values
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte BOOLEAN = 3;
+    // byte array length is stored in the primitive value
+    private static final byte BYTE_ARRAY = 4;
+    // byte array (for displaying as hex) is stored in the object value
+    private static final byte HEX_BYTE_ARRAY = 5;
+    // stream class is stored in the object value
+    private static final byte STREAM = 6;
 
-    private @Nullable Object[] parameters;
+    // null means all types are OBJECT
+    private byte /*@Nullable*/ [] types;
+    private long /*@Nullable*/ [] primitives;
+    private @Nullable Object[] objects;
     private int size;
 
     public static BindParameterList copyOf(BindParameterList bindParameterList) {
-        return new BindParameterList(bindParameterList.parameters, bindParameterList.size);
+        return new BindParameterList(bindParameterList);
     }
 
     public BindParameterList(int capacity) {
-        parameters = new Object[capacity];
+        objects = new Object[capacity];
     }
 
-    private BindParameterList(@Nullable Object[] parameters, int size) {
-        if (parameters.length == size) {
-            this.parameters = parameters.clone();
+    private BindParameterList(BindParameterList bindParameterList) {
+        int size = bindParameterList.size;
+        byte[] types = bindParameterList.types;
+        long[] primitives = bindParameterList.primitives;
+        if (bindParameterList.objects.length == size) {
+            this.types = types == null ? null : types.clone();
+            this.primitives = primitives == null ? null : primitives.clone();
+            objects = bindParameterList.objects.clone();
         } else {
             // clone is faster even in this case, but worth the one time hit (for cached statements
-            // where this will be called over and over) to resize the array and use less memory
-            this.parameters = new Object[size];
-            System.arraycopy(parameters, 0, this.parameters, 0, size);
+            // where this will be called over and over) to resize the arrays and use less memory
+            this.types = types == null ? null : Arrays.copyOf(types, size);
+            this.primitives = primitives == null ? null : Arrays.copyOf(primitives, size);
+            objects = Arrays.copyOf(bindParameterList.objects, size);
         }
         this.size = size;
     }
 
     public void set(int i, @Nullable Object parameter) {
-        int capacity = parameters.length;
-        if (i >= capacity) {
-            // using same capacity increase formula as ArrayList
-            capacity = capacity + (capacity >> 1);
-            if (i >= capacity) {
-                capacity = i + 1;
-            }
-            parameters = Arrays.copyOf(parameters, capacity);
+        ensureCapacity(i);
+        if (types != null) {
+            types[i] = OBJECT;
         }
-        parameters[i] = parameter;
-        int newSize = i + 1;
-        if (newSize > size) {
-            size = newSize;
+        objects[i] = parameter;
+        updateSize(i);
+    }
+
+    public void setLong(int i, long parameter) {
+        setPrimitive(i, LONG, parameter);
+    }
+
+    public void setDouble(int i, double parameter) {
+        setPrimitive(i, DOUBLE, Double.doubleToRawLongBits(parameter));
+    }
+
+    public void setBoolean(int i, boolean parameter) {
+        setPrimitive(i, BOOLEAN, parameter ? 1 : 0);
+    }
+
+    public void setByteArray(int i, byte[] parameter, boolean displayAsHex) {
+        if (displayAsHex) {
+            ensureCapacity(i);
+            getTypes()[i] = HEX_BYTE_ARRAY;
+            objects[i] = parameter;
+            updateSize(i);
+        } else {
+            // only retain bytes if needed for displaying as hex
+            setPrimitive(i, BYTE_ARRAY, parameter.length);
         }
     }
 
+    public void setStream(int i, Class<?> streamClass) {
+        ensureCapacity(i);
+        getTypes()[i] = STREAM;
+        objects[i] = streamClass;
+        updateSize(i);
+    }
+
     public int size() {
         return size;
     }
@@ -74,12 +126,95 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
     }
 
     public void clear() {
-        Arrays.fill(parameters, null);
+        if (types != null) {
+            Arrays.fill(types, OBJECT);
+        }
+        Arrays.fill(objects, null);
         size = 0;
     }
 
-    @Override
-    public Iterator</*@Nullable*/ Object> iterator() {
-        return Iterators.limit(Iterators.forArray(parameters), size);
+    void appendParameter(StringBuilder sb, int i) {
+        byte type = types == null ? OBJECT : types[i];
+        switch (type) {
+            case LONG:
+                sb.append(checkNotNull(primitives)[i]);
+                break;
+            case DOUBLE:
+                sb.append(Double.longBitsToDouble(checkNotNull(primitives)[i]));
+                break;
+            case BOOLEAN:
+                sb.append(checkNotNull(primitives)[i] != 0);
+                break;
+            case BYTE_ARRAY:
+                sb.append("{");
+                sb.append(checkNotNull(primitives)[i]);
+                sb.append(" bytes}");
+                break;
+            case HEX_BYTE_ARRAY:
+                sb.append("0x");
+                sb.append(HashCode.fromBytes((byte[]) objects[i]).toString());
+                break;
+            case STREAM:
+                sb.append("{stream:");
+                sb.append(((Class<?>) objects[i]).getSimpleName());
+                sb.append("}");
+                break;
+            default:
+                Object parameter = objects[i];
+                if (parameter instanceof String) {
+                    sb.append("\'");
+                    sb.append((String) parameter);
+                    sb.append("\'");
+                } else if (parameter == null) {
+                    sb.append("NULL");
+                } else {
+                    sb.append(String.valueOf(parameter));
+                }
+                break;
+        }
+    }
+
+    private void setPrimitive(int i, byte type, long parameter) {
+        ensureCapacity(i);
+        getTypes()[i] = type;
+        if (primitives == null) {
+            primitives = new long[objects.length];
+        }
+        primitives[i] = parameter;
+        // don't retain prior object value
+        objects[i] = null;
+        updateSize(i);
+    }
+
+    private byte[] getTypes() {
+        if (types == null) {
+            types = new byte[objects.length];
+        }
+        return types;
+    }
+
+    private void ensureCapacity(int i) {
+        int capacity = objects.length;
+        if (i >= capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (i >= capacity) {
+                capacity = i + 1;
+            }
+            if (types != null) {
+                types = Arrays.copyOf(types, capacity);
+            }
+            if (primitives != null) {
+                primitives = Arrays.copyOf(primitives, capacity);
+            }
+            objects = Arrays.copyOf(objects, capacity);
+        }
+    }
+
+    private void updateSize(int i) {
+        int newSize = i + 1;
+        if (newSize > size) {
+            size = newSize;
+        }
     }
 }
@@ -42,21 +42,11 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
 
     static void appendParameters(StringBuilder sb, BindParameterList parameters) {
         sb.append(" [");
-        boolean first = true;
-        for (Object parameter : parameters) {
-            if (!first) {
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i != 0) {
                 sb.append(", ");
             }
-            if (parameter instanceof String) {
-                sb.append("\'");
-                sb.append((String) parameter);
-                sb.append("\'");
-            } else if (parameter == null) {
-                sb.append("NULL");
-            } else {
-                sb.append(String.valueOf(parameter));
-            }
-            first = false;
+            parameters.appendParameter(sb, i);
         }
         sb.append("]");
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -176,6 +176,25 @@ public class JdbcPluginIT {
         assertThat(found).isFalse();
     }
 
+    @Test
+    public void testToggleResultSetNavigateAtRuntime() throws Exception {
+        // given
+        Trace trace = container.execute(IterateOverResultsUnderSeparateTraceEntry.class);
+        assertThat(findExtendedTimerName(trace, "jdbc execute")).isTrue();
+        // when
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetNavigate",
+                false);
+        trace = container.execute(IterateOverResultsUnderSeparateTraceEntry.class);
+        // then
+        assertThat(findExtendedTimerName(trace, "jdbc execute")).isFalse();
+        // when
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetNavigate",
+                true);
+        trace = container.execute(IterateOverResultsUnderSeparateTraceEntry.class);
+        // then
+        assertThat(findExtendedTimerName(trace, "jdbc execute")).isTrue();
+    }
+
     @Test
     public void testDefaultStackTraceThreshold() throws Exception {
         // when
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -258,6 +258,32 @@ public class PreparedStatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithPrimitives() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureBindParameters", true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithPrimitives.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("select * from employee where name = ? and ? = 1"
+                        + " and ? < 10 and ? < 2.5 and ? = true");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['john doe', 1, 5, 1.5, true] => 1 row");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementWithBinary() throws Exception {
         // given
@@ -657,6 +683,38 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithPrimitives
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement = connection.prepareStatement("select * from"
+                    + " employee where name = ? and ? = 1 and ? < 10 and ? < 2.5 and ? = true");
+            try {
+                preparedStatement.setString(1, "john doe");
+                preparedStatement.setInt(2, 1);
+                preparedStatement.setLong(3, 5);
+                preparedStatement.setDouble(4, 1.5);
+                preparedStatement.setBoolean(5, true);
+                ResultSet rs = preparedStatement.executeQuery();
+                while (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementWithBinary
             implements AppUnderTest, TransactionMarker {
         static {
@@ -71,15 +71,23 @@ public class Log4j2xAspect {
         private static final TimerName timerName = Agent.getTimerName(CallAppendersAdvice.class);
 
         @OnBefore
-        public static LogAdviceTraveler onBefore(ThreadContext context, @BindReceiver Logger logger,
+        public static @Nullable LogAdviceTraveler onBefore(ThreadContext context,
+                @BindReceiver Logger logger,
                 @SuppressWarnings("unused") @BindParameter @Nullable String fqcn,
                 @BindParameter @Nullable Level level,
                 @SuppressWarnings("unused") @BindParameter @Nullable Object marker,
                 @BindParameter @Nullable Message message, @BindParameter @Nullable Throwable t) {
+            int lvl = level == null ? 0 : level.intLevel();
+            boolean markTraceAsError = LoggerPlugin.markTraceAsError(lvl <= ERROR, lvl <= WARN,
+                    t != null);
+            if (!markTraceAsError && LoggerPlugin.isBelowTraceEntryThreshold(getPluginLevel(lvl))) {
+                return null;
+            }
+            // formatting is not deferred here since log4j2 messages can be reused (see
+            // org.apache.logging.log4j.message.ReusableMessage)
             String formattedMessage =
                     message == null ? "" : nullToEmpty(message.getFormattedMessage());
-            int lvl = level == null ? 0 : level.intLevel();
-            if (LoggerPlugin.markTraceAsError(lvl <= ERROR, lvl <= WARN, t != null)) {
+            if (markTraceAsError) {
                 context.setTransactionError(formattedMessage, t);
             }
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
@@ -90,7 +98,10 @@ public class Log4j2xAspect {
         }
 
         @OnAfter
-        public static void onAfter(@BindTraveler LogAdviceTraveler traveler) {
+        public static void onAfter(@BindTraveler @Nullable LogAdviceTraveler traveler) {
+            if (traveler == null) {
+                return;
+            }
             Throwable t = traveler.throwable;
             if (t != null) {
                 // intentionally not passing message since it is already the trace entry message
@@ -106,6 +117,21 @@ public class Log4j2xAspect {
             }
         }
 
+        private static int getPluginLevel(int lvl) {
+            // log4j2 levels are in reverse order
+            if (lvl <= ERROR) {
+                return LoggerPlugin.ERROR;
+            } else if (lvl <= WARN) {
+                return LoggerPlugin.WARN;
+            } else if (lvl <= INFO) {
+                return LoggerPlugin.INFO;
+            } else if (lvl <= DEBUG) {
+                return LoggerPlugin.DEBUG;
+            } else {
+                return LoggerPlugin.TRACE;
+            }
+        }
+
         private static String nullToEmpty(@Nullable String s) {
             return s == null ? "" : s;
         }
@@ -20,6 +20,7 @@ import java.util.Enumeration;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
@@ -93,12 +94,24 @@ public class Log4jAspect {
 
         @OnBefore
         @SuppressWarnings("unused")
-        public static TraceEntry onBefore(ThreadContext context, @BindReceiver Logger logger,
-                @BindParameter @Nullable String fqcn, @BindParameter @Nullable Level level,
-                @BindParameter @Nullable Object message, @BindParameter @Nullable Throwable t) {
-            String messageText = String.valueOf(message);
+        public static @Nullable TraceEntry onBefore(ThreadContext context,
+                @BindReceiver Logger logger, @BindParameter @Nullable String fqcn,
+                @BindParameter @Nullable Level level, @BindParameter @Nullable Object message,
+                @BindParameter @Nullable Throwable t) {
             int lvl = level == null ? 0 : level.toInt();
-            if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
+            boolean markTraceAsError =
+                    LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null);
+            if (!markTraceAsError && LoggerPlugin.isBelowTraceEntryThreshold(getPluginLevel(lvl))) {
+                return null;
+            }
+            if (!markTraceAsError && lvl < WARN_INT) {
+                // formatting is deferred until the trace entry message is needed, which is never
+                // if the trace is not stored or if the trace entry limit has been exceeded
+                return context.startTraceEntry(new LogMessageSupplier(logger, lvl, message),
+                        timerName);
+            }
+            String messageText = String.valueOf(message);
+            if (markTraceAsError) {
                 context.setTransactionError(messageText, t);
             }
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
@@ -108,9 +121,12 @@ public class Log4jAspect {
 
         @OnAfter
         @SuppressWarnings("unused")
-        public static void onAfter(@BindTraveler TraceEntry traceEntry,
+        public static void onAfter(@BindTraveler @Nullable TraceEntry traceEntry,
                 @BindParameter @Nullable String fqcn, @BindParameter @Nullable Level level,
                 @BindParameter @Nullable Object message, @BindParameter @Nullable Throwable t) {
+            if (traceEntry == null) {
+                return;
+            }
             int lvl = level == null ? 0 : level.toInt();
             if (t != null) {
                 // intentionally not passing message since it is already the trace entry message
@@ -126,7 +142,21 @@ public class Log4jAspect {
             }
         }
 
-        private static String getLevelStr(int lvl) {
+        private static int getPluginLevel(int lvl) {
+            if (lvl >= ERROR_INT) {
+                return LoggerPlugin.ERROR;
+            } else if (lvl >= WARN_INT) {
+                return LoggerPlugin.WARN;
+            } else if (lvl >= INFO_INT) {
+                return LoggerPlugin.INFO;
+            } else if (lvl >= DEBUG_INT) {
+                return LoggerPlugin.DEBUG;
+            } else {
+                return LoggerPlugin.TRACE;
+            }
+        }
+
+        static String getLevelStr(int lvl) {
             switch (lvl) {
                 case ALL_INT:
                     return "all";
@@ -147,4 +177,24 @@ public class Log4jAspect {
             }
         }
     }
+
+    private static class LogMessageSupplier extends MessageSupplier {
+
+        private final Logger logger;
+        private final int level;
+        private final @Nullable Object message;
+
+        private LogMessageSupplier(Logger logger, int level, @Nullable Object message) {
+            this.logger = logger;
+            this.level = level;
+            this.message = message;
+        }
+
+        @Override
+        public Message get() {
+            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
+            return Message.create("log {}: {} - {}", ForcedLogAdvice.getLevelStr(level),
+                    loggerName, String.valueOf(message));
+        }
+    }
 }
@@ -18,6 +18,7 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
@@ -82,7 +83,6 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
             Level level = loggingEvent.glowroot$getLevel();
             int lvl = level == null ? 0 : level.toInt();
             Object throwableProxy = loggingEvent.glowroot$getThrowableProxy();
@@ -92,13 +92,25 @@ public class LogbackAspect {
                 // and it is only used for logging exceptions over the wire
                 t = ((ThrowableProxy) throwableProxy).getThrowable();
             }
-            if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
+            boolean markTraceAsError =
+                    LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null);
+            if (!markTraceAsError && LoggerPlugin.isBelowTraceEntryThreshold(getPluginLevel(lvl))) {
+                return null;
+            }
+            if (!markTraceAsError && lvl < WARN_INT) {
+                // formatting is deferred until the trace entry message is needed, which is never
+                // if the trace is not stored or if the trace entry limit has been exceeded
+                TraceEntry traceEntry = context.startTraceEntry(
+                        new LoggingEventMessageSupplier(loggingEvent, lvl), timerName);
+                return new LogAdviceTraveler(traceEntry, lvl, null, t);
+            }
+            String formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
+            if (markTraceAsError) {
                 context.setTransactionError(formattedMessage, t);
             }
-            TraceEntry traceEntry;
             String loggerName = LoggerPlugin.getAbbreviatedLoggerName(loggingEvent.getLoggerName());
-            traceEntry = context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, formattedMessage), timerName);
+            TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.create(
+                    "log {}: {} - {}", getLevelStr(lvl), loggerName, formattedMessage), timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
         }
 
@@ -107,23 +119,7 @@ public class LogbackAspect {
             if (traveler == null) {
                 return;
             }
-            Throwable t = traveler.throwable;
-            if (t != null) {
-                // intentionally not passing message since it is already the trace entry message
-                if (traveler.level >= WARN_INT) {
-                    traveler.traceEntry.endWithError(t);
-                } else {
-                    traveler.traceEntry.endWithInfo(t);
-                }
-            } else if (traveler.level >= WARN_INT) {
-                traveler.traceEntry.endWithError(traveler.formattedMessage);
-            } else {
-                traveler.traceEntry.end();
-            }
-        }
-
-        private static String nullToEmpty(@Nullable String s) {
-            return s == null ? "" : s;
+            traveler.end();
         }
     }
 
@@ -142,17 +138,29 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = invoker.getFormattedMessage(loggingEvent);
             int lvl = invoker.getLevel(loggingEvent);
             Throwable t = invoker.getThrowable(loggingEvent);
-            if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
+            boolean markTraceAsError =
+                    LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null);
+            if (!markTraceAsError && LoggerPlugin.isBelowTraceEntryThreshold(getPluginLevel(lvl))) {
+                return null;
+            }
+            if (!markTraceAsError && lvl < WARN_INT) {
+                // formatting is deferred until the trace entry message is needed, which is never
+                // if the trace is not stored or if the trace entry limit has been exceeded
+                TraceEntry traceEntry = context.startTraceEntry(
+                        new LoggingEvent0xMessageSupplier(logger, loggingEvent, lvl, invoker),
+                        timerName);
+                return new LogAdviceTraveler(traceEntry, lvl, null, t);
+            }
+            String formattedMessage = invoker.getFormattedMessage(loggingEvent);
+            if (markTraceAsError) {
                 context.setTransactionError(formattedMessage, t);
             }
             String loggerName =
                     LoggerPlugin.getAbbreviatedLoggerName(invoker.getLoggerName(logger));
-            TraceEntry traceEntry =
-                    context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                            getLevelStr(lvl), loggerName, formattedMessage), timerName);
+            TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.create(
+                    "log {}: {} - {}", getLevelStr(lvl), loggerName, formattedMessage), timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
         }
 
@@ -161,19 +169,21 @@ public class LogbackAspect {
             if (traveler == null) {
                 return;
             }
-            Throwable t = traveler.throwable;
-            if (t != null) {
-                // intentionally not passing message since it is already the trace entry message
-                if (traveler.level >= WARN_INT) {
-                    traveler.traceEntry.endWithError(t);
-                } else {
-                    traveler.traceEntry.endWithInfo(t);
-                }
-            } else if (traveler.level >= WARN_INT) {
-                traveler.traceEntry.endWithError(traveler.formattedMessage);
-            } else {
-                traveler.traceEntry.end();
-            }
+            traveler.end();
+        }
+    }
+
+    private static int getPluginLevel(int lvl) {
+        if (lvl >= ERROR_INT) {
+            return LoggerPlugin.ERROR;
+        } else if (lvl >= WARN_INT) {
+            return LoggerPlugin.WARN;
+        } else if (lvl >= INFO_INT) {
+            return LoggerPlugin.INFO;
+        } else if (lvl >= DEBUG_INT) {
+            return LoggerPlugin.DEBUG;
+        } else {
+            return LoggerPlugin.TRACE;
         }
     }
 
@@ -198,19 +208,81 @@ public class LogbackAspect {
         }
     }
 
+    private static String nullToEmpty(@Nullable String s) {
+        return s == null ? "" : s;
+    }
+
+    private static class LoggingEventMessageSupplier extends MessageSupplier {
+
+        private final ILoggingEvent loggingEvent;
+        private final int level;
+
+        private LoggingEventMessageSupplier(ILoggingEvent loggingEvent, int level) {
+            this.loggingEvent = loggingEvent;
+            this.level = level;
+        }
+
+        @Override
+        public Message get() {
+            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(loggingEvent.getLoggerName());
+            return Message.create("log {}: {} - {}", getLevelStr(level), loggerName,
+                    nullToEmpty(loggingEvent.getFormattedMessage()));
+        }
+    }
+
+    private static class LoggingEvent0xMessageSupplier extends MessageSupplier {
+
+        private final Object logger;
+        private final Object loggingEvent;
+        private final int level;
+        private final LoggingEventInvoker invoker;
+
+        private LoggingEvent0xMessageSupplier(Object logger, Object loggingEvent, int level,
+                LoggingEventInvoker invoker) {
+            this.logger = logger;
+            this.loggingEvent = loggingEvent;
+            this.level = level;
+            this.invoker = invoker;
+        }
+
+        @Override
+        public Message get() {
+            String loggerName =
+                    LoggerPlugin.getAbbreviatedLoggerName(invoker.getLoggerName(logger));
+            return Message.create("log {}: {} - {}", getLevelStr(level), loggerName,
+                    invoker.getFormattedMessage(loggingEvent));
+        }
+    }
+
     private static class LogAdviceTraveler {
 
         private final TraceEntry traceEntry;
         private final int level;
-        private final String formattedMessage;
+        // this is only captured up front when needed for the error message
+        private final @Nullable String formattedMessage;
         private final @Nullable Throwable throwable;
 
-        private LogAdviceTraveler(TraceEntry traceEntry, int level, String formattedMessage,
-                @Nullable Throwable throwable) {
+        private LogAdviceTraveler(TraceEntry traceEntry, int level,
+                @Nullable String formattedMessage, @Nullable Throwable throwable) {
             this.traceEntry = traceEntry;
             this.level = level;
             this.formattedMessage = formattedMessage;
             this.throwable = throwable;
         }
+
+        private void end() {
+            if (throwable != null) {
+                // intentionally not passing message since it is already the trace entry message
+                if (level >= WARN_INT) {
+                    traceEntry.endWithError(throwable);
+                } else {
+                    traceEntry.endWithInfo(throwable);
+                }
+            } else if (level >= WARN_INT) {
+                traceEntry.endWithError(nullToEmpty(formattedMessage));
+            } else {
+                traceEntry.end();
+            }
+        }
     }
 }
@@ -15,14 +15,25 @@
  */
 package org.glowroot.agent.plugin.logger;
 
+import java.util.Locale;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.BooleanProperty;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 
 class LoggerPlugin {
 
+    // common levels that each logging framework's levels are mapped to for comparing against the
+    // trace entry threshold
+    static final int TRACE = 1;
+    static final int DEBUG = 2;
+    static final int INFO = 3;
+    static final int WARN = 4;
+    static final int ERROR = 5;
+
     private static final ConfigService configService = Agent.getConfigService("logger");
 
     private static final BooleanProperty traceErrorOnWarningWithThrowable =
@@ -38,8 +49,27 @@ class LoggerPlugin {
     private static final LoggerNameAbbreviator loggerNameAbbreviator =
             new LoggerNameAbbreviator(36);
 
+    // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
+    private static int traceEntryThreshold;
+
+    static {
+        configService.registerConfigListener(new ConfigListener() {
+            @Override
+            public void onChange() {
+                traceEntryThreshold = parseLevel(
+                        configService.getStringProperty("traceEntryThreshold").value());
+            }
+        });
+    }
+
     private LoggerPlugin() {}
 
+    // this is checked prior to formatting the log message so that log events below the threshold
+    // don't pay the cost of formatting
+    static boolean isBelowTraceEntryThreshold(int level) {
+        return level < traceEntryThreshold;
+    }
+
     static boolean markTraceAsError(boolean isErrorOrHigher, boolean isWarnOrHigher,
             boolean throwable) {
         if (isErrorOrHigher) {
@@ -59,4 +89,22 @@ class LoggerPlugin {
         }
         return loggerNameAbbreviator.abbreviate(loggerName);
     }
+
+    private static int parseLevel(String level) {
+        String lowerCaseLevel = level.trim().toLowerCase(Locale.ENGLISH);
+        if (lowerCaseLevel.equals("trace")) {
+            return TRACE;
+        } else if (lowerCaseLevel.equals("debug")) {
+            return DEBUG;
+        } else if (lowerCaseLevel.equals("info")) {
+            return INFO;
+        } else if (lowerCaseLevel.equals("warn")) {
+            return WARN;
+        } else if (lowerCaseLevel.equals("error")) {
+            return ERROR;
+        } else {
+            // capture all log events that reach an appender
+            return 0;
+        }
+    }
 }
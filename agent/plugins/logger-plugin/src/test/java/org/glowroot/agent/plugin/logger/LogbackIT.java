@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -94,6 +94,26 @@ public class LogbackIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testLogWithTraceEntryThreshold() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "traceEntryThreshold",
+                "error");
+
+        // when
+        Trace trace = container.execute(ShouldLog.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage())
+                .isEqualTo("log error: o.g.a.p.logger.LogbackIT$ShouldLog - efg");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testLogWithThrowable() throws Exception {
         // given
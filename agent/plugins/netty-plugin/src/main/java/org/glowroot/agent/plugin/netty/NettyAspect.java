@@ -24,6 +24,7 @@ import org.glowroot.agent.plugin.api.OptionalThreadContext;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.config.BooleanProperty;
 import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindThrowable;
@@ -38,6 +39,12 @@ import org.glowroot.agent.plugin.api.weaving.Shim;
 
 public class NettyAspect {
 
+    // when enabled, inbound instrumentation only runs once per inbound message (at the outermost
+    // instrumented handler hop), and nested handler hops are skipped using a per-channel flag
+    // instead of going through the thread context (nesting group) check on every hop
+    private static final BooleanProperty pipelineBoundaryOnly =
+            Agent.getConfigService("netty").getBooleanProperty("pipelineBoundaryOnly");
+
     // the field and method names are verbose to avoid conflict since they will become fields
     // and methods in all classes that extend io.netty.channel.Channel
     @Mixin({"io.netty.channel.Channel"})
@@ -46,6 +53,9 @@ public class NettyAspect {
         private volatile boolean glowroot$completeAsyncTransaction;
         private volatile @Nullable AuxThreadContext glowroot$auxContext;
 
+        // this is only accessed from the channel's event loop thread
+        private boolean glowroot$inboundInProgress;
+
         @Override
         public boolean glowroot$getCompleteAsyncTransaction() {
             return glowroot$completeAsyncTransaction;
@@ -65,6 +75,16 @@ public class NettyAspect {
         public void glowroot$setAuxContext(@Nullable AuxThreadContext auxContext) {
             this.glowroot$auxContext = auxContext;
         }
+
+        @Override
+        public boolean glowroot$getInboundInProgress() {
+            return glowroot$inboundInProgress;
+        }
+
+        @Override
+        public void glowroot$setInboundInProgress(boolean inboundInProgress) {
+            this.glowroot$inboundInProgress = inboundInProgress;
+        }
     }
 
     // the method names are verbose to avoid conflict since they will become methods in all classes
@@ -79,6 +99,10 @@ public class NettyAspect {
         AuxThreadContext glowroot$getAuxContext();
 
         void glowroot$setAuxContext(@Nullable AuxThreadContext auxThreadContext);
+
+        boolean glowroot$getInboundInProgress();
+
+        void glowroot$setInboundInProgress(boolean inboundInProgress);
     }
 
     @Shim("io.netty.channel.ChannelHandlerContext")
@@ -114,6 +138,19 @@ public class NettyAspect {
 
         private static final TimerName timerName = Agent.getTimerName(InboundAdvice.class);
 
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver ChannelHandlerContext channelHandlerContext,
+                @BindParameter @Nullable Object msg) {
+            if (!pipelineBoundaryOnly.value()) {
+                return true;
+            }
+            ChannelMixin channel = channelHandlerContext.glowroot$channel();
+            if (channel == null || channel.glowroot$getInboundInProgress()) {
+                return false;
+            }
+            return channel.glowroot$getAuxContext() != null || msg instanceof HttpRequest;
+        }
+
         @OnBefore
         public static @Nullable TraceEntry onBefore(OptionalThreadContext context,
                 @BindReceiver ChannelHandlerContext channelHandlerContext,
@@ -124,6 +161,7 @@ public class NettyAspect {
             }
             AuxThreadContext auxContext = channel.glowroot$getAuxContext();
             if (auxContext != null) {
+                channel.glowroot$setInboundInProgress(true);
                 return auxContext.start();
             }
             if (!(msg instanceof HttpRequest)) {
@@ -138,21 +176,26 @@ public class NettyAspect {
             if (!(msg instanceof LastHttpContent)) {
                 channel.glowroot$setAuxContext(context.createAuxThreadContext());
             }
+            channel.glowroot$setInboundInProgress(true);
             return traceEntry;
         }
 
         @OnReturn
-        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
+        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry,
+                @BindReceiver ChannelHandlerContext channelHandlerContext) {
             if (traceEntry != null) {
                 traceEntry.end();
+                endInbound(channelHandlerContext);
             }
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
-                @BindTraveler @Nullable TraceEntry traceEntry) {
+                @BindTraveler @Nullable TraceEntry traceEntry,
+                @BindReceiver ChannelHandlerContext channelHandlerContext) {
             if (traceEntry != null) {
                 traceEntry.endWithError(t);
+                endInbound(channelHandlerContext);
             }
         }
     }
@@ -162,6 +205,17 @@ public class NettyAspect {
             nestingGroup = "netty-inbound", timerName = "http request")
     public static class InboundCompleteAdvice {
 
+        @IsEnabled
+        public static boolean isEnabled(
+                @BindReceiver ChannelHandlerContext channelHandlerContext) {
+            if (!pipelineBoundaryOnly.value()) {
+                return true;
+            }
+            ChannelMixin channel = channelHandlerContext.glowroot$channel();
+            return channel != null && !channel.glowroot$getInboundInProgress()
+                    && channel.glowroot$getAuxContext() != null;
+        }
+
         @OnBefore
         public static @Nullable TraceEntry onBefore(
                 @BindReceiver ChannelHandlerContext channelHandlerContext) {
@@ -173,21 +227,26 @@ public class NettyAspect {
             if (auxContext == null) {
                 return null;
             }
+            channel.glowroot$setInboundInProgress(true);
             return auxContext.start();
         }
 
         @OnReturn
-        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
+        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry,
+                @BindReceiver ChannelHandlerContext channelHandlerContext) {
             if (traceEntry != null) {
                 traceEntry.end();
+                endInbound(channelHandlerContext);
             }
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
-                @BindTraveler @Nullable TraceEntry traceEntry) {
+                @BindTraveler @Nullable TraceEntry traceEntry,
+                @BindReceiver ChannelHandlerContext channelHandlerContext) {
             if (traceEntry != null) {
                 traceEntry.endWithError(t);
+                endInbound(channelHandlerContext);
             }
         }
     }
@@ -243,6 +302,13 @@ public class NettyAspect {
         }
     }
 
+    private static void endInbound(ChannelHandlerContext channelHandlerContext) {
+        ChannelMixin channel = channelHandlerContext.glowroot$channel();
+        if (channel != null) {
+            channel.glowroot$setInboundInProgress(false);
+        }
+    }
+
     static TraceEntry startAsyncTransaction(OptionalThreadContext context,
             @Nullable String methodName, @Nullable String uri, TimerName timerName) {
         String path = getPath(uri);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -81,6 +81,29 @@ public class NettyIT {
         assertThat(trace.getEntryList()).isEmpty();
     }
 
+    @Test
+    public void shouldCaptureHttpGetWithPipelineBoundaryOnly() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty("netty", "pipelineBoundaryOnly", true);
+        // when
+        Trace trace = container.execute(ExecuteHttpGet.class);
+        // then
+        assertThat(trace.getHeader().getTransactionName()).isEqualTo("/abc");
+        assertThat(trace.getHeader().getHeadline()).isEqualTo("GET /abc?xyz=123");
+        assertThat(trace.getEntryList()).isEmpty();
+    }
+
+    @Test
+    public void shouldCaptureHttpChunkedResponseWithPipelineBoundaryOnly() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty("netty", "pipelineBoundaryOnly", true);
+        // when
+        Trace trace = container.execute(ExecuteHttpChunked.class);
+        // then
+        assertThat(trace.getHeader().getTransactionName()).isEqualTo("/chunked");
+        assertThat(trace.getEntryList()).isEmpty();
+    }
+
     private static int getAvailablePort() throws Exception {
         ServerSocket serverSocket = new ServerSocket(0);
         int port = serverSocket.getLocalPort();
@@ -15,14 +15,8 @@
  */
 package org.glowroot.agent.plugin.servlet;
 
-import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
@@ -44,10 +38,10 @@ class ServletPluginProperties {
 
     private static final Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    private static ImmutableList<Pattern> captureRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> maskRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> captureRequestHeaders = ImmutableList.of();
-    private static ImmutableList<Pattern> captureResponseHeaders = ImmutableList.of();
+    private static WildcardMatcher captureRequestParameters = WildcardMatcher.NONE;
+    private static WildcardMatcher maskRequestParameters = WildcardMatcher.NONE;
+    private static WildcardMatcher captureRequestHeaders = WildcardMatcher.NONE;
+    private static WildcardMatcher captureResponseHeaders = WildcardMatcher.NONE;
 
     private static boolean captureResponseHeadersNonEmpty;
 
@@ -64,19 +58,19 @@ class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    static ImmutableList<Pattern> captureRequestParameters() {
+    static WildcardMatcher captureRequestParameters() {
         return captureRequestParameters;
     }
 
-    static ImmutableList<Pattern> maskRequestParameters() {
+    static WildcardMatcher maskRequestParameters() {
         return maskRequestParameters;
     }
 
-    static ImmutableList<Pattern> captureRequestHeaders() {
+    static WildcardMatcher captureRequestHeaders() {
         return captureRequestHeaders;
     }
 
-    static ImmutableList<Pattern> captureResponseHeaders() {
+    static WildcardMatcher captureResponseHeaders() {
         return captureResponseHeaders;
     }
 
@@ -114,10 +108,10 @@ class ServletPluginProperties {
         }
 
         private static void recalculateProperties() {
-            captureRequestParameters = buildPatternList(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
-            maskRequestParameters = buildPatternList(MASK_REQUEST_PARAMS_PROPERTY_NAME);
-            captureRequestHeaders = buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
-            captureResponseHeaders = buildPatternList(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
+            captureRequestParameters = buildMatcher(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
+            maskRequestParameters = buildMatcher(MASK_REQUEST_PARAMS_PROPERTY_NAME);
+            captureRequestHeaders = buildMatcher(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
+            captureResponseHeaders = buildMatcher(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
             captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
             sessionUserAttributePath = configService
                     .getStringProperty(SESSION_USER_ATTRIBUTE_PROPERTY_NAME).value();
@@ -131,15 +125,9 @@ class ServletPluginProperties {
                     captureSessionAttributeNames.contains(HTTP_SESSION_ID_ATTR);
         }
 
-        private static ImmutableList<Pattern> buildPatternList(String propertyName) {
-            String captureRequestParametersText =
-                    configService.getStringProperty(propertyName).value();
-            List<Pattern> captureParameters = Lists.newArrayList();
-            for (String parameter : splitter.split(captureRequestParametersText)) {
-                // converted to lower case for case-insensitive matching
-                captureParameters.add(buildRegexPattern(parameter.toLowerCase(Locale.ENGLISH)));
-            }
-            return ImmutableList.copyOf(captureParameters);
+        private static WildcardMatcher buildMatcher(String propertyName) {
+            return WildcardMatcher
+                    .create(splitter.split(configService.getStringProperty(propertyName).value()));
         }
 
         private static ImmutableSet<String> buildCaptureSessionAttributeNames() {
@@ -154,13 +142,5 @@ class ServletPluginProperties {
             }
             return names.build();
         }
-
-        private static Pattern buildRegexPattern(String wildcardPattern) {
-            // convert * into .* and quote the rest of the text using \Q...\E
-            String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-            // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-            regex = regex.replace("\\Q\\E", "");
-            return Pattern.compile(regex);
-        }
     }
 }
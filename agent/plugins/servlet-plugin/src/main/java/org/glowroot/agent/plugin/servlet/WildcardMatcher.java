@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+// case-insensitive matcher for a list of wildcard patterns (e.g. "content-*, user-agent"), which is
+// compiled into a single regex when the config changes
+//
+// the same parameter and header names show up on nearly every request, so match results are
+// memoized per name, which avoids lower casing the name and running the regex on every request
+class WildcardMatcher {
+
+    // names with high cardinality (which would be unusual) will continually miss the cache, so the
+    // cache is cleared when it reaches this size, which keeps the common names cached
+    private static final int MAX_CACHE_SIZE = 1000;
+
+    static final WildcardMatcher NONE = new WildcardMatcher(null, false);
+
+    private final @Nullable Pattern pattern;
+    private final boolean matchesAll;
+
+    private final ConcurrentMap<String, Boolean> matches = new ConcurrentHashMap<String, Boolean>();
+
+    private WildcardMatcher(@Nullable Pattern pattern, boolean matchesAll) {
+        this.pattern = pattern;
+        this.matchesAll = matchesAll;
+    }
+
+    static WildcardMatcher create(Iterable<String> wildcardPatterns) {
+        List<String> regexes = Lists.newArrayList();
+        for (String wildcardPattern : wildcardPatterns) {
+            // converted to lower case for case-insensitive matching
+            String regex = buildRegex(wildcardPattern.toLowerCase(Locale.ENGLISH));
+            if (regex.equals(".*")) {
+                return new WildcardMatcher(null, true);
+            }
+            regexes.add(regex);
+        }
+        if (regexes.isEmpty()) {
+            return NONE;
+        }
+        return new WildcardMatcher(Pattern.compile(Joiner.on('|').join(regexes)), false);
+    }
+
+    boolean isEmpty() {
+        return pattern == null && !matchesAll;
+    }
+
+    boolean matches(String name) {
+        if (matchesAll) {
+            return true;
+        }
+        if (pattern == null) {
+            return false;
+        }
+        Boolean match = matches.get(name);
+        if (match == null) {
+            // converted to lower case for case-insensitive matching (pattern is lower case)
+            match = pattern.matcher(name.toLowerCase(Locale.ENGLISH)).matches();
+            if (matches.size() >= MAX_CACHE_SIZE) {
+                matches.clear();
+            }
+            matches.put(name, match);
+        }
+        return match;
+    }
+
+    private static String buildRegex(String wildcardPattern) {
+        // convert * into .* and quote the rest of the text using \Q...\E
+        String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
+        // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
+        return regex.replace("\\Q\\E", "");
+    }
+}
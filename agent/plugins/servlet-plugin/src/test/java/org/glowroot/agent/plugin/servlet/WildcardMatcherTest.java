@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WildcardMatcherTest {
+
+    @Test
+    public void shouldMatchAnyOfThePatterns() {
+        WildcardMatcher matcher =
+                WildcardMatcher.create(ImmutableList.of("content-*", "user-agent", "*-id"));
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("Content-Type")).isTrue();
+        assertThat(matcher.matches("User-Agent")).isTrue();
+        assertThat(matcher.matches("x-request-id")).isTrue();
+        assertThat(matcher.matches("Accept")).isFalse();
+        assertThat(matcher.matches("user-agent2")).isFalse();
+        // memoized results
+        assertThat(matcher.matches("Content-Type")).isTrue();
+        assertThat(matcher.matches("Accept")).isFalse();
+    }
+
+    @Test
+    public void shouldQuoteRegexCharacters() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.of("a.b", "[x]*"));
+        assertThat(matcher.matches("a.b")).isTrue();
+        assertThat(matcher.matches("axb")).isFalse();
+        assertThat(matcher.matches("[x]yz")).isTrue();
+        assertThat(matcher.matches("xyz")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchAll() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.of("abc", "*"));
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("anything")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchNone() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.<String>of());
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.matches("anything")).isFalse();
+    }
+}
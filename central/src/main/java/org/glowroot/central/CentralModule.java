@@ -19,12 +19,14 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
 
 import com.datastax.driver.core.Cluster;
@@ -67,8 +69,11 @@ import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.TransactionTypeDao;
 import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter;
+import org.glowroot.central.util.AlertCheckingExecutor;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.ImmutableWebConfig;
 import org.glowroot.common.config.WebConfig;
 import org.glowroot.common.live.LiveAggregateRepository.LiveAggregateRepositoryNop;
@@ -86,9 +91,23 @@ import org.glowroot.ui.UiModule;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class CentralModule {
 
+    private static final String WRITE_COALESCER_OBJECT_NAME =
+            "org.glowroot.central:type=CassandraWriteCoalescer";
+    private static final String ALERT_CHECKING_EXECUTOR_OBJECT_NAME =
+            "org.glowroot.central:type=AlertCheckingExecutor";
+
+    // alert checks are sharded by agent rollup across this many threads
+    private static final int ALERT_CHECKING_THREADS = 4;
+
+    private static final int WRITE_LIMITER_INITIAL_LIMIT = 128;
+    private static final int WRITE_LIMITER_MIN_LIMIT = 16;
+    private static final int WRITE_LIMITER_MAX_LIMIT = 2048;
+    private static final long WRITE_LIMITER_LATENCY_THRESHOLD_NANOS = SECONDS.toNanos(2);
+
     // need to wait to init logger until after establishing centralDir
     private static volatile @MonotonicNonNull Logger startupLogger;
 
@@ -192,17 +211,25 @@ class CentralModule {
                 }
             }
 
+            AdaptiveConcurrencyLimiter writeLimiter = new AdaptiveConcurrencyLimiter(
+                    WRITE_LIMITER_INITIAL_LIMIT, WRITE_LIMITER_MIN_LIMIT,
+                    WRITE_LIMITER_MAX_LIMIT, WRITE_LIMITER_LATENCY_THRESHOLD_NANOS, ticker);
+            WriteCoalescer writeCoalescer = new WriteCoalescer(session, writeLimiter,
+                    centralConfig.cassandraMaxInFlightWritesPerHost());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(writeCoalescer,
+                    new ObjectName(WRITE_COALESCER_OBJECT_NAME));
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository, clusterManager);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-            AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+            AggregateDao aggregateDao = new AggregateDao(session, writeCoalescer, agentDao,
+                    transactionTypeDao, fullQueryTextDao, configRepository, clock);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository, clusterManager);
-            TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, traceAttributeNameDao, configRepository, clock);
-            GaugeValueDao gaugeValueDao =
-                    new GaugeValueDao(session, agentDao, configRepository, clusterManager, clock);
+            TraceDao traceDao = new TraceDao(session, writeCoalescer, agentDao,
+                    transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, configRepository,
+                    clock);
+            GaugeValueDao gaugeValueDao = new GaugeValueDao(session, writeCoalescer, agentDao,
+                    configRepository, clusterManager, clock);
             SyntheticResultDao syntheticResultDao =
                     new SyntheticResultDao(session, configRepository, clock);
             EnvironmentDao environmentDao = new EnvironmentDao(session);
@@ -212,6 +239,10 @@ class CentralModule {
             AlertingService alertingService = new AlertingService(configRepository,
                     triggeredAlertDao, aggregateDao, gaugeValueDao, rollupLevelService,
                     new MailService());
+            AlertCheckingExecutor alertCheckingExecutor =
+                    new AlertCheckingExecutor(ALERT_CHECKING_THREADS, ticker);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(alertCheckingExecutor,
+                    new ObjectName(ALERT_CHECKING_EXECUTOR_OBJECT_NAME));
 
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -220,7 +251,8 @@ class CentralModule {
 
             server = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     agentDao, configDao, aggregateDao, gaugeValueDao, environmentDao, heartbeatDao,
-                    traceDao, configRepository, alertingService, clusterManager, clock, version);
+                    traceDao, writeCoalescer, configRepository, alertingService,
+                    alertCheckingExecutor, clusterManager, clock, version);
             DownstreamServiceImpl downstreamService = server.getDownstreamService();
             configRepository.addAgentConfigListener(new AgentConfigListener() {
                 @Override
@@ -229,7 +261,7 @@ class CentralModule {
                     checkNotNull(downstreamService).updateAgentConfigIfConnectedAndNeeded(agentId);
                 }
             });
-            rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
+            rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao, traceDao,
                     syntheticResultDao, heartbeatDao, configRepository, alertingService,
                     downstreamService, clock);
             pingAndSyntheticAlertService = new SyntheticMonitorService(agentDao, configRepository,
@@ -288,6 +320,7 @@ class CentralModule {
             if (pingAndSyntheticAlertService != null) {
                 pingAndSyntheticAlertService.close();
             }
+            unregisterMBeansIfRegistered();
             if (session != null) {
                 session.close();
             }
@@ -321,6 +354,7 @@ class CentralModule {
             server.close();
             rollupService.close();
             pingAndSyntheticAlertService.close();
+            unregisterMBeansIfRegistered();
             session.close();
             cluster.close();
             clusterManager.close();
@@ -336,6 +370,18 @@ class CentralModule {
         }
     }
 
+    private static void unregisterMBeansIfRegistered() throws Exception {
+        unregisterMBeanIfRegistered(WRITE_COALESCER_OBJECT_NAME);
+        unregisterMBeanIfRegistered(ALERT_CHECKING_EXECUTOR_OBJECT_NAME);
+    }
+
+    private static void unregisterMBeanIfRegistered(String name) throws Exception {
+        ObjectName objectName = new ObjectName(name);
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+    }
+
     private static CentralConfiguration getCentralConfiguration(File centralDir)
             throws IOException {
         ImmutableCentralConfiguration.Builder builder = ImmutableCentralConfiguration.builder();
@@ -369,6 +415,12 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraPassword)) {
             builder.cassandraPassword(cassandraPassword);
         }
+        String cassandraMaxInFlightWritesPerHostText =
+                props.getProperty("cassandra.maxInFlightWritesPerHost");
+        if (!Strings.isNullOrEmpty(cassandraMaxInFlightWritesPerHostText)) {
+            builder.cassandraMaxInFlightWritesPerHost(
+                    Integer.parseInt(cassandraMaxInFlightWritesPerHostText));
+        }
         String grpcBindAddress = props.getProperty("grpc.bindAddress");
         if (!Strings.isNullOrEmpty(grpcBindAddress)) {
             builder.grpcBindAddress(grpcBindAddress);
@@ -524,6 +576,11 @@ class CentralModule {
             return "glowroot";
         }
 
+        @Value.Default
+        int cassandraMaxInFlightWritesPerHost() {
+            return 256;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// the dictionary entries sent by the agent on a single collectStream call
+//
+// refs are resolved by the collector handlers where the strings are used, and nested messages
+// are only rebuilt when they actually contain refs (which is never the case for requests that
+// are not sent on a collectStream call)
+//
+// not thread safe
+class CollectStreamDictionary {
+
+    // this bounds the memory retained for each connected agent (the agent uses the same limit)
+    private static final int MAX_ENTRIES = 4096;
+
+    private final List<String> entries = Lists.newArrayList();
+
+    // returns false if the max number of entries has been exceeded
+    boolean addEntry(String value) {
+        if (entries.size() >= MAX_ENTRIES) {
+            return false;
+        }
+        entries.add(value);
+        return true;
+    }
+
+    String resolve(String value, int ref) {
+        return ref == 0 ? value : get(ref);
+    }
+
+    Aggregate resolve(Aggregate aggregate) {
+        List<Aggregate.Timer> mainThreadRootTimers =
+                resolveAggregateTimers(aggregate.getMainThreadRootTimerList());
+        List<Aggregate.Timer> auxThreadRootTimers =
+                resolveAggregateTimers(aggregate.getAuxThreadRootTimerList());
+        List<Aggregate.Timer> asyncTimers = resolveAggregateTimers(aggregate.getAsyncTimerList());
+        List<Aggregate.ServiceCallsByType> serviceCallsByType =
+                resolveServiceCallsByType(aggregate.getServiceCallsByTypeList());
+        Profile mainThreadProfile = resolve(aggregate.getMainThreadProfile());
+        Profile auxThreadProfile = resolve(aggregate.getAuxThreadProfile());
+        if (mainThreadRootTimers == aggregate.getMainThreadRootTimerList()
+                && auxThreadRootTimers == aggregate.getAuxThreadRootTimerList()
+                && asyncTimers == aggregate.getAsyncTimerList()
+                && serviceCallsByType == aggregate.getServiceCallsByTypeList()
+                && mainThreadProfile == aggregate.getMainThreadProfile()
+                && auxThreadProfile == aggregate.getAuxThreadProfile()) {
+            return aggregate;
+        }
+        // toBuilder() is shallow, so the rest of the aggregate (e.g. histogram and queries) is
+        // not copied
+        Aggregate.Builder builder = aggregate.toBuilder()
+                .clearMainThreadRootTimer()
+                .addAllMainThreadRootTimer(mainThreadRootTimers)
+                .clearAuxThreadRootTimer()
+                .addAllAuxThreadRootTimer(auxThreadRootTimers)
+                .clearAsyncTimer()
+                .addAllAsyncTimer(asyncTimers)
+                .clearServiceCallsByType()
+                .addAllServiceCallsByType(serviceCallsByType);
+        if (aggregate.hasMainThreadProfile()) {
+            builder.setMainThreadProfile(mainThreadProfile);
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            builder.setAuxThreadProfile(auxThreadProfile);
+        }
+        return builder.build();
+    }
+
+    Trace.Header resolve(Trace.Header header) {
+        int transactionNameRef = header.getTransactionNameRef();
+        Trace.Timer mainThreadRootTimer = resolve(header.getMainThreadRootTimer());
+        List<Trace.Timer> auxThreadRootTimers =
+                resolveTraceTimers(header.getAuxThreadRootTimerList());
+        List<Trace.Timer> asyncTimers = resolveTraceTimers(header.getAsyncTimerList());
+        if (transactionNameRef == 0 && mainThreadRootTimer == header.getMainThreadRootTimer()
+                && auxThreadRootTimers == header.getAuxThreadRootTimerList()
+                && asyncTimers == header.getAsyncTimerList()) {
+            return header;
+        }
+        Trace.Header.Builder builder = header.toBuilder()
+                .setTransactionName(resolve(header.getTransactionName(), transactionNameRef))
+                .clearTransactionNameRef()
+                .clearAuxThreadRootTimer()
+                .addAllAuxThreadRootTimer(auxThreadRootTimers)
+                .clearAsyncTimer()
+                .addAllAsyncTimer(asyncTimers);
+        if (header.hasMainThreadRootTimer()) {
+            builder.setMainThreadRootTimer(mainThreadRootTimer);
+        }
+        return builder.build();
+    }
+
+    Profile resolve(Profile profile) {
+        if (profile.getPackageNameRefCount() == 0 && profile.getClassNameRefCount() == 0
+                && profile.getMethodNameRefCount() == 0 && profile.getFileNameRefCount() == 0) {
+            return profile;
+        }
+        return profile.toBuilder()
+                .clearPackageNameRef()
+                .clearClassNameRef()
+                .clearMethodNameRef()
+                .clearFileNameRef()
+                .addAllPackageName(get(profile.getPackageNameRefList()))
+                .addAllClassName(get(profile.getClassNameRefList()))
+                .addAllMethodName(get(profile.getMethodNameRefList()))
+                .addAllFileName(get(profile.getFileNameRefList()))
+                .build();
+    }
+
+    // returns the same list instance if none of the timers contain refs
+    private List<Aggregate.Timer> resolveAggregateTimers(List<Aggregate.Timer> timers) {
+        List<Aggregate.Timer> resolvedTimers = null;
+        for (int i = 0; i < timers.size(); i++) {
+            Aggregate.Timer timer = timers.get(i);
+            Aggregate.Timer resolvedTimer = resolve(timer);
+            if (resolvedTimer != timer && resolvedTimers == null) {
+                resolvedTimers = Lists.newArrayList(timers.subList(0, i));
+            }
+            if (resolvedTimers != null) {
+                resolvedTimers.add(resolvedTimer);
+            }
+        }
+        return resolvedTimers == null ? timers : resolvedTimers;
+    }
+
+    private Aggregate.Timer resolve(Aggregate.Timer timer) {
+        List<Aggregate.Timer> childTimers = resolveAggregateTimers(timer.getChildTimerList());
+        int nameRef = timer.getNameRef();
+        if (nameRef == 0 && childTimers == timer.getChildTimerList()) {
+            return timer;
+        }
+        return timer.toBuilder()
+                .setName(resolve(timer.getName(), nameRef))
+                .clearNameRef()
+                .clearChildTimer()
+                .addAllChildTimer(childTimers)
+                .build();
+    }
+
+    // returns the same list instance if none of the timers contain refs
+    private List<Trace.Timer> resolveTraceTimers(List<Trace.Timer> timers) {
+        List<Trace.Timer> resolvedTimers = null;
+        for (int i = 0; i < timers.size(); i++) {
+            Trace.Timer timer = timers.get(i);
+            Trace.Timer resolvedTimer = resolve(timer);
+            if (resolvedTimer != timer && resolvedTimers == null) {
+                resolvedTimers = Lists.newArrayList(timers.subList(0, i));
+            }
+            if (resolvedTimers != null) {
+                resolvedTimers.add(resolvedTimer);
+            }
+        }
+        return resolvedTimers == null ? timers : resolvedTimers;
+    }
+
+    private Trace.Timer resolve(Trace.Timer timer) {
+        List<Trace.Timer> childTimers = resolveTraceTimers(timer.getChildTimerList());
+        int nameRef = timer.getNameRef();
+        if (nameRef == 0 && childTimers == timer.getChildTimerList()) {
+            return timer;
+        }
+        return timer.toBuilder()
+                .setName(resolve(timer.getName(), nameRef))
+                .clearNameRef()
+                .clearChildTimer()
+                .addAllChildTimer(childTimers)
+                .build();
+    }
+
+    // returns the same list instance if none of the service calls contain refs
+    private List<Aggregate.ServiceCallsByType> resolveServiceCallsByType(
+            List<Aggregate.ServiceCallsByType> serviceCallsByTypeList) {
+        List<Aggregate.ServiceCallsByType> resolvedList = null;
+        for (int i = 0; i < serviceCallsByTypeList.size(); i++) {
+            Aggregate.ServiceCallsByType serviceCallsByType = serviceCallsByTypeList.get(i);
+            Aggregate.ServiceCallsByType resolved = resolve(serviceCallsByType);
+            if (resolved != serviceCallsByType && resolvedList == null) {
+                resolvedList = Lists.newArrayList(serviceCallsByTypeList.subList(0, i));
+            }
+            if (resolvedList != null) {
+                resolvedList.add(resolved);
+            }
+        }
+        return resolvedList == null ? serviceCallsByTypeList : resolvedList;
+    }
+
+    private Aggregate.ServiceCallsByType resolve(Aggregate.ServiceCallsByType serviceCallsByType) {
+        List<Aggregate.ServiceCall> serviceCalls = serviceCallsByType.getServiceCallList();
+        List<Aggregate.ServiceCall> resolvedServiceCalls = null;
+        for (int i = 0; i < serviceCalls.size(); i++) {
+            Aggregate.ServiceCall serviceCall = serviceCalls.get(i);
+            int textRef = serviceCall.getTextRef();
+            if (textRef != 0 && resolvedServiceCalls == null) {
+                resolvedServiceCalls = Lists.newArrayList(serviceCalls.subList(0, i));
+            }
+            if (resolvedServiceCalls == null) {
+                continue;
+            }
+            if (textRef == 0) {
+                resolvedServiceCalls.add(serviceCall);
+            } else {
+                resolvedServiceCalls.add(serviceCall.toBuilder()
+                        .setText(get(textRef))
+                        .clearTextRef()
+                        .build());
+            }
+        }
+        if (resolvedServiceCalls == null) {
+            return serviceCallsByType;
+        }
+        return serviceCallsByType.toBuilder()
+                .clearServiceCall()
+                .addAllServiceCall(resolvedServiceCalls)
+                .build();
+    }
+
+    private List<String> get(List<Integer> refs) {
+        List<String> values = Lists.newArrayListWithCapacity(refs.size());
+        for (int ref : refs) {
+            values.add(get(ref));
+        }
+        return values;
+    }
+
+    private String get(int ref) {
+        if (ref < 1 || ref > entries.size()) {
+            throw new IllegalStateException("Invalid dictionary ref: " + ref);
+        }
+        return entries.get(ref - 1);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamError;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+
+// demultiplexes the requests on a collectStream call into the individual collector calls
+class CollectStreamObserver implements StreamObserver<CollectStreamMessage> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectStreamObserver.class);
+
+    private final Collector collector;
+    private final StreamObserver<CollectStreamResponse> responseObserver;
+
+    private final Map<Long, StreamObserver<AggregateStreamMessage>> aggregateStreams =
+            Maps.newHashMap();
+    private final Map<Long, StreamObserver<TraceStreamMessage>> traceStreams = Maps.newHashMap();
+
+    private final CollectStreamDictionary dictionary = new CollectStreamDictionary();
+
+    CollectStreamObserver(Collector collector,
+            StreamObserver<CollectStreamResponse> responseObserver) {
+        this.collector = collector;
+        this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(CollectStreamMessage value) {
+        long requestId = value.getRequestId();
+        try {
+            onNextInternal(value, requestId);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            aggregateStreams.remove(requestId);
+            traceStreams.remove(requestId);
+            sendError(requestId, t);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.debug(t.getMessage(), t);
+        closeIncompleteRequests();
+    }
+
+    @Override
+    public void onCompleted() {
+        closeIncompleteRequests();
+        synchronized (responseObserver) {
+            responseObserver.onCompleted();
+        }
+    }
+
+    private void onNextInternal(CollectStreamMessage value, long requestId) {
+        switch (value.getMessageCase()) {
+            case AGGREGATE_STREAM_MESSAGE:
+                StreamObserver<AggregateStreamMessage> aggregateStream =
+                        aggregateStreams.get(requestId);
+                if (aggregateStream == null) {
+                    aggregateStream = collector.collectAggregateStream(
+                            new RequestResponseObserver<AggregateResponseMessage>(
+                                    requestId, (builder, response) -> builder
+                                            .setAggregateResponseMessage(response)),
+                            dictionary);
+                    aggregateStreams.put(requestId, aggregateStream);
+                }
+                aggregateStream.onNext(value.getAggregateStreamMessage());
+                if (value.getLast()) {
+                    aggregateStreams.remove(requestId);
+                    aggregateStream.onCompleted();
+                }
+                break;
+            case TRACE_STREAM_MESSAGE:
+                StreamObserver<TraceStreamMessage> traceStream = traceStreams.get(requestId);
+                if (traceStream == null) {
+                    traceStream = collector.collectTraceStream(
+                            new RequestResponseObserver<EmptyMessage>(requestId,
+                                    CollectStreamResponse.Builder::setEmptyMessage),
+                            dictionary);
+                    traceStreams.put(requestId, traceStream);
+                }
+                traceStream.onNext(value.getTraceStreamMessage());
+                if (value.getLast()) {
+                    traceStreams.remove(requestId);
+                    traceStream.onCompleted();
+                }
+                break;
+            case GAUGE_VALUE_MESSAGE:
+                collector.collectGaugeValues(value.getGaugeValueMessage(),
+                        new RequestResponseObserver<EmptyMessage>(requestId,
+                                CollectStreamResponse.Builder::setEmptyMessage));
+                break;
+            case LOG_MESSAGE:
+                collector.log(value.getLogMessage(),
+                        new RequestResponseObserver<EmptyMessage>(requestId,
+                                CollectStreamResponse.Builder::setEmptyMessage));
+                break;
+            case CANCEL:
+                cancel(requestId);
+                break;
+            case DICTIONARY_ENTRY:
+                if (!dictionary.addEntry(value.getDictionaryEntry().getValue())) {
+                    // the agent's dictionary is now out of sync, so need to tear down the
+                    // stream (the agent will re-connect with a new dictionary)
+                    closeIncompleteRequests();
+                    synchronized (responseObserver) {
+                        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                                .withDescription("exceeded max dictionary entries")
+                                .asRuntimeException());
+                    }
+                }
+                break;
+            default:
+                throw new RuntimeException("Unexpected message: " + value.getMessageCase());
+        }
+    }
+
+    // the agent failed part way through writing the request, and will not send the rest of it
+    private void cancel(long requestId) {
+        Throwable t = Status.CANCELLED.withDescription("request cancelled by the agent")
+                .asRuntimeException();
+        StreamObserver<AggregateStreamMessage> aggregateStream = aggregateStreams.remove(requestId);
+        if (aggregateStream != null) {
+            aggregateStream.onError(t);
+        }
+        StreamObserver<TraceStreamMessage> traceStream = traceStreams.remove(requestId);
+        if (traceStream != null) {
+            traceStream.onError(t);
+        }
+    }
+
+    private void closeIncompleteRequests() {
+        // the agent will retry these on a new stream
+        Throwable t = Status.CANCELLED.withDescription("collect stream closed")
+                .asRuntimeException();
+        for (StreamObserver<AggregateStreamMessage> aggregateStream : aggregateStreams
+                .values()) {
+            aggregateStream.onError(t);
+        }
+        aggregateStreams.clear();
+        for (StreamObserver<TraceStreamMessage> traceStream : traceStreams.values()) {
+            traceStream.onError(t);
+        }
+        traceStreams.clear();
+    }
+
+    private void sendError(long requestId, Throwable t) {
+        Status status = Status.fromThrowable(t);
+        send(CollectStreamResponse.newBuilder()
+                .setRequestId(requestId)
+                .setError(CollectStreamError.newBuilder()
+                        .setStatusCode(status.getCode().value())
+                        .setDescription(Strings.nullToEmpty(status.getDescription())))
+                .build());
+    }
+
+    private void send(CollectStreamResponse response) {
+        synchronized (responseObserver) {
+            responseObserver.onNext(response);
+        }
+    }
+
+    // the individual collector calls, which resolve dictionary refs where the strings are used
+    interface Collector {
+
+        StreamObserver<AggregateStreamMessage> collectAggregateStream(
+                StreamObserver<AggregateResponseMessage> responseObserver,
+                CollectStreamDictionary dictionary);
+
+        StreamObserver<TraceStreamMessage> collectTraceStream(
+                StreamObserver<EmptyMessage> responseObserver, CollectStreamDictionary dictionary);
+
+        void collectGaugeValues(GaugeValueMessage request,
+                StreamObserver<EmptyMessage> responseObserver);
+
+        void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver);
+    }
+
+    // sends the response of an individual collector call back on the collectStream call
+    private class RequestResponseObserver<T> implements StreamObserver<T> {
+
+        private final long requestId;
+        private final BiConsumer<CollectStreamResponse.Builder, T> responseSetter;
+
+        private RequestResponseObserver(long requestId,
+                BiConsumer<CollectStreamResponse.Builder, T> responseSetter) {
+            this.requestId = requestId;
+            this.responseSetter = responseSetter;
+        }
+
+        @Override
+        public void onNext(T value) {
+            CollectStreamResponse.Builder response = CollectStreamResponse.newBuilder()
+                    .setRequestId(requestId);
+            responseSetter.accept(response, value);
+            send(response.build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            sendError(requestId, t);
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -19,19 +19,20 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,9 +45,13 @@ import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
+import org.glowroot.central.util.AlertCheckingExecutor;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
@@ -57,6 +62,9 @@ import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamFlowControl;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
@@ -86,6 +94,10 @@ class GrpcServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // requests on a single collectStream call are processed one at a time, so this only needs to
+    // be large enough for the agent to pipeline requests
+    private static final int COLLECT_STREAM_MAX_IN_FLIGHT_REQUESTS = 16;
+
     private final AgentDao agentDao;
     private final ConfigDao configDao;
     private final EnvironmentDao environmentDao;
@@ -93,8 +105,10 @@ class GrpcServer {
     private final GaugeValueDao gaugeValueDao;
     private final HeartbeatDao heartbeatDao;
     private final TraceDao traceDao;
+    private final WriteCoalescer writeCoalescer;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
+    private final AlertCheckingExecutor alertCheckingExecutor;
     private final Clock clock;
     private final String version;
 
@@ -102,16 +116,15 @@ class GrpcServer {
 
     private final ServerImpl server;
 
-    private final ExecutorService alertCheckingExecutor;
-
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
     GrpcServer(String bindAddress, int port, AgentDao agentDao, ConfigDao configDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, EnvironmentDao environmentDao,
-            HeartbeatDao heartbeatDao, TraceDao traceDao, ConfigRepositoryImpl configRepository,
-            AlertingService alertingService, ClusterManager clusterManager, Clock clock,
-            String version) throws IOException {
+            HeartbeatDao heartbeatDao, TraceDao traceDao, WriteCoalescer writeCoalescer,
+            ConfigRepositoryImpl configRepository, AlertingService alertingService,
+            AlertCheckingExecutor alertCheckingExecutor, ClusterManager clusterManager,
+            Clock clock, String version) throws IOException {
         this.agentDao = agentDao;
         this.configDao = configDao;
         this.environmentDao = environmentDao;
@@ -119,8 +132,10 @@ class GrpcServer {
         this.gaugeValueDao = gaugeValueDao;
         this.heartbeatDao = heartbeatDao;
         this.traceDao = traceDao;
+        this.writeCoalescer = writeCoalescer;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
+        this.alertCheckingExecutor = alertCheckingExecutor;
         this.clock = clock;
         this.version = version;
 
@@ -135,8 +150,6 @@ class GrpcServer {
                 .build()
                 .start();
 
-        alertCheckingExecutor = Executors.newSingleThreadExecutor();
-
         startupLogger.info("gRPC listening on {}:{}", bindAddress, port);
     }
 
@@ -144,11 +157,11 @@ class GrpcServer {
         return downstreamService;
     }
 
-    void close() {
+    void close() throws InterruptedException {
         // shutdown server first to complete existing requests and prevent new requests
         server.shutdown();
         // then shutdown alert checking executor
-        alertCheckingExecutor.shutdown();
+        alertCheckingExecutor.close();
     }
 
     @VisibleForTesting
@@ -161,7 +174,15 @@ class GrpcServer {
         void accept(AlertConfig alertConfig) throws Exception;
     }
 
-    private class CollectorServiceImpl extends CollectorServiceImplBase {
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AlertCheckKey {
+        String agentId();
+        AlertConfig alertConfig();
+    }
+
+    private class CollectorServiceImpl extends CollectorServiceImplBase
+            implements CollectStreamObserver.Collector {
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Init",
                 traceHeadline = "Collect init: {{0.agentId}}", timer = "init")
@@ -198,7 +219,15 @@ class GrpcServer {
 
         @Override
         public StreamObserver<AggregateStreamMessage> collectAggregateStream(
-                final StreamObserver<AggregateResponseMessage> responseObserver) {
+                StreamObserver<AggregateResponseMessage> responseObserver) {
+            // requests that are not sent on a collectStream call never contain dictionary refs
+            return collectAggregateStream(responseObserver, new CollectStreamDictionary());
+        }
+
+        @Override
+        public StreamObserver<AggregateStreamMessage> collectAggregateStream(
+                final StreamObserver<AggregateResponseMessage> responseObserver,
+                final CollectStreamDictionary dictionary) {
             return new StreamObserver<AggregateStreamMessage>() {
 
                 private @MonotonicNonNull AggregateStreamHeader streamHeader;
@@ -221,7 +250,8 @@ class GrpcServer {
                             aggregatesByTypeMap.put(transactionType,
                                     OldAggregatesByType.newBuilder()
                                             .setTransactionType(transactionType)
-                                            .setOverallAggregate(overallAggregate.getAggregate()));
+                                            .setOverallAggregate(dictionary
+                                                    .resolve(overallAggregate.getAggregate())));
                             break;
                         case TRANSACTION_AGGREGATE:
                             TransactionAggregate transactionAggregate =
@@ -229,8 +259,11 @@ class GrpcServer {
                             OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
                                     .get(transactionAggregate.getTransactionType()));
                             builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
-                                    .setTransactionName(transactionAggregate.getTransactionName())
-                                    .setAggregate(transactionAggregate.getAggregate())
+                                    .setTransactionName(dictionary.resolve(
+                                            transactionAggregate.getTransactionName(),
+                                            transactionAggregate.getTransactionNameRef()))
+                                    .setAggregate(
+                                            dictionary.resolve(transactionAggregate.getAggregate()))
                                     .build());
                             break;
                         default:
@@ -296,6 +329,10 @@ class GrpcServer {
                 List<OldAggregatesByType> aggregatesByTypeList,
                 StreamObserver<AggregateResponseMessage> responseObserver) {
             if (!aggregatesByTypeList.isEmpty()) {
+                if (writeCoalescer.isBackedUp(Priority.HIGH)) {
+                    responseObserver.onError(backedUpException(agentId));
+                    return;
+                }
                 try {
                     aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
                             sharedQueryTexts);
@@ -377,7 +414,15 @@ class GrpcServer {
 
         @Override
         public StreamObserver<TraceStreamMessage> collectTraceStream(
-                final StreamObserver<EmptyMessage> responseObserver) {
+                StreamObserver<EmptyMessage> responseObserver) {
+            // requests that are not sent on a collectStream call never contain dictionary refs
+            return collectTraceStream(responseObserver, new CollectStreamDictionary());
+        }
+
+        @Override
+        public StreamObserver<TraceStreamMessage> collectTraceStream(
+                final StreamObserver<EmptyMessage> responseObserver,
+                final CollectStreamDictionary dictionary) {
             return new StreamObserver<TraceStreamMessage>() {
 
                 private @MonotonicNonNull TraceStreamHeader streamHeader;
@@ -407,13 +452,13 @@ class GrpcServer {
                             entries.add(value.getEntry());
                             break;
                         case MAIN_THREAD_PROFILE:
-                            mainThreadProfile = value.getMainThreadProfile();
+                            mainThreadProfile = dictionary.resolve(value.getMainThreadProfile());
                             break;
                         case AUX_THREAD_PROFILE:
-                            auxThreadProfile = value.getAuxThreadProfile();
+                            auxThreadProfile = dictionary.resolve(value.getAuxThreadProfile());
                             break;
                         case HEADER:
-                            header = value.getHeader();
+                            header = dictionary.resolve(value.getHeader());
                             break;
                         case STREAM_COUNTS:
                             streamCounts = value.getStreamCounts();
@@ -466,6 +511,10 @@ class GrpcServer {
                                 .addAllSharedQueryText(sharedQueryTexts)
                                 .build();
                     }
+                    if (writeCoalescer.isBackedUp(Priority.LOW)) {
+                        responseObserver.onError(backedUpException(streamHeader.getAgentId()));
+                        return;
+                    }
                     try {
                         traceDao.store(streamHeader.getAgentId(), trace);
                     } catch (Throwable t) {
@@ -515,6 +564,10 @@ class GrpcServer {
         public void collectTrace(OldTraceMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
             String agentId = request.getAgentId();
+            if (writeCoalescer.isBackedUp(Priority.LOW)) {
+                responseObserver.onError(backedUpException(agentId));
+                return;
+            }
             try {
                 traceDao.store(agentId, request.getTrace());
             } catch (Throwable t) {
@@ -552,6 +605,16 @@ class GrpcServer {
             responseObserver.onCompleted();
         }
 
+        @Override
+        public StreamObserver<CollectStreamMessage> collectStream(
+                StreamObserver<CollectStreamResponse> responseObserver) {
+            responseObserver.onNext(CollectStreamResponse.newBuilder()
+                    .setFlowControl(CollectStreamFlowControl.newBuilder()
+                            .setMaxInFlightRequests(COLLECT_STREAM_MAX_IN_FLIGHT_REQUESTS))
+                    .build());
+            return new CollectStreamObserver(this, responseObserver);
+        }
+
         private void checkAlerts(String agentId, String agentDisplay, AlertKind alertKind,
                 AlertConfigConsumer check) {
             List<AlertConfig> alertConfigs;
@@ -564,28 +627,20 @@ class GrpcServer {
             if (alertConfigs.isEmpty()) {
                 return;
             }
-            alertCheckingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        runInternal();
-                    } catch (Throwable t) {
-                        logger.error("{} - {}", agentDisplay, t.getMessage(), t);
-                    }
-                }
-                private void runInternal() throws InterruptedException {
-                    for (AlertConfig alertConfig : alertConfigs) {
-                        try {
-                            check.accept(alertConfig);
-                        } catch (InterruptedException e) {
-                            // shutdown requested
-                            throw e;
-                        } catch (Exception e) {
-                            logger.error("{} - {}", agentDisplay, e.getMessage(), e);
-                        }
-                    }
-                }
-            });
+            for (AlertConfig alertConfig : alertConfigs) {
+                // checks for the same alert that are still queued are replaced by this check
+                alertCheckingExecutor.execute(agentId,
+                        ImmutableAlertCheckKey.of(agentId, alertConfig), () -> {
+                            try {
+                                check.accept(alertConfig);
+                            } catch (InterruptedException e) {
+                                // shutdown requested
+                                Thread.currentThread().interrupt();
+                            } catch (Throwable t) {
+                                logger.error("{} - {}", agentDisplay, t.getMessage(), t);
+                            }
+                        });
+            }
         }
 
         @Instrumentation.Transaction(transactionType = "Background",
@@ -612,6 +667,16 @@ class GrpcServer {
             alertingService.sendHeartbeatAlertIfNeeded(agentId, agentDisplay, alertConfig, false);
         }
 
+        // the agent retries (with backoff) on error, so this pushes back on agents instead of
+        // letting the backlog of pending cassandra writes grow until central runs out of memory
+        private StatusRuntimeException backedUpException(String agentId) {
+            logger.debug("{} - rejecting data because of cassandra write backlog",
+                    getDisplayForLogging(agentId));
+            return Status.RESOURCE_EXHAUSTED
+                    .withDescription("central collector is temporarily overloaded")
+                    .asRuntimeException();
+        }
+
         private String getDisplayForLogging(String agentRollupId) {
             try {
                 return agentDao.readAgentRollupDisplay(agentRollupId);
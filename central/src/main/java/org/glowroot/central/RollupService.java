@@ -34,6 +34,7 @@ import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.common.util.Clock;
@@ -50,6 +51,7 @@ class RollupService implements Runnable {
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
+    private final TraceDao traceDao;
     private final SyntheticResultDao syntheticResultDao;
     private final HeartbeatDao heartbeatDao;
     private final ConfigRepositoryImpl configRepository;
@@ -64,12 +66,13 @@ class RollupService implements Runnable {
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
+            TraceDao traceDao, SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
             ConfigRepositoryImpl configRepository, AlertingService alertingService,
             DownstreamServiceImpl downstreamService, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.traceDao = traceDao;
         this.syntheticResultDao = syntheticResultDao;
         this.heartbeatDao = heartbeatDao;
         this.configRepository = configRepository;
@@ -111,6 +114,7 @@ class RollupService implements Runnable {
         for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
             rollupAggregates(agentRollup, null);
             rollupGauges(agentRollup, null);
+            rollupErrorMessages(agentRollup);
             rollupSyntheticMonitors(agentRollup);
             // checking for deleted alerts doesn't depend on rollup
             consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
@@ -180,6 +184,20 @@ class RollupService implements Runnable {
         }
     }
 
+    private void rollupErrorMessages(AgentRollup agentRollup) throws Exception {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            rollupErrorMessages(childAgentRollup);
+        }
+        try {
+            traceDao.rollupErrorMessages(agentRollup.id());
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+        }
+    }
+
     private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
             rollupSyntheticMonitors(childAgentRollup);
@@ -46,6 +46,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -54,9 +55,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -204,6 +207,7 @@ public class AggregateDao implements AggregateRepository {
             .build();
 
     private final Session session;
+    private final WriteCoalescer writeCoalescer;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -235,10 +239,11 @@ public class AggregateDao implements AggregateRepository {
 
     private final ImmutableList<Table> allTables;
 
-    public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+    public AggregateDao(Session session, WriteCoalescer writeCoalescer, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            ConfigRepository configRepository, Clock clock) throws Exception {
         this.session = session;
+        this.writeCoalescer = writeCoalescer;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -405,7 +410,7 @@ public class AggregateDao implements AggregateRepository {
         }
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
         int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
         List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Aggregate.SharedQueryText sharedQueryText : initialSharedQueryTexts) {
             String fullTextSha1 = sharedQueryText.getFullTextSha1();
@@ -434,19 +439,22 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // these are grouped by partition key into unlogged batches by the write coalescer
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
+            boundStatements.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
                     overallAggregate, sharedQueryTexts, adjustedTTL));
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                boundStatements.addAll(storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
             }
             futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
+        futures.addAll(writeCoalescer.executeAsync(boundStatements, Priority.HIGH));
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
@@ -1450,8 +1458,9 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        return executeAsync(insertServiceCalls(collector.toProto(), rollup.rollupLevel(),
+                rollup.agentRollupId(), query.transactionType(), query.transactionName(),
+                query.to(), rollup.adjustedTTL()));
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1522,13 +1531,13 @@ public class AggregateDao implements AggregateRepository {
         return rows;
     }
 
-    private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
+    private List<BoundStatement> storeOverallAggregate(String agentRollupId,
             String transactionType, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1537,7 +1546,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1548,7 +1557,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1557,7 +1566,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1568,7 +1577,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1577,7 +1586,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1588,7 +1597,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1599,22 +1608,22 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
+        boundStatements.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        boundStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
+                rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
+    private List<BoundStatement> storeTransactionAggregate(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1624,7 +1633,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1636,7 +1645,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1646,7 +1655,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1658,7 +1667,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1668,7 +1677,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1680,7 +1689,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1692,21 +1701,22 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(
+        boundStatements.addAll(
                 insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
                         agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        boundStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
+                rollupLevel, agentRollupId, transactionType, transactionName, captureTime,
+                adjustedTTL));
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private List<BoundStatement> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1742,10 +1752,10 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1790,11 +1800,11 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
+    private List<BoundStatement> insertServiceCalls(
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1815,9 +1825,17 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
+        return boundStatements;
+    }
+
+    private List<ResultSetFuture> executeAsync(List<BoundStatement> boundStatements) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : boundStatements) {
+            futures.add(session.executeAsync(boundStatement));
+        }
         return futures;
     }
 
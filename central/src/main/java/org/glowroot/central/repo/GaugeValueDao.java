@@ -15,9 +15,11 @@
  */
 package org.glowroot.central.repo;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -30,9 +32,11 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
@@ -45,10 +49,13 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AggregateDao.NeedsRollup;
 import org.glowroot.central.repo.AggregateDao.NeedsRollupFromChildren;
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DummyResultSet;
+import org.glowroot.central.util.GaugeValueBlockCodec;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -68,7 +75,20 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // gauge values for each rollup level (other than the last) are also stored in blocks, with one
+    // row per gauge per block instead of one row per gauge per capture time, which makes reading
+    // gauge values over long time ranges much cheaper
+    //
+    // the blocks for a rollup level are built during the rollup into the next rollup level, and
+    // each block covers this many of the next rollup level's intervals
+    //
+    // once a block has been built, the rows that it was built from are deleted, so rows are only
+    // retained for the open block (and for any gauge values that arrive late, until the block is
+    // rebuilt with them)
+    private static final int BLOCK_ROLLUP_INTERVALS = 60;
+
     private final Session session;
+    private final WriteCoalescer writeCoalescer;
     private final AgentDao agentDao;
     private final ConfigRepository configRepository;
     private final Clock clock;
@@ -78,8 +98,12 @@ public class GaugeValueDao implements GaugeValueRepository {
     // index is rollupLevel
     private final ImmutableList<PreparedStatement> insertValuePS;
     private final ImmutableList<PreparedStatement> readValuePS;
-    private final ImmutableList<PreparedStatement> readValueForRollupPS;
-    private final PreparedStatement readValueForRollupFromChildPS;
+
+    // index is rollupLevel (there are no blocks for the last rollup level)
+    private final ImmutableList<PreparedStatement> insertBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockForRollupPS;
+    private final ImmutableList<PreparedStatement> deleteValuePS;
 
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
@@ -89,9 +113,11 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
-    public GaugeValueDao(Session session, AgentDao agentDao, ConfigRepository configRepository,
-            ClusterManager clusterManager, Clock clock) throws Exception {
+    public GaugeValueDao(Session session, WriteCoalescer writeCoalescer, AgentDao agentDao,
+            ConfigRepository configRepository, ClusterManager clusterManager, Clock clock)
+            throws Exception {
         this.session = session;
+        this.writeCoalescer = writeCoalescer;
         this.agentDao = agentDao;
         this.configRepository = configRepository;
         this.clock = clock;
@@ -103,7 +129,6 @@ public class GaugeValueDao implements GaugeValueRepository {
 
         List<PreparedStatement> insertValuePS = Lists.newArrayList();
         List<PreparedStatement> readValuePS = Lists.newArrayList();
-        List<PreparedStatement> readValueForRollupPS = Lists.newArrayList();
         for (int i = 0; i <= count; i++) {
             // name already has "[counter]" suffix when it is a counter
             Sessions.createTableWithTWCS(session, "create table if not exists gauge_value_rollup_"
@@ -116,16 +141,39 @@ public class GaugeValueDao implements GaugeValueRepository {
             readValuePS.add(session.prepare("select capture_time, value, weight from"
                     + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
                     + " and capture_time >= ? and capture_time <= ?"));
-            readValueForRollupPS.add(session.prepare("select value, weight from gauge_value_rollup_"
-                    + i + " where agent_rollup = ? and gauge_name = ? and capture_time > ?"
-                    + " and capture_time <= ?"));
         }
         this.insertValuePS = ImmutableList.copyOf(insertValuePS);
         this.readValuePS = ImmutableList.copyOf(readValuePS);
-        this.readValueForRollupPS = ImmutableList.copyOf(readValueForRollupPS);
-        this.readValueForRollupFromChildPS = session.prepare("select value, weight from"
-                + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ?"
-                + " and capture_time = ?");
+
+        List<PreparedStatement> insertBlockPS = Lists.newArrayList();
+        List<PreparedStatement> readBlockPS = Lists.newArrayList();
+        List<PreparedStatement> readBlockForRollupPS = Lists.newArrayList();
+        List<PreparedStatement> deleteValuePS = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            // capture_time is the end of the block (inclusive), same as for rollup capture times
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " gauge_value_block_rollup_" + i + " (agent_rollup varchar, gauge_name"
+                    + " varchar, capture_time timestamp, gauge_values blob, primary key"
+                    + " ((agent_rollup, gauge_name), capture_time))",
+                    rollupExpirationHours.get(i));
+            insertBlockPS.add(session.prepare("insert into gauge_value_block_rollup_" + i
+                    + " (agent_rollup, gauge_name, capture_time, gauge_values) values"
+                    + " (?, ?, ?, ?) using ttl ?"));
+            readBlockPS.add(session.prepare("select capture_time, gauge_values from"
+                    + " gauge_value_block_rollup_" + i + " where agent_rollup = ? and"
+                    + " gauge_name = ? and capture_time >= ? and capture_time <= ?"));
+            readBlockForRollupPS.add(session.prepare("select gauge_values from"
+                    + " gauge_value_block_rollup_" + i + " where agent_rollup = ? and"
+                    + " gauge_name = ? and capture_time = ?"));
+            // cassandra 2.x does not support range deletes, so rows are deleted individually
+            deleteValuePS.add(session.prepare("delete from gauge_value_rollup_" + i
+                    + " using timestamp ? where agent_rollup = ? and gauge_name = ?"
+                    + " and capture_time = ?"));
+        }
+        this.insertBlockPS = ImmutableList.copyOf(insertBlockPS);
+        this.readBlockPS = ImmutableList.copyOf(readBlockPS);
+        this.readBlockForRollupPS = ImmutableList.copyOf(readBlockForRollupPS);
+        this.deleteValuePS = ImmutableList.copyOf(deleteValuePS);
 
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
@@ -233,26 +281,60 @@ public class GaugeValueDao implements GaugeValueRepository {
     // from is INCLUSIVE
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
-            long to, int rollupLevel) {
-        BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
+            long to, int rollupLevel) throws Exception {
+        if (rollupLevel == configRepository.getRollupConfigs().size()) {
+            // there are no blocks for the last rollup level
+            return readGaugeValuesFromRows(agentRollupId, gaugeName, from, to, rollupLevel);
+        }
+        long blockMillis = getBlockMillis(rollupLevel);
+        BoundStatement boundStatement = readBlockPS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(from));
-        boundStatement.setTimestamp(i++, new Date(to));
+        boundStatement.setTimestamp(i++, new Date(to + blockMillis - 1));
         ResultSet results = session.execute(boundStatement);
         List<GaugeValue> gaugeValues = Lists.newArrayList();
+        // gauge values prior to readFrom have already been read
+        long readFrom = from;
         for (Row row : results) {
             i = 0;
-            gaugeValues.add(GaugeValue.newBuilder()
-                    .setCaptureTime(checkNotNull(row.getTimestamp(i++)).getTime())
-                    .setValue(row.getDouble(i++))
-                    .setWeight(row.getLong(i++))
-                    .build());
+            long blockCaptureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            ByteBuffer bytes = checkNotNull(row.getBytes(i++));
+            long blockFrom = blockCaptureTime - blockMillis;
+            if (readFrom <= blockFrom) {
+                // blocks are not present for data stored prior to blocks being introduced, or for
+                // blocks that have not been built yet, so read the gap from the rows
+                gaugeValues.addAll(readGaugeValuesFromRows(agentRollupId, gaugeName, readFrom,
+                        blockFrom, rollupLevel));
+            }
+            for (GaugeValue gaugeValue : GaugeValueBlockCodec.decode(bytes)) {
+                long captureTime = gaugeValue.getCaptureTime();
+                if (captureTime >= readFrom && captureTime <= to) {
+                    gaugeValues.add(gaugeValue);
+                }
+            }
+            readFrom = blockCaptureTime + 1;
+        }
+        if (readFrom <= to) {
+            gaugeValues.addAll(
+                    readGaugeValuesFromRows(agentRollupId, gaugeName, readFrom, to, rollupLevel));
         }
         return gaugeValues;
     }
 
+    // from is INCLUSIVE
+    private List<GaugeValue> readGaugeValuesFromRows(String agentRollupId, String gaugeName,
+            long from, long to, int rollupLevel) {
+        BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        return toGaugeValues(session.execute(boundStatement));
+    }
+
     // there is no rollup from children on 5-second gauge values
     //
     // child agent rollups should be processed before their parent agent rollup, since initial
@@ -271,7 +353,8 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
         while (rollupLevel <= configRepository.getRollupConfigs().size()) {
             int ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl);
+            int blockTTL = ttls.get(rollupLevel - 1);
+            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl, blockTTL);
             rollupLevel++;
         }
     }
@@ -335,7 +418,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     }
 
     private void rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
-            int ttl) throws Exception {
+            int ttl, int blockTTL) throws Exception {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
         List<NeedsRollup> needsRollupList = AggregateDao.getNeedsRollupList(agentRollupId,
@@ -367,6 +450,9 @@ public class GaugeValueDao implements GaugeValueRepository {
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
 
+            storeBlocksIfComplete(agentRollupId, rollupLevel - 1, gaugeNames, captureTime,
+                    blockTTL);
+
             int needsRollupAdjustedTTL =
                     AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
             if (rollupLevel == 1 && parentAgentRollupId != null) {
@@ -392,28 +478,183 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private ListenableFuture<ResultSet> rollupOneFromChildren(int rollupLevel, String agentRollupId,
-            String gaugeName, List<String> childAgentRollups, long captureTime, int adjustedTTL) {
+    // builds the blocks (of blockRollupLevel gauge values) that end at captureTime, and also
+    // rebuilds the blocks containing captureTime when they have already been built (which happens
+    // when gauge values arrive late)
+    private void storeBlocksIfComplete(String agentRollupId, int blockRollupLevel,
+            Set<String> gaugeNames, long captureTime, int blockTTL) throws Exception {
+        long blockMillis = getBlockMillis(blockRollupLevel);
+        long blockCaptureTime = Utils.getRollupCaptureTime(captureTime, blockMillis);
+        long rollupIntervalMillis =
+                configRepository.getRollupConfigs().get(blockRollupLevel).intervalMillis();
+        if (captureTime != blockCaptureTime
+                && clock.currentTimeMillis() <= blockCaptureTime + rollupIntervalMillis) {
+            // the block will be built when its last rollup interval is rolled up
+            return;
+        }
+        int adjustedTTL = AggregateDao.getAdjustedTTL(blockTTL, blockCaptureTime, clock);
         List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
-        for (String childAgentRollup : childAgentRollups) {
-            BoundStatement boundStatement = readValueForRollupFromChildPS.bind();
-            int i = 0;
-            boundStatement.setString(i++, childAgentRollup);
-            boundStatement.setString(i++, gaugeName);
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            futures.add(session.executeAsync(boundStatement));
+        for (String gaugeName : gaugeNames) {
+            futures.add(storeBlock(blockRollupLevel, agentRollupId, gaugeName,
+                    blockCaptureTime - blockMillis, blockCaptureTime, adjustedTTL));
         }
+        MoreFutures.waitForAll(futures);
+    }
+
+    // from is non-inclusive
+    private ListenableFuture<ResultSet> storeBlock(int blockRollupLevel, String agentRollupId,
+            String gaugeName, long from, long to, int adjustedTTL) {
+        // rows written after this point (e.g. gauge values arriving late) are not deleted below
+        long deleteTimestamp = TraceDao.nextWriteTimestamp(session, clock);
+        ListenableFuture<ResultSet> rowsFuture =
+                readRows(blockRollupLevel, agentRollupId, gaugeName, from, to);
+        // the block already exists when it is being rebuilt because of gauge values arriving late,
+        // in which case the rows that it was built from have already been deleted
+        ListenableFuture<ResultSet> blockFuture =
+                readBlockForRollup(blockRollupLevel, agentRollupId, gaugeName, to);
         return Futures.transformAsync(
-                Futures.allAsList(futures),
+                Futures.allAsList(rowsFuture, blockFuture),
                 new AsyncFunction<List<ResultSet>, ResultSet>() {
                     @Override
                     public ListenableFuture<ResultSet> apply(@Nullable List<ResultSet> results)
                             throws Exception {
                         checkNotNull(results);
-                        List<Row> rows = Lists.newArrayList();
+                        List<GaugeValue> rowGaugeValues = toGaugeValues(results.get(0));
+                        if (rowGaugeValues.isEmpty()) {
+                            // nothing new since the block was built
+                            return Futures.immediateFuture(DummyResultSet.INSTANCE);
+                        }
+                        List<GaugeValue> gaugeValues =
+                                merge(getBlockGaugeValues(results.get(1)), rowGaugeValues);
+                        BoundStatement boundStatement = insertBlockPS.get(blockRollupLevel).bind();
+                        int i = 0;
+                        boundStatement.setString(i++, agentRollupId);
+                        boundStatement.setString(i++, gaugeName);
+                        boundStatement.setTimestamp(i++, new Date(to));
+                        boundStatement.setBytes(i++, GaugeValueBlockCodec.encode(gaugeValues));
+                        boundStatement.setInt(i++, adjustedTTL);
+                        return Futures.transformAsync(session.executeAsync(boundStatement),
+                                new AsyncFunction<ResultSet, ResultSet>() {
+                                    @Override
+                                    public ListenableFuture<ResultSet> apply(
+                                            @Nullable ResultSet result) {
+                                        return deleteRows(blockRollupLevel, agentRollupId,
+                                                gaugeName, rowGaugeValues, deleteTimestamp);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    // the rows are all in the same partition, so the write coalescer groups the deletes into
+    // (size limited) unlogged batches, each of which is a single mutation
+    private ListenableFuture<ResultSet> deleteRows(int rollupLevel, String agentRollupId,
+            String gaugeName, List<GaugeValue> gaugeValues, long deleteTimestamp) {
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            BoundStatement boundStatement = deleteValuePS.get(rollupLevel).bind();
+            int i = 0;
+            boundStatement.setLong(i++, deleteTimestamp);
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, gaugeName);
+            boundStatement.setTimestamp(i++, new Date(gaugeValue.getCaptureTime()));
+            boundStatements.add(boundStatement);
+        }
+        // the rows are already captured in the block, so deleting them is low priority
+        return Futures.transform(
+                Futures.allAsList(writeCoalescer.executeAsync(boundStatements, Priority.LOW)),
+                new Function<List<ResultSet>, ResultSet>() {
+                    @Override
+                    public ResultSet apply(@Nullable List<ResultSet> results) {
+                        return DummyResultSet.INSTANCE;
+                    }
+                });
+    }
+
+    // from is non-inclusive
+    //
+    // reads from both the rows and the block, since the rows are deleted once the block has been
+    // built, and gauge values can arrive late for an interval whose block has already been built
+    private ListenableFuture<List<GaugeValue>> readForRollup(int rollupLevel,
+            String agentRollupId, String gaugeName, long from, long to) {
+        ListenableFuture<ResultSet> rowsFuture =
+                readRows(rollupLevel, agentRollupId, gaugeName, from, to);
+        if (rollupLevel == configRepository.getRollupConfigs().size()) {
+            // there are no blocks for the last rollup level
+            return Futures.transform(rowsFuture,
+                    new Function<ResultSet, List<GaugeValue>>() {
+                        @Override
+                        public List<GaugeValue> apply(@Nullable ResultSet results) {
+                            return toGaugeValues(checkNotNull(results));
+                        }
+                    });
+        }
+        long blockCaptureTime = Utils.getRollupCaptureTime(to, getBlockMillis(rollupLevel));
+        ListenableFuture<ResultSet> blockFuture =
+                readBlockForRollup(rollupLevel, agentRollupId, gaugeName, blockCaptureTime);
+        return Futures.transform(
+                Futures.allAsList(rowsFuture, blockFuture),
+                new Function<List<ResultSet>, List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> apply(@Nullable List<ResultSet> results) {
+                        checkNotNull(results);
+                        List<GaugeValue> blockGaugeValues = Lists.newArrayList();
+                        for (GaugeValue gaugeValue : getBlockGaugeValues(results.get(1))) {
+                            long captureTime = gaugeValue.getCaptureTime();
+                            if (captureTime > from && captureTime <= to) {
+                                blockGaugeValues.add(gaugeValue);
+                            }
+                        }
+                        return merge(blockGaugeValues, toGaugeValues(results.get(0)));
+                    }
+                });
+    }
+
+    // from is non-inclusive
+    private ListenableFuture<ResultSet> readRows(int rollupLevel, String agentRollupId,
+            String gaugeName, long from, long to) {
+        BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(from + 1));
+        boundStatement.setTimestamp(i++, new Date(to));
+        return session.executeAsync(boundStatement);
+    }
+
+    private ListenableFuture<ResultSet> readBlockForRollup(int rollupLevel, String agentRollupId,
+            String gaugeName, long blockCaptureTime) {
+        BoundStatement boundStatement = readBlockForRollupPS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(blockCaptureTime));
+        return session.executeAsync(boundStatement);
+    }
+
+    private long getBlockMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * BLOCK_ROLLUP_INTERVALS;
+    }
+
+    private ListenableFuture<ResultSet> rollupOneFromChildren(int rollupLevel, String agentRollupId,
+            String gaugeName, List<String> childAgentRollups, long captureTime, int adjustedTTL) {
+        List<ListenableFuture<List<GaugeValue>>> futures = Lists.newArrayList();
+        for (String childAgentRollup : childAgentRollups) {
+            futures.add(readForRollup(rollupLevel, childAgentRollup, gaugeName, captureTime - 1,
+                    captureTime));
+        }
+        return Futures.transformAsync(
+                Futures.allAsList(futures),
+                new AsyncFunction<List<List<GaugeValue>>, ResultSet>() {
+                    @Override
+                    public ListenableFuture<ResultSet> apply(
+                            @Nullable List<List<GaugeValue>> results) throws Exception {
+                        checkNotNull(results);
+                        List<GaugeValue> gaugeValues = Lists.newArrayList();
                         for (int i = 0; i < results.size(); i++) {
-                            Row row = results.get(i).one();
-                            if (row == null) {
+                            List<GaugeValue> childGaugeValues = results.get(i);
+                            if (childGaugeValues.isEmpty()) {
                                 // this is unexpected since TTL for "needs rollup" records is
                                 // shorter than TTL for data
                                 logger.warn(
@@ -422,15 +663,15 @@ public class GaugeValueDao implements GaugeValueRepository {
                                         childAgentRollups.get(i), gaugeName, captureTime,
                                         rollupLevel);
                             } else {
-                                rows.add(row);
+                                gaugeValues.addAll(childGaugeValues);
                             }
                         }
-                        if (rows.isEmpty()) {
+                        if (gaugeValues.isEmpty()) {
                             // warning(s) already logged above
                             return Futures.immediateFuture(DummyResultSet.INSTANCE);
                         }
-                        return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, captureTime,
-                                adjustedTTL, rows);
+                        return rollupOneFromGaugeValues(rollupLevel, agentRollupId, gaugeName,
+                                captureTime, adjustedTTL, gaugeValues);
                     }
                 });
     }
@@ -438,20 +679,14 @@ public class GaugeValueDao implements GaugeValueRepository {
     // from is non-inclusive
     private ListenableFuture<ResultSet> rollupOne(int rollupLevel, String agentRollupId,
             String gaugeName, long from, long to, int adjustedTTL) throws Exception {
-        BoundStatement boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, gaugeName);
-        boundStatement.setTimestamp(i++, new Date(from));
-        boundStatement.setTimestamp(i++, new Date(to));
         return Futures.transformAsync(
-                session.executeAsync(boundStatement),
-                new AsyncFunction<ResultSet, ResultSet>() {
+                readForRollup(rollupLevel - 1, agentRollupId, gaugeName, from, to),
+                new AsyncFunction<List<GaugeValue>, ResultSet>() {
                     @Override
-                    public ListenableFuture<ResultSet> apply(@Nullable ResultSet results)
-                            throws Exception {
-                        checkNotNull(results);
-                        if (results.isExhausted()) {
+                    public ListenableFuture<ResultSet> apply(
+                            @Nullable List<GaugeValue> gaugeValues) throws Exception {
+                        checkNotNull(gaugeValues);
+                        if (gaugeValues.isEmpty()) {
                             // this is unexpected since TTL for "needs rollup" records is shorter
                             // than TTL for data
                             logger.warn("no gauge value table records found for agentRollupId={},"
@@ -459,20 +694,20 @@ public class GaugeValueDao implements GaugeValueRepository {
                                     gaugeName, from, to, rollupLevel);
                             return Futures.immediateFuture(DummyResultSet.INSTANCE);
                         }
-                        return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, to,
-                                adjustedTTL, results);
+                        return rollupOneFromGaugeValues(rollupLevel, agentRollupId, gaugeName,
+                                to, adjustedTTL, gaugeValues);
                     }
                 });
     }
 
-    private ListenableFuture<ResultSet> rollupOneFromRows(int rollupLevel, String agentRollupId,
-            String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) {
+    private ListenableFuture<ResultSet> rollupOneFromGaugeValues(int rollupLevel,
+            String agentRollupId, String gaugeName, long to, int adjustedTTL,
+            List<GaugeValue> gaugeValues) {
         double totalWeightedValue = 0;
         long totalWeight = 0;
-        for (Row row : rows) {
-            double value = row.getDouble(0);
-            long weight = row.getLong(1);
-            totalWeightedValue += value * weight;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            long weight = gaugeValue.getWeight();
+            totalWeightedValue += gaugeValue.getValue() * weight;
             totalWeight += weight;
         }
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
@@ -480,7 +715,7 @@ public class GaugeValueDao implements GaugeValueRepository {
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
+        // individual gauge value weights cannot be zero, and gaugeValues is non-empty
         // (see callers of this method), so totalWeight is guaranteed non-zero
         checkState(totalWeight != 0);
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
@@ -503,6 +738,9 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 0; i <= configRepository.getRollupConfigs().size(); i++) {
             session.execute("truncate gauge_value_rollup_" + i);
         }
+        for (int i = 0; i < configRepository.getRollupConfigs().size(); i++) {
+            session.execute("truncate gauge_value_block_rollup_" + i);
+        }
         for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
             session.execute("truncate gauge_needs_rollup_" + i);
         }
@@ -510,6 +748,44 @@ public class GaugeValueDao implements GaugeValueRepository {
         session.execute("truncate gauge_needs_rollup_from_child");
     }
 
+    // rows are from select capture_time, value, weight
+    private static List<GaugeValue> toGaugeValues(ResultSet results) {
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (Row row : results) {
+            int i = 0;
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setCaptureTime(checkNotNull(row.getTimestamp(i++)).getTime())
+                    .setValue(row.getDouble(i++))
+                    .setWeight(row.getLong(i++))
+                    .build());
+        }
+        return gaugeValues;
+    }
+
+    private static List<GaugeValue> getBlockGaugeValues(ResultSet results) {
+        Row row = results.one();
+        if (row == null) {
+            return ImmutableList.of();
+        }
+        return GaugeValueBlockCodec.decode(checkNotNull(row.getBytes(0)));
+    }
+
+    // row gauge values take precedence since they were written after the block was built
+    private static List<GaugeValue> merge(List<GaugeValue> blockGaugeValues,
+            List<GaugeValue> rowGaugeValues) {
+        if (blockGaugeValues.isEmpty()) {
+            return rowGaugeValues;
+        }
+        Map<Long, GaugeValue> gaugeValues = Maps.newTreeMap();
+        for (GaugeValue gaugeValue : blockGaugeValues) {
+            gaugeValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+        }
+        for (GaugeValue gaugeValue : rowGaugeValues) {
+            gaugeValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+        }
+        return ImmutableList.copyOf(gaugeValues.values());
+    }
+
     private static List<Integer> getRollupExpirationHours(ConfigRepository configRepository)
             throws Exception {
         List<Integer> rollupExpirationHours =
@@ -28,6 +28,7 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.immutables.value.Value;
 
@@ -85,7 +86,7 @@ public class TraceAttributeNameDao implements TraceAttributeNameRepository {
     }
 
     void store(String agentRollupId, String transactionType, String traceAttributeName,
-            List<ResultSetFuture> futures) throws Exception {
+            List<ListenableFuture<ResultSet>> futures) throws Exception {
         TraceAttributeNameKey rateLimiterKey = ImmutableTraceAttributeNameKey.of(agentRollupId,
                 transactionType, traceAttributeName);
         if (!rateLimiter.tryAcquire(rateLimiterKey)) {
@@ -24,6 +24,7 @@ import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -34,20 +35,30 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.immutables.value.Value;
 
+import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.repo.AggregateDao.NeedsRollup;
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RateLimiter;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableTracePoint;
@@ -55,8 +66,10 @@ import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
@@ -72,10 +85,27 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class TraceDao implements TraceRepository {
 
+    private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    // used to combine transaction type and transaction name into a single "needs rollup" key
+    private static final char TRANSACTION_KEY_SEPARATOR = '\u0000';
+
+    // used to combine the parts of a trace point index key, see getPointIndexKeys()
+    private static final char POINT_INDEX_KEY_SEPARATOR = '\u0000';
+
+    // max number of characters of a trace point index key before it is truncated and hashed, see
+    // limitPointIndexKey()
+    private static final int MAX_POINT_INDEX_KEY_LENGTH = 256;
+
+    // max number of trace point reads in flight at once when reading trace points via the index
+    private static final int MAX_CONCURRENT_INDEXED_POINT_READS = 64;
+
     private final Session session;
+    private final WriteCoalescer writeCoalescer;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -83,6 +113,8 @@ public class TraceDao implements TraceRepository {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final long pointIndexStartTime;
+
     private final PreparedStatement insertCheck;
 
     private final PreparedStatement insertOverallSlowPoint;
@@ -100,6 +132,9 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertOverallPointIndex;
+    private final PreparedStatement insertTransactionPointIndex;
+
     private final PreparedStatement insertHeader;
     private final PreparedStatement insertEntry;
     private final PreparedStatement insertSharedQueryText;
@@ -116,6 +151,14 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readOverallPointIndex;
+    private final PreparedStatement readTransactionPointIndex;
+
+    private final PreparedStatement readOverallSlowPointByKey;
+    private final PreparedStatement readTransactionSlowPointByKey;
+    private final PreparedStatement readOverallErrorPointByKey;
+    private final PreparedStatement readTransactionErrorPointByKey;
+
     private final PreparedStatement readHeader;
     private final PreparedStatement readEntries;
     private final PreparedStatement readSharedQueryTexts;
@@ -128,10 +171,27 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
-    public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            ConfigRepository configRepository, Clock clock) throws Exception {
+    // list index is rollupLevel - 1
+    private final ImmutableList<PreparedStatement> insertOverallErrorMessageRollup;
+    private final ImmutableList<PreparedStatement> insertTransactionErrorMessageRollup;
+    private final ImmutableList<PreparedStatement> readOverallErrorMessageRollup;
+    private final ImmutableList<PreparedStatement> readTransactionErrorMessageRollup;
+
+    private final ImmutableList<PreparedStatement> insertErrorMessageNeedsRollup;
+    private final ImmutableList<PreparedStatement> readErrorMessageNeedsRollup;
+    private final ImmutableList<PreparedStatement> deleteErrorMessageNeedsRollup;
+
+    // error traces are stored one at a time, so this is used to only insert one "needs rollup"
+    // record per transaction per (still open) rollup interval
+    private final RateLimiter<ErrorMessageNeedsRollupKey> errorMessageNeedsRollupRateLimiter =
+            new RateLimiter<>(10000);
+
+    public TraceDao(Session session, WriteCoalescer writeCoalescer, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            TraceAttributeNameDao traceAttributeNameDao, ConfigRepository configRepository,
+            Clock clock) throws Exception {
         this.session = session;
+        this.writeCoalescer = writeCoalescer;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -186,6 +246,33 @@ public class TraceDao implements TraceRepository {
                 + " error_message varchar, primary key ((agent_rollup, transaction_type,"
                 + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
 
+        // index of slow and error points by user and by attribute, so that filtering trace points
+        // by user or attribute does not need to read every trace point in the time range
+        //
+        // slow and error flags are needed to know which point table(s) to read from
+        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, index_key varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, slow boolean,"
+                + " error boolean, primary key ((agent_rollup, transaction_type, index_key),"
+                + " capture_time, agent_id, trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " index_key varchar, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar, slow boolean, error boolean, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, index_key), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        // trace points captured before the index existed have no index rows, so queries that
+        // start before this time need to fall back to reading every trace point in the range
+        session.execute("create table if not exists trace_point_index_start (one int,"
+                + " start_time timestamp, primary key (one)) with " + LCS);
+        session.execute("insert into trace_point_index_start (one, start_time) values (1, ?)"
+                + " if not exists", new Date(clock.currentTimeMillis()));
+        Row pointIndexStartRow = checkNotNull(session
+                .execute("select start_time from trace_point_index_start where one = 1").one());
+        pointIndexStartTime = checkNotNull(pointIndexStartRow.getTimestamp(0)).getTime();
+
         Sessions.createTableWithTWCS(session, "create table if not exists trace_header"
                 + " (agent_id varchar, trace_id varchar, header blob, primary key (agent_id,"
                 + " trace_id))", expirationHours);
@@ -285,6 +372,15 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallPointIndex = session.prepare("insert into trace_tt_point_index"
+                + " (agent_rollup, transaction_type, index_key, capture_time, agent_id, trace_id,"
+                + " slow, error) values (?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionPointIndex = session.prepare("insert into trace_tn_point_index"
+                + " (agent_rollup, transaction_type, transaction_name, index_key, capture_time,"
+                + " agent_id, trace_id, slow, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " using ttl ?");
+
         insertHeader = session.prepare("insert into trace_header (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -334,6 +430,37 @@ public class TraceDao implements TraceRepository {
                 + " from trace_tn_error_message where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallPointIndex = session.prepare("select capture_time, agent_id, trace_id, slow,"
+                + " error from trace_tt_point_index where agent_rollup = ? and transaction_type = ?"
+                + " and index_key = ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionPointIndex = session.prepare("select capture_time, agent_id, trace_id,"
+                + " slow, error from trace_tn_point_index where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and index_key = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readOverallSlowPointByKey = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tt_slow_point where agent_rollup = ? and transaction_type = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        readTransactionSlowPointByKey = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tn_slow_point where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and capture_time = ? and agent_id = ?"
+                + " and trace_id = ?");
+
+        readOverallErrorPointByKey = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error_message, headline, user, attributes"
+                + " from trace_tt_error_point where agent_rollup = ? and transaction_type = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        readTransactionErrorPointByKey = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error_message, headline, user,"
+                + " attributes from trace_tn_error_point where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and capture_time = ?"
+                + " and agent_id = ? and trace_id = ?");
+
         readHeader = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
 
@@ -353,20 +480,94 @@ public class TraceDao implements TraceRepository {
                 + " where agent_id = ? and trace_id = ?");
 
         deletePartialOverallSlowPoint = session.prepare("delete from trace_tt_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
-                + " and agent_id = ? and trace_id = ?");
+                + " using timestamp ? where agent_rollup = ? and transaction_type = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
         deletePartialTransactionSlowPoint = session.prepare("delete from trace_tn_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
-                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+                + " using timestamp ? where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and capture_time = ? and agent_id = ?"
+                + " and trace_id = ?");
 
         deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
-                + " and agent_id = ? and trace_id = ?");
+                + " using timestamp ? where agent_rollup = ? and transaction_type = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
-                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+                + " using timestamp ? where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and capture_time = ? and agent_id = ?"
+                + " and trace_id = ?");
+
+        // error message counts are rolled up so that the errors page does not need to read every
+        // trace_*_error_message row in the time range, capture_time is the end of the rollup
+        // interval (same as aggregate rollups)
+        int count = configRepository.getRollupConfigs().size();
+        List<PreparedStatement> insertOverallErrorMessageRollup = Lists.newArrayList();
+        List<PreparedStatement> insertTransactionErrorMessageRollup = Lists.newArrayList();
+        List<PreparedStatement> readOverallErrorMessageRollup = Lists.newArrayList();
+        List<PreparedStatement> readTransactionErrorMessageRollup = Lists.newArrayList();
+        for (int i = 1; i <= count; i++) {
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " trace_tt_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, error_message varchar,"
+                    + " error_count bigint, primary key ((agent_rollup, transaction_type),"
+                    + " capture_time, error_message))", expirationHours);
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " trace_tn_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, transaction_name varchar,"
+                    + " capture_time timestamp, error_message varchar, error_count bigint,"
+                    + " primary key ((agent_rollup, transaction_type, transaction_name),"
+                    + " capture_time, error_message))", expirationHours);
+            insertOverallErrorMessageRollup.add(session.prepare("insert into"
+                    + " trace_tt_error_message_rollup_" + i + " (agent_rollup, transaction_type,"
+                    + " capture_time, error_message, error_count) values (?, ?, ?, ?, ?)"
+                    + " using ttl ?"));
+            insertTransactionErrorMessageRollup.add(session.prepare("insert into"
+                    + " trace_tn_error_message_rollup_" + i + " (agent_rollup, transaction_type,"
+                    + " transaction_name, capture_time, error_message, error_count) values"
+                    + " (?, ?, ?, ?, ?, ?) using ttl ?"));
+            readOverallErrorMessageRollup.add(session.prepare("select capture_time,"
+                    + " error_message, error_count from trace_tt_error_message_rollup_" + i
+                    + " where agent_rollup = ? and transaction_type = ? and capture_time > ?"
+                    + " and capture_time <= ?"));
+            readTransactionErrorMessageRollup.add(session.prepare("select capture_time,"
+                    + " error_message, error_count from trace_tn_error_message_rollup_" + i
+                    + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ?"));
+        }
+        this.insertOverallErrorMessageRollup =
+                ImmutableList.copyOf(insertOverallErrorMessageRollup);
+        this.insertTransactionErrorMessageRollup =
+                ImmutableList.copyOf(insertTransactionErrorMessageRollup);
+        this.readOverallErrorMessageRollup = ImmutableList.copyOf(readOverallErrorMessageRollup);
+        this.readTransactionErrorMessageRollup =
+                ImmutableList.copyOf(readTransactionErrorMessageRollup);
+
+        // same reasoning as gauge_needs_rollup_* for gc_grace_seconds
+        long needsRollupGcGraceSeconds = HOURS.toSeconds(3);
+
+        List<PreparedStatement> insertErrorMessageNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> readErrorMessageNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> deleteErrorMessageNeedsRollup = Lists.newArrayList();
+        for (int i = 1; i <= count; i++) {
+            // keys are transaction types (overall) and transaction keys (see getTransactionKey())
+            session.execute("create table if not exists trace_error_message_needs_rollup_" + i
+                    + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
+                    + " keys set<varchar>, primary key (agent_rollup, capture_time,"
+                    + " uniqueness)) with gc_grace_seconds = " + needsRollupGcGraceSeconds
+                    + " and " + LCS);
+            insertErrorMessageNeedsRollup.add(session.prepare("insert into"
+                    + " trace_error_message_needs_rollup_" + i + " (agent_rollup, capture_time,"
+                    + " uniqueness, keys) values (?, ?, ?, ?) using TTL ?"));
+            readErrorMessageNeedsRollup.add(session.prepare("select capture_time, uniqueness,"
+                    + " keys from trace_error_message_needs_rollup_" + i
+                    + " where agent_rollup = ?"));
+            deleteErrorMessageNeedsRollup.add(session.prepare("delete from"
+                    + " trace_error_message_needs_rollup_" + i + " where agent_rollup = ?"
+                    + " and capture_time = ? and uniqueness = ?"));
+        }
+        this.insertErrorMessageNeedsRollup = ImmutableList.copyOf(insertErrorMessageNeedsRollup);
+        this.readErrorMessageNeedsRollup = ImmutableList.copyOf(readErrorMessageNeedsRollup);
+        this.deleteErrorMessageNeedsRollup = ImmutableList.copyOf(deleteErrorMessageNeedsRollup);
     }
 
     public void store(String agentId, Trace trace) throws Exception {
@@ -376,7 +577,7 @@ public class TraceDao implements TraceRepository {
 
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
 
         List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
@@ -418,6 +619,15 @@ public class TraceDao implements TraceRepository {
         futures.clear();
 
         int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
+        Set<String> pointIndexKeys = getPointIndexKeys(header);
+        // these are grouped by partition key into unlogged batches by the write coalescer
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        // partial trace deletes are kept out of the insert batches, and are given an explicit write
+        // timestamp that is lower than the write timestamp of the inserts (which is generated later
+        // when the inserts are sent), since cassandra gives a tombstone precedence over an insert
+        // with the same write timestamp
+        List<BoundStatement> deleteStatements = Lists.newArrayList();
+        long deleteTimestamp = priorHeader == null ? 0 : nextWriteTimestamp(session, clock);
         for (String agentRollupId : agentRollupIds) {
 
             if (!agentRollupId.equals(agentId)) {
@@ -427,46 +637,50 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
 
             if (header.getSlow()) {
                 BoundStatement boundStatement = insertOverallSlowPoint.bind();
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertTransactionSlowPoint.bind();
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertOverallSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertTransactionSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 if (priorHeader != null) {
                     boundStatement = deletePartialOverallSlowPoint.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
+                    bindDeletePartial(boundStatement, deleteTimestamp, agentRollupId, agentId,
+                            traceId, priorHeader, true);
+                    deleteStatements.add(boundStatement);
 
                     boundStatement = deletePartialTransactionSlowPoint.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
+                    bindDeletePartial(boundStatement, deleteTimestamp, agentRollupId, agentId,
+                            traceId, priorHeader, false);
+                    deleteStatements.add(boundStatement);
 
                     boundStatement = deletePartialOverallSlowCount.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
+                    bindDeletePartial(boundStatement, deleteTimestamp, agentRollupId, agentId,
+                            traceId, priorHeader, true);
+                    deleteStatements.add(boundStatement);
 
                     boundStatement = deletePartialTransactionSlowCount.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
+                    bindDeletePartial(boundStatement, deleteTimestamp, agentRollupId, agentId,
+                            traceId, priorHeader, false);
+                    deleteStatements.add(boundStatement);
                 }
             }
             // seems unnecessary to insert error info for partial traces
@@ -475,32 +689,48 @@ public class TraceDao implements TraceRepository {
                 BoundStatement boundStatement = insertOverallErrorMessage.bind();
                 bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
                         adjustedTTL, true);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertTransactionErrorMessage.bind();
                 bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
                         adjustedTTL, false);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertOverallErrorPoint.bind();
                 bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertTransactionErrorPoint.bind();
                 bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertOverallErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
 
                 boundStatement = insertTransactionErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
+            }
+            boolean errorPoint = header.hasError() && !header.getPartial();
+            if (header.getSlow() || errorPoint) {
+                // index rows from partial traces that are later updated (with a new capture time)
+                // are not deleted, since the point lookup by key will not find the deleted point
+                for (String indexKey : pointIndexKeys) {
+                    BoundStatement boundStatement = insertOverallPointIndex.bind();
+                    bindPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                            indexKey, errorPoint, adjustedTTL, true);
+                    boundStatements.add(boundStatement);
+
+                    boundStatement = insertTransactionPointIndex.bind();
+                    bindPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                            indexKey, errorPoint, adjustedTTL, false);
+                    boundStatements.add(boundStatement);
+                }
             }
             for (Trace.Attribute attributeName : header.getAttributeList()) {
                 traceAttributeNameDao.store(agentRollupId,
@@ -514,7 +744,7 @@ public class TraceDao implements TraceRepository {
         boundStatement.setString(i++, traceId);
         boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         int index = 0;
         for (Trace.Entry entry : trace.getEntryList()) {
@@ -559,7 +789,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         index = 0;
@@ -580,29 +810,86 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         if (trace.hasMainThreadProfile()) {
             boundStatement = insertMainThreadProfile.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getMainThreadProfile(),
                     adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         if (trace.hasAuxThreadProfile()) {
             boundStatement = insertAuxThreadProfile.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getAuxThreadProfile(),
                     adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
+        // trace writes are lower priority than aggregate writes
+        futures.addAll(writeCoalescer.executeAsync(boundStatements, Priority.LOW));
+        futures.addAll(writeCoalescer.executeAsync(deleteStatements, Priority.LOW));
         futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
         MoreFutures.waitForAll(futures);
+
+        if (header.hasError() && !header.getPartial()) {
+            // wait for success above before inserting "needs rollup" records
+            insertErrorMessageNeedsRollup(agentRollupIds, header, adjustedTTL);
+        }
+    }
+
+    // unlike aggregates and gauges, error messages are stored directly under every agent rollup
+    // (see store() above), so there is no rollup from children
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup error messages",
+            traceHeadline = "Rollup error messages: {{0}}", timer = "rollup error messages")
+    public void rollupErrorMessages(String agentRollupId) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        int ttl = getTTL();
+        for (int rollupLevel = 1; rollupLevel <= rollupConfigs.size(); rollupLevel++) {
+            long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
+            List<NeedsRollup> needsRollupList = AggregateDao.getNeedsRollupList(agentRollupId,
+                    rollupLevel, rollupIntervalMillis, readErrorMessageNeedsRollup, session, clock);
+            Long nextRollupIntervalMillis = null;
+            PreparedStatement nextInsertNeedsRollup = null;
+            if (rollupLevel < rollupConfigs.size()) {
+                nextRollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+                nextInsertNeedsRollup = insertErrorMessageNeedsRollup.get(rollupLevel);
+            }
+            for (NeedsRollup needsRollup : needsRollupList) {
+                long captureTime = needsRollup.getCaptureTime();
+                if (captureTime > clock.currentTimeMillis()) {
+                    // the rollup interval is still open, and "needs rollup" records are rate
+                    // limited while it is open (see insertErrorMessageNeedsRollup())
+                    break;
+                }
+                long from = captureTime - rollupIntervalMillis;
+                int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+                List<ResultSetFuture> futures = Lists.newArrayList();
+                for (String key : needsRollup.getKeys()) {
+                    futures.addAll(rollupOneErrorMessage(rollupLevel, agentRollupId, key, from,
+                            captureTime, adjustedTTL));
+                }
+                // wait for above async work to ensure rollup complete before proceeding
+                MoreFutures.waitForAll(futures);
+                int needsRollupAdjustedTTL =
+                        AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+                AggregateDao.postRollup(agentRollupId, captureTime, needsRollup.getKeys(),
+                        needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
+                        nextInsertNeedsRollup, deleteErrorMessageNeedsRollup.get(rollupLevel - 1),
+                        needsRollupAdjustedTTL, session);
+            }
+        }
     }
 
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
+            TracePointFilter filter, int limit) throws Exception {
+        String pointIndexKey = getPointIndexKey(filter);
+        if (pointIndexKey != null && query.from() >= pointIndexStartTime) {
+            List<Row> rows = readPointsUsingIndex(agentRollupId, query, pointIndexKey, false);
+            return processPoints(rows, filter, limit, false);
+        }
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
         if (transactionName == null) {
@@ -618,7 +905,12 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
+            TracePointFilter filter, int limit) throws Exception {
+        String pointIndexKey = getPointIndexKey(filter);
+        if (pointIndexKey != null && query.from() >= pointIndexStartTime) {
+            List<Row> rows = readPointsUsingIndex(agentRollupId, query, pointIndexKey, true);
+            return processPoints(rows, filter, limit, true);
+        }
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
         if (transactionName == null) {
@@ -677,29 +969,56 @@ public class TraceDao implements TraceRepository {
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
+        ErrorMessageCounts errorMessageCounts = new ErrorMessageCounts(filter, resolutionMillis);
+        long from = query.from();
+        long to = query.to();
+        int rollupLevel = getErrorMessageRollupLevel(resolutionMillis);
+        if (rollupLevel == 0) {
+            readErrorMessages(agentRollupId, query, from, to, errorMessageCounts);
         } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
-        Map<String, MutableLong> messageCounts = Maps.newHashMap();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
+            long rollupIntervalMillis =
+                    configRepository.getRollupConfigs().get(rollupLevel - 1).intervalMillis();
+            // rolled up rows are only used for intervals that are entirely inside the query range
+            long rolledUpFrom = Utils.getRollupCaptureTime(from, rollupIntervalMillis);
+            long rolledUpTo = to - to % rollupIntervalMillis;
+            if (rolledUpFrom >= rolledUpTo) {
+                readErrorMessages(agentRollupId, query, from, to, errorMessageCounts);
+            } else {
+                if (rolledUpFrom > from) {
+                    readErrorMessages(agentRollupId, query, from, rolledUpFrom,
+                            errorMessageCounts);
+                }
+                Set<Long> notRolledUpCaptureTimes = readErrorMessageNotRolledUpCaptureTimes(
+                        agentRollupId, query, rollupLevel, rollupIntervalMillis);
+                readErrorMessageRollups(agentRollupId, query, rollupLevel, rolledUpFrom,
+                        rolledUpTo, notRolledUpCaptureTimes, errorMessageCounts);
+                // read the raw rows for the intervals that have not been rolled up yet,
+                // combining adjacent intervals into a single read
+                long rawFrom = -1;
+                long rawTo = -1;
+                for (long captureTime : notRolledUpCaptureTimes) {
+                    if (captureTime <= rolledUpFrom || captureTime > rolledUpTo) {
+                        continue;
+                    }
+                    if (captureTime - rollupIntervalMillis != rawTo) {
+                        if (rawFrom != -1) {
+                            readErrorMessages(agentRollupId, query, rawFrom, rawTo,
+                                    errorMessageCounts);
+                        }
+                        rawFrom = captureTime - rollupIntervalMillis;
+                    }
+                    rawTo = captureTime;
+                }
+                if (rawFrom != -1) {
+                    readErrorMessages(agentRollupId, query, rawFrom, rawTo, errorMessageCounts);
+                }
+                if (rolledUpTo < to) {
+                    readErrorMessages(agentRollupId, query, rolledUpTo, to, errorMessageCounts);
+                }
             }
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
         }
+        Map<Long, MutableLong> pointCounts = errorMessageCounts.pointCounts;
+        Map<String, MutableLong> messageCounts = errorMessageCounts.messageCounts;
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
                 .sorted(Comparator.comparingLong(ErrorMessagePoint::captureTime))
@@ -708,7 +1027,7 @@ public class TraceDao implements TraceRepository {
                 .collect(Collectors.<ErrorMessagePoint>toList());
         List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessageCount.of(e.getKey(), e.getValue().value))
-                // points above are already ordered by cassandra, but need to reverse sort counts
+                // reverse sort counts
                 .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
                 // explicit type on this line is needed for Checker Framework
                 // see https://github.com/typetools/checker-framework/issues/531
@@ -924,6 +1243,254 @@ public class TraceDao implements TraceRepository {
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
     }
 
+    // the index only narrows down the trace points to read, all of the filters (including the one
+    // used to pick the index key) are still applied afterwards by processPoints()
+    private List<Row> readPointsUsingIndex(String agentRollupId, TraceQuery query,
+            String pointIndexKey, boolean errorPoints) throws Exception {
+        String transactionType = query.transactionType();
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null ? readOverallPointIndex.bind()
+                : readTransactionPointIndex.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setString(i++, pointIndexKey);
+        boundStatement.setTimestamp(i++, new Date(query.from()));
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+        ResultSet results = session.execute(boundStatement);
+        List<BoundStatement> pointReads = Lists.newArrayList();
+        for (Row row : results) {
+            i = 0;
+            Date captureTime = checkNotNull(row.getTimestamp(i++));
+            String agentId = checkNotNull(row.getString(i++));
+            String traceId = checkNotNull(row.getString(i++));
+            boolean slow = row.getBool(i++);
+            boolean error = row.getBool(i++);
+            if (errorPoints ? !error : !slow) {
+                continue;
+            }
+            if (errorPoints) {
+                boundStatement = transactionName == null ? readOverallErrorPointByKey.bind()
+                        : readTransactionErrorPointByKey.bind();
+            } else {
+                boundStatement = transactionName == null ? readOverallSlowPointByKey.bind()
+                        : readTransactionSlowPointByKey.bind();
+            }
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, captureTime);
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            pointReads.add(boundStatement);
+        }
+        // each completed read frees up a slot for the next one, instead of waiting for a whole
+        // group of reads to complete
+        Semaphore semaphore = new Semaphore(MAX_CONCURRENT_INDEXED_POINT_READS);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement pointRead : pointReads) {
+            semaphore.acquire();
+            ResultSetFuture future = session.executeAsync(pointRead);
+            future.addListener(semaphore::release, MoreExecutors.directExecutor());
+            futures.add(future);
+        }
+        MoreFutures.waitForAll(futures);
+        // index rows are in capture time order, and processPoints() relies on the points being in
+        // capture time order, so results are collected in the same order
+        List<Row> rows = Lists.newArrayList();
+        for (ResultSetFuture future : futures) {
+            Row row = future.get().one();
+            // row is null if the point was from a partial trace that has since been updated
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private void insertErrorMessageNeedsRollup(List<String> agentRollupIds, Trace.Header header,
+            int adjustedTTL) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long rollupCaptureTime = Utils.getRollupCaptureTime(header.getCaptureTime(),
+                rollupConfigs.get(0).intervalMillis());
+        int needsRollupAdjustedTTL =
+                AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+        String transactionType = header.getTransactionType();
+        String transactionName = header.getTransactionName();
+        Set<String> keys = ImmutableSet.of(transactionType,
+                getTransactionKey(transactionType, transactionName));
+        // the rollup does not process a rollup interval until it is closed (see
+        // rollupErrorMessages()), so up until then there is no need to insert another record for
+        // the same transaction
+        boolean rateLimit = rollupCaptureTime > clock.currentTimeMillis();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (String agentRollupId : agentRollupIds) {
+            ErrorMessageNeedsRollupKey rateLimiterKey = ImmutableErrorMessageNeedsRollupKey
+                    .of(agentRollupId, rollupCaptureTime, transactionType, transactionName);
+            if (rateLimit && !errorMessageNeedsRollupRateLimiter.tryAcquire(rateLimiterKey)) {
+                continue;
+            }
+            BoundStatement boundStatement = insertErrorMessageNeedsRollup.get(0).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setSet(i++, keys);
+            boundStatement.setInt(i++, needsRollupAdjustedTTL);
+            futures.add(Sessions.executeAsyncWithOnFailure(session, boundStatement,
+                    () -> errorMessageNeedsRollupRateLimiter.invalidate(rateLimiterKey)));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    // level 1 is rolled up from the raw error message rows, higher levels are rolled up from the
+    // prior rollup level
+    private List<ResultSetFuture> rollupOneErrorMessage(int rollupLevel, String agentRollupId,
+            String key, long from, long to, int adjustedTTL) {
+        String transactionType;
+        @Nullable String transactionName;
+        int index = key.indexOf(TRANSACTION_KEY_SEPARATOR);
+        if (index == -1) {
+            transactionType = key;
+            transactionName = null;
+        } else {
+            transactionType = key.substring(0, index);
+            transactionName = key.substring(index + 1);
+        }
+        BoundStatement boundStatement;
+        if (rollupLevel == 1) {
+            boundStatement = transactionName == null ? readOverallErrorMessage.bind()
+                    : readTransactionErrorMessage.bind();
+        } else {
+            boundStatement = transactionName == null
+                    ? readOverallErrorMessageRollup.get(rollupLevel - 2).bind()
+                    : readTransactionErrorMessageRollup.get(rollupLevel - 2).bind();
+        }
+        bindErrorMessageQuery(boundStatement, agentRollupId, transactionType, transactionName,
+                from, to);
+        ResultSet results = session.execute(boundStatement);
+        Map<String, MutableLong> messageCounts = Maps.newHashMap();
+        for (Row row : results) {
+            String errorMessage = checkNotNull(row.getString(1));
+            long count = rollupLevel == 1 ? 1 : row.getLong(2);
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).add(count);
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Map.Entry<String, MutableLong> entry : messageCounts.entrySet()) {
+            boundStatement = transactionName == null
+                    ? insertOverallErrorMessageRollup.get(rollupLevel - 1).bind()
+                    : insertTransactionErrorMessageRollup.get(rollupLevel - 1).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(to));
+            boundStatement.setString(i++, entry.getKey());
+            boundStatement.setLong(i++, entry.getValue().value);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    private void readErrorMessages(String agentRollupId, TraceQuery query, long from, long to,
+            ErrorMessageCounts errorMessageCounts) {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null ? readOverallErrorMessage.bind()
+                : readTransactionErrorMessage.bind();
+        bindErrorMessageQuery(boundStatement, agentRollupId, query.transactionType(),
+                transactionName, from, to);
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String errorMessage = checkNotNull(row.getString(1));
+            errorMessageCounts.add(captureTime, errorMessage, 1);
+        }
+    }
+
+    // rolled up rows for intervals that have not been (completely) rolled up yet are skipped, the
+    // raw rows are read for those intervals instead
+    private void readErrorMessageRollups(String agentRollupId, TraceQuery query,
+            int rollupLevel, long from, long to, Set<Long> notRolledUpCaptureTimes,
+            ErrorMessageCounts errorMessageCounts) {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null
+                ? readOverallErrorMessageRollup.get(rollupLevel - 1).bind()
+                : readTransactionErrorMessageRollup.get(rollupLevel - 1).bind();
+        bindErrorMessageQuery(boundStatement, agentRollupId, query.transactionType(),
+                transactionName, from, to);
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            if (notRolledUpCaptureTimes.contains(captureTime)) {
+                continue;
+            }
+            String errorMessage = checkNotNull(row.getString(1));
+            errorMessageCounts.add(captureTime, errorMessage, row.getLong(2));
+        }
+    }
+
+    // returns the capture times (at the given rollup level) of the intervals that have not been
+    // rolled up to the given rollup level yet, based on the "needs rollup" records at the given
+    // rollup level and all lower rollup levels
+    //
+    // lower rollup levels are read first since postRollup() inserts the "needs rollup" record for
+    // the next rollup level before deleting the one for the current rollup level
+    private Set<Long> readErrorMessageNotRolledUpCaptureTimes(String agentRollupId,
+            TraceQuery query, int rollupLevel, long rollupIntervalMillis) {
+        String transactionType = query.transactionType();
+        String transactionName = query.transactionName();
+        String key = transactionName == null ? transactionType
+                : getTransactionKey(transactionType, transactionName);
+        Set<Long> notRolledUpCaptureTimes = Sets.newTreeSet();
+        for (int i = 0; i < rollupLevel; i++) {
+            BoundStatement boundStatement = readErrorMessageNeedsRollup.get(i).bind();
+            boundStatement.setString(0, agentRollupId);
+            ResultSet results = session.execute(boundStatement);
+            for (Row row : results) {
+                Set<String> keys = checkNotNull(row.getSet(2, String.class));
+                if (keys.contains(key)) {
+                    long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                    notRolledUpCaptureTimes.add(
+                            Utils.getRollupCaptureTime(captureTime, rollupIntervalMillis));
+                }
+            }
+        }
+        return notRolledUpCaptureTimes;
+    }
+
+    // returns 0 if there is no rollup level that can be used for the given resolution
+    private int getErrorMessageRollupLevel(long resolutionMillis) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        for (int i = rollupConfigs.size() - 1; i >= 0; i--) {
+            long intervalMillis = rollupConfigs.get(i).intervalMillis();
+            if (intervalMillis <= resolutionMillis && resolutionMillis % intervalMillis == 0) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // uses the same generator that the driver uses for the (later) inserts, so that the returned
+    // timestamp is lower than the insert timestamps
+    static long nextWriteTimestamp(Session session, Clock clock) {
+        long timestamp = session.getCluster().getConfiguration().getPolicies()
+                .getTimestampGenerator().next();
+        if (timestamp == Long.MIN_VALUE) {
+            // server side timestamp generator
+            return MILLISECONDS.toMicros(clock.currentTimeMillis());
+        }
+        return timestamp;
+    }
+
     private static void bindSlowPoint(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
             throws IOException {
@@ -987,6 +1554,21 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private static void bindDeletePartial(BoundStatement boundStatement, long timestamp,
+            String agentRollupId, String agentId, String traceId, Trace.Header header,
+            boolean overall) {
+        int i = 0;
+        boundStatement.setLong(i++, timestamp);
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -996,6 +1578,37 @@ public class TraceDao implements TraceRepository {
         boundStatement.setInt(i++, adjustedTTL);
     }
 
+    private static void bindPointIndex(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, String indexKey,
+            boolean errorPoint, int adjustedTTL, boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setString(i++, indexKey);
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setBool(i++, header.getSlow());
+        boundStatement.setBool(i++, errorPoint);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static void bindErrorMessageQuery(BoundStatement boundStatement,
+            String agentRollupId, String transactionType, @Nullable String transactionName,
+            long from, long to) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+    }
+
     private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
             TraceQuery query, boolean overall) {
         int i = 0;
@@ -1009,7 +1622,7 @@ public class TraceDao implements TraceRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
+    private static Result<TracePoint> processPoints(Iterable<Row> results, TracePointFilter filter,
             int limit, boolean errorPoints) throws IOException {
         List<TracePoint> tracePoints = Lists.newArrayList();
         for (Row row : results) {
@@ -1070,6 +1683,67 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    // keys are upper case since the user and attribute filters are case insensitive
+    private static Set<String> getPointIndexKeys(Trace.Header header) {
+        Set<String> keys = Sets.newHashSet();
+        String user = header.getUser();
+        if (!user.isEmpty()) {
+            keys.add(getUserIndexKey(user));
+        }
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            String name = attribute.getName();
+            for (String value : attribute.getValueList()) {
+                keys.add(getAttributeIndexKey(name, value));
+            }
+        }
+        return keys;
+    }
+
+    // returns null if the filter cannot be satisfied using the index (only user equality and
+    // attribute name + value equality filters can)
+    private static @Nullable String getPointIndexKey(TracePointFilter filter) {
+        String user = filter.user();
+        if (filter.userComparator() == StringComparator.EQUALS && !Strings.isNullOrEmpty(user)) {
+            return getUserIndexKey(user);
+        }
+        String attributeName = filter.attributeName();
+        if (Strings.isNullOrEmpty(attributeName)) {
+            return null;
+        }
+        String attributeValue = filter.attributeValue();
+        if (filter.attributeValueComparator() == StringComparator.EQUALS
+                && !Strings.isNullOrEmpty(attributeValue)) {
+            return getAttributeIndexKey(attributeName, attributeValue);
+        }
+        return null;
+    }
+
+    private static String getUserIndexKey(String user) {
+        return limitPointIndexKey("user" + POINT_INDEX_KEY_SEPARATOR
+                + user.toUpperCase(Locale.ENGLISH));
+    }
+
+    private static String getAttributeIndexKey(String name, String value) {
+        return limitPointIndexKey("attribute" + POINT_INDEX_KEY_SEPARATOR
+                + name.toUpperCase(Locale.ENGLISH) + POINT_INDEX_KEY_SEPARATOR
+                + value.toUpperCase(Locale.ENGLISH));
+    }
+
+    // the index key is part of the partition key, which cannot exceed 64KB, so long keys are
+    // truncated and suffixed with a hash of the full key (collisions are harmless since the
+    // filters are still applied after reading via the index, see readPointsUsingIndex())
+    private static String limitPointIndexKey(String key) {
+        if (key.length() <= MAX_POINT_INDEX_KEY_LENGTH) {
+            return key;
+        }
+        return key.substring(0, MAX_POINT_INDEX_KEY_LENGTH) + POINT_INDEX_KEY_SEPARATOR
+                + Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+    }
+
+    private static String getTransactionKey(String transactionType, String transactionName) {
+        return transactionType + TRANSACTION_KEY_SEPARATOR + transactionName;
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
@@ -1092,10 +1766,42 @@ public class TraceDao implements TraceRepository {
         String traceId();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ErrorMessageNeedsRollupKey {
+        String agentRollupId();
+        long captureTime();
+        String transactionType();
+        String transactionName();
+    }
+
+    private static class ErrorMessageCounts {
+
+        private final ErrorMessageFilter filter;
+        private final long resolutionMillis;
+
+        private final Map<Long, MutableLong> pointCounts = Maps.newHashMap();
+        private final Map<String, MutableLong> messageCounts = Maps.newHashMap();
+
+        private ErrorMessageCounts(ErrorMessageFilter filter, long resolutionMillis) {
+            this.filter = filter;
+            this.resolutionMillis = resolutionMillis;
+        }
+
+        private void add(long captureTime, String errorMessage, long count) {
+            if (!matches(filter, errorMessage)) {
+                return;
+            }
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).add(count);
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).add(count);
+        }
+    }
+
     private static class MutableLong {
         private long value;
-        private void increment() {
-            value++;
+        private void add(long count) {
+            value += count;
         }
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+
+// additive increase / multiplicative decrease (AIMD) limit on the number of concurrent requests
+//
+// the limit grows by roughly one for every "limit" successful requests, and shrinks by 10% when a
+// request is rejected or times out (or is slower than the latency threshold), but at most once per
+// latency threshold period so that a burst of failures from the same overload event does not
+// collapse the limit all the way to the minimum
+public class AdaptiveConcurrencyLimiter {
+
+    // low priority requests are only admitted up to this fraction of the limit, which leaves
+    // headroom for high priority requests
+    private static final double LOW_PRIORITY_FRACTION = 0.5;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private double limit;
+    @GuardedBy("this")
+    private int inFlight;
+    @GuardedBy("this")
+    private long lastBackoffTick;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+            long latencyThresholdNanos, Ticker ticker) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.ticker = ticker;
+        limit = initialLimit;
+        lastBackoffTick = ticker.read() - latencyThresholdNanos;
+    }
+
+    public synchronized boolean tryAcquire(Priority priority) {
+        if (inFlight >= getLimit(priority)) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    // dropped means the request failed due to overload (e.g. timeout or busy connection pool)
+    public synchronized void release(long latencyNanos, boolean dropped) {
+        inFlight--;
+        if (dropped || latencyNanos > latencyThresholdNanos) {
+            long currentTick = ticker.read();
+            if (currentTick - lastBackoffTick >= latencyThresholdNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastBackoffTick = currentTick;
+            }
+        } else if (inFlight + 1 >= limit * LOW_PRIORITY_FRACTION) {
+            // only grow the limit when it is actually being used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @GuardedBy("this")
+    private int getLimit(Priority priority) {
+        if (priority == Priority.HIGH) {
+            return (int) limit;
+        } else {
+            return Math.max(1, (int) (limit * LOW_PRIORITY_FRACTION));
+        }
+    }
+
+    public enum Priority {
+        HIGH, LOW
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// runs alert checks on a bounded number of threads, sharded by agent rollup so that checks for the
+// same agent rollup (and so for the same alert) never run concurrently
+//
+// a check that is submitted while a check with the same key is still queued replaces the queued
+// check instead of being queued as well, since only the latest check result matters
+public class AlertCheckingExecutor implements AlertCheckingExecutorMXBean {
+
+    private final ImmutableList<ExecutorService> shards;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<Object, Runnable> queuedChecks = Maps.newConcurrentMap();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicLong checkCount = new AtomicLong();
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalCheckNanos = new AtomicLong();
+
+    public AlertCheckingExecutor(int shardCount, Ticker ticker) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Alert-Checking-%d")
+                .build();
+        List<ExecutorService> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Executors.newSingleThreadExecutor(threadFactory));
+        }
+        this.shards = ImmutableList.copyOf(shards);
+        this.ticker = ticker;
+    }
+
+    public void execute(String agentRollupId, Object checkKey, Runnable check) {
+        if (queuedChecks.put(checkKey, check) != null) {
+            // the already queued task will run this check instead
+            deduplicatedCount.getAndIncrement();
+            return;
+        }
+        queueDepth.getAndIncrement();
+        long queuedTick = ticker.read();
+        getShard(agentRollupId).execute(() -> {
+            queueDepth.getAndDecrement();
+            long startTick = ticker.read();
+            totalQueueNanos.getAndAdd(startTick - queuedTick);
+            // removing prior to running so that a check submitted while this one is running is
+            // queued (and sees any newer data)
+            Runnable latestCheck = queuedChecks.remove(checkKey);
+            if (latestCheck != null) {
+                try {
+                    latestCheck.run();
+                } finally {
+                    checkCount.getAndIncrement();
+                    totalCheckNanos.getAndAdd(ticker.read() - startTick);
+                }
+            }
+        });
+    }
+
+    public void close() throws InterruptedException {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        for (ExecutorService shard : shards) {
+            if (!shard.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public long getCheckCount() {
+        return checkCount.get();
+    }
+
+    @Override
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    @Override
+    public long getTotalQueueTimeMillis() {
+        return NANOSECONDS.toMillis(totalQueueNanos.get());
+    }
+
+    @Override
+    public long getTotalCheckTimeMillis() {
+        return NANOSECONDS.toMillis(totalCheckNanos.get());
+    }
+
+    private ExecutorService getShard(String agentRollupId) {
+        return shards.get(Math.abs(agentRollupId.hashCode() % shards.size()));
+    }
+}
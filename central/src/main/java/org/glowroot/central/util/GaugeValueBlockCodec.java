@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+// encodes a series of gauge values (for a single gauge) into a compact block, using the encoding
+// from the Gorilla paper (http://www.vldb.org/pvldb/vol8/p1816-teller.pdf):
+// capture times are stored as delta-of-deltas, and values are stored as xor with the prior value
+//
+// weights are stored as a single bit when unchanged from the prior weight, which is the common case
+// (1 for non-counter gauges, and close to constant for counter gauges)
+//
+// gauge names are not stored in the block
+public class GaugeValueBlockCodec {
+
+    private GaugeValueBlockCodec() {}
+
+    // gauge values must be ordered by capture time
+    public static ByteBuffer encode(List<GaugeValue> gaugeValues) {
+        BitWriter out = new BitWriter();
+        out.writeBits(gaugeValues.size(), 32);
+        if (gaugeValues.isEmpty()) {
+            return out.toByteBuffer();
+        }
+        GaugeValue first = gaugeValues.get(0);
+        long priorCaptureTime = first.getCaptureTime();
+        long priorValueBits = Double.doubleToRawLongBits(first.getValue());
+        long priorWeight = first.getWeight();
+        out.writeBits(priorCaptureTime, 64);
+        out.writeBits(priorValueBits, 64);
+        out.writeBits(priorWeight, 64);
+        long priorDelta = 0;
+        // -1 means there is no prior window of meaningful bits to reuse
+        int priorLeadingZeros = -1;
+        int priorTrailingZeros = 0;
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            long captureTime = gaugeValue.getCaptureTime();
+            long delta = captureTime - priorCaptureTime;
+            writeDeltaOfDelta(out, delta - priorDelta);
+            priorCaptureTime = captureTime;
+            priorDelta = delta;
+
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            long xor = valueBits ^ priorValueBits;
+            priorValueBits = valueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                // leading zeros is stored in 5 bits
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (priorLeadingZeros != -1 && leadingZeros >= priorLeadingZeros
+                        && trailingZeros >= priorTrailingZeros) {
+                    // meaningful bits fit inside the prior window
+                    out.writeBit(false);
+                    out.writeBits(xor >>> priorTrailingZeros,
+                            64 - priorLeadingZeros - priorTrailingZeros);
+                } else {
+                    out.writeBit(true);
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    out.writeBits(leadingZeros, 5);
+                    // meaningful bits is between 1 and 64, so is stored minus one in 6 bits
+                    out.writeBits(meaningfulBits - 1, 6);
+                    out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    priorLeadingZeros = leadingZeros;
+                    priorTrailingZeros = trailingZeros;
+                }
+            }
+
+            long weight = gaugeValue.getWeight();
+            if (weight == priorWeight) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                out.writeBits(weight, 64);
+                priorWeight = weight;
+            }
+        }
+        return out.toByteBuffer();
+    }
+
+    public static List<GaugeValue> decode(ByteBuffer buffer) {
+        BitReader in = new BitReader(buffer);
+        int count = (int) in.readBits(32);
+        List<GaugeValue> gaugeValues = Lists.newArrayListWithCapacity(count);
+        if (count == 0) {
+            return gaugeValues;
+        }
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        long delta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            captureTime += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.readBits(5);
+                    int meaningfulBits = (int) in.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                valueBits ^= in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+            }
+            if (in.readBit()) {
+                weight = in.readBits(64);
+            }
+            gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        }
+        return gaugeValues;
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.writeBit(false);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            out.writeBits(0b10, 2);
+            out.writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            out.writeBits(0b110, 3);
+            out.writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.readBits(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.readBits(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.readBits(12) - 2047;
+        }
+        return in.readBits(64);
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, long valueBits, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(Double.longBitsToDouble(valueBits))
+                .setWeight(weight)
+                .build();
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes = new byte[64];
+        private int bitIndex;
+
+        private void writeBit(boolean bit) {
+            int byteIndex = bitIndex >>> 3;
+            if (byteIndex == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (bit) {
+                bytes[byteIndex] |= 0x80 >>> (bitIndex & 7);
+            }
+            bitIndex++;
+        }
+
+        // writes the low numBits bits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(Arrays.copyOf(bytes, (bitIndex + 7) >>> 3));
+        }
+    }
+
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private final int startPosition;
+        private int bitIndex;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            startPosition = buffer.position();
+        }
+
+        private boolean readBit() {
+            int b = buffer.get(startPosition + (bitIndex >>> 3));
+            boolean bit = (b & (0x80 >>> (bitIndex & 7))) != 0;
+            bitIndex++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -18,7 +18,14 @@ package org.glowroot.central.util;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.BusyConnectionException;
+import com.datastax.driver.core.exceptions.BusyPoolException;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,4 +89,20 @@ public class Sessions {
         }, MoreExecutors.directExecutor());
         return future;
     }
+
+    // these are the failures that indicate cassandra (or the client connection pool) cannot keep
+    // up with the current request rate
+    public static boolean isOverloaded(Throwable t) {
+        if (t instanceof NoHostAvailableException) {
+            for (Throwable error : ((NoHostAvailableException) t).getErrors().values()) {
+                if (isOverloaded(error)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return t instanceof OperationTimedOutException || t instanceof WriteTimeoutException
+                || t instanceof ReadTimeoutException || t instanceof OverloadedException
+                || t instanceof BusyPoolException || t instanceof BusyConnectionException;
+    }
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// groups writes that share the same partition key into UNLOGGED batches (which are applied by the
+// coordinator as a single mutation), and caps the number of in-flight write requests per host, as
+// well as the overall number of in-flight write requests (using an adaptive concurrency limit)
+public class WriteCoalescer implements WriteCoalescerMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    // stay under cassandra's default batch_size_warn_threshold_in_kb (5kb)
+    @VisibleForTesting
+    static final int MAX_BATCH_BYTES = 5 * 1024;
+
+    @VisibleForTesting
+    static final int MAX_BATCH_STATEMENTS = 100;
+
+    // number of pending requests (as a multiple of the current concurrency limit) after which new
+    // data from agents is rejected
+    private static final int BACKED_UP_QUEUE_DEPTH_MULTIPLIER = 16;
+
+    // used for statements whose replicas cannot be determined
+    private static final Object UNKNOWN_HOST = new Object();
+
+    private final Session session;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final int maxInFlightPerHost;
+
+    private final ConcurrentMap<Object, HostQueue> hostQueues = Maps.newConcurrentMap();
+
+    private final AtomicInteger highPriorityQueueDepth = new AtomicInteger();
+    private final AtomicInteger lowPriorityQueueDepth = new AtomicInteger();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private final AtomicLong statementCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    public WriteCoalescer(Session session, AdaptiveConcurrencyLimiter limiter,
+            int maxInFlightPerHost) {
+        this.session = session;
+        this.limiter = limiter;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+    }
+
+    // returns one future per request sent to cassandra (either a single statement or a batch)
+    public List<ListenableFuture<ResultSet>> executeAsync(List<BoundStatement> statements,
+            Priority priority) {
+        if (statements.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        statementCount.addAndGet(statements.size());
+        Cluster cluster = session.getCluster();
+        ProtocolVersion protocolVersion =
+                cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        // linked hash map in order to preserve the original statement ordering as much as possible
+        Map<ByteBuffer, List<BoundStatement>> partitions = Maps.newLinkedHashMap();
+        for (BoundStatement statement : statements) {
+            ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+            if (routingKey == null) {
+                futures.add(submit(UNKNOWN_HOST, statement, priority));
+            } else {
+                partitions.computeIfAbsent(routingKey, k -> Lists.newArrayList()).add(statement);
+            }
+        }
+        for (Map.Entry<ByteBuffer, List<BoundStatement>> entry : partitions.entrySet()) {
+            ByteBuffer routingKey = entry.getKey();
+            Object host = getHost(cluster.getMetadata(), entry.getValue().get(0), routingKey);
+            for (List<BoundStatement> group : splitIntoBatches(entry.getValue())) {
+                if (group.size() == 1) {
+                    futures.add(submit(host, group.get(0), priority));
+                } else {
+                    BatchStatement batchStatement =
+                            new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batchStatement.addAll(group);
+                    // all central writes are idempotent (see QueryOptions in CentralModule)
+                    batchStatement.setIdempotent(true);
+                    batchCount.incrementAndGet();
+                    futures.add(submit(host, batchStatement, priority));
+                }
+            }
+        }
+        return futures;
+    }
+
+    // used to push back on agents (which will then retry later) instead of letting the backlog of
+    // pending writes grow without bound when cassandra cannot keep up
+    public boolean isBackedUp(Priority priority) {
+        int queueDepthLimit = limiter.getLimit() * BACKED_UP_QUEUE_DEPTH_MULTIPLIER;
+        if (priority == Priority.HIGH) {
+            return highPriorityQueueDepth.get() > queueDepthLimit;
+        } else {
+            // low priority writes are pushed back sooner
+            return lowPriorityQueueDepth.get() + highPriorityQueueDepth.get() > queueDepthLimit / 4;
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return highPriorityQueueDepth.get() + lowPriorityQueueDepth.get();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    @Override
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public long getTotalQueueTimeMillis() {
+        return NANOSECONDS.toMillis(totalQueueNanos.get());
+    }
+
+    @Override
+    public long getTotalLatencyMillis() {
+        return NANOSECONDS.toMillis(totalLatencyNanos.get());
+    }
+
+    private AtomicInteger getQueueDepth(Priority priority) {
+        return priority == Priority.HIGH ? highPriorityQueueDepth : lowPriorityQueueDepth;
+    }
+
+    private ListenableFuture<ResultSet> submit(Object host, Statement statement,
+            Priority priority) {
+        HostQueue hostQueue = hostQueues.computeIfAbsent(host, k -> new HostQueue());
+        PendingWrite pendingWrite = new PendingWrite(statement, priority);
+        hostQueue.submit(pendingWrite);
+        return pendingWrite.future;
+    }
+
+    private void execute(HostQueue hostQueue, PendingWrite pendingWrite) {
+        long startTick = System.nanoTime();
+        totalQueueNanos.addAndGet(startTick - pendingWrite.submitTick);
+        requestCount.incrementAndGet();
+        inFlightCount.incrementAndGet();
+        ListenableFuture<ResultSet> future;
+        try {
+            future = session.executeAsync(pendingWrite.statement);
+        } catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(future,
+                new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet result) {
+                        complete(hostQueue, startTick, false);
+                        pendingWrite.future.set(result);
+                    }
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.debug(t.getMessage(), t);
+                        failureCount.incrementAndGet();
+                        complete(hostQueue, startTick, Sessions.isOverloaded(t));
+                        pendingWrite.future.setException(t);
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    private void complete(HostQueue hostQueue, long startTick, boolean overloaded) {
+        long latencyNanos = System.nanoTime() - startTick;
+        totalLatencyNanos.addAndGet(latencyNanos);
+        inFlightCount.decrementAndGet();
+        hostQueue.release();
+        limiter.release(latencyNanos, overloaded);
+        // drain the completed host's queue first, then other hosts' queues since they may have
+        // been waiting on the global concurrency limit
+        hostQueue.drain();
+        for (HostQueue otherHostQueue : hostQueues.values()) {
+            if (otherHostQueue != hostQueue) {
+                otherHostQueue.drain();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static List<List<BoundStatement>> splitIntoBatches(List<BoundStatement> statements) {
+        List<List<BoundStatement>> batches = Lists.newArrayList();
+        List<BoundStatement> currBatch = Lists.newArrayList();
+        int currBatchBytes = 0;
+        for (BoundStatement statement : statements) {
+            int statementBytes = estimateSize(statement);
+            if (!currBatch.isEmpty() && (currBatch.size() == MAX_BATCH_STATEMENTS
+                    || currBatchBytes + statementBytes > MAX_BATCH_BYTES)) {
+                batches.add(currBatch);
+                currBatch = Lists.newArrayList();
+                currBatchBytes = 0;
+            }
+            currBatch.add(statement);
+            currBatchBytes += statementBytes;
+        }
+        if (!currBatch.isEmpty()) {
+            batches.add(currBatch);
+        }
+        return batches;
+    }
+
+    private static int estimateSize(BoundStatement statement) {
+        int size = 0;
+        int count = statement.preparedStatement().getVariables().size();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer bytes = statement.getBytesUnsafe(i);
+            if (bytes != null) {
+                size += bytes.remaining();
+            }
+        }
+        return size;
+    }
+
+    private static Object getHost(Metadata metadata, BoundStatement statement,
+            ByteBuffer routingKey) {
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null) {
+            return UNKNOWN_HOST;
+        }
+        Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+        if (replicas.isEmpty()) {
+            return UNKNOWN_HOST;
+        }
+        // the token aware load balancing policy routes to one of the replicas, so using first
+        // replica as a proxy for the host that will receive the request
+        return replicas.iterator().next();
+    }
+
+    private class HostQueue {
+
+        @GuardedBy("this")
+        private final Deque<PendingWrite> highPriorityPending = new ArrayDeque<>();
+        @GuardedBy("this")
+        private final Deque<PendingWrite> lowPriorityPending = new ArrayDeque<>();
+        @GuardedBy("this")
+        private int inFlight;
+        @GuardedBy("this")
+        private boolean draining;
+        @GuardedBy("this")
+        private boolean drainRequested;
+
+        private void submit(PendingWrite pendingWrite) {
+            synchronized (this) {
+                if (pendingWrite.priority == Priority.HIGH) {
+                    highPriorityPending.add(pendingWrite);
+                } else {
+                    lowPriorityPending.add(pendingWrite);
+                }
+            }
+            getQueueDepth(pendingWrite.priority).incrementAndGet();
+            drain();
+        }
+
+        private void release() {
+            synchronized (this) {
+                inFlight--;
+            }
+        }
+
+        // looping (instead of recursing from the completion callback) since futures can complete
+        // synchronously, e.g. when no hosts are available
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    // the thread that is currently draining will check again before it exits
+                    drainRequested = true;
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                PendingWrite next;
+                synchronized (this) {
+                    next = pollIfPermitted();
+                    if (next == null) {
+                        if (drainRequested) {
+                            drainRequested = false;
+                            continue;
+                        }
+                        draining = false;
+                        return;
+                    }
+                    inFlight++;
+                }
+                getQueueDepth(next.priority).decrementAndGet();
+                execute(this, next);
+            }
+        }
+
+        @GuardedBy("this")
+        private @Nullable PendingWrite pollIfPermitted() {
+            if (inFlight >= maxInFlightPerHost) {
+                return null;
+            }
+            if (!highPriorityPending.isEmpty() && limiter.tryAcquire(Priority.HIGH)) {
+                return highPriorityPending.remove();
+            }
+            if (!lowPriorityPending.isEmpty() && limiter.tryAcquire(Priority.LOW)) {
+                return lowPriorityPending.remove();
+            }
+            return null;
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final Statement statement;
+        private final Priority priority;
+        private final SettableFuture<ResultSet> future = SettableFuture.create();
+        private final long submitTick = System.nanoTime();
+
+        private PendingWrite(Statement statement, Priority priority) {
+            this.statement = statement;
+            this.priority = priority;
+        }
+    }
+}
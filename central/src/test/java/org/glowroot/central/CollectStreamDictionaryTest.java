@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectStreamDictionaryTest {
+
+    @Test
+    public void shouldResolveAggregate() {
+        // given
+        CollectStreamDictionary dictionary = new CollectStreamDictionary();
+        dictionary.addEntry("http request");
+        dictionary.addEntry("jdbc query");
+        dictionary.addEntry("GET http://example.com");
+        Aggregate.Timer auxThreadRootTimer = Aggregate.Timer.newBuilder()
+                .setName("not encoded")
+                .build();
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(123)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setNameRef(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setNameRef(2)))
+                .addAuxThreadRootTimer(auxThreadRootTimer)
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setText("not encoded"))
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setTextRef(3)))
+                .build();
+        // when
+        Aggregate resolved = dictionary.resolve(aggregate);
+        // then
+        assertThat(resolved.getTotalDurationNanos()).isEqualTo(123);
+        Aggregate.Timer rootTimer = resolved.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEqualTo("http request");
+        assertThat(rootTimer.getNameRef()).isEqualTo(0);
+        assertThat(rootTimer.getChildTimer(0).getName()).isEqualTo("jdbc query");
+        assertThat(resolved.getAuxThreadRootTimer(0)).isSameAs(auxThreadRootTimer);
+        Aggregate.ServiceCallsByType serviceCallsByType = resolved.getServiceCallsByType(0);
+        assertThat(serviceCallsByType.getType()).isEqualTo("HTTP");
+        assertThat(serviceCallsByType.getServiceCall(0).getText()).isEqualTo("not encoded");
+        assertThat(serviceCallsByType.getServiceCall(1).getText())
+                .isEqualTo("GET http://example.com");
+        assertThat(serviceCallsByType.getServiceCall(1).getTextRef()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotRebuildWhenNoRefs() {
+        // given
+        CollectStreamDictionary dictionary = new CollectStreamDictionary();
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setText("GET http://example.com")))
+                .setMainThreadProfile(Profile.newBuilder()
+                        .addPackageName("java.lang"))
+                .build();
+        Trace.Header header = Trace.Header.newBuilder()
+                .setTransactionName("/abc")
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setName("http request"))
+                .build();
+        // when
+        Aggregate resolvedAggregate = dictionary.resolve(aggregate);
+        Trace.Header resolvedHeader = dictionary.resolve(header);
+        // then
+        assertThat(resolvedAggregate).isSameAs(aggregate);
+        assertThat(resolvedHeader).isSameAs(header);
+        assertThat(dictionary.resolve("/abc", 0)).isEqualTo("/abc");
+    }
+
+    @Test
+    public void shouldResolveTraceHeader() {
+        // given
+        CollectStreamDictionary dictionary = new CollectStreamDictionary();
+        dictionary.addEntry("/abc");
+        dictionary.addEntry("http request");
+        Trace.Header header = Trace.Header.newBuilder()
+                .setTransactionType("Web")
+                .setTransactionNameRef(1)
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setNameRef(2))
+                .build();
+        // when
+        Trace.Header resolved = dictionary.resolve(header);
+        // then
+        assertThat(resolved.getTransactionType()).isEqualTo("Web");
+        assertThat(resolved.getTransactionName()).isEqualTo("/abc");
+        assertThat(resolved.getTransactionNameRef()).isEqualTo(0);
+        assertThat(resolved.getMainThreadRootTimer().getName()).isEqualTo("http request");
+    }
+
+    @Test
+    public void shouldResolveProfile() {
+        // given
+        CollectStreamDictionary dictionary = new CollectStreamDictionary();
+        dictionary.addEntry("java.lang");
+        dictionary.addEntry("Thread");
+        dictionary.addEntry("sleep");
+        dictionary.addEntry("");
+        Profile profile = Profile.newBuilder()
+                .addPackageNameRef(1)
+                .addClassNameRef(2)
+                .addMethodNameRef(3)
+                .addFileNameRef(4)
+                .build();
+        // when
+        Profile resolved = dictionary.resolve(profile);
+        // then
+        assertThat(resolved.getPackageNameList()).containsExactly("java.lang");
+        assertThat(resolved.getClassNameList()).containsExactly("Thread");
+        assertThat(resolved.getMethodNameList()).containsExactly("sleep");
+        assertThat(resolved.getFileNameList()).containsExactly("");
+        assertThat(resolved.getPackageNameRefCount()).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectUnknownRef() {
+        // given
+        CollectStreamDictionary dictionary = new CollectStreamDictionary();
+        dictionary.addEntry("/abc");
+        // when
+        dictionary.resolve("", 2);
+    }
+}
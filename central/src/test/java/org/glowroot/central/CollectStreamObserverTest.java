@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.MessageCase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamCancel;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamDictionaryEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectStreamObserverTest {
+
+    private static final String SERVER_NAME = "collect-stream-observer-test";
+
+    private FakeCollectorService collectorService;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        collectorService = new FakeCollectorService();
+        server = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(collectorService)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        channel.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void shouldDemultiplexAndDecodeRequests() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                CollectorServiceGrpc.newStub(channel).collectStream(responseCollector);
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setDictionaryEntry(CollectStreamDictionaryEntry.newBuilder()
+                        .setValue("/abc"))
+                .build());
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setAggregateStreamMessage(AggregateStreamMessage.newBuilder()
+                        .setStreamHeader(AggregateStreamHeader.newBuilder()
+                                .setAgentId("agent")))
+                .build());
+        // interleaved with the aggregate request
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(2)
+                .setLast(true)
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setAgentId("agent"))
+                .build());
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setLast(true)
+                .setAggregateStreamMessage(AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(TransactionAggregate.newBuilder()
+                                .setTransactionType("Web")
+                                .setTransactionNameRef(1)
+                                .setAggregate(Aggregate.getDefaultInstance())))
+                .build());
+        // then
+        List<CollectStreamResponse> responses = responseCollector.take(2);
+        assertThat(responses.get(0).getRequestId()).isEqualTo(2);
+        assertThat(responses.get(0).getMessageCase())
+                .isEqualTo(CollectStreamResponse.MessageCase.EMPTY_MESSAGE);
+        assertThat(responses.get(1).getRequestId()).isEqualTo(1);
+        assertThat(responses.get(1).getAggregateResponseMessage().getNextDelayMillis())
+                .isEqualTo(1234);
+        assertThat(collectorService.aggregateMessages).hasSize(2);
+        assertThat(collectorService.transactionNames).containsExactly("/abc");
+        requestObserver.onCompleted();
+        assertThat(responseCollector.awaitCompleted()).isTrue();
+    }
+
+    @Test
+    public void shouldReturnErrorForFailedRequestAndKeepStreamOpen() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                CollectorServiceGrpc.newStub(channel).collectStream(responseCollector);
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setLast(true)
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setAgentId("fail"))
+                .build());
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(2)
+                .setLast(true)
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setAgentId("agent"))
+                .build());
+        // then
+        List<CollectStreamResponse> responses = responseCollector.take(2);
+        assertThat(responses.get(0).getRequestId()).isEqualTo(1);
+        assertThat(responses.get(0).getError().getStatusCode())
+                .isEqualTo(Status.Code.RESOURCE_EXHAUSTED.value());
+        assertThat(responses.get(1).getRequestId()).isEqualTo(2);
+        assertThat(responses.get(1).getMessageCase())
+                .isEqualTo(CollectStreamResponse.MessageCase.EMPTY_MESSAGE);
+        requestObserver.onCompleted();
+        assertThat(responseCollector.awaitCompleted()).isTrue();
+    }
+
+    @Test
+    public void shouldReturnErrorForUnknownDictionaryRef() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                CollectorServiceGrpc.newStub(channel).collectStream(responseCollector);
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setLast(true)
+                .setAggregateStreamMessage(AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(TransactionAggregate.newBuilder()
+                                .setTransactionType("Web")
+                                .setTransactionNameRef(1)))
+                .build());
+        // then
+        List<CollectStreamResponse> responses = responseCollector.take(1);
+        assertThat(responses.get(0).getRequestId()).isEqualTo(1);
+        assertThat(responses.get(0).getMessageCase())
+                .isEqualTo(CollectStreamResponse.MessageCase.ERROR);
+        requestObserver.onCompleted();
+        assertThat(responseCollector.awaitCompleted()).isTrue();
+    }
+
+    @Test
+    public void shouldCancelIncompleteRequestsWhenStreamIsClosed() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                CollectorServiceGrpc.newStub(channel).collectStream(responseCollector);
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setAggregateStreamMessage(AggregateStreamMessage.newBuilder()
+                        .setStreamHeader(AggregateStreamHeader.newBuilder()
+                                .setAgentId("agent")))
+                .build());
+        requestObserver.onCompleted();
+        // then
+        assertThat(responseCollector.awaitCompleted()).isTrue();
+        assertThat(collectorService.aggregateErrorLatch.await(10, SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldDiscardCancelledRequest() throws Exception {
+        // given
+        ResponseCollector responseCollector = new ResponseCollector();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                CollectorServiceGrpc.newStub(channel).collectStream(responseCollector);
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setAggregateStreamMessage(AggregateStreamMessage.newBuilder()
+                        .setStreamHeader(AggregateStreamHeader.newBuilder()
+                                .setAgentId("agent")))
+                .build());
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(1)
+                .setCancel(CollectStreamCancel.getDefaultInstance())
+                .build());
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setRequestId(2)
+                .setLast(true)
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setAgentId("agent"))
+                .build());
+        // then
+        assertThat(collectorService.aggregateErrorLatch.await(10, SECONDS)).isTrue();
+        List<CollectStreamResponse> responses = responseCollector.take(1);
+        // no response is sent for the cancelled request
+        assertThat(responses.get(0).getRequestId()).isEqualTo(2);
+        assertThat(collectorService.aggregateMessages).hasSize(1);
+        requestObserver.onCompleted();
+        assertThat(responseCollector.awaitCompleted()).isTrue();
+    }
+
+    private static class FakeCollectorService extends CollectorServiceImplBase
+            implements CollectStreamObserver.Collector {
+
+        private final List<AggregateStreamMessage> aggregateMessages =
+                Lists.newCopyOnWriteArrayList();
+        private final List<String> transactionNames = Lists.newCopyOnWriteArrayList();
+        private final CountDownLatch aggregateErrorLatch = new CountDownLatch(1);
+
+        @Override
+        public StreamObserver<CollectStreamMessage> collectStream(
+                StreamObserver<CollectStreamResponse> responseObserver) {
+            return new CollectStreamObserver(this, responseObserver);
+        }
+
+        @Override
+        public StreamObserver<AggregateStreamMessage> collectAggregateStream(
+                final StreamObserver<AggregateResponseMessage> responseObserver,
+                final CollectStreamDictionary dictionary) {
+            return new StreamObserver<AggregateStreamMessage>() {
+                @Override
+                public void onNext(AggregateStreamMessage value) {
+                    aggregateMessages.add(value);
+                    if (value.getMessageCase() == MessageCase.TRANSACTION_AGGREGATE) {
+                        TransactionAggregate transactionAggregate = value.getTransactionAggregate();
+                        transactionNames.add(dictionary.resolve(
+                                transactionAggregate.getTransactionName(),
+                                transactionAggregate.getTransactionNameRef()));
+                    }
+                }
+                @Override
+                public void onError(Throwable t) {
+                    aggregateErrorLatch.countDown();
+                }
+                @Override
+                public void onCompleted() {
+                    responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                            .setNextDelayMillis(1234)
+                            .build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public StreamObserver<TraceStreamMessage> collectTraceStream(
+                StreamObserver<EmptyMessage> responseObserver,
+                CollectStreamDictionary dictionary) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void collectGaugeValues(GaugeValueMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            if (request.getAgentId().equals("fail")) {
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED.asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private static class ResponseCollector implements StreamObserver<CollectStreamResponse> {
+
+        private final BlockingQueue<CollectStreamResponse> responses =
+                Queues.newLinkedBlockingQueue();
+        private final CountDownLatch completedLatch = new CountDownLatch(1);
+
+        @Override
+        public void onNext(CollectStreamResponse value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            completedLatch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            completedLatch.countDown();
+        }
+
+        private List<CollectStreamResponse> take(int count) throws InterruptedException {
+            List<CollectStreamResponse> list = Lists.newArrayList();
+            while (list.size() < count) {
+                CollectStreamResponse response = responses.poll(10, SECONDS);
+                assertThat(response).isNotNull();
+                list.add(response);
+            }
+            return list;
+        }
+
+        private boolean awaitCompleted() throws InterruptedException {
+            return completedLatch.await(10, SECONDS);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.util.Map;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Session;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.AfterClass;
@@ -28,8 +29,10 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
@@ -63,6 +66,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class AggregateDaoIT {
@@ -107,8 +111,12 @@ public class AggregateDaoIT {
         TransactionTypeDao transactionTypeDao =
                 new TransactionTypeDao(session, configRepository, clusterManager);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-        aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session,
+                new AdaptiveConcurrencyLimiter(64, 1, 64, SECONDS.toNanos(10),
+                        Ticker.systemTicker()),
+                64);
+        aggregateDao = new AggregateDao(session, writeCoalescer, agentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, Clock.systemClock());
     }
 
     @AfterClass
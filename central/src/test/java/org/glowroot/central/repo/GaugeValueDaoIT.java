@@ -19,19 +19,25 @@ import java.util.List;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class GaugeValueDaoIT {
@@ -65,8 +71,12 @@ public class GaugeValueDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository, clusterManager,
-                Clock.systemClock());
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session,
+                new AdaptiveConcurrencyLimiter(64, 1, 64, SECONDS.toNanos(10),
+                        Ticker.systemTicker()),
+                64);
+        gaugeValueDao = new GaugeValueDao(session, writeCoalescer, agentDao, configRepository,
+                clusterManager, Clock.systemClock());
     }
 
     @AfterClass
@@ -153,6 +163,68 @@ public class GaugeValueDaoIT {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadFromBlocksAndRows() throws Exception {
+        gaugeValueDao.truncateAll();
+        // row stored prior to blocks being introduced
+        session.execute("insert into gauge_value_rollup_0 (agent_rollup, gauge_name,"
+                + " capture_time, value, weight) values ('one', 'the gauge:attr1', 60000, 100,"
+                + " 1)");
+        gaugeValueDao.store("one", createData(3660000));
+        gaugeValueDao.store("one", createData(3665000));
+
+        // rollup (which builds the level 0 block ending at 7200000)
+        gaugeValueDao.rollup("one", null, true);
+
+        // row in the open block
+        gaugeValueDao.store("one", createData(7260000));
+
+        // check that the rows covered by the block have been deleted
+        ResultSet results = session.execute("select capture_time from gauge_value_rollup_0"
+                + " where agent_rollup = 'one' and gauge_name = 'the gauge:attr1'");
+        List<Long> rowCaptureTimes = Lists.newArrayList();
+        for (Row row : results) {
+            rowCaptureTimes.add(row.getTimestamp(0).getTime());
+        }
+        assertThat(rowCaptureTimes).containsExactly(60000L, 7260000L);
+
+        // check block-only range
+        List<GaugeValue> gaugeValues =
+                gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 3600000, 7200000, 0);
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(3660000);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(3665000);
+
+        // check range with row gaps before and after the block
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 10800000, 0);
+        assertThat(gaugeValues).hasSize(4);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(60000);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(100);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(3660000);
+        assertThat(gaugeValues.get(2).getCaptureTime()).isEqualTo(3665000);
+        assertThat(gaugeValues.get(3).getCaptureTime()).isEqualTo(7260000);
+        assertThat(gaugeValues.get(3).getValue()).isEqualTo(500);
+    }
+
+    @Test
+    public void shouldRebuildBlockWithLateGaugeValue() throws Exception {
+        gaugeValueDao.truncateAll();
+        gaugeValueDao.store("one", createData(60013));
+        gaugeValueDao.rollup("one", null, true);
+
+        // late gauge value for the same interval, after the block has been built
+        gaugeValueDao.store("one", createData(65009));
+        gaugeValueDao.rollup("one", null, true);
+
+        // check
+        List<GaugeValue> gaugeValues =
+                gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 3600000, 0);
+        assertThat(gaugeValues).hasSize(2);
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
+    }
+
     private static List<GaugeValue> createData(int captureTime) {
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         gaugeValues.add(GaugeValue.newBuilder()
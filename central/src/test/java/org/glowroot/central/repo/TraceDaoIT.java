@@ -17,12 +17,17 @@ package org.glowroot.central.repo;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.live.ImmutableTracePointFilter;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
@@ -30,11 +35,19 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableErrorMessageFilter;
 import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageCount;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageFilter;
+import org.glowroot.common.repo.TraceRepository.ErrorMessagePoint;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageResult;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -62,9 +75,16 @@ public class TraceDaoIT {
         ConfigRepository configRepository = mock(ConfigRepository.class);
         when(configRepository.getStorageConfig())
                 .thenReturn(ImmutableCentralStorageConfig.builder().build());
-        traceDao = new TraceDao(session, new AgentDao(session, clusterManager),
-                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
-                mock(TraceAttributeNameDao.class), configRepository, Clock.systemClock());
+        when(configRepository.getRollupConfigs())
+                .thenReturn(ImmutableList.copyOf(RollupConfig.buildRollupConfigs()));
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session,
+                new AdaptiveConcurrencyLimiter(64, 1, 64, SECONDS.toNanos(10),
+                        Ticker.systemTicker()),
+                64);
+        traceDao = new TraceDao(session, writeCoalescer,
+                new AgentDao(session, clusterManager), mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), configRepository,
+                Clock.systemClock());
     }
 
     @AfterClass
@@ -216,4 +236,282 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadTraceWithUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user("J")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user("k")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceUsingIndex() throws Exception {
+        // given
+        long captureTime = System.currentTimeMillis();
+        Trace trace = createTrace("index test", captureTime);
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("index test")
+                .from(captureTime - 1)
+                .to(captureTime + 1)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user("j")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+        session.execute("truncate trace_tt_point_index");
+        Result<TracePoint> queryResultWithoutIndexRows =
+                traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        // the query range is after the index start time, so only the index is used
+        assertThat(queryResultWithoutIndexRows.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithLongUserUsingIndex() throws Exception {
+        // given
+        long captureTime = System.currentTimeMillis();
+        String user = Strings.repeat("u", 70000);
+        Trace trace = createTrace("long index test", captureTime);
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setUser(user))
+                .build();
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("long index test")
+                .from(captureTime - 1)
+                .to(captureTime + 1)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user(user)
+                .build();
+        TracePointFilter otherFilter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user(user + "x")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+        Result<TracePoint> otherQueryResult =
+                traceDao.readSlowPoints(AGENT_ROLLUP, query, otherFilter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(otherQueryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWrittenWithoutIndexRows() throws Exception {
+        // given
+        Trace trace = createTrace("no index test", 11);
+        traceDao.store(AGENT_ID, trace);
+        // simulate trace points that were written before the index existed
+        session.execute("truncate trace_tt_point_index");
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("no index test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .userComparator(StringComparator.EQUALS)
+                .user("j")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldReadRolledUpErrorMessages() throws Exception {
+        // given
+        String agentId = "error-rollup";
+        traceDao.store(agentId, createErrorTrace(30000, "A"));
+        traceDao.store(agentId, createErrorTrace(50000, "A"));
+        traceDao.store(agentId, createErrorTrace(90000, "B"));
+        traceDao.store(agentId, createErrorTrace(150000, "A"));
+        traceDao.rollupErrorMessages(agentId);
+        // remove the raw rows so that only rolled up rows can be read for the rolled up intervals
+        session.execute("delete from trace_tt_error_message where agent_rollup = ?"
+                + " and transaction_type = ?", agentId, "error test");
+        // stored after the rollup, so can only be read from the raw rows
+        traceDao.store(agentId, createErrorTrace(190000, "B"));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("error test")
+                .from(40000)
+                .to(200000)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder().build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(agentId, query, filter,
+                MINUTES.toMillis(1), 10);
+
+        // then
+        // the leading partial interval (40000, 60000] is read from the (now deleted) raw rows,
+        // so the error at 50000 is not found
+        assertThat(result.points()).hasSize(3);
+        assertPoint(result.points().get(0), 120000, 1);
+        assertPoint(result.points().get(1), 180000, 1);
+        assertPoint(result.points().get(2), 240000, 1);
+        assertThat(result.counts().records()).hasSize(2);
+        assertCount(result.counts().records().get(0), "B", 2);
+        assertCount(result.counts().records().get(1), "A", 1);
+    }
+
+    @Test
+    public void shouldReadRawErrorMessagesForIntervalNotRolledUpYet() throws Exception {
+        // given
+        String agentId = "error-late";
+        traceDao.store(agentId, createErrorTrace(30000, "A"));
+        traceDao.store(agentId, createErrorTrace(150000, "A"));
+        traceDao.rollupErrorMessages(agentId);
+        // stored after the rollup, for an interval prior to the newest rolled up interval
+        traceDao.store(agentId, createErrorTrace(90000, "B"));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("error test")
+                .from(0)
+                .to(180000)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder().build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(agentId, query, filter,
+                MINUTES.toMillis(1), 10);
+
+        // then
+        assertThat(result.points()).hasSize(3);
+        assertPoint(result.points().get(0), 60000, 1);
+        assertPoint(result.points().get(1), 120000, 1);
+        assertPoint(result.points().get(2), 180000, 1);
+        assertThat(result.counts().records()).hasSize(2);
+        assertCount(result.counts().records().get(0), "A", 2);
+        assertCount(result.counts().records().get(1), "B", 1);
+    }
+
+    @Test
+    public void shouldReadRawErrorMessagesWhenResolutionHasNoRollupLevel() throws Exception {
+        // given
+        String agentId = "error-raw";
+        traceDao.store(agentId, createErrorTrace(30000, "A"));
+        traceDao.store(agentId, createErrorTrace(90000, "A"));
+        traceDao.rollupErrorMessages(agentId);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("error test")
+                .transactionName("error transaction")
+                .from(0)
+                .to(120000)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder().build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(agentId, query, filter,
+                SECONDS.toMillis(30), 10);
+
+        // then
+        assertThat(result.points()).hasSize(2);
+        assertPoint(result.points().get(0), 30000, 1);
+        assertPoint(result.points().get(1), 90000, 1);
+        assertThat(result.counts().records()).hasSize(1);
+        assertCount(result.counts().records().get(0), "A", 2);
+    }
+
+    @Test
+    public void shouldInsertOneNeedsRollupPerTransactionPerOpenInterval() throws Exception {
+        // given
+        String agentId = "error-needs-rollup";
+        long captureTime = System.currentTimeMillis() + MINUTES.toMillis(2);
+
+        // when
+        traceDao.store(agentId, createErrorTrace(captureTime, "A"));
+        traceDao.store(agentId, createErrorTrace(captureTime, "B"));
+        traceDao.store(agentId, createErrorTrace(captureTime + 1, "A"));
+
+        // then
+        assertThat(session.execute("select keys from trace_error_message_needs_rollup_1"
+                + " where agent_rollup = ?", agentId).all()).hasSize(1);
+        // and the open interval is not rolled up yet
+        traceDao.rollupErrorMessages(agentId);
+        assertThat(session.execute("select keys from trace_error_message_needs_rollup_1"
+                + " where agent_rollup = ?", agentId).all()).hasSize(1);
+    }
+
+    private static Trace createTrace(String transactionType, long captureTime) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setStartTime(captureTime - 10)
+                        .setCaptureTime(captureTime)
+                        .setTransactionType(transactionType))
+                .build();
+    }
+
+    private static Trace createErrorTrace(long captureTime, String errorMessage) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setStartTime(captureTime - 10)
+                        .setCaptureTime(captureTime)
+                        .setTransactionType("error test")
+                        .setTransactionName("error transaction")
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage(errorMessage)))
+                .build();
+    }
+
+    private static void assertPoint(ErrorMessagePoint point, long captureTime, long errorCount) {
+        assertThat(point.captureTime()).isEqualTo(captureTime);
+        assertThat(point.errorCount()).isEqualTo(errorCount);
+    }
+
+    private static void assertCount(ErrorMessageCount count, String message, long value) {
+        assertThat(count.message()).isEqualTo(message);
+        assertThat(count.count()).isEqualTo(value);
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.central.util.AdaptiveConcurrencyLimiter.Priority;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    public void shouldLimitLowPriorityToHalf() {
+        // given
+        AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(10, 1, 100, SECONDS.toNanos(1), new FakeTicker());
+        // when
+        int lowPriorityAcquired = 0;
+        while (limiter.tryAcquire(Priority.LOW)) {
+            lowPriorityAcquired++;
+        }
+        int highPriorityAcquired = 0;
+        while (limiter.tryAcquire(Priority.HIGH)) {
+            highPriorityAcquired++;
+        }
+        // then
+        assertThat(lowPriorityAcquired).isEqualTo(5);
+        assertThat(highPriorityAcquired).isEqualTo(5);
+        assertThat(limiter.getInFlight()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldIncreaseLimitWhenUsed() {
+        // given
+        AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(10, 1, 100, SECONDS.toNanos(1), new FakeTicker());
+        // when
+        for (int i = 0; i < 10; i++) {
+            fill(limiter);
+            drain(limiter, MILLISECONDS.toNanos(10), false);
+        }
+        // then
+        assertThat(limiter.getLimit()).isGreaterThan(10);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotIncreaseLimitWhenNotUsed() {
+        // given
+        AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(10, 1, 100, SECONDS.toNanos(1), new FakeTicker());
+        // when
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire(Priority.HIGH);
+            limiter.release(MILLISECONDS.toNanos(10), false);
+        }
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldBackOffOncePerLatencyThreshold() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(100, 1, 100, SECONDS.toNanos(1), ticker);
+        // when
+        fill(limiter);
+        drain(limiter, MILLISECONDS.toNanos(10), true);
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(90);
+
+        // when
+        ticker.nanos += SECONDS.toNanos(1);
+        fill(limiter);
+        drain(limiter, SECONDS.toNanos(2), false);
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(81);
+    }
+
+    @Test
+    public void shouldNotBackOffBelowMinLimit() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(10, 8, 100, SECONDS.toNanos(1), ticker);
+        // when
+        for (int i = 0; i < 10; i++) {
+            ticker.nanos += SECONDS.toNanos(1);
+            limiter.tryAcquire(Priority.HIGH);
+            limiter.release(0, true);
+        }
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(8);
+    }
+
+    private static void fill(AdaptiveConcurrencyLimiter limiter) {
+        while (limiter.tryAcquire(Priority.HIGH)) {
+        }
+    }
+
+    private static void drain(AdaptiveConcurrencyLimiter limiter, long latencyNanos,
+            boolean dropped) {
+        while (limiter.getInFlight() > 0) {
+            limiter.release(latencyNanos, dropped);
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AlertCheckingExecutorTest {
+
+    @Test
+    public void shouldReplaceQueuedCheckWithSameKey() throws Exception {
+        // given
+        AlertCheckingExecutor executor = new AlertCheckingExecutor(1, Ticker.systemTicker());
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        List<String> checks = Lists.newCopyOnWriteArrayList();
+        executor.execute("a", "block", () -> awaitUninterruptibly(blockLatch));
+        // when
+        executor.execute("a", "key", () -> checks.add("first"));
+        executor.execute("a", "key", () -> checks.add("second"));
+        executor.execute("a", "done", doneLatch::countDown);
+        blockLatch.countDown();
+        doneLatch.await(10, SECONDS);
+        executor.close();
+        // then
+        assertThat(checks).containsExactly("second");
+        assertThat(executor.getDeduplicatedCount()).isEqualTo(1);
+        assertThat(executor.getCheckCount()).isEqualTo(3);
+        assertThat(executor.getQueueDepth()).isEqualTo(0);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
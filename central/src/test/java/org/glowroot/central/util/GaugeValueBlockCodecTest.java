@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlockCodecTest {
+
+    @Test
+    public void shouldRoundTripEmpty() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        // when
+        List<GaugeValue> decoded =
+                GaugeValueBlockCodec.decode(GaugeValueBlockCodec.encode(gaugeValues));
+        // then
+        assertThat(decoded).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripRegularSeries() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 720; i++) {
+            // a little jitter in capture time, similar to real collection
+            captureTime += 5000 + (i % 3 == 0 ? 1 : 0);
+            gaugeValues.add(newGaugeValue(captureTime, 1000 + (i % 10), 1));
+        }
+        // when
+        ByteBuffer encoded = GaugeValueBlockCodec.encode(gaugeValues);
+        List<GaugeValue> decoded = GaugeValueBlockCodec.decode(encoded);
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+        // vs 24 bytes per gauge value when stored uncompressed
+        assertThat(encoded.remaining()).isLessThan(720 * 3);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularSeries() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 1000; i++) {
+            captureTime += random.nextInt(100000);
+            double value = i % 7 == 0 ? Double.NaN : random.nextDouble() * random.nextInt();
+            gaugeValues.add(newGaugeValue(captureTime, value, random.nextLong()));
+        }
+        gaugeValues.add(newGaugeValue(captureTime + 1, -0.0, Long.MIN_VALUE));
+        gaugeValues.add(newGaugeValue(captureTime + 2, Double.MAX_VALUE, Long.MAX_VALUE));
+        // when
+        List<GaugeValue> decoded =
+                GaugeValueBlockCodec.decode(GaugeValueBlockCodec.encode(gaugeValues));
+        // then
+        assertThat(decoded).hasSameSizeAs(gaugeValues);
+        for (int i = 0; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            GaugeValue decodedGaugeValue = decoded.get(i);
+            assertThat(decodedGaugeValue.getCaptureTime()).isEqualTo(gaugeValue.getCaptureTime());
+            assertThat(Double.doubleToRawLongBits(decodedGaugeValue.getValue()))
+                    .isEqualTo(Double.doubleToRawLongBits(gaugeValue.getValue()));
+            assertThat(decodedGaugeValue.getWeight()).isEqualTo(gaugeValue.getWeight());
+        }
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
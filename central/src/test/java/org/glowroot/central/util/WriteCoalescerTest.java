@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WriteCoalescerTest {
+
+    @Test
+    public void shouldNotSplitSmallStatements() {
+        // given
+        List<BoundStatement> statements = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            statements.add(mockStatement(10));
+        }
+        // when
+        List<List<BoundStatement>> batches = WriteCoalescer.splitIntoBatches(statements);
+        // then
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).containsExactlyElementsOf(statements);
+    }
+
+    @Test
+    public void shouldSplitOnMaxStatements() {
+        // given
+        List<BoundStatement> statements = Lists.newArrayList();
+        for (int i = 0; i < WriteCoalescer.MAX_BATCH_STATEMENTS + 1; i++) {
+            statements.add(mockStatement(1));
+        }
+        // when
+        List<List<BoundStatement>> batches = WriteCoalescer.splitIntoBatches(statements);
+        // then
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(0)).hasSize(WriteCoalescer.MAX_BATCH_STATEMENTS);
+        assertThat(batches.get(1)).hasSize(1);
+    }
+
+    @Test
+    public void shouldSplitOnMaxBytes() {
+        // given
+        int statementBytes = WriteCoalescer.MAX_BATCH_BYTES / 3;
+        List<BoundStatement> statements = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            statements.add(mockStatement(statementBytes));
+        }
+        // when
+        List<List<BoundStatement>> batches = WriteCoalescer.splitIntoBatches(statements);
+        // then
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(0)).containsExactlyElementsOf(statements.subList(0, 3));
+        assertThat(batches.get(1)).containsExactlyElementsOf(statements.subList(3, 4));
+    }
+
+    @Test
+    public void shouldNotCombineOversizedStatement() {
+        // given
+        BoundStatement small = mockStatement(10);
+        BoundStatement oversized = mockStatement(WriteCoalescer.MAX_BATCH_BYTES * 2);
+        List<BoundStatement> statements = Lists.newArrayList(small, oversized, small);
+        // when
+        List<List<BoundStatement>> batches = WriteCoalescer.splitIntoBatches(statements);
+        // then
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(1)).containsExactly(oversized);
+    }
+
+    private static BoundStatement mockStatement(int bytes) {
+        ColumnDefinitions variables = mock(ColumnDefinitions.class);
+        when(variables.size()).thenReturn(2);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getVariables()).thenReturn(variables);
+        BoundStatement statement = mock(BoundStatement.class);
+        when(statement.preparedStatement()).thenReturn(preparedStatement);
+        when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.allocate(bytes));
+        // null values are not counted
+        when(statement.getBytesUnsafe(1)).thenReturn(null);
+        return statement;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// holds the data points (percentile aggregates or gauge values) for a single alert's time period
+// so that each alert check only needs to read the newest data points from storage, instead of
+// re-reading the whole time period on every check
+//
+// the window is rebuilt from storage when the rollup level changes, and periodically (see
+// REBUILD_MILLIS)
+abstract class AlertSlidingWindow<T> {
+
+    // data points for the most recent intervals can still change after they are first read (e.g.
+    // agent rollups being re-rolled up after data arrives late from one of the agents), so this
+    // much of the window (prior to the newest data point) is re-read on each check
+    private static final long REREAD_MILLIS = MINUTES.toMillis(5);
+
+    // this picks up data that arrives very late (e.g. replayed from an agent's disk spool)
+    private static final long REBUILD_MILLIS = MINUTES.toMillis(30);
+
+    // data points are kept for a little longer than the time period, since alert checks are done
+    // both right after data is received (using the capture time of the data as end time) and once
+    // a minute (using the current time as end time)
+    private static final long EXTRA_RETENTION_MILLIS = MINUTES.toMillis(5);
+
+    // capture time is the key
+    private final NavigableMap<Long, T> dataPoints = Maps.newTreeMap();
+
+    private int rollupLevel = -1;
+    // the window holds all data points with capture time in (coveredFrom, coveredTo]
+    private long coveredFrom;
+    private long coveredTo;
+    private long rebuildTime;
+
+    // returns data points with capture time in (startTime, endTime]
+    synchronized List<T> read(long startTime, long endTime, int rollupLevel) throws Exception {
+        long readFrom;
+        if (rollupLevel != this.rollupLevel || endTime > rebuildTime + REBUILD_MILLIS) {
+            dataPoints.clear();
+            this.rollupLevel = rollupLevel;
+            coveredFrom = startTime;
+            coveredTo = startTime;
+            rebuildTime = endTime;
+            readFrom = startTime;
+        } else {
+            if (startTime < coveredFrom) {
+                // only need to read the missing data points at the start of the window
+                addDataPoints(startTime, coveredFrom, rollupLevel);
+                coveredFrom = startTime;
+            }
+            long rereadFrom = Math.min(endTime, coveredTo);
+            if (!dataPoints.isEmpty()) {
+                rereadFrom = Math.min(rereadFrom, dataPoints.lastKey());
+            }
+            readFrom = Math.max(coveredFrom, rereadFrom - REREAD_MILLIS);
+        }
+        if (readFrom < endTime) {
+            addDataPoints(readFrom, endTime, rollupLevel);
+        }
+        coveredTo = Math.max(coveredTo, endTime);
+        long evictThrough = coveredTo - (endTime - startTime) - EXTRA_RETENTION_MILLIS;
+        if (evictThrough > coveredFrom) {
+            dataPoints.headMap(evictThrough, true).clear();
+            coveredFrom = evictThrough;
+        }
+        return ImmutableList.copyOf(dataPoints.subMap(startTime, false, endTime, true).values());
+    }
+
+    private void addDataPoints(long from, long to, int rollupLevel) throws Exception {
+        List<T> newDataPoints = readDataPoints(from, to, rollupLevel);
+        dataPoints.subMap(from, false, to, true).clear();
+        for (T dataPoint : newDataPoints) {
+            dataPoints.put(getCaptureTime(dataPoint), dataPoint);
+        }
+    }
+
+    // returns data points with capture time in (from, to]
+    abstract List<T> readDataPoints(long from, long to, int rollupLevel) throws Exception;
+
+    abstract long getCaptureTime(T dataPoint);
+}
@@ -20,6 +20,8 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.crypto.SecretKey;
 import javax.mail.Address;
@@ -30,8 +32,11 @@ import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.RateLimiter;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,10 +51,12 @@ import org.glowroot.common.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Formatting;
+import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -57,6 +64,12 @@ public class AlertingService {
 
     private static final Logger logger = LoggerFactory.getLogger(AlertingService.class);
 
+    // there is a window per agent per alert config, so the default may need to be raised for
+    // deployments with many agents and alert configs (otherwise windows are evicted and re-built
+    // from storage on every check)
+    private static final int MAX_ALERT_WINDOWS =
+            Integer.getInteger("glowroot.internal.maxAlertWindows", 1000);
+
     private final ConfigRepository configRepository;
     private final TriggeredAlertRepository triggeredAlertRepository;
     private final AggregateRepository aggregateRepository;
@@ -67,6 +80,22 @@ public class AlertingService {
     // limit missing smtp host configuration warning to once per hour
     private final RateLimiter smtpHostWarningRateLimiter = RateLimiter.create(1.0 / 3600);
 
+    // alert config is part of the key, so a config change results in a new window (built from
+    // storage) and the window for the prior config just expires
+    //
+    // size is bounded since there is a window per agent per alert config, and an evicted window
+    // is just re-built from storage the next time it is needed
+    private final Cache<AlertWindowKey, TransactionWindow> transactionWindows =
+            CacheBuilder.newBuilder()
+                    .maximumSize(MAX_ALERT_WINDOWS)
+                    .expireAfterAccess(1, HOURS)
+                    .build();
+    private final Cache<AlertWindowKey, GaugeWindow> gaugeWindows =
+            CacheBuilder.newBuilder()
+                    .maximumSize(MAX_ALERT_WINDOWS)
+                    .expireAfterAccess(1, HOURS)
+                    .build();
+
     public AlertingService(ConfigRepository configRepository,
             TriggeredAlertRepository triggeredAlertRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
@@ -114,15 +143,9 @@ public class AlertingService {
 
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
         List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(alertConfig.getTransactionType())
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+                getTransactionWindow(agentRollupId, alertConfig).read(startTime, endTime,
+                        rollupLevel);
         long transactionCount = 0;
         LazyHistogram durationNanosHistogram = new LazyHistogram();
         for (PercentileAggregate aggregate : percentileAggregates) {
@@ -157,9 +180,8 @@ public class AlertingService {
         double threshold = alertConfig.getGaugeThreshold().getValue();
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                alertConfig.getGaugeName(), startTime + 1, endTime, rollupLevel);
+        List<GaugeValue> gaugeValues =
+                getGaugeWindow(agentRollupId, alertConfig).read(startTime, endTime, rollupLevel);
         if (gaugeValues.isEmpty()) {
             return;
         }
@@ -197,6 +219,28 @@ public class AlertingService {
         }
     }
 
+    private TransactionWindow getTransactionWindow(final String agentRollupId,
+            final AlertConfig alertConfig) throws ExecutionException {
+        return transactionWindows.get(ImmutableAlertWindowKey.of(agentRollupId, alertConfig),
+                new Callable<TransactionWindow>() {
+                    @Override
+                    public TransactionWindow call() {
+                        return new TransactionWindow(agentRollupId, alertConfig);
+                    }
+                });
+    }
+
+    private GaugeWindow getGaugeWindow(final String agentRollupId, final AlertConfig alertConfig)
+            throws ExecutionException {
+        return gaugeWindows.get(ImmutableAlertWindowKey.of(agentRollupId, alertConfig),
+                new Callable<GaugeWindow>() {
+                    @Override
+                    public GaugeWindow call() {
+                        return new GaugeWindow(agentRollupId, alertConfig);
+                    }
+                });
+    }
+
     private void sendTransactionAlert(String agentRollupDisplay, AlertConfig alertConfig,
             boolean ok) throws Exception {
         // subject is the same between initial and ok messages so they will be threaded by gmail
@@ -356,4 +400,63 @@ public class AlertingService {
         }
         return Session.getInstance(props, authenticator);
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AlertWindowKey {
+        String agentRollupId();
+        AlertConfig alertConfig();
+    }
+
+    private class TransactionWindow extends AlertSlidingWindow<PercentileAggregate> {
+
+        private final String agentRollupId;
+        private final String transactionType;
+
+        private TransactionWindow(String agentRollupId, AlertConfig alertConfig) {
+            this.agentRollupId = agentRollupId;
+            this.transactionType = alertConfig.getTransactionType();
+        }
+
+        @Override
+        List<PercentileAggregate> readDataPoints(long from, long to, int rollupLevel)
+                throws Exception {
+            // from + 1 in order to not include the aggregate at from
+            return aggregateRepository.readPercentileAggregates(agentRollupId,
+                    ImmutableTransactionQuery.builder()
+                            .transactionType(transactionType)
+                            .from(from + 1)
+                            .to(to)
+                            .rollupLevel(rollupLevel)
+                            .build());
+        }
+
+        @Override
+        long getCaptureTime(PercentileAggregate dataPoint) {
+            return dataPoint.captureTime();
+        }
+    }
+
+    private class GaugeWindow extends AlertSlidingWindow<GaugeValue> {
+
+        private final String agentRollupId;
+        private final String gaugeName;
+
+        private GaugeWindow(String agentRollupId, AlertConfig alertConfig) {
+            this.agentRollupId = agentRollupId;
+            this.gaugeName = alertConfig.getGaugeName();
+        }
+
+        @Override
+        List<GaugeValue> readDataPoints(long from, long to, int rollupLevel) throws Exception {
+            // from + 1 in order to not include the gauge value at from
+            return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName, from + 1, to,
+                    rollupLevel);
+        }
+
+        @Override
+        long getCaptureTime(GaugeValue dataPoint) {
+            return dataPoint.getCaptureTime();
+        }
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AlertSlidingWindowTest {
+
+    private static final long ONE_MINUTE = MINUTES.toMillis(1);
+
+    @Test
+    public void shouldOnlyReadNewestDataPoints() throws Exception {
+        // given
+        TestWindow window = new TestWindow();
+        window.read(0, 60 * ONE_MINUTE, 0);
+        window.reads.clear();
+        // when
+        List<Long> dataPoints = window.read(ONE_MINUTE, 61 * ONE_MINUTE, 0);
+        // then
+        assertThat(window.reads).containsExactly(55 * ONE_MINUTE);
+        assertThat(dataPoints).hasSize(60);
+        assertThat(dataPoints.get(0)).isEqualTo(2 * ONE_MINUTE);
+        assertThat(dataPoints.get(59)).isEqualTo(61 * ONE_MINUTE);
+    }
+
+    @Test
+    public void shouldRebuildOnRollupLevelChange() throws Exception {
+        // given
+        TestWindow window = new TestWindow();
+        window.read(0, 60 * ONE_MINUTE, 0);
+        window.reads.clear();
+        // when
+        window.read(ONE_MINUTE, 61 * ONE_MINUTE, 1);
+        // then
+        assertThat(window.reads).containsExactly(ONE_MINUTE);
+    }
+
+    @Test
+    public void shouldOnlyReadMissingStartOfWindow() throws Exception {
+        // given
+        TestWindow window = new TestWindow();
+        window.read(ONE_MINUTE, 61 * ONE_MINUTE, 0);
+        window.reads.clear();
+        // when
+        List<Long> dataPoints = window.read(0, 60 * ONE_MINUTE, 0);
+        // then
+        assertThat(window.reads).containsExactly(0L, 55 * ONE_MINUTE);
+        assertThat(dataPoints).hasSize(60);
+        assertThat(dataPoints.get(0)).isEqualTo(ONE_MINUTE);
+    }
+
+    // one data point per minute
+    private static class TestWindow extends AlertSlidingWindow<Long> {
+
+        private final List<Long> reads = Lists.newArrayList();
+
+        @Override
+        List<Long> readDataPoints(long from, long to, int rollupLevel) {
+            reads.add(from);
+            List<Long> dataPoints = Lists.newArrayList();
+            for (long captureTime = from - from % ONE_MINUTE + ONE_MINUTE; captureTime <= to;
+                    captureTime += ONE_MINUTE) {
+                dataPoints.add(captureTime);
+            }
+            return dataPoints;
+        }
+
+        @Override
+        long getCaptureTime(Long dataPoint) {
+            return dataPoint;
+        }
+    }
+}
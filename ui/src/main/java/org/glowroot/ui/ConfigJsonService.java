@@ -374,6 +374,7 @@ class ConfigJsonService {
         abstract int maxAggregateQueriesPerType();
         abstract int maxAggregateServiceCallsPerType();
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
+        abstract @Nullable Integer maxTraceEntriesPerQuery(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
         abstract String version();
@@ -390,6 +391,7 @@ class ConfigJsonService {
                         .setMaxAggregateServiceCallsPerType(of(maxAggregateServiceCallsPerType()))
                         .setMaxTraceEntriesPerTransaction(
                                 of(checkNotNull(maxTraceEntriesPerTransaction())))
+                        .setMaxTraceEntriesPerQuery(of(checkNotNull(maxTraceEntriesPerQuery())))
                         .setMaxStackTraceSamplesPerTransaction(
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
                         .setMbeanGaugeNotFoundDelaySeconds(
@@ -417,6 +419,9 @@ class ConfigJsonService {
                                 config.getMaxAggregateServiceCallsPerType().getValue())
                         .maxTraceEntriesPerTransaction(
                                 config.getMaxTraceEntriesPerTransaction().getValue())
+                        // agent config stored prior to 0.9.16 does not have this setting
+                        .maxTraceEntriesPerQuery(config.hasMaxTraceEntriesPerQuery()
+                                ? config.getMaxTraceEntriesPerQuery().getValue() : 100)
                         .maxStackTraceSamplesPerTransaction(
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
                         .mbeanGaugeNotFoundDelaySeconds(
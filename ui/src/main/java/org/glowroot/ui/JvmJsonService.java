@@ -289,6 +289,11 @@ class JvmJsonService {
             totalCount += classInfo.getCount();
         }
         jg.writeEndArray();
+        if (heapHistogram.getTotalBytes() != 0) {
+            // totals include classes beyond the agent's class limit
+            totalBytes = heapHistogram.getTotalBytes();
+            totalCount = heapHistogram.getTotalCount();
+        }
         jg.writeNumberField("totalBytes", totalBytes);
         jg.writeNumberField("totalCount", totalCount);
         jg.writeEndObject();